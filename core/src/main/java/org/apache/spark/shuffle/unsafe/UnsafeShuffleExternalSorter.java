@@ -143,6 +143,24 @@ final class UnsafeShuffleExternalSorter {
     this.inMemSorter = new UnsafeShuffleInMemorySorter(initialSize);
   }
 
+  /**
+   * Sorts the in-memory records by partition id. This uses a radix sort if the memory for its
+   * temporary buffer can be acquired, and falls back to TimSort otherwise.
+   */
+  private UnsafeShuffleInMemorySorter.UnsafeShuffleSorterIterator sortInMemoryRecords() {
+    final long radixSortBufferSize = inMemSorter.getRadixSortBufferSize();
+    if (radixSortBufferSize == 0) {
+      // Nothing to sort, and the memory manager does not accept requests for zero bytes.
+      return inMemSorter.getSortedIterator(false);
+    }
+    final long memoryAcquired = shuffleMemoryManager.tryToAcquire(radixSortBufferSize);
+    try {
+      return inMemSorter.getSortedIterator(memoryAcquired == radixSortBufferSize);
+    } finally {
+      shuffleMemoryManager.release(memoryAcquired);
+    }
+  }
+
   /**
    * Sorts the in-memory records and writes the sorted records to an on-disk file.
    * This method does not free the sort data structures.
@@ -167,7 +185,7 @@ final class UnsafeShuffleExternalSorter {
 
     // This call performs the actual sort.
     final UnsafeShuffleInMemorySorter.UnsafeShuffleSorterIterator sortedRecords =
-      inMemSorter.getSortedIterator();
+      sortInMemoryRecords();
 
     // Currently, we need to open a new DiskBlockObjectWriter for each partition; we can avoid this
     // after SPARK-5581 is fixed.
@@ -20,6 +20,7 @@ package org.apache.spark.shuffle.unsafe;
 import java.util.Comparator;
 
 import org.apache.spark.util.collection.Sorter;
+import org.apache.spark.util.collection.unsafe.sort.RadixSort;
 
 final class UnsafeShuffleInMemorySorter {
 
@@ -66,6 +67,14 @@ final class UnsafeShuffleInMemorySorter {
     return pointerArray.length * 8L;
   }
 
+  /**
+   * @return the size, in bytes, of the temporary buffer that a radix sort of the records that have
+   *         been inserted so far needs.
+   */
+  public long getRadixSortBufferSize() {
+    return pointerArrayInsertPosition * 8L;
+  }
+
   /**
    * Inserts a record to be sorted.
    *
@@ -118,7 +127,28 @@ final class UnsafeShuffleInMemorySorter {
    * Return an iterator over record pointers in sorted order.
    */
   public UnsafeShuffleSorterIterator getSortedIterator() {
-    sorter.sort(pointerArray, 0, pointerArrayInsertPosition, SORT_COMPARATOR);
+    return getSortedIterator(false);
+  }
+
+  /**
+   * Return an iterator over record pointers in sorted order.
+   *
+   * @param useRadixSort if true, radix sort the records by the partition ids in the upper 24 bits
+   *                     of the packed pointers. This temporarily allocates a buffer of
+   *                     {@link #getRadixSortBufferSize()} bytes, which callers are expected to
+   *                     have reserved.
+   */
+  public UnsafeShuffleSorterIterator getSortedIterator(boolean useRadixSort) {
+    if (useRadixSort) {
+      final long[] sorted = RadixSort.sort(pointerArray, new long[pointerArrayInsertPosition],
+        pointerArrayInsertPosition, 5, 8);
+      if (sorted != pointerArray) {
+        // Keep the pointer array (and thus this sorter's memory usage) unchanged.
+        System.arraycopy(sorted, 0, pointerArray, 0, pointerArrayInsertPosition);
+      }
+    } else {
+      sorter.sort(pointerArray, 0, pointerArrayInsertPosition, SORT_COMPARATOR);
+    }
     return new UnsafeShuffleSorterIterator(pointerArrayInsertPosition, pointerArray);
   }
 }
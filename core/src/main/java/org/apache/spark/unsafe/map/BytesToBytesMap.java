@@ -31,7 +31,7 @@ import org.apache.spark.unsafe.Platform;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
 import org.apache.spark.unsafe.array.LongArray;
 import org.apache.spark.unsafe.bitset.BitSet;
-import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+import org.apache.spark.unsafe.hash.UnsafeHasher;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.unsafe.memory.MemoryLocation;
 import org.apache.spark.unsafe.memory.TaskMemoryManager;
@@ -54,13 +54,23 @@ import org.apache.spark.unsafe.memory.TaskMemoryManager;
  * This means that the first four bytes store the entire record (key + value) length. This format
  * is consistent with {@link org.apache.spark.util.collection.unsafe.sort.UnsafeExternalSorter},
  * so we can pass records from this map directly into the sorter to sort records in place.
+ *
+ * The hash table index supports two slot layouts. The default layout uses two longs per entry: the
+ * full encoded record address and the key's full hashcode. The compact layout packs the low
+ * {@link #COMPACT_HASH_BITS} bits of the hashcode and a
+ * {@link TaskMemoryManager#COMPACT_ADDRESS_BITS}-bit compact record address into a single long,
+ * which halves the index footprint at the cost of limiting data pages to
+ * {@link TaskMemoryManager#MAXIMUM_COMPACT_PAGE_SIZE_BYTES} and of comparing more keys on hash
+ * collisions.
+ *
+ * Keys are hashed with a pluggable {@link UnsafeHasher}, which is 32-bit Murmur3 by default. A
+ * 64-bit hasher such as {@link UnsafeHasher#XXH64} is faster on long keys and, since the default
+ * layout stores all 64 bits of the hashcode, makes false hash matches much rarer in large maps.
  */
 public final class BytesToBytesMap {
 
   private final Logger logger = LoggerFactory.getLogger(BytesToBytesMap.class);
 
-  private static final Murmur3_x86_32 HASHER = new Murmur3_x86_32(0);
-
   private static final HashMapGrowthStrategy growthStrategy = HashMapGrowthStrategy.DOUBLING;
 
   /**
@@ -99,25 +109,39 @@ public final class BytesToBytesMap {
   @VisibleForTesting
   static final int MAX_CAPACITY = (1 << 29);
 
+  /**
+   * The number of hashcode bits kept in each slot of the compact layout.
+   */
+  @VisibleForTesting
+  static final int COMPACT_HASH_BITS = 64 - TaskMemoryManager.COMPACT_ADDRESS_BITS;  // 27
+
+  private static final int COMPACT_HASH_MASK = (1 << COMPACT_HASH_BITS) - 1;
+
+  private static final long COMPACT_ADDRESS_MASK =
+    (1L << TaskMemoryManager.COMPACT_ADDRESS_BITS) - 1;
+
   // This choice of page table size and page size means that we can address up to 500 gigabytes
   // of memory.
 
   /**
    * A single array to store the key and value.
    *
-   * Position {@code 2 * i} in the array is used to track a pointer to the key at index {@code i},
-   * while position {@code 2 * i + 1} in the array holds key's full 32-bit hashcode.
+   * In the default layout, position {@code 2 * i} in the array is used to track a pointer to the
+   * key at index {@code i}, while position {@code 2 * i + 1} in the array holds key's full 32-bit
+   * hashcode. In the compact layout, position {@code i} holds the low {@link #COMPACT_HASH_BITS}
+   * bits of the hashcode in its upper bits and a compact pointer to the key in its lower bits.
    */
   @Nullable private LongArray longArray;
-  // TODO: we're wasting 32 bits of space here; we can probably store fewer bits of the hashcode
-  // and exploit word-alignment to use fewer bits to hold the address.  This might let us store
-  // only one long per map entry, increasing the chance that this array will fit in cache at the
-  // expense of maybe performing more lookups if we have hash collisions.  Say that we stored only
-  // 27 bits of the hashcode and 37 bits of the address.  37 bits is enough to address 1 terabyte
-  // of RAM given word-alignment.  If we use 13 bits of this for our page table, that gives us a
-  // maximum page size of 2^24 * 8 = ~134 megabytes per page. This change will require us to store
-  // full base addresses in the page table for off-heap mode so that we can reconstruct the full
-  // absolute memory addresses.
+
+  /**
+   * True if this map uses the single-long compact slot layout.
+   */
+  private final boolean compactSlots;
+
+  /**
+   * The hash function used for keys.
+   */
+  private final UnsafeHasher hasher;
 
   /**
    * A {@link BitSet} used to track location of the map where the key is set.
@@ -133,6 +157,11 @@ public final class BytesToBytesMap {
    */
   private final long pageSizeBytes;
 
+  /**
+   * The capacity that the map was created with, which {@link #reset()} goes back to.
+   */
+  private final int initialCapacity;
+
   /**
    * Number of keys defined in the map.
    */
@@ -174,12 +203,40 @@ public final class BytesToBytesMap {
       double loadFactor,
       long pageSizeBytes,
       boolean enablePerfMetrics) {
+    this(taskMemoryManager, shuffleMemoryManager, initialCapacity, loadFactor, pageSizeBytes,
+      enablePerfMetrics, false);
+  }
+
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      boolean compactSlots) {
+    this(taskMemoryManager, shuffleMemoryManager, initialCapacity, loadFactor, pageSizeBytes,
+      enablePerfMetrics, compactSlots, UnsafeHasher.MURMUR3_32);
+  }
+
+  public BytesToBytesMap(
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity,
+      double loadFactor,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      boolean compactSlots,
+      UnsafeHasher hasher) {
     this.taskMemoryManager = taskMemoryManager;
     this.shuffleMemoryManager = shuffleMemoryManager;
     this.loadFactor = loadFactor;
     this.loc = new Location();
     this.pageSizeBytes = pageSizeBytes;
     this.enablePerfMetrics = enablePerfMetrics;
+    this.compactSlots = compactSlots;
+    this.hasher = hasher;
+    this.initialCapacity = initialCapacity;
     if (initialCapacity <= 0) {
       throw new IllegalArgumentException("Initial capacity must be greater than 0");
     }
@@ -191,6 +248,10 @@ public final class BytesToBytesMap {
       throw new IllegalArgumentException("Page size " + pageSizeBytes + " cannot exceed " +
         TaskMemoryManager.MAXIMUM_PAGE_SIZE_BYTES);
     }
+    if (compactSlots && pageSizeBytes > TaskMemoryManager.MAXIMUM_COMPACT_PAGE_SIZE_BYTES) {
+      throw new IllegalArgumentException("Page size " + pageSizeBytes + " cannot exceed " +
+        TaskMemoryManager.MAXIMUM_COMPACT_PAGE_SIZE_BYTES + " when using compact slots");
+    }
     allocate(initialCapacity);
 
     // Acquire a new page as soon as we construct the map to ensure that we have at least
@@ -227,6 +288,11 @@ public final class BytesToBytesMap {
    */
   public int numElements() { return numElements; }
 
+  /**
+   * Returns true if this map stores each hash table entry in a single long.
+   */
+  public boolean usesCompactSlots() { return compactSlots; }
+
   public static final class BytesToBytesMapIterator implements Iterator<Location> {
 
     private final int numRecords;
@@ -347,8 +413,8 @@ public final class BytesToBytesMap {
     if (enablePerfMetrics) {
       numKeyLookups++;
     }
-    final int hashcode = HASHER.hashUnsafeWords(keyBaseObject, keyBaseOffset, keyRowLengthBytes);
-    int pos = hashcode & mask;
+    final long hashcode = hasher.hashUnsafeWords(keyBaseObject, keyBaseOffset, keyRowLengthBytes);
+    int pos = (int) hashcode & mask;
     int step = 1;
     while (true) {
       if (enablePerfMetrics) {
@@ -359,9 +425,16 @@ public final class BytesToBytesMap {
         loc.with(pos, hashcode, false);
         return;
       } else {
-        long stored = longArray.get(pos * 2 + 1);
-        if ((int) (stored) == hashcode) {
-          // Full hash code matches.  Let's compare the keys for equality.
+        final boolean hashMatches;
+        if (compactSlots) {
+          final long stored = longArray.get(pos);
+          final long storedHash = stored >>> TaskMemoryManager.COMPACT_ADDRESS_BITS;
+          hashMatches = storedHash == (hashcode & COMPACT_HASH_MASK);
+        } else {
+          hashMatches = longArray.get(pos * 2 + 1) == hashcode;
+        }
+        if (hashMatches) {
+          // Stored hash code matches.  Let's compare the keys for equality.
           loc.with(pos, hashcode, true);
           if (loc.getKeyLength() == keyRowLengthBytes) {
             final MemoryLocation keyAddress = loc.getKeyAddress();
@@ -402,7 +475,7 @@ public final class BytesToBytesMap {
      * {@link BytesToBytesMap#lookup(Object, long, int)}. Caching this hashcode here allows us to
      * avoid re-hashing the key when storing a value for that key.
      */
-    private int keyHashcode;
+    private long keyHashcode;
     private final MemoryLocation keyMemoryLocation = new MemoryLocation();
     private final MemoryLocation valueMemoryLocation = new MemoryLocation();
     private int keyLength;
@@ -433,14 +506,21 @@ public final class BytesToBytesMap {
       valueMemoryLocation.setObjAndOffset(page, position);
     }
 
-    private Location with(int pos, int keyHashcode, boolean isDefined) {
+    private Location with(int pos, long keyHashcode, boolean isDefined) {
       assert(longArray != null);
       this.pos = pos;
       this.isDefined = isDefined;
       this.keyHashcode = keyHashcode;
       if (isDefined) {
-        final long fullKeyAddress = longArray.get(pos * 2);
-        updateAddressesAndSizes(fullKeyAddress);
+        if (compactSlots) {
+          final long compactKeyAddress = longArray.get(pos) & COMPACT_ADDRESS_MASK;
+          updateAddressesAndSizes(
+            taskMemoryManager.getCompactAddressPage(compactKeyAddress),
+            taskMemoryManager.getCompactAddressOffsetInPage(compactKeyAddress));
+        } else {
+          final long fullKeyAddress = longArray.get(pos * 2);
+          updateAddressesAndSizes(fullKeyAddress);
+        }
       }
       return this;
     }
@@ -641,11 +721,18 @@ public final class BytesToBytesMap {
 
       numElements++;
       bitset.set(pos);
-      final long storedKeyAddress = taskMemoryManager.encodePageNumberAndOffset(
-        dataPage, recordOffset);
-      longArray.set(pos * 2, storedKeyAddress);
-      longArray.set(pos * 2 + 1, keyHashcode);
-      updateAddressesAndSizes(storedKeyAddress);
+      if (compactSlots) {
+        final long compactKeyAddress = taskMemoryManager.encodeCompactPageNumberAndOffset(
+          dataPage, recordOffset);
+        longArray.set(pos, compactSlot(keyHashcode, compactKeyAddress));
+        updateAddressesAndSizes(dataPageBaseObject, recordOffset);
+      } else {
+        final long storedKeyAddress = taskMemoryManager.encodePageNumberAndOffset(
+          dataPage, recordOffset);
+        longArray.set(pos * 2, storedKeyAddress);
+        longArray.set(pos * 2 + 1, keyHashcode);
+        updateAddressesAndSizes(storedKeyAddress);
+      }
       isDefined = true;
       if (numElements > growthThreshold && longArray.size() < MAX_CAPACITY) {
         growAndRehash();
@@ -683,7 +770,8 @@ public final class BytesToBytesMap {
     // The capacity needs to be divisible by 64 so that our bit set can be sized properly
     capacity = Math.max((int) Math.min(MAX_CAPACITY, ByteArrayMethods.nextPowerOf2(capacity)), 64);
     assert (capacity <= MAX_CAPACITY);
-    longArray = new LongArray(MemoryBlock.fromLongArray(new long[capacity * 2]));
+    final int longsPerSlot = compactSlots ? 1 : 2;
+    longArray = new LongArray(MemoryBlock.fromLongArray(new long[capacity * longsPerSlot]));
     bitset = new BitSet(MemoryBlock.fromLongArray(new long[capacity / 64]));
 
     this.growthThreshold = (int) (capacity * loadFactor);
@@ -710,6 +798,23 @@ public final class BytesToBytesMap {
     assert(dataPages.isEmpty());
   }
 
+  /**
+   * Frees all of this map's data pages and empties it, so that it can be filled again from
+   * scratch. This is used after the map's contents have been spilled to disk. The hash table goes
+   * back to its initial capacity.
+   *
+   * @return whether a new data page could be acquired; if not, the map is empty but cannot accept
+   *         any new keys until memory is freed elsewhere.
+   */
+  public boolean reset() {
+    free();
+    numElements = 0;
+    currentDataPage = null;
+    pageCursor = 0;
+    allocate(initialCapacity);
+    return acquireNewPage();
+  }
+
   public TaskMemoryManager getTaskMemoryManager() {
     return taskMemoryManager;
   }
@@ -802,11 +907,23 @@ public final class BytesToBytesMap {
     // Allocate the new data structures
     allocate(Math.min(growthStrategy.nextCapacity(oldCapacity), MAX_CAPACITY));
 
-    // Re-mask (we don't recompute the hashcode because we stored all 32 bits of it)
+    if (compactSlots) {
+      rehashCompactSlots(oldLongArray, oldBitSet);
+    } else {
+      rehashSlots(oldLongArray, oldBitSet);
+    }
+
+    if (enablePerfMetrics) {
+      timeSpentResizingNs += System.nanoTime() - resizeStartTime;
+    }
+  }
+
+  private void rehashSlots(LongArray oldLongArray, BitSet oldBitSet) {
+    // Re-mask (we don't recompute the hashcode because we stored all of it)
     for (int pos = oldBitSet.nextSetBit(0); pos >= 0; pos = oldBitSet.nextSetBit(pos + 1)) {
       final long keyPointer = oldLongArray.get(pos * 2);
-      final int hashcode = (int) oldLongArray.get(pos * 2 + 1);
-      int newPos = hashcode & mask;
+      final long hashcode = oldLongArray.get(pos * 2 + 1);
+      int newPos = (int) hashcode & mask;
       int step = 1;
       boolean keepGoing = true;
 
@@ -824,9 +941,38 @@ public final class BytesToBytesMap {
         }
       }
     }
+  }
 
-    if (enablePerfMetrics) {
-      timeSpentResizingNs += System.nanoTime() - resizeStartTime;
+  private void rehashCompactSlots(LongArray oldLongArray, BitSet oldBitSet) {
+    // The stored hash bits are enough to re-mask as long as the mask is no wider than them;
+    // beyond that we have to recompute the hashcode from the key.
+    final boolean storedHashCoversMask = mask <= COMPACT_HASH_MASK;
+    for (int pos = oldBitSet.nextSetBit(0); pos >= 0; pos = oldBitSet.nextSetBit(pos + 1)) {
+      final long slot = oldLongArray.get(pos);
+      final long hashcode;
+      if (storedHashCoversMask) {
+        hashcode = slot >>> TaskMemoryManager.COMPACT_ADDRESS_BITS;
+      } else {
+        final long compactKeyAddress = slot & COMPACT_ADDRESS_MASK;
+        final Object page = taskMemoryManager.getCompactAddressPage(compactKeyAddress);
+        final long recordOffset =
+          taskMemoryManager.getCompactAddressOffsetInPage(compactKeyAddress);
+        final int keyLength = Platform.getInt(page, recordOffset + 4);
+        hashcode = hasher.hashUnsafeWords(page, recordOffset + 8, keyLength);
+      }
+      int newPos = (int) hashcode & mask;
+      int step = 1;
+      while (bitset.isSet(newPos)) {
+        newPos = (newPos + step) & mask;
+        step++;
+      }
+      bitset.set(newPos);
+      longArray.set(newPos, slot);
     }
   }
+
+  private static long compactSlot(long hashcode, long compactKeyAddress) {
+    return ((hashcode & COMPACT_HASH_MASK) << TaskMemoryManager.COMPACT_ADDRESS_BITS) |
+      compactKeyAddress;
+  }
 }
@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.storage.BlockManager;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.hash.Murmur3_x86_32;
+import org.apache.spark.unsafe.memory.MemoryLocation;
+import org.apache.spark.unsafe.memory.TaskMemoryManager;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterIterator;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter;
+
+/**
+ * Spills the contents of a {@link BytesToBytesMap} to disk, hash-partitioned by key, so that a
+ * hash-based operator can keep aggregating in memory after the map fills up (hybrid hashing).
+ *
+ * Every call to {@link #spill(BytesToBytesMap)} splits the map's records into
+ * {@link #numPartitions()} partitions by a hash of the key and appends each non-empty partition
+ * to a spill file. Records with the same key always land in the same partition, so each partition
+ * can later be read back with {@link #readPartition(int)} and aggregated on its own. Because the
+ * partitions are disjoint in their keys, a partition that is still too large to aggregate in
+ * memory can be split again with a child spiller from {@link #newChildSpiller()}, which uses a
+ * different hash seed for its level.
+ *
+ * Records are written in the {@link UnsafeSorterSpillWriter} format with a key prefix of 0, and
+ * each record has the same layout as the map's own records minus the leading total length:
+ *
+ *   Bytes 0 to 4: len(k)
+ *   Bytes 4 to 4 + len(k): key data
+ *   Bytes 4 + len(k) to 4 + len(k) + len(v): value data
+ *
+ * The reader returned by {@link #readPartition(int)} deletes each spill file once it has been
+ * fully read; {@link #cleanup()} deletes whatever is left.
+ *
+ * Every spill writes out the whole map rather than only its coldest partitions. The map cannot
+ * remove individual entries, so a partition could only stay in memory by being copied into memory
+ * that the map just failed to acquire.
+ */
+public final class BytesToBytesMapSpiller {
+
+  private final Logger logger = LoggerFactory.getLogger(BytesToBytesMapSpiller.class);
+
+  /** The maximum recursion depth; a partition that still overflows at this level is an error. */
+  public static final int MAX_LEVEL = 8;
+
+  private static final int FILE_BUFFER_SIZE = 32 * 1024;
+
+  private final BlockManager blockManager;
+  private final TaskContext taskContext;
+  private final int numPartitions;
+  private final int level;
+  private final int seed;
+
+  /** Spill writers for each partition, in the order in which they were written. */
+  private final List<List<UnsafeSorterSpillWriter>> spillWriters;
+
+  private long numRecordsSpilled = 0L;
+
+  public BytesToBytesMapSpiller(
+      BlockManager blockManager,
+      TaskContext taskContext,
+      int numPartitions,
+      int level) {
+    if (numPartitions <= 1 || Integer.bitCount(numPartitions) != 1 || numPartitions > 128) {
+      throw new IllegalArgumentException(
+        "Number of partitions must be a power of 2 between 2 and 128, got " + numPartitions);
+    }
+    if (level < 0 || level > MAX_LEVEL) {
+      throw new IllegalArgumentException(
+        "Spill level must be between 0 and " + MAX_LEVEL + ", got " + level);
+    }
+    this.blockManager = blockManager;
+    this.taskContext = taskContext;
+    this.numPartitions = numPartitions;
+    this.level = level;
+    // The map itself hashes with seed 0; use a different seed on every level so that the keys of
+    // one partition are spread out again when that partition is split by a child spiller.
+    this.seed = 42 + level;
+    this.spillWriters = new ArrayList<List<UnsafeSorterSpillWriter>>(numPartitions);
+    for (int i = 0; i < numPartitions; i++) {
+      spillWriters.add(new LinkedList<UnsafeSorterSpillWriter>());
+    }
+  }
+
+  public int numPartitions() { return numPartitions; }
+
+  @VisibleForTesting
+  int level() { return level; }
+
+  /**
+   * Returns true if any records have been spilled through this spiller.
+   */
+  @VisibleForTesting
+  boolean hasSpilled() { return numRecordsSpilled > 0; }
+
+  /**
+   * Returns the number of records spilled through this spiller so far.
+   */
+  public long numRecordsSpilled() { return numRecordsSpilled; }
+
+  /**
+   * Returns the partition that a key belongs to at this spiller's level.
+   */
+  public int partitionOf(Object keyBaseObject, long keyBaseOffset, int keyLengthBytes) {
+    final int hash = Murmur3_x86_32.hashUnsafeWords(keyBaseObject, keyBaseOffset, keyLengthBytes,
+      seed);
+    return (hash >>> 16 ^ hash) & (numPartitions - 1);
+  }
+
+  /**
+   * Writes every record of the given map to this spiller's partition files. The map is left
+   * untouched; callers are expected to reset or free it afterwards.
+   *
+   * @return the number of bytes of map memory that were spilled.
+   */
+  public long spill(BytesToBytesMap map) throws IOException {
+    final int numRecords = map.numElements();
+    if (numRecords == 0) {
+      return 0L;
+    }
+    final long spillSize = map.getTotalMemoryConsumption();
+    logger.info("Thread {} spilling hash map of {} records ({} MB) into {} partitions at level {}",
+      Thread.currentThread().getId(), numRecords, spillSize / (1024 * 1024), numPartitions, level);
+
+    // Iterate over the map once, remembering the address and partition of every record. The
+    // spill writers need to know how many records they will receive up front.
+    final TaskMemoryManager memoryManager = map.getTaskMemoryManager();
+    final long[] recordAddresses = new long[numRecords];
+    final byte[] partitionOfRecord = new byte[numRecords];
+    final int[] recordsPerPartition = new int[numPartitions];
+    final BytesToBytesMap.BytesToBytesMapIterator iter = map.iterator();
+    int i = 0;
+    while (iter.hasNext()) {
+      final BytesToBytesMap.Location loc = iter.next();
+      final MemoryLocation key = loc.getKeyAddress();
+      final int partition = partitionOf(key.getBaseObject(), key.getBaseOffset(),
+        loc.getKeyLength());
+      // The record's total length and key length words sit immediately before the key.
+      recordAddresses[i] =
+        memoryManager.encodePageNumberAndOffset(loc.getMemoryPage(), key.getBaseOffset() - 8);
+      partitionOfRecord[i] = (byte) partition;
+      recordsPerPartition[partition]++;
+      i++;
+    }
+    final int[] partitionStarts = bucketByPartition(
+      recordAddresses, partitionOfRecord, recordsPerPartition);
+
+    // Write one partition at a time so that only a single file (and write buffer) is open at any
+    // point.
+    final ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+    for (int partition = 0; partition < numPartitions; partition++) {
+      if (recordsPerPartition[partition] == 0) {
+        continue;
+      }
+      final UnsafeSorterSpillWriter writer = new UnsafeSorterSpillWriter(
+        blockManager, FILE_BUFFER_SIZE, writeMetrics, recordsPerPartition[partition]);
+      spillWriters.get(partition).add(writer);
+      boolean success = false;
+      try {
+        for (i = partitionStarts[partition]; i < partitionStarts[partition + 1]; i++) {
+          final Object baseObject = memoryManager.getPage(recordAddresses[i]);
+          final long baseOffset = memoryManager.getOffsetInPage(recordAddresses[i]);
+          writer.write(baseObject, baseOffset + 4, Platform.getInt(baseObject, baseOffset), 0L);
+        }
+        writer.close();
+        success = true;
+      } finally {
+        if (!success) {
+          writer.revertPartialWritesAndClose();
+        }
+      }
+    }
+    numRecordsSpilled += numRecords;
+
+    if (taskContext != null) {
+      taskContext.taskMetrics().incMemoryBytesSpilled(spillSize);
+      taskContext.taskMetrics().incDiskBytesSpilled(writeMetrics.shuffleBytesWritten());
+    }
+    return spillSize;
+  }
+
+  /**
+   * Reorders the record addresses in place so that the records of each partition are contiguous,
+   * with partition 0 first. The order of the records within a partition is not preserved.
+   *
+   * @return the index of the first record of every partition, followed by the number of records.
+   */
+  private int[] bucketByPartition(
+      long[] recordAddresses,
+      byte[] partitionOfRecord,
+      int[] recordsPerPartition) {
+    final int[] partitionStarts = new int[numPartitions + 1];
+    for (int partition = 0; partition < numPartitions; partition++) {
+      partitionStarts[partition + 1] = partitionStarts[partition] + recordsPerPartition[partition];
+    }
+    // Swap every record that is not in its partition's range into the next free slot of that
+    // range, which moves each record at most once.
+    final int[] nextFree = new int[numPartitions];
+    System.arraycopy(partitionStarts, 0, nextFree, 0, numPartitions);
+    for (int partition = 0; partition < numPartitions; partition++) {
+      final int end = partitionStarts[partition + 1];
+      while (nextFree[partition] < end) {
+        final int i = nextFree[partition];
+        final int target = partitionOfRecord[i];
+        if (target == partition) {
+          nextFree[partition]++;
+        } else {
+          final int j = nextFree[target]++;
+          final long address = recordAddresses[i];
+          recordAddresses[i] = recordAddresses[j];
+          recordAddresses[j] = address;
+          partitionOfRecord[i] = partitionOfRecord[j];
+          partitionOfRecord[j] = (byte) target;
+        }
+      }
+    }
+    return partitionStarts;
+  }
+
+  /**
+   * Returns an iterator over all the records spilled into the given partition, in the order they
+   * were spilled. The partition's spill files are deleted as they are consumed. Each partition
+   * should be read at most once.
+   */
+  public UnsafeSorterIterator readPartition(int partition) throws IOException {
+    final List<UnsafeSorterSpillWriter> writers = spillWriters.get(partition);
+    final LinkedList<UnsafeSorterIterator> readers = new LinkedList<UnsafeSorterIterator>();
+    for (UnsafeSorterSpillWriter writer : writers) {
+      readers.add(writer.getReader(blockManager));
+    }
+    return new ChainedIterator(readers);
+  }
+
+  /**
+   * Returns true if the given partition has spilled records.
+   */
+  public boolean hasRecords(int partition) {
+    return !spillWriters.get(partition).isEmpty();
+  }
+
+  /**
+   * Creates a spiller for re-partitioning a single partition of this spiller.
+   */
+  public BytesToBytesMapSpiller newChildSpiller() {
+    if (level == MAX_LEVEL) {
+      throw new IllegalStateException(
+        "Hash partitions are still too large after " + MAX_LEVEL + " levels of spilling; " +
+        "the input is probably dominated by a few very large groups");
+    }
+    return new BytesToBytesMapSpiller(blockManager, taskContext, numPartitions, level + 1);
+  }
+
+  /**
+   * Deletes all spill files that have not been consumed yet. This method is idempotent.
+   */
+  public void cleanup() {
+    for (List<UnsafeSorterSpillWriter> writers : spillWriters) {
+      for (UnsafeSorterSpillWriter writer : writers) {
+        final File file = writer.getFile();
+        if (file != null && file.exists()) {
+          if (!file.delete()) {
+            logger.error("Was unable to delete spill file {}", file.getAbsolutePath());
+          }
+        }
+      }
+      writers.clear();
+    }
+  }
+
+  /**
+   * Reads a sequence of spill files back to back.
+   */
+  private static final class ChainedIterator extends UnsafeSorterIterator {
+
+    private final LinkedList<UnsafeSorterIterator> iterators;
+    private UnsafeSorterIterator current;
+
+    ChainedIterator(LinkedList<UnsafeSorterIterator> iterators) {
+      this.iterators = iterators;
+      this.current = iterators.isEmpty() ? null : iterators.remove();
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (current != null && !current.hasNext()) {
+        current = iterators.isEmpty() ? null : iterators.remove();
+      }
+      return current != null;
+    }
+
+    @Override
+    public void loadNext() throws IOException {
+      if (!hasNext()) {
+        throw new IllegalStateException("No more records to read");
+      }
+      current.loadNext();
+    }
+
+    @Override
+    public Object getBaseObject() { return current.getBaseObject(); }
+
+    @Override
+    public long getBaseOffset() { return current.getBaseOffset(); }
+
+    @Override
+    public int getRecordLength() { return current.getRecordLength(); }
+
+    @Override
+    public long getKeyPrefix() { return current.getKeyPrefix(); }
+  }
+
+  /**
+   * Returns the offset of the value within a record read back from a spill file.
+   */
+  @VisibleForTesting
+  static long valueOffset(Object recordBaseObject, long recordBaseOffset) {
+    return recordBaseOffset + 4 + Platform.getInt(recordBaseObject, recordBaseOffset);
+  }
+}
@@ -46,6 +46,13 @@ public class PrefixComparators {
     public static long computePrefix(UTF8String value) {
       return value == null ? 0L : value.getPrefix();
     }
+
+    /**
+     * Computes the second half of a 16-byte string prefix, for sorters with wide key prefixes.
+     */
+    public static long computeSecondPrefix(UTF8String value) {
+      return value == null ? 0L : value.getSecondPrefix();
+    }
   }
 
   public static final class StringPrefixComparatorDesc extends PrefixComparator {
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+/**
+ * Least-significant-digit radix sort over 64-bit keys, one byte per pass. The sort is stable, runs
+ * in O(n) time per pass, and needs a buffer as large as the data being sorted. Passes over bytes
+ * that are the same for every key are skipped, so keys that only differ in a few low bytes (such
+ * as shuffle partition ids or small integers) take only a few passes.
+ *
+ * Keys are compared as unsigned after being XOR-ed with a mask, which is how signed and descending
+ * orders are expressed; see {@link #keyMaskFor(PrefixComparator)}.
+ */
+public final class RadixSort {
+
+  private RadixSort() {}
+
+  /** Mask for comparing keys as unsigned longs, in ascending order. */
+  public static final long UNSIGNED_ASCENDING = 0L;
+
+  /** Mask for comparing keys as unsigned longs, in descending order. */
+  public static final long UNSIGNED_DESCENDING = -1L;
+
+  /** Mask for comparing keys as signed longs, in ascending order. */
+  public static final long SIGNED_ASCENDING = Long.MIN_VALUE;
+
+  /** Mask for comparing keys as signed longs, in descending order. */
+  public static final long SIGNED_DESCENDING = Long.MAX_VALUE;
+
+  /**
+   * Returns true if records ordered by the given prefix comparator can be radix sorted by their
+   * prefix, which is the case for the integral, string and binary comparators in
+   * {@link PrefixComparators}.
+   */
+  public static boolean canSort(PrefixComparator prefixComparator) {
+    return prefixComparator == PrefixComparators.LONG ||
+      prefixComparator == PrefixComparators.LONG_DESC ||
+      prefixComparator == PrefixComparators.STRING ||
+      prefixComparator == PrefixComparators.STRING_DESC ||
+      prefixComparator == PrefixComparators.BINARY ||
+      prefixComparator == PrefixComparators.BINARY_DESC;
+  }
+
+  /**
+   * Returns the key mask that gives the same order as the given prefix comparator.
+   *
+   * @throws IllegalArgumentException if {@link #canSort(PrefixComparator)} is false.
+   */
+  public static long keyMaskFor(PrefixComparator prefixComparator) {
+    if (prefixComparator == PrefixComparators.LONG) {
+      return SIGNED_ASCENDING;
+    } else if (prefixComparator == PrefixComparators.LONG_DESC) {
+      return SIGNED_DESCENDING;
+    } else if (prefixComparator == PrefixComparators.STRING ||
+        prefixComparator == PrefixComparators.BINARY) {
+      return UNSIGNED_ASCENDING;
+    } else if (prefixComparator == PrefixComparators.STRING_DESC ||
+        prefixComparator == PrefixComparators.BINARY_DESC) {
+      return UNSIGNED_DESCENDING;
+    } else {
+      throw new IllegalArgumentException("Cannot radix sort by " + prefixComparator);
+    }
+  }
+
+  /**
+   * Sorts the first {@code numRecords} longs of {@code array} by bytes {@code startByteIndex}
+   * (inclusive) to {@code endByteIndex} (exclusive) of each value, as an unsigned number.
+   *
+   * @param buffer scratch space of at least {@code numRecords} longs.
+   * @return the array holding the sorted values, which is either {@code array} or {@code buffer}.
+   */
+  public static long[] sort(
+      long[] array,
+      long[] buffer,
+      int numRecords,
+      int startByteIndex,
+      int endByteIndex) {
+    assert (startByteIndex >= 0 && endByteIndex <= 8 && startByteIndex < endByteIndex);
+    assert (buffer.length >= numRecords);
+    final int[][] counts = countBytes(array, 0, 1, numRecords, 0L, startByteIndex, endByteIndex);
+    long[] in = array;
+    long[] out = buffer;
+    for (int byteIndex = startByteIndex; byteIndex < endByteIndex; byteIndex++) {
+      final int[] byteCounts = counts[byteIndex - startByteIndex];
+      if (byteCounts == null) {
+        continue;
+      }
+      final int[] offsets = toOffsets(byteCounts);
+      final int shift = byteIndex * 8;
+      for (int i = 0; i < numRecords; i++) {
+        final long value = in[i];
+        out[offsets[(int) ((value >>> shift) & 0xff)]++] = value;
+      }
+      final long[] tmp = in;
+      in = out;
+      out = tmp;
+    }
+    return in;
+  }
+
+  /**
+   * Sorts the first {@code numRecords} (pointer, key prefix) pairs of {@code array}, which holds
+   * the pointer of record {@code i} at position {@code 2 * i} and its key prefix at position
+   * {@code 2 * i + 1}, by key prefix. Records with equal key prefixes keep their relative order.
+   *
+   * @param buffer scratch space of at least {@code 2 * numRecords} longs.
+   * @param keyMask the mask that the key prefixes are XOR-ed with before being compared as
+   *                unsigned longs.
+   * @return the array holding the sorted pairs, which is either {@code array} or {@code buffer}.
+   */
+  public static long[] sortKeyPrefixArray(
+      long[] array,
+      long[] buffer,
+      int numRecords,
+      long keyMask) {
+    return sortKeyPrefixArray(array, buffer, numRecords, 2, keyMask);
+  }
+
+  /**
+   * Like {@link #sortKeyPrefixArray(long[], long[], int, long)}, but for records of
+   * {@code stride} longs each: a pointer, the key prefix, and {@code stride - 2} more longs that
+   * are moved along with the record but not sorted by.
+   *
+   * @param buffer scratch space of at least {@code stride * numRecords} longs.
+   */
+  public static long[] sortKeyPrefixArray(
+      long[] array,
+      long[] buffer,
+      int numRecords,
+      int stride,
+      long keyMask) {
+    assert (stride >= 2);
+    assert (buffer.length >= (long) numRecords * stride);
+    final int[][] counts = countBytes(array, 1, stride, numRecords, keyMask, 0, 8);
+    long[] in = array;
+    long[] out = buffer;
+    for (int byteIndex = 0; byteIndex < 8; byteIndex++) {
+      final int[] byteCounts = counts[byteIndex];
+      if (byteCounts == null) {
+        continue;
+      }
+      final int[] offsets = toOffsets(byteCounts);
+      final int shift = byteIndex * 8;
+      if (stride == 2) {
+        for (int i = 0; i < numRecords * 2; i += 2) {
+          final long pointer = in[i];
+          final long prefix = in[i + 1];
+          final int dest = offsets[(int) (((prefix ^ keyMask) >>> shift) & 0xff)]++ * 2;
+          out[dest] = pointer;
+          out[dest + 1] = prefix;
+        }
+      } else {
+        for (int i = 0; i < numRecords * stride; i += stride) {
+          final long prefix = in[i + 1];
+          final int dest = offsets[(int) (((prefix ^ keyMask) >>> shift) & 0xff)]++ * stride;
+          System.arraycopy(in, i, out, dest, stride);
+        }
+      }
+      final long[] tmp = in;
+      in = out;
+      out = tmp;
+    }
+    return in;
+  }
+
+  /**
+   * Computes a histogram of every byte of the keys. The histogram of a byte is null if all keys
+   * have the same value in that byte, since that pass can be skipped.
+   */
+  private static int[][] countBytes(
+      long[] array,
+      int firstKey,
+      int stride,
+      int numRecords,
+      long keyMask,
+      int startByteIndex,
+      int endByteIndex) {
+    final int numBytes = endByteIndex - startByteIndex;
+    final int[][] counts = new int[numBytes][];
+    if (numRecords == 0) {
+      return counts;
+    }
+    // First find the bits that differ between keys, so we only count the bytes we have to sort by.
+    final long firstValue = array[firstKey] ^ keyMask;
+    long bitsChanged = 0L;
+    final int end = firstKey + numRecords * stride;
+    for (int i = firstKey; i < end; i += stride) {
+      bitsChanged |= (array[i] ^ keyMask) ^ firstValue;
+    }
+    for (int b = 0; b < numBytes; b++) {
+      if (((bitsChanged >>> ((startByteIndex + b) * 8)) & 0xff) != 0) {
+        counts[b] = new int[256];
+      }
+    }
+    for (int i = firstKey; i < end; i += stride) {
+      final long value = array[i] ^ keyMask;
+      for (int b = 0; b < numBytes; b++) {
+        if (counts[b] != null) {
+          counts[b][(int) ((value >>> ((startByteIndex + b) * 8)) & 0xff)]++;
+        }
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Turns a histogram into the starting position of every bucket.
+   */
+  private static int[] toOffsets(int[] counts) {
+    final int[] offsets = new int[256];
+    int running = 0;
+    for (int i = 0; i < 256; i++) {
+      offsets[i] = running;
+      running += counts[i];
+    }
+    return offsets;
+  }
+}
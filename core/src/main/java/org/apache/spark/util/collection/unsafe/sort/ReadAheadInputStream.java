@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.io.ByteStreams;
+
+import org.apache.spark.util.ThreadUtils;
+
+/**
+ * An input stream that reads ahead of its consumer on a background thread, so that reading many
+ * spill files in turn (as when merging them) does not stall on each file's I/O.
+ *
+ * The stream owns {@code depth} buffers of {@code bufferSize} bytes. While the consumer reads from
+ * one buffer, the others are filled from the underlying stream by a task on a shared I/O pool. At
+ * most one such task runs per stream, so the underlying stream is read sequentially.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+  private static final ExecutorService readAheadPool =
+    ThreadUtils.newDaemonCachedThreadPool("unsafe-spill-read-ahead", 32, 60);
+
+  private final InputStream underlying;
+  private final ExecutorService executor;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition bufferFilled = lock.newCondition();
+
+  // Guarded by lock:
+  private final ArrayDeque<byte[]> emptyBuffers = new ArrayDeque<byte[]>();
+  private final ArrayDeque<byte[]> filledBuffers = new ArrayDeque<byte[]>();
+  private final ArrayDeque<Integer> filledLengths = new ArrayDeque<Integer>();
+  private boolean readInProgress = false;
+  private boolean endOfStream = false;
+  private boolean closed = false;
+  private Throwable readException = null;
+
+  // Only used by the consuming thread:
+  private byte[] activeBuffer = null;
+  private int activePosition = 0;
+  private int activeLength = 0;
+
+  private final Runnable readTask = new Runnable() {
+    @Override
+    public void run() {
+      while (true) {
+        final byte[] buffer;
+        lock.lock();
+        try {
+          if (closed) {
+            readInProgress = false;
+            closeUnderlyingQuietly();
+            return;
+          }
+          if (endOfStream || readException != null || emptyBuffers.isEmpty()) {
+            readInProgress = false;
+            return;
+          }
+          buffer = emptyBuffers.poll();
+        } finally {
+          lock.unlock();
+        }
+        int bytesRead = 0;
+        Throwable error = null;
+        try {
+          bytesRead = ByteStreams.read(underlying, buffer, 0, buffer.length);
+        } catch (Throwable t) {
+          error = t;
+        }
+        lock.lock();
+        try {
+          if (error != null) {
+            readException = error;
+          } else {
+            if (bytesRead > 0) {
+              filledBuffers.add(buffer);
+              filledLengths.add(bytesRead);
+            } else {
+              emptyBuffers.add(buffer);
+            }
+            if (bytesRead < buffer.length) {
+              endOfStream = true;
+            }
+          }
+          bufferFilled.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  };
+
+  ReadAheadInputStream(InputStream underlying, int bufferSize, int depth) {
+    this(underlying, bufferSize, depth, readAheadPool);
+  }
+
+  ReadAheadInputStream(
+      InputStream underlying,
+      int bufferSize,
+      int depth,
+      ExecutorService executor) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize should be greater than 0, got " + bufferSize);
+    }
+    if (depth < 2) {
+      throw new IllegalArgumentException("depth should be at least 2, got " + depth);
+    }
+    this.underlying = underlying;
+    this.executor = executor;
+    for (int i = 0; i < depth; i++) {
+      emptyBuffers.add(new byte[bufferSize]);
+    }
+    lock.lock();
+    try {
+      startReadIfNeeded();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Must be called with the lock held. */
+  private void startReadIfNeeded() {
+    if (!readInProgress && !closed && !endOfStream && readException == null &&
+        !emptyBuffers.isEmpty()) {
+      readInProgress = true;
+      executor.execute(readTask);
+    }
+  }
+
+  private void closeUnderlyingQuietly() {
+    try {
+      underlying.close();
+    } catch (IOException e) {
+      // Nothing to do; the stream is no longer used.
+    }
+  }
+
+  /**
+   * Makes the next filled buffer the active one, waiting for it if necessary.
+   *
+   * @return false if the end of the stream has been reached.
+   */
+  private boolean nextBuffer() throws IOException {
+    lock.lock();
+    try {
+      if (activeBuffer != null) {
+        emptyBuffers.add(activeBuffer);
+        activeBuffer = null;
+      }
+      startReadIfNeeded();
+      while (filledBuffers.isEmpty()) {
+        if (readException != null) {
+          if (readException instanceof IOException) {
+            throw (IOException) readException;
+          }
+          throw new IOException("Read-ahead of spill file failed", readException);
+        }
+        if (endOfStream || closed) {
+          return false;
+        }
+        try {
+          bufferFilled.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+        }
+      }
+      activeBuffer = filledBuffers.poll();
+      activeLength = filledLengths.poll();
+      activePosition = 0;
+      startReadIfNeeded();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (activePosition == activeLength && !nextBuffer()) {
+      return -1;
+    }
+    return activeBuffer[activePosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (activePosition == activeLength && !nextBuffer()) {
+      return -1;
+    }
+    final int toCopy = Math.min(len, activeLength - activePosition);
+    System.arraycopy(activeBuffer, activePosition, b, off, toCopy);
+    activePosition += toCopy;
+    return toCopy;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      if (activePosition == activeLength && !nextBuffer()) {
+        break;
+      }
+      final int toSkip = (int) Math.min(n - skipped, activeLength - activePosition);
+      activePosition += toSkip;
+      skipped += toSkip;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return activeLength - activePosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      activeBuffer = null;
+      activePosition = 0;
+      activeLength = 0;
+      filledBuffers.clear();
+      filledLengths.clear();
+      if (readInProgress) {
+        // The read task closes the underlying stream once its current read finishes.
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    underlying.close();
+  }
+}
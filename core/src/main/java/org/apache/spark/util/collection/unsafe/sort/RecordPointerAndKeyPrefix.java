@@ -28,4 +28,10 @@ final class RecordPointerAndKeyPrefix {
    * A key prefix, for use in comparisons.
    */
   public long keyPrefix;
+
+  /**
+   * The second word of a wide key prefix, which breaks ties between equal key prefixes. Only set
+   * by sorters that keep wide key prefixes.
+   */
+  public long keyPrefix2;
 }
@@ -30,6 +30,8 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
 import org.apache.spark.TaskContext;
 import org.apache.spark.executor.ShuffleWriteMetrics;
 import org.apache.spark.shuffle.ShuffleMemoryManager;
@@ -49,6 +51,8 @@ public final class UnsafeExternalSorter {
 
   private final long pageSizeBytes;
   private final PrefixComparator prefixComparator;
+  /** Whether the in-memory sorters keep a second key prefix per record. */
+  private final boolean wideKeyPrefix;
   private final RecordComparator recordComparator;
   private final int initialSize;
   private final TaskMemoryManager taskMemoryManager;
@@ -60,6 +64,19 @@ public final class UnsafeExternalSorter {
   /** The buffer size to use when writing spills using DiskBlockObjectWriter */
   private final int fileBufferSizeBytes;
 
+  /**
+   * Memory for the buffers that spill files are read ahead into while they are merged, or 0 to
+   * read them synchronously.
+   */
+  private final long readAheadMemoryBytes;
+
+  @VisibleForTesting
+  static final int MIN_READ_AHEAD_BUFFER_SIZE = 32 * 1024;
+  @VisibleForTesting
+  static final int MAX_READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+  @VisibleForTesting
+  static final int MAX_READ_AHEAD_DEPTH = 4;
+
   /**
    * Memory pages that hold the records being sorted. The pages in this list are freed when
    * spilling, although in principle we could recycle these pages across spills (on the other hand,
@@ -70,6 +87,13 @@ public final class UnsafeExternalSorter {
 
   private final LinkedList<UnsafeSorterSpillWriter> spillWriters = new LinkedList<>();
 
+  /**
+   * Spill readers that read ahead on the background pool, which have to be closed if the merge is
+   * abandoned, and the shuffle memory acquired for their buffers.
+   */
+  private final LinkedList<UnsafeSorterSpillReader> readAheadReaders = new LinkedList<>();
+  private long readAheadMemoryAcquired = 0L;
+
   // These variables are reset after spilling:
   @Nullable private UnsafeInMemorySorter inMemSorter;
   // Whether the in-mem sorter is created internally, or passed in from outside.
@@ -91,7 +115,8 @@ public final class UnsafeExternalSorter {
       long pageSizeBytes,
       UnsafeInMemorySorter inMemorySorter) throws IOException {
     return new UnsafeExternalSorter(taskMemoryManager, shuffleMemoryManager, blockManager,
-      taskContext, recordComparator, prefixComparator, initialSize, pageSizeBytes, inMemorySorter);
+      taskContext, recordComparator, prefixComparator, initialSize, pageSizeBytes,
+      inMemorySorter.hasWideKeyPrefix(), inMemorySorter);
   }
 
   public static UnsafeExternalSorter create(
@@ -103,8 +128,28 @@ public final class UnsafeExternalSorter {
       PrefixComparator prefixComparator,
       int initialSize,
       long pageSizeBytes) throws IOException {
+    return create(taskMemoryManager, shuffleMemoryManager, blockManager, taskContext,
+      recordComparator, prefixComparator, initialSize, pageSizeBytes, false);
+  }
+
+  /**
+   * @param wideKeyPrefix if true, records are inserted with a 16-byte key prefix (see
+   *                      {@link #insertRecord(Object, long, int, long, long)}), whose second half
+   *                      breaks ties in the in-memory sort. Spill files only keep the first half.
+   */
+  public static UnsafeExternalSorter create(
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      BlockManager blockManager,
+      TaskContext taskContext,
+      RecordComparator recordComparator,
+      PrefixComparator prefixComparator,
+      int initialSize,
+      long pageSizeBytes,
+      boolean wideKeyPrefix) throws IOException {
     return new UnsafeExternalSorter(taskMemoryManager, shuffleMemoryManager, blockManager,
-      taskContext, recordComparator, prefixComparator, initialSize, pageSizeBytes, null);
+      taskContext, recordComparator, prefixComparator, initialSize, pageSizeBytes, wideKeyPrefix,
+      null);
   }
 
   private UnsafeExternalSorter(
@@ -116,6 +161,7 @@ public final class UnsafeExternalSorter {
       PrefixComparator prefixComparator,
       int initialSize,
       long pageSizeBytes,
+      boolean wideKeyPrefix,
       @Nullable UnsafeInMemorySorter existingInMemorySorter) throws IOException {
     this.taskMemoryManager = taskMemoryManager;
     this.shuffleMemoryManager = shuffleMemoryManager;
@@ -123,10 +169,15 @@ public final class UnsafeExternalSorter {
     this.taskContext = taskContext;
     this.recordComparator = recordComparator;
     this.prefixComparator = prefixComparator;
+    this.wideKeyPrefix = wideKeyPrefix;
     this.initialSize = initialSize;
     // Use getSizeAsKb (not bytes) to maintain backwards compatibility for units
     // this.fileBufferSizeBytes = (int) conf.getSizeAsKb("spark.shuffle.file.buffer", "32k") * 1024;
     this.fileBufferSizeBytes = 32 * 1024;
+    // SparkEnv is not set in some unit tests.
+    final SparkConf conf = SparkEnv.get() != null ? SparkEnv.get().conf() : new SparkConf(false);
+    this.readAheadMemoryBytes = conf.getBoolean("spark.unsafe.sorter.spill.readAhead", true) ?
+      conf.getSizeAsBytes("spark.unsafe.sorter.spill.readAheadMemory", "32m") : 0L;
     this.pageSizeBytes = pageSizeBytes;
     this.writeMetrics = new ShuffleWriteMetrics();
 
@@ -168,8 +219,8 @@ public final class UnsafeExternalSorter {
     // temporary hack that we should address in 1.6.0.
     // TODO: track the pointer array memory!
     this.writeMetrics = new ShuffleWriteMetrics();
-    this.inMemSorter =
-      new UnsafeInMemorySorter(taskMemoryManager, recordComparator, prefixComparator, initialSize);
+    this.inMemSorter = new UnsafeInMemorySorter(
+      taskMemoryManager, recordComparator, prefixComparator, initialSize, wideKeyPrefix);
     this.isInMemSorterExternal = false;
   }
 
@@ -182,6 +233,27 @@ public final class UnsafeExternalSorter {
     freeSpaceInCurrentPage = 0;
   }
 
+  /**
+   * Sorts the in-memory records. If their prefix comparator allows it, this uses a radix sort when
+   * the memory for its temporary buffer can be acquired, and falls back to TimSort otherwise.
+   */
+  private UnsafeInMemorySorter.SortedIterator sortInMemoryRecords() {
+    if (!inMemSorter.canUseRadixSort()) {
+      return inMemSorter.getSortedIterator();
+    }
+    final long radixSortBufferSize = inMemSorter.getRadixSortBufferSize();
+    if (radixSortBufferSize == 0) {
+      // Nothing to sort, and the memory manager does not accept requests for zero bytes.
+      return inMemSorter.getSortedIterator();
+    }
+    final long memoryAcquired = shuffleMemoryManager.tryToAcquire(radixSortBufferSize);
+    try {
+      return inMemSorter.getSortedIterator(memoryAcquired == radixSortBufferSize);
+    } finally {
+      shuffleMemoryManager.release(memoryAcquired);
+    }
+  }
+
   /**
    * Sort and spill the current records in response to memory pressure.
    */
@@ -200,15 +272,23 @@ public final class UnsafeExternalSorter {
         new UnsafeSorterSpillWriter(blockManager, fileBufferSizeBytes, writeMetrics,
           inMemSorter.numRecords());
       spillWriters.add(spillWriter);
-      final UnsafeSorterIterator sortedRecords = inMemSorter.getSortedIterator();
-      while (sortedRecords.hasNext()) {
-        sortedRecords.loadNext();
-        final Object baseObject = sortedRecords.getBaseObject();
-        final long baseOffset = sortedRecords.getBaseOffset();
-        final int recordLength = sortedRecords.getRecordLength();
-        spillWriter.write(baseObject, baseOffset, recordLength, sortedRecords.getKeyPrefix());
+      boolean success = false;
+      try {
+        final UnsafeSorterIterator sortedRecords = sortInMemoryRecords();
+        while (sortedRecords.hasNext()) {
+          sortedRecords.loadNext();
+          final Object baseObject = sortedRecords.getBaseObject();
+          final long baseOffset = sortedRecords.getBaseOffset();
+          final int recordLength = sortedRecords.getRecordLength();
+          spillWriter.write(baseObject, baseOffset, recordLength, sortedRecords.getKeyPrefix());
+        }
+        spillWriter.close();
+        success = true;
+      } finally {
+        if (!success) {
+          spillWriter.revertPartialWritesAndClose();
+        }
       }
-      spillWriter.close();
     }
 
     final long spillSize = freeMemory();
@@ -291,10 +371,30 @@ public final class UnsafeExternalSorter {
    * Frees this sorter's in-memory data structures and cleans up its spill files.
    */
   public void cleanupResources() {
+    closeReadAheadReaders();
     deleteSpillFiles();
     freeMemory();
   }
 
+  /**
+   * Stops reading ahead for a merge that may have been abandoned before all of its spills were
+   * read, and releases the memory of the read-ahead buffers.
+   */
+  private void closeReadAheadReaders() {
+    for (UnsafeSorterSpillReader reader : readAheadReaders) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        logger.error("Error closing spill reader", e);
+      }
+    }
+    readAheadReaders.clear();
+    if (readAheadMemoryAcquired > 0) {
+      shuffleMemoryManager.release(readAheadMemoryAcquired);
+      readAheadMemoryAcquired = 0L;
+    }
+  }
+
   /**
    * Checks whether there is enough space to insert an additional record in to the sort pointer
    * array and grows the array if additional space is required. If the required space cannot be
@@ -366,6 +466,19 @@ public final class UnsafeExternalSorter {
       long recordBaseOffset,
       int lengthInBytes,
       long prefix) throws IOException {
+    insertRecord(recordBaseObject, recordBaseOffset, lengthInBytes, prefix, 0L);
+  }
+
+  /**
+   * Write a record to the sorter, with a 16-byte key prefix. The second half of the prefix is
+   * ignored unless the sorter was created with wide key prefixes.
+   */
+  public void insertRecord(
+      Object recordBaseObject,
+      long recordBaseOffset,
+      int lengthInBytes,
+      long prefix,
+      long prefix2) throws IOException {
 
     growPointerArrayIfNecessary();
     // Need 4 bytes to store the record length.
@@ -415,7 +528,7 @@ public final class UnsafeExternalSorter {
     Platform.copyMemory(
       recordBaseObject, recordBaseOffset, dataPageBaseObject, dataPagePosition, lengthInBytes);
     assert(inMemSorter != null);
-    inMemSorter.insertRecord(recordAddress, prefix);
+    inMemSorter.insertRecord(recordAddress, prefix, prefix2);
   }
 
   /**
@@ -493,15 +606,38 @@ public final class UnsafeExternalSorter {
    */
   public UnsafeSorterIterator getSortedIterator() throws IOException {
     assert(inMemSorter != null);
-    final UnsafeInMemorySorter.SortedIterator inMemoryIterator = inMemSorter.getSortedIterator();
+    final UnsafeInMemorySorter.SortedIterator inMemoryIterator = sortInMemoryRecords();
     int numIteratorsToMerge = spillWriters.size() + (inMemoryIterator.hasNext() ? 1 : 0);
     if (spillWriters.isEmpty()) {
       return inMemoryIterator;
     } else {
       final UnsafeSorterSpillMerger spillMerger =
         new UnsafeSorterSpillMerger(recordComparator, prefixComparator, numIteratorsToMerge);
+      int readAheadBufferSize = readAheadBufferSize(readAheadMemoryBytes, spillWriters.size());
+      final int readAheadDepth =
+        readAheadDepth(readAheadMemoryBytes, spillWriters.size(), readAheadBufferSize);
+      if (readAheadBufferSize > 0) {
+        // The read-ahead buffers count against this task's execution memory. Read the spills
+        // synchronously if they cannot all be acquired.
+        final long readAheadMemory =
+          (long) readAheadBufferSize * readAheadDepth * spillWriters.size();
+        final long acquired = shuffleMemoryManager.tryToAcquire(readAheadMemory);
+        if (acquired < readAheadMemory) {
+          shuffleMemoryManager.release(acquired);
+          readAheadBufferSize = 0;
+        } else {
+          readAheadMemoryAcquired += acquired;
+        }
+      }
       for (UnsafeSorterSpillWriter spillWriter : spillWriters) {
-        spillMerger.addSpillIfNotEmpty(spillWriter.getReader(blockManager));
+        if (readAheadBufferSize > 0) {
+          final UnsafeSorterSpillReader reader =
+            spillWriter.getReader(blockManager, readAheadBufferSize, readAheadDepth);
+          readAheadReaders.add(reader);
+          spillMerger.addSpillIfNotEmpty(reader);
+        } else {
+          spillMerger.addSpillIfNotEmpty(spillWriter.getReader(blockManager));
+        }
       }
       spillWriters.clear();
       spillMerger.addSpillIfNotEmpty(inMemoryIterator);
@@ -509,4 +645,38 @@ public final class UnsafeExternalSorter {
       return spillMerger.getSortedIterator();
     }
   }
+
+  /**
+   * Splits the read-ahead memory between the spill files being merged. Each file gets two
+   * buffers (one being consumed while the other is filled), which shrink as the number of files
+   * grows but stay at most {@link #MAX_READ_AHEAD_BUFFER_SIZE}. If the memory cannot give every
+   * file two buffers of {@link #MIN_READ_AHEAD_BUFFER_SIZE}, read-ahead is turned off rather
+   * than going over the budget.
+   *
+   * @return the buffer size, or 0 if read-ahead is disabled.
+   */
+  @VisibleForTesting
+  static int readAheadBufferSize(long readAheadMemoryBytes, int numSpills) {
+    if (readAheadMemoryBytes <= 0 || numSpills == 0) {
+      return 0;
+    }
+    final long perBuffer = readAheadMemoryBytes / numSpills / 2;
+    if (perBuffer < MIN_READ_AHEAD_BUFFER_SIZE) {
+      return 0;
+    }
+    return (int) Math.min(MAX_READ_AHEAD_BUFFER_SIZE, perBuffer);
+  }
+
+  /**
+   * Returns the number of read-ahead buffers per spill file. Files get more than two buffers when
+   * there are few of them and the memory allows, to ride out longer stalls of the disk.
+   */
+  @VisibleForTesting
+  static int readAheadDepth(long readAheadMemoryBytes, int numSpills, int bufferSize) {
+    if (bufferSize <= 0) {
+      return 0;
+    }
+    final long perFile = readAheadMemoryBytes / numSpills;
+    return (int) Math.max(2, Math.min(MAX_READ_AHEAD_DEPTH, perFile / bufferSize));
+  }
 }
@@ -29,6 +29,16 @@ import org.apache.spark.unsafe.memory.TaskMemoryManager;
  * compares records, it will first compare the stored key prefixes; if the prefixes are not equal,
  * then we do not need to traverse the record pointers to compare the actual records. Avoiding these
  * random memory accesses improves cache hit rates.
+ *
+ * If the prefix comparator is one of the integral, string or binary comparators in
+ * {@link PrefixComparators}, the records can instead be radix sorted by their prefixes in linear
+ * time (see {@link #getSortedIterator(boolean)}); records with equal prefixes are then put in order
+ * by the record comparator.
+ *
+ * A sorter can also keep a wide, 16-byte key prefix per record (see
+ * {@link #UnsafeInMemorySorter(TaskMemoryManager, RecordComparator, PrefixComparator, int,
+ * boolean)}). The second word of the prefix is only compared when the first words are equal, which
+ * helps keys such as URLs that often share their first 8 bytes.
  */
 public final class UnsafeInMemorySorter {
 
@@ -37,19 +47,25 @@ public final class UnsafeInMemorySorter {
     private final RecordComparator recordComparator;
     private final PrefixComparator prefixComparator;
     private final TaskMemoryManager memoryManager;
+    private final boolean wideKeyPrefix;
 
     SortComparator(
         RecordComparator recordComparator,
         PrefixComparator prefixComparator,
-        TaskMemoryManager memoryManager) {
+        TaskMemoryManager memoryManager,
+        boolean wideKeyPrefix) {
       this.recordComparator = recordComparator;
       this.prefixComparator = prefixComparator;
       this.memoryManager = memoryManager;
+      this.wideKeyPrefix = wideKeyPrefix;
     }
 
     @Override
     public int compare(RecordPointerAndKeyPrefix r1, RecordPointerAndKeyPrefix r2) {
-      final int prefixComparisonResult = prefixComparator.compare(r1.keyPrefix, r2.keyPrefix);
+      int prefixComparisonResult = prefixComparator.compare(r1.keyPrefix, r2.keyPrefix);
+      if (prefixComparisonResult == 0 && wideKeyPrefix) {
+        prefixComparisonResult = prefixComparator.compare(r1.keyPrefix2, r2.keyPrefix2);
+      }
       if (prefixComparisonResult == 0) {
         final Object baseObject1 = memoryManager.getPage(r1.recordPointer);
         final long baseOffset1 = memoryManager.getOffsetInPage(r1.recordPointer) + 4; // skip length
@@ -66,9 +82,24 @@ public final class UnsafeInMemorySorter {
   private final Sorter<RecordPointerAndKeyPrefix, long[]> sorter;
   private final Comparator<RecordPointerAndKeyPrefix> sortComparator;
 
+  /**
+   * Whether the records can be radix sorted by their key prefixes, and if so, the mask that makes
+   * the prefixes compare as unsigned longs in the right order (see {@link RadixSort}).
+   */
+  private final boolean canUseRadixSort;
+  private final long radixSortKeyMask;
+
+  /**
+   * The number of longs per record in the pointer array: 2, or 3 if the sorter keeps a second key
+   * prefix per record.
+   */
+  private final int stride;
+
   /**
    * Within this buffer, position {@code 2 * i} holds a pointer pointer to the record at
    * index {@code i}, while position {@code 2 * i + 1} in the array holds an 8-byte key prefix.
+   * With wide key prefixes, the entries are three longs long, and position {@code 3 * i + 2}
+   * holds the second 8 bytes of the key prefix.
    */
   private long[] pointerArray;
 
@@ -82,30 +113,71 @@ public final class UnsafeInMemorySorter {
       final RecordComparator recordComparator,
       final PrefixComparator prefixComparator,
       int initialSize) {
+    this(memoryManager, recordComparator, prefixComparator, initialSize, false);
+  }
+
+  /**
+   * @param wideKeyPrefix if true, keep a second 8-byte key prefix per record, which is compared
+   *                      with the same prefix comparator when the first prefixes are equal. This
+   *                      makes the pointer array 50% larger.
+   */
+  public UnsafeInMemorySorter(
+      final TaskMemoryManager memoryManager,
+      final RecordComparator recordComparator,
+      final PrefixComparator prefixComparator,
+      int initialSize,
+      boolean wideKeyPrefix) {
     assert (initialSize > 0);
-    this.pointerArray = new long[initialSize * 2];
+    this.stride = wideKeyPrefix ? 3 : 2;
+    this.pointerArray = new long[initialSize * stride];
     this.memoryManager = memoryManager;
-    this.sorter = new Sorter<>(UnsafeSortDataFormat.INSTANCE);
-    this.sortComparator = new SortComparator(recordComparator, prefixComparator, memoryManager);
+    this.sorter = new Sorter<>(
+      wideKeyPrefix ? UnsafeSortDataFormat.WIDE_INSTANCE : UnsafeSortDataFormat.INSTANCE);
+    this.sortComparator =
+      new SortComparator(recordComparator, prefixComparator, memoryManager, wideKeyPrefix);
+    this.canUseRadixSort = RadixSort.canSort(prefixComparator);
+    this.radixSortKeyMask = canUseRadixSort ? RadixSort.keyMaskFor(prefixComparator) : 0L;
   }
 
   /**
    * @return the number of records that have been inserted into this sorter.
    */
   public int numRecords() {
-    return pointerArrayInsertPosition / 2;
+    return pointerArrayInsertPosition / stride;
+  }
+
+  /**
+   * @return true if this sorter keeps a second key prefix per record.
+   */
+  public boolean hasWideKeyPrefix() {
+    return stride == 3;
   }
 
   public long getMemoryUsage() {
     return pointerArray.length * 8L;
   }
 
+  /**
+   * @return true if {@link #getSortedIterator(boolean)} can radix sort the records.
+   */
+  public boolean canUseRadixSort() {
+    return canUseRadixSort;
+  }
+
+  /**
+   * @return the size, in bytes, of the temporary buffer that a radix sort of the records that have
+   *         been inserted so far needs.
+   */
+  public long getRadixSortBufferSize() {
+    return numRecords() * (long) stride * 8L;
+  }
+
   static long getMemoryRequirementsForPointerArray(long numEntries) {
     return numEntries * 2L * 8L;
   }
 
   public boolean hasSpaceForAnotherRecord() {
-    return pointerArrayInsertPosition + 2 < pointerArray.length;
+    return pointerArrayInsertPosition + stride < pointerArray.length;
   }
 
   public void expandPointerArray() {
@@ -124,6 +196,18 @@ public final class UnsafeInMemorySorter {
    * @param keyPrefix a user-defined key prefix
    */
   public void insertRecord(long recordPointer, long keyPrefix) {
+    insertRecord(recordPointer, keyPrefix, 0L);
+  }
+
+  /**
+   * Inserts a record to be sorted, with a wide key prefix. If this sorter does not keep wide key
+   * prefixes, the second prefix is ignored.
+   *
+   * @param recordPointer pointer to a record in a data page, encoded by {@link TaskMemoryManager}.
+   * @param keyPrefix the first 8 bytes of a user-defined key prefix
+   * @param keyPrefix2 the second 8 bytes of the key prefix
+   */
+  public void insertRecord(long recordPointer, long keyPrefix, long keyPrefix2) {
     if (!hasSpaceForAnotherRecord()) {
       expandPointerArray();
     }
@@ -131,6 +215,10 @@ public final class UnsafeInMemorySorter {
     pointerArrayInsertPosition++;
     pointerArray[pointerArrayInsertPosition] = keyPrefix;
     pointerArrayInsertPosition++;
+    if (stride == 3) {
+      pointerArray[pointerArrayInsertPosition] = keyPrefix2;
+      pointerArrayInsertPosition++;
+    }
   }
 
   public static final class SortedIterator extends UnsafeSorterIterator {
@@ -138,6 +226,7 @@ public final class UnsafeInMemorySorter {
     private final TaskMemoryManager memoryManager;
     private final int sortBufferInsertPosition;
     private final long[] sortBuffer;
+    private final int stride;
     private int position = 0;
     private Object baseObject;
     private long baseOffset;
@@ -147,10 +236,12 @@ public final class UnsafeInMemorySorter {
     private SortedIterator(
         TaskMemoryManager memoryManager,
         int sortBufferInsertPosition,
-        long[] sortBuffer) {
+        long[] sortBuffer,
+        int stride) {
       this.memoryManager = memoryManager;
       this.sortBufferInsertPosition = sortBufferInsertPosition;
       this.sortBuffer = sortBuffer;
+      this.stride = stride;
     }
 
     @Override
@@ -166,7 +257,7 @@ public final class UnsafeInMemorySorter {
       baseOffset = memoryManager.getOffsetInPage(recordPointer) + 4;  // Skip over record length
       recordLength = Platform.getInt(baseObject, baseOffset - 4);
       keyPrefix = sortBuffer[position + 1];
-      position += 2;
+      position += stride;
     }
 
     @Override
@@ -187,7 +278,49 @@ public final class UnsafeInMemorySorter {
    * {@code next()} will return the same mutable object.
    */
   public SortedIterator getSortedIterator() {
-    sorter.sort(pointerArray, 0, pointerArrayInsertPosition / 2, sortComparator);
-    return new SortedIterator(memoryManager, pointerArrayInsertPosition, pointerArray);
+    return getSortedIterator(false);
+  }
+
+  /**
+   * Return an iterator over record pointers in sorted order. For efficiency, all calls to
+   * {@code next()} will return the same mutable object.
+   *
+   * @param useRadixSort if true and {@link #canUseRadixSort()}, radix sort the records by key
+   *                     prefix. This temporarily allocates a buffer of
+   *                     {@link #getRadixSortBufferSize()} bytes, which callers are expected to
+   *                     have reserved.
+   */
+  public SortedIterator getSortedIterator(boolean useRadixSort) {
+    final int numRecords = numRecords();
+    if (useRadixSort && canUseRadixSort) {
+      radixSort(numRecords);
+    } else {
+      sorter.sort(pointerArray, 0, numRecords, sortComparator);
+    }
+    return new SortedIterator(memoryManager, pointerArrayInsertPosition, pointerArray, stride);
+  }
+
+  private void radixSort(int numRecords) {
+    final long[] buffer = new long[numRecords * stride];
+    final long[] sorted =
+      RadixSort.sortKeyPrefixArray(pointerArray, buffer, numRecords, stride, radixSortKeyMask);
+    if (sorted != pointerArray) {
+      // Keep the pointer array (and thus this sorter's memory usage) unchanged.
+      System.arraycopy(sorted, 0, pointerArray, 0, numRecords * stride);
+    }
+    // The radix sort only orders records by (the first word of the) key prefix, so records with
+    // equal prefixes still have to be put in order by the comparator.
+    int runStart = 0;
+    while (runStart < numRecords) {
+      final long prefix = pointerArray[runStart * stride + 1];
+      int runEnd = runStart + 1;
+      while (runEnd < numRecords && pointerArray[runEnd * stride + 1] == prefix) {
+        runEnd++;
+      }
+      if (runEnd - runStart > 1) {
+        sorter.sort(pointerArray, runStart, runEnd, sortComparator);
+      }
+      runStart = runEnd;
+    }
   }
 }
@@ -25,12 +25,22 @@ import org.apache.spark.util.collection.SortDataFormat;
  * <p>
  * Within each long[] buffer, position {@code 2 * i} holds a pointer pointer to the record at
  * index {@code i}, while position {@code 2 * i + 1} in the array holds an 8-byte key prefix.
+ * <p>
+ * {@link #WIDE_INSTANCE} sorts (record pointer, key prefix, second key prefix) triples instead,
+ * stored at positions {@code 3 * i} to {@code 3 * i + 2}.
  */
 final class UnsafeSortDataFormat extends SortDataFormat<RecordPointerAndKeyPrefix, long[]> {
 
-  public static final UnsafeSortDataFormat INSTANCE = new UnsafeSortDataFormat();
+  public static final UnsafeSortDataFormat INSTANCE = new UnsafeSortDataFormat(2);
+
+  public static final UnsafeSortDataFormat WIDE_INSTANCE = new UnsafeSortDataFormat(3);
 
-  private UnsafeSortDataFormat() { }
+  /** The number of longs per record. */
+  private final int stride;
+
+  private UnsafeSortDataFormat(int stride) {
+    this.stride = stride;
+  }
 
   @Override
   public RecordPointerAndKeyPrefix getKey(long[] data, int pos) {
@@ -45,36 +55,46 @@ final class UnsafeSortDataFormat extends SortDataFormat<RecordPointerAndKeyPrefi
 
   @Override
   public RecordPointerAndKeyPrefix getKey(long[] data, int pos, RecordPointerAndKeyPrefix reuse) {
-    reuse.recordPointer = data[pos * 2];
-    reuse.keyPrefix = data[pos * 2 + 1];
+    final int index = pos * stride;
+    reuse.recordPointer = data[index];
+    reuse.keyPrefix = data[index + 1];
+    if (stride == 3) {
+      reuse.keyPrefix2 = data[index + 2];
+    }
     return reuse;
   }
 
   @Override
   public void swap(long[] data, int pos0, int pos1) {
-    long tempPointer = data[pos0 * 2];
-    long tempKeyPrefix = data[pos0 * 2 + 1];
-    data[pos0 * 2] = data[pos1 * 2];
-    data[pos0 * 2 + 1] = data[pos1 * 2 + 1];
-    data[pos1 * 2] = tempPointer;
-    data[pos1 * 2 + 1] = tempKeyPrefix;
+    final int index0 = pos0 * stride;
+    final int index1 = pos1 * stride;
+    for (int i = 0; i < stride; i++) {
+      final long temp = data[index0 + i];
+      data[index0 + i] = data[index1 + i];
+      data[index1 + i] = temp;
+    }
   }
 
   @Override
   public void copyElement(long[] src, int srcPos, long[] dst, int dstPos) {
-    dst[dstPos * 2] = src[srcPos * 2];
-    dst[dstPos * 2 + 1] = src[srcPos * 2 + 1];
+    final int srcIndex = srcPos * stride;
+    final int dstIndex = dstPos * stride;
+    dst[dstIndex] = src[srcIndex];
+    dst[dstIndex + 1] = src[srcIndex + 1];
+    if (stride == 3) {
+      dst[dstIndex + 2] = src[srcIndex + 2];
+    }
   }
 
   @Override
   public void copyRange(long[] src, int srcPos, long[] dst, int dstPos, int length) {
-    System.arraycopy(src, srcPos * 2, dst, dstPos * 2, length * 2);
+    System.arraycopy(src, srcPos * stride, dst, dstPos * stride, length * stride);
   }
 
   @Override
   public long[] allocate(int length) {
-    assert (length < Integer.MAX_VALUE / 2) : "Length " + length + " is too large";
-    return new long[length * 2];
+    assert (length < Integer.MAX_VALUE / stride) : "Length " + length + " is too large";
+    return new long[length * stride];
   }
 
 }
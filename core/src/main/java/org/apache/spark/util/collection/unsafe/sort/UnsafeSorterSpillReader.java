@@ -29,9 +29,10 @@ import org.apache.spark.unsafe.Platform;
  * Reads spill files written by {@link UnsafeSorterSpillWriter} (see that class for a description
  * of the file format).
  */
-final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
+public final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
 
   private final File file;
+  private final boolean deleteFileWhenDone;
   private InputStream in;
   private DataInputStream din;
 
@@ -48,9 +49,43 @@ final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
       BlockManager blockManager,
       File file,
       BlockId blockId) throws IOException {
+    this(blockManager, file, blockId, 0, 0);
+  }
+
+  /**
+   * @param readAheadBufferSize if greater than 0, the file is read ahead of the consumer on a
+   *                            background thread, into buffers of this size.
+   * @param readAheadDepth the number of read-ahead buffers, at least 2 if read-ahead is used.
+   */
+  public UnsafeSorterSpillReader(
+      BlockManager blockManager,
+      File file,
+      BlockId blockId,
+      int readAheadBufferSize,
+      int readAheadDepth) throws IOException {
+    this(blockManager, file, blockId, readAheadBufferSize, readAheadDepth, true);
+  }
+
+  /**
+   * @param deleteFileWhenDone whether to delete the file once its last record has been read. Files
+   *                           that are kept can be read again by another reader.
+   */
+  public UnsafeSorterSpillReader(
+      BlockManager blockManager,
+      File file,
+      BlockId blockId,
+      int readAheadBufferSize,
+      int readAheadDepth,
+      boolean deleteFileWhenDone) throws IOException {
     assert (file.length() > 0);
     this.file = file;
-    final BufferedInputStream bs = new BufferedInputStream(new FileInputStream(file));
+    this.deleteFileWhenDone = deleteFileWhenDone;
+    final InputStream bs;
+    if (readAheadBufferSize > 0) {
+      bs = new ReadAheadInputStream(new FileInputStream(file), readAheadBufferSize, readAheadDepth);
+    } else {
+      bs = new BufferedInputStream(new FileInputStream(file));
+    }
     this.in = blockManager.wrapForCompression(blockId, bs);
     this.din = new DataInputStream(this.in);
     numRecordsRemaining = din.readInt();
@@ -72,10 +107,24 @@ final class UnsafeSorterSpillReader extends UnsafeSorterIterator {
     ByteStreams.readFully(in, arr, 0, recordLength);
     numRecordsRemaining--;
     if (numRecordsRemaining == 0) {
-      in.close();
-      file.delete();
-      in = null;
-      din = null;
+      close();
+      if (deleteFileWhenDone) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Closes the file before all of its records have been read. The file itself is left in place.
+   */
+  public void close() throws IOException {
+    if (in != null) {
+      try {
+        in.close();
+      } finally {
+        in = null;
+        din = null;
+      }
     }
   }
 
@@ -14,11 +14,14 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.spark.util.collection.unsafe.sort;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import scala.Tuple2;
 
@@ -34,22 +37,61 @@ import org.apache.spark.unsafe.Platform;
  * Spills a list of sorted records to disk. Spill files have the following format:
  *
  *   [# of records (int)] [[len (int)][prefix (long)][data (bytes)]...]
+ *
+ * When spills are not compressed (spark.shuffle.spill.compress is false; it is true by default),
+ * records are written straight to the file's channel with gathering writes. Each record header is
+ * staged in a direct buffer and followed by a view of the record itself if it lives off-heap, so
+ * off-heap pages reach the disk without being copied. Records in on-heap pages are copied once,
+ * into the staging buffer next to their header. Like {@link DiskBlockObjectWriter}, this path syncs
+ * the file on close if spark.shuffle.sync is set, and truncates the file back to empty if a write
+ * fails. The staging buffer is allocated off-heap on the first record written, and freed when the
+ * writer is closed or reverted; callers that give up on a spill part-way must call
+ * {@link #revertPartialWritesAndClose()} so that it is not leaked.
+ *
+ * Compressed spills, the default, do not use this path: they go through the compression stream of
+ * a {@link DiskBlockObjectWriter}, and every record is copied once into a large write buffer that
+ * is handed to the writer in one piece, bypassing the writer's own buffer. Feeding the compression
+ * stream from views of the pages would not save that copy, since the codecs only expose an
+ * {@link java.io.OutputStream}, which takes byte arrays; records in off-heap or long[] pages have
+ * to be copied into one either way.
  */
-final class UnsafeSorterSpillWriter {
+public final class UnsafeSorterSpillWriter {
 
   static final int DISK_WRITE_BUFFER_SIZE = 1024 * 1024;
 
-  // Small writes to DiskBlockObjectWriter will be fairly inefficient. Since there doesn't seem to
-  // be an API to directly transfer bytes from managed memory to the disk writer, we buffer
-  // data through a byte array.
-  private byte[] writeBuffer = new byte[DISK_WRITE_BUFFER_SIZE];
+  private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+  // The maximum number of buffers passed to a single gathering write, which stays within the
+  // IOV_MAX of common platforms.
+  private static final int MAX_BUFFERS_PER_WRITE = 1024;
 
   private final File file;
   private final BlockId blockId;
   private final int numRecordsToWrite;
-  private DiskBlockObjectWriter writer;
+  private final ShuffleWriteMetrics writeMetrics;
   private int numRecordsSpilled = 0;
 
+  // Used when writing through a DiskBlockObjectWriter. Small writes to the writer are fairly
+  // inefficient, so records are buffered and handed over in large chunks.
+  private DiskBlockObjectWriter writer;
+  private byte[] writeBuffer;
+  private int writeBufferPosition = 0;
+
+  // Used when writing directly to the file. The staging buffer holds record headers and copies of
+  // on-heap records; pendingBuffers are the slices and record views waiting to be written. The
+  // staging buffer is only allocated once there is a record to write, so empty spills and spills
+  // that fail before their first record never hold it.
+  private boolean syncWrites;
+  private FileOutputStream fileOutputStream;
+  private FileChannel channel;
+  private ByteBuffer stagingBuffer;
+  private long stagingAddress = 0L;
+  private int stagingPosition = 0;
+  private ByteBuffer[] pendingBuffers;
+  private int numPendingBuffers = 0;
+  private long bytesWrittenToChannel = 0L;
+  private int recordsWrittenToChannel = 0;
+
   public UnsafeSorterSpillWriter(
       BlockManager blockManager,
       int fileBufferSize,
@@ -60,15 +102,29 @@ final class UnsafeSorterSpillWriter {
     this.file = spilledFileInfo._2();
     this.blockId = spilledFileInfo._1();
     this.numRecordsToWrite = numRecordsToWrite;
-    // Unfortunately, we need a serializer instance in order to construct a DiskBlockObjectWriter.
-    // Our write path doesn't actually use this serializer (since we end up calling the `write()`
-    // OutputStream methods), but DiskBlockObjectWriter still calls some methods on it. To work
-    // around this, we pass a dummy no-op serializer.
-    writer = blockManager.getDiskWriter(
-      blockId, file, DummySerializerInstance.INSTANCE, fileBufferSize, writeMetrics);
-    // Write the number of records
-    writeIntToBuffer(numRecordsToWrite, 0);
-    writer.write(writeBuffer, 0, 4);
+    this.writeMetrics = writeMetrics;
+    if (!blockManager.shouldCompress(blockId) && Platform.canWrapOffHeapMemory()) {
+      syncWrites = blockManager.conf().getBoolean("spark.shuffle.sync", false);
+      fileOutputStream = new FileOutputStream(file, true);
+      channel = fileOutputStream.getChannel();
+      pendingBuffers = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+      // Write the number of records
+      final ByteBuffer numRecordsBuffer = ByteBuffer.allocate(4);
+      numRecordsBuffer.putInt(0, numRecordsToWrite);
+      pendingBuffers[numPendingBuffers++] = numRecordsBuffer;
+    } else {
+      writeBuffer = new byte[DISK_WRITE_BUFFER_SIZE];
+      // Unfortunately, we need a serializer instance in order to construct a
+      // DiskBlockObjectWriter. Our write path doesn't actually use this serializer (since we end up
+      // calling the `write()` OutputStream methods), but DiskBlockObjectWriter still calls some
+      // methods on it. To work around this, we pass a dummy no-op serializer.
+      writer = blockManager.getDiskWriter(
+        blockId, file, DummySerializerInstance.INSTANCE, fileBufferSize, writeMetrics);
+      // Write the number of records. This also opens the writer, which has to happen before
+      // recordWritten() is called.
+      writeIntToBuffer(numRecordsToWrite, 0);
+      writer.write(writeBuffer, 0, 4);
+    }
   }
 
   // Based on DataOutputStream.writeLong.
@@ -110,34 +166,200 @@ final class UnsafeSorterSpillWriter {
     } else {
       numRecordsSpilled++;
     }
-    writeIntToBuffer(recordLength, 0);
-    writeLongToBuffer(keyPrefix, 4);
+    if (channel != null) {
+      try {
+        writeToChannel(baseObject, baseOffset, recordLength, keyPrefix);
+      } catch (IOException e) {
+        revertChannelWritesAndClose();
+        throw e;
+      }
+      writeMetrics.incShuffleRecordsWritten(1);
+      recordsWrittenToChannel++;
+    } else {
+      writeToWriter(baseObject, baseOffset, recordLength, keyPrefix);
+      writer.recordWritten();
+    }
+  }
+
+  private void writeToWriter(
+      Object baseObject,
+      long baseOffset,
+      int recordLength,
+      long keyPrefix) throws IOException {
+    if (writeBufferPosition + RECORD_HEADER_SIZE > DISK_WRITE_BUFFER_SIZE) {
+      flushWriteBuffer();
+    }
+    writeIntToBuffer(recordLength, writeBufferPosition);
+    writeLongToBuffer(keyPrefix, writeBufferPosition + 4);
+    writeBufferPosition += RECORD_HEADER_SIZE;
     int dataRemaining = recordLength;
-    int freeSpaceInWriteBuffer = DISK_WRITE_BUFFER_SIZE - 4 - 8; // space used by prefix + len
     long recordReadPosition = baseOffset;
     while (dataRemaining > 0) {
-      final int toTransfer = Math.min(freeSpaceInWriteBuffer, dataRemaining);
+      if (writeBufferPosition == DISK_WRITE_BUFFER_SIZE) {
+        flushWriteBuffer();
+      }
+      final int toTransfer = Math.min(DISK_WRITE_BUFFER_SIZE - writeBufferPosition, dataRemaining);
       Platform.copyMemory(
         baseObject,
         recordReadPosition,
         writeBuffer,
-        Platform.BYTE_ARRAY_OFFSET + (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer),
+        Platform.BYTE_ARRAY_OFFSET + writeBufferPosition,
         toTransfer);
-      writer.write(writeBuffer, 0, (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer) + toTransfer);
+      writeBufferPosition += toTransfer;
       recordReadPosition += toTransfer;
       dataRemaining -= toTransfer;
-      freeSpaceInWriteBuffer = DISK_WRITE_BUFFER_SIZE;
     }
-    if (freeSpaceInWriteBuffer < DISK_WRITE_BUFFER_SIZE) {
-      writer.write(writeBuffer, 0, (DISK_WRITE_BUFFER_SIZE - freeSpaceInWriteBuffer));
+  }
+
+  private void flushWriteBuffer() throws IOException {
+    if (writeBufferPosition > 0) {
+      writer.write(writeBuffer, 0, writeBufferPosition);
+      writeBufferPosition = 0;
+    }
+  }
+
+  private void writeToChannel(
+      Object baseObject,
+      long baseOffset,
+      int recordLength,
+      long keyPrefix) throws IOException {
+    if (stagingBuffer == null) {
+      stagingAddress = Platform.allocateMemory(DISK_WRITE_BUFFER_SIZE);
+      stagingBuffer = Platform.wrapOffHeapMemory(stagingAddress, DISK_WRITE_BUFFER_SIZE);
+    }
+    final boolean offHeap = baseObject == null;
+    // Keep small on-heap records in one piece if they fit in a fresh staging buffer.
+    final int stagingNeeded =
+      Math.min(RECORD_HEADER_SIZE + (offHeap ? 0 : recordLength), DISK_WRITE_BUFFER_SIZE);
+    if (numPendingBuffers + 2 > MAX_BUFFERS_PER_WRITE ||
+        stagingPosition + stagingNeeded > DISK_WRITE_BUFFER_SIZE) {
+      flushPendingBuffers();
+    }
+    int sliceStart = stagingPosition;
+    stagingBuffer.putInt(stagingPosition, recordLength);
+    stagingBuffer.putLong(stagingPosition + 4, keyPrefix);
+    stagingPosition += RECORD_HEADER_SIZE;
+    if (offHeap) {
+      addPendingBuffer(sliceStart, RECORD_HEADER_SIZE);
+      if (recordLength > 0) {
+        pendingBuffers[numPendingBuffers++] = Platform.wrapOffHeapMemory(baseOffset, recordLength);
+      }
+    } else {
+      int dataRemaining = recordLength;
+      long recordReadPosition = baseOffset;
+      while (true) {
+        final int toTransfer = Math.min(DISK_WRITE_BUFFER_SIZE - stagingPosition, dataRemaining);
+        Platform.copyMemory(
+          baseObject, recordReadPosition, null, stagingAddress + stagingPosition, toTransfer);
+        stagingPosition += toTransfer;
+        recordReadPosition += toTransfer;
+        dataRemaining -= toTransfer;
+        addPendingBuffer(sliceStart, stagingPosition - sliceStart);
+        if (dataRemaining == 0) {
+          break;
+        }
+        flushPendingBuffers();
+        sliceStart = 0;
+      }
+    }
+  }
+
+  private void addPendingBuffer(int position, int length) {
+    final ByteBuffer slice = stagingBuffer.duplicate();
+    slice.position(position);
+    slice.limit(position + length);
+    pendingBuffers[numPendingBuffers++] = slice;
+  }
+
+  private void flushPendingBuffers() throws IOException {
+    long bytesToWrite = 0;
+    for (int i = 0; i < numPendingBuffers; i++) {
+      bytesToWrite += pendingBuffers[i].remaining();
+    }
+    final long writeStartTime = System.nanoTime();
+    long bytesWritten = 0;
+    while (bytesWritten < bytesToWrite) {
+      bytesWritten += channel.write(pendingBuffers, 0, numPendingBuffers);
     }
-    writer.recordWritten();
+    writeMetrics.incShuffleWriteTime(System.nanoTime() - writeStartTime);
+    writeMetrics.incShuffleBytesWritten(bytesWritten);
+    bytesWrittenToChannel += bytesWritten;
+    Arrays.fill(pendingBuffers, 0, numPendingBuffers, null);
+    numPendingBuffers = 0;
+    stagingPosition = 0;
   }
 
   public void close() throws IOException {
-    writer.commitAndClose();
-    writer = null;
-    writeBuffer = null;
+    if (channel != null) {
+      try {
+        flushPendingBuffers();
+        if (syncWrites) {
+          final long syncStartTime = System.nanoTime();
+          fileOutputStream.getFD().sync();
+          writeMetrics.incShuffleWriteTime(System.nanoTime() - syncStartTime);
+        }
+      } catch (IOException e) {
+        revertChannelWritesAndClose();
+        throw e;
+      }
+      closeChannel();
+    } else {
+      flushWriteBuffer();
+      writer.commitAndClose();
+      writer = null;
+      writeBuffer = null;
+    }
+  }
+
+  private void closeChannel() throws IOException {
+    try {
+      fileOutputStream.close();
+    } finally {
+      if (stagingAddress != 0L) {
+        Platform.freeMemory(stagingAddress);
+        stagingAddress = 0L;
+      }
+      fileOutputStream = null;
+      channel = null;
+      stagingBuffer = null;
+      pendingBuffers = null;
+    }
+  }
+
+  /**
+   * Discards everything written to the spill file so far and closes it, releasing the staging
+   * buffer. Callers use this when a spill fails before {@link #close()} has been called; it does
+   * nothing if the writer is already closed. Like
+   * {@link DiskBlockObjectWriter#revertPartialWritesAndClose()}, this does not throw.
+   */
+  public void revertPartialWritesAndClose() {
+    if (channel != null) {
+      revertChannelWritesAndClose();
+    } else if (writer != null) {
+      writer.revertPartialWritesAndClose();
+      writer = null;
+      writeBuffer = null;
+    }
+  }
+
+  /**
+   * Discards everything written to the file so far and closes it, like
+   * {@link DiskBlockObjectWriter#revertPartialWritesAndClose()}. This does not throw; if the file
+   * cannot be truncated, the error is suppressed and the original failure is reported instead.
+   */
+  private void revertChannelWritesAndClose() {
+    writeMetrics.decShuffleBytesWritten(bytesWrittenToChannel);
+    writeMetrics.decShuffleRecordsWritten(recordsWrittenToChannel);
+    try {
+      channel.truncate(0);
+    } catch (IOException e) {
+      // The caller reports the original failure.
+    }
+    try {
+      closeChannel();
+    } catch (IOException e) {
+      // The caller reports the original failure.
+    }
   }
 
   public File getFile() {
@@ -147,4 +369,24 @@ final class UnsafeSorterSpillWriter {
   public UnsafeSorterSpillReader getReader(BlockManager blockManager) throws IOException {
     return new UnsafeSorterSpillReader(blockManager, file, blockId);
   }
+
+  /**
+   * Returns a reader that reads the spill file ahead of its consumer on a background thread; see
+   * {@link ReadAheadInputStream}.
+   */
+  public UnsafeSorterSpillReader getReader(
+      BlockManager blockManager,
+      int readAheadBufferSize,
+      int readAheadDepth) throws IOException {
+    return new UnsafeSorterSpillReader(
+      blockManager, file, blockId, readAheadBufferSize, readAheadDepth);
+  }
+
+  /**
+   * Returns a reader that leaves the spill file in place after reading it, so that the file can be
+   * read any number of times. The caller is responsible for deleting the file.
+   */
+  public UnsafeSorterSpillReader getRereadableReader(BlockManager blockManager) throws IOException {
+    return new UnsafeSorterSpillReader(blockManager, file, blockId, 0, 0, false);
+  }
 }
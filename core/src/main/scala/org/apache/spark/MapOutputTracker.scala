@@ -170,7 +170,18 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
    */
   def getMapSizesByExecutorId(shuffleId: Int, reduceId: Int)
   : Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
-    logDebug(s"Fetching outputs for shuffle $shuffleId, reduce $reduceId")
+    getMapSizesByExecutorId(shuffleId, reduceId, reduceId + 1)
+  }
+
+  /**
+   * Gets the server URIs and output sizes of the shuffle blocks of the reduce partitions from
+   * startPartition (inclusive) to endPartition (exclusive). The blocks of each map output are
+   * listed one after another, in reduce id order.
+   * 获取从startPartition到endPartition(不含)的reduce分区的Shuffle块,每个map输出的块按reduce id依次列出
+   */
+  def getMapSizesByExecutorId(shuffleId: Int, startPartition: Int, endPartition: Int)
+  : Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
+    logDebug(s"Fetching outputs for shuffle $shuffleId, partitions $startPartition-$endPartition")
     val startTime = System.currentTimeMillis
     //1)从当前BlockManager的MapOutputTracker中获取MapStatuses,若没有就进入2)
     val statuses = mapStatuses.get(shuffleId).orNull
@@ -219,23 +230,38 @@ private[spark] abstract class MapOutputTracker(conf: SparkConf) extends Logging
           }
         }
       }
-      logDebug(s"Fetching map output location for shuffle $shuffleId, reduce $reduceId took " +
-        s"${System.currentTimeMillis - startTime} ms")
+      logDebug(s"Fetching map output location for shuffle $shuffleId, partitions " +
+        s"$startPartition-$endPartition took ${System.currentTimeMillis - startTime} ms")
 
       if (fetchedStatuses != null) {
         fetchedStatuses.synchronized {
-          return MapOutputTracker.convertMapStatuses(shuffleId, reduceId, fetchedStatuses)
+          return MapOutputTracker.convertMapStatuses(
+            shuffleId, startPartition, endPartition, fetchedStatuses)
         }
       } else {
         logError("Missing all output locations for shuffle " + shuffleId)
         throw new MetadataFetchFailedException(
-          shuffleId, reduceId, "Missing all output locations for shuffle " + shuffleId)
+          shuffleId, startPartition, "Missing all output locations for shuffle " + shuffleId)
       }
     } else {
       //调用MapOutputTracker的convertMapStatuses方法,
       //获得MapStatus转换为Map任务所在的地址(BlockManagerId)和 Map任务输出中分配给当前reduce任务的Block大小
       statuses.synchronized {
-        return MapOutputTracker.convertMapStatuses(shuffleId, reduceId, statuses)
+        return MapOutputTracker.convertMapStatuses(shuffleId, startPartition, endPartition, statuses)
+      }
+    }
+  }
+
+  /**
+   * Returns the ids of the task attempts that wrote the map outputs of a shuffle, indexed by map
+   * id, with -1 for outputs whose attempt is not known. Only the statuses that were already
+   * fetched by [[getMapSizesByExecutorId]] are looked at; returns None if there are none, e.g.
+   * because they were cleared by a newer epoch in the meantime.
+   */
+  def getMapTaskIds(shuffleId: Int): Option[Array[Long]] = {
+    mapStatuses.get(shuffleId).map { statuses =>
+      statuses.synchronized {
+        statuses.map(status => if (status == null) -1L else status.mapTaskId)
       }
     }
   }
@@ -522,7 +548,8 @@ private[spark] object MapOutputTracker extends Logging {
     * 如果任何状态为空(指示由于失败的映射器而导致的缺失位置),则抛出FetchFailedException。
    *	map任务地址转换
    * @param shuffleId Identifier for the shuffle
-   * @param reduceId Identifier for the reduce task
+   * @param startPartition Start of the range of reduce partitions (inclusive)
+   * @param endPartition End of the range of reduce partitions (exclusive)
    * @param statuses List of map statuses, indexed by map ID.
    * @return A sequence of 2-item tuples, where the first item in the tuple is a BlockManagerId,
    *         and the second item is a sequence of (shuffle block id, shuffle block size) tuples
@@ -532,7 +559,8 @@ private[spark] object MapOutputTracker extends Logging {
    */
   private def convertMapStatuses(
       shuffleId: Int,
-      reduceId: Int,
+      startPartition: Int,
+      endPartition: Int,
       statuses: Array[MapStatus]): Seq[(BlockManagerId, Seq[(BlockId, Long)])] = {
     assert (statuses != null)
     val splitsByAddress = new HashMap[BlockManagerId, ArrayBuffer[(BlockId, Long)]]
@@ -540,10 +568,12 @@ private[spark] object MapOutputTracker extends Logging {
       if (status == null) {
         val errorMessage = s"Missing an output location for shuffle $shuffleId"
         logError(errorMessage)
-        throw new MetadataFetchFailedException(shuffleId, reduceId, errorMessage)
+        throw new MetadataFetchFailedException(shuffleId, startPartition, errorMessage)
       } else {
-        splitsByAddress.getOrElseUpdate(status.location, ArrayBuffer()) +=
-          ((ShuffleBlockId(shuffleId, mapId, reduceId), status.getSizeForBlock(reduceId)))
+        for (reduceId <- startPartition until endPartition) {
+          splitsByAddress.getOrElseUpdate(status.location, ArrayBuffer()) +=
+            ((ShuffleBlockId(shuffleId, mapId, reduceId), status.getSizeForBlock(reduceId)))
+        }
       }
     }
 
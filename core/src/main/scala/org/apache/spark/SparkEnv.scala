@@ -124,6 +124,8 @@ class SparkEnv(
       blockManager.master.stop()
       metricsSystem.stop()
       outputCommitCoordinator.stop()
+      //将池中保留的(可能是堆外的)内存归还分配器
+      executorMemoryManager.releasePooledMemory()
       rpcEnv.shutdown()
 
       // Unfortunately Akka's awaitTermination doesn't actually wait for the Netty server to shut
@@ -495,7 +497,10 @@ object SparkEnv extends Logging {
       } else {
         MemoryAllocator.HEAP//org.apache.spark.unsafe.memory.HeapMemoryAllocator
       }
-      new ExecutorMemoryManager(allocator)
+      //为相同大小的空闲内存块保留的最大字节数,超出部分直接归还分配器
+      val maxPooledBytes = conf.getSizeAsBytes("spark.unsafe.memoryPool.maxBytes",
+        ExecutorMemoryManager.DEFAULT_MAX_POOLED_BYTES.toString)
+      new ExecutorMemoryManager(allocator, maxPooledBytes)
     }
     //创建SparkEnv
     val envInstance = new SparkEnv(
@@ -94,6 +94,7 @@ class ExternalShuffleService(sparkConf: SparkConf, securityManager: SecurityMana
       server.close()
       server = null
     }
+    blockHandler.close()
   }
 }
 
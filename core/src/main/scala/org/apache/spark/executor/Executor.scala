@@ -94,7 +94,8 @@ private[spark] class Executor(
   //创建Executor执行Task的线程池
   private val threadPool = ThreadUtils.newDaemonCachedThreadPool("Executor task launch worker")
   //用于测量系统
-  private val executorSource = new ExecutorSource(threadPool, executorId)
+  private val executorSource =
+    new ExecutorSource(threadPool, executorId, env.executorMemoryManager)
   //非本地模块,注册executorSource
   if (!isLocal) {
     env.metricsSystem.registerSource(executorSource)
@@ -312,6 +313,8 @@ private[spark] class Executor(
           m.setJvmGCTime(computeTotalGcTime() - startGCTime)
           //执行结果序列化消耗的时间
           m.setResultSerializationTime(afterSerialization - beforeSerialization) 
+          //页表同时持有的最大页数
+          m.setPeakPageTableOccupancy(taskMemoryManager.getPeakNumAllocatedPages)
           //更新累加器值
           m.updateAccumulators()
         }
@@ -25,9 +25,13 @@ import com.codahale.metrics.{Gauge, MetricRegistry}
 import org.apache.hadoop.fs.FileSystem
 
 import org.apache.spark.metrics.source.Source
+import org.apache.spark.unsafe.memory.ExecutorMemoryManager
 
 private[spark]
-class ExecutorSource(threadPool: ThreadPoolExecutor, executorId: String) extends Source {
+class ExecutorSource(
+    threadPool: ThreadPoolExecutor,
+    executorId: String,
+    memoryManager: ExecutorMemoryManager) extends Source {
  //用于测量系统
   private def fileStats(scheme: String) : Option[FileSystem.Statistics] =
     FileSystem.getAllStatistics().find(s => s.getScheme.equals(scheme))
@@ -68,6 +72,21 @@ class ExecutorSource(threadPool: ThreadPoolExecutor, executorId: String) extends
     override def getValue: Int = threadPool.getMaximumPoolSize()
   })
 
+  // Gauges for the executor memory manager's pool of freed blocks
+  //执行器内存管理器中空闲内存块池的统计信息
+  metricRegistry.register(MetricRegistry.name("memoryPool", "pooledBytes"), new Gauge[Long] {
+    override def getValue: Long = memoryManager.getPooledBytes()
+  })
+  metricRegistry.register(MetricRegistry.name("memoryPool", "hits"), new Gauge[Long] {
+    override def getValue: Long = memoryManager.getPoolHits()
+  })
+  metricRegistry.register(MetricRegistry.name("memoryPool", "misses"), new Gauge[Long] {
+    override def getValue: Long = memoryManager.getPoolMisses()
+  })
+  metricRegistry.register(MetricRegistry.name("memoryPool", "trims"), new Gauge[Long] {
+    override def getValue: Long = memoryManager.getPoolTrims()
+  })
+
   // Gauge for file system stats of this executor
   //此执行器的文件系统统计信息
   for (scheme <- Array("hdfs", "file")) {
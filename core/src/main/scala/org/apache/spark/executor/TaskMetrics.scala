@@ -113,6 +113,14 @@ class TaskMetrics extends Serializable {
   private[spark] def incDiskBytesSpilled(value: Long): Unit = _diskBytesSpilled += value
   private[spark] def decDiskBytesSpilled(value: Long): Unit = _diskBytesSpilled -= value
 
+  /**
+   * The largest number of pages this task held in its TaskMemoryManager's page table at once
+   * 任务的TaskMemoryManager页表中同时持有的最大页数
+   */
+  private var _peakPageTableOccupancy: Int = _
+  def peakPageTableOccupancy: Int = _peakPageTableOccupancy
+  private[spark] def setPeakPageTableOccupancy(value: Int): Unit = _peakPageTableOccupancy = value
+
   /**
    * If this task reads from a HadoopRDD or from persisted data, metrics on how much data was read
    * are stored here.
@@ -226,6 +234,9 @@ class TaskMetrics extends Serializable {
       val merged = new ShuffleReadMetrics()
       for (depMetrics <- depsShuffleReadMetrics) {
         merged.incFetchWaitTime(depMetrics.fetchWaitTime)
+        for ((host, waitTime) <- depMetrics.fetchWaitTimeByHost) {
+          merged.incFetchWaitTimeForHost(host, waitTime)
+        }
         merged.incLocalBlocksFetched(depMetrics.localBlocksFetched)
         merged.incRemoteBlocksFetched(depMetrics.remoteBlocksFetched)
         merged.incRemoteBytesRead(depMetrics.remoteBytesRead)
@@ -414,6 +425,17 @@ class ShuffleReadMetrics extends Serializable {
   private[spark] def incFetchWaitTime(value: Long) = _fetchWaitTime += value
   private[spark] def decFetchWaitTime(value: Long) = _fetchWaitTime -= value
 
+  /**
+   * [[fetchWaitTime]] broken down by the host that the awaited block came from, which shows
+   * whether a slow shuffle read is caused by a few slow hosts or is spread across all of them.
+   */
+  private var _fetchWaitTimeByHost: Map[String, Long] = Map.empty
+  def fetchWaitTimeByHost: Map[String, Long] = _fetchWaitTimeByHost
+  private[spark] def incFetchWaitTimeForHost(host: String, value: Long) = {
+    _fetchWaitTimeByHost =
+      _fetchWaitTimeByHost.updated(host, _fetchWaitTimeByHost.getOrElse(host, 0L) + value)
+  }
+
   /**
    * Total number of remote bytes read from the shuffle by this task
    * 读取的远程任务的shuffle总字节数
@@ -20,8 +20,8 @@ package org.apache.spark.io
 import java.io.{IOException, InputStream, OutputStream}
 
 import com.ning.compress.lzf.{LZFInputStream, LZFOutputStream}
-import net.jpountz.lz4.{LZ4BlockInputStream, LZ4BlockOutputStream}
-import org.xerial.snappy.{Snappy, SnappyInputStream, SnappyOutputStream}
+import net.jpountz.lz4.{LZ4BlockInputStream, LZ4Exception, LZ4Factory}
+import org.xerial.snappy.{Snappy, SnappyInputStream}
 
 import org.apache.spark.SparkConf
 import org.apache.spark.annotation.DeveloperApi
@@ -93,6 +93,16 @@ private[spark] object CompressionCodec {
     }
   }
 
+  /**
+   * Whether the given codec can read the concatenation of streams it compressed as one stream,
+   * which lets compressed shuffle spill files be merged by concatenating their bytes.
+   * 给定的编解码器是否可以将其压缩的多个流的串联作为一个流读取,这样压缩的shuffle溢出文件可以直接按字节串联合并
+   */
+  def supportsConcatenationOfSerializedStreams(codec: CompressionCodec): Boolean = {
+    codec.isInstanceOf[LZ4CompressionCodec] || codec.isInstanceOf[LZFCompressionCodec] ||
+      codec.isInstanceOf[SnappyCompressionCodec]
+  }
+
   val FALLBACK_COMPRESSION_CODEC = "lzf"
   val DEFAULT_COMPRESSION_CODEC = "snappy"
   val ALL_COMPRESSION_CODECS = shortCompressionCodecNames.values.toSeq
@@ -104,6 +114,10 @@ private[spark] object CompressionCodec {
  * LZ4 implementation of [[org.apache.spark.io.CompressionCodec]].
  * Block size can be configured by `spark.io.compression.lz4.blockSize`.
  *
+ * Data is compressed in independent frames of at most one block (see
+ * [[FramedCompressionOutputStream]]), so concatenated streams can be read as one. Streams written
+ * by earlier releases with `LZ4BlockOutputStream` are still read.
+ *
  * Note: The wire protocol for this codec is not guaranteed to be compatible across versions
  *       of Spark. This is intended for use as an internal compression utility within a single Spark
  *       application.
@@ -114,10 +128,42 @@ class LZ4CompressionCodec(conf: SparkConf) extends CompressionCodec {
 
   override def compressedOutputStream(s: OutputStream): OutputStream = {
     val blockSize = conf.getSizeAsBytes("spark.io.compression.lz4.blockSize", "32k").toInt
-    new LZ4BlockOutputStream(s, blockSize)
+    new FramedCompressionOutputStream(s, LZ4FrameCompressor, blockSize)
+  }
+
+  override def compressedInputStream(s: InputStream): InputStream = {
+    FramedCompression.inputStream(s, LZ4FrameCompressor, new LZ4BlockInputStream(_))
   }
+}
 
-  override def compressedInputStream(s: InputStream): InputStream = new LZ4BlockInputStream(s)
+private object LZ4FrameCompressor extends FrameCompressor {
+
+  private[this] val factory = LZ4Factory.fastestInstance()
+  private[this] val compressor = factory.fastCompressor()
+  private[this] val decompressor = factory.safeDecompressor()
+
+  override def maxCompressedLength(length: Int): Int = compressor.maxCompressedLength(length)
+
+  override def compress(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dest: Array[Byte],
+      destOffset: Int): Int = {
+    compressor.compress(src, srcOffset, length, dest, destOffset, dest.length - destOffset)
+  }
+
+  override def decompress(
+      src: Array[Byte],
+      length: Int,
+      dest: Array[Byte],
+      maxLength: Int): Int = {
+    try {
+      decompressor.decompress(src, 0, length, dest, 0, maxLength)
+    } catch {
+      case e: LZ4Exception => throw new IOException("Corrupt LZ4 frame", e)
+    }
+  }
 }
 
 
@@ -145,6 +191,10 @@ class LZFCompressionCodec(conf: SparkConf) extends CompressionCodec {
  * :: DeveloperApi ::
  * Snappy implementation of [[org.apache.spark.io.CompressionCodec]].
  * Block size can be configured by `spark.io.compression.snappy.blockSize`.
+ *
+ * Data is compressed in independent frames of at most one block (see
+ * [[FramedCompressionOutputStream]]), so concatenated streams can be read as one. Streams written
+ * by earlier releases with `SnappyOutputStream` are still read.
   * [[org.apache.spark.io.CompressionCodec]]的Snappy实现]块大小可以由`spark.io.compression.snappy.blockSize`配置
  *
  * Note: The wire protocol for this codec is not guaranteed to be compatible across versions
@@ -163,53 +213,37 @@ class SnappyCompressionCodec(conf: SparkConf) extends CompressionCodec {
 
   override def compressedOutputStream(s: OutputStream): OutputStream = {
     val blockSize = conf.getSizeAsBytes("spark.io.compression.snappy.blockSize", "32k").toInt
-    new SnappyOutputStreamWrapper(new SnappyOutputStream(s, blockSize))
+    new FramedCompressionOutputStream(s, SnappyFrameCompressor, blockSize)
   }
 
-  override def compressedInputStream(s: InputStream): InputStream = new SnappyInputStream(s)
-}
-
-/**
- * Wrapper over [[SnappyOutputStream]] which guards against write-after-close and double-close
- * issues. See SPARK-7660 for more details. This wrapping can be removed if we upgrade to a version
- * of snappy-java that contains the fix for https://github.com/xerial/snappy-java/issues/107.
- */
-private final class SnappyOutputStreamWrapper(os: SnappyOutputStream) extends OutputStream {
-
-  private[this] var closed: Boolean = false
-
-  override def write(b: Int): Unit = {
-    if (closed) {
-      throw new IOException("Stream is closed")
-    }
-    os.write(b)
+  override def compressedInputStream(s: InputStream): InputStream = {
+    FramedCompression.inputStream(s, SnappyFrameCompressor, new SnappyInputStream(_))
   }
+}
 
-  override def write(b: Array[Byte]): Unit = {
-    if (closed) {
-      throw new IOException("Stream is closed")
-    }
-    os.write(b)
-  }
+private object SnappyFrameCompressor extends FrameCompressor {
 
-  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
-    if (closed) {
-      throw new IOException("Stream is closed")
-    }
-    os.write(b, off, len)
-  }
+  override def maxCompressedLength(length: Int): Int = Snappy.maxCompressedLength(length)
 
-  override def flush(): Unit = {
-    if (closed) {
-      throw new IOException("Stream is closed")
-    }
-    os.flush()
+  override def compress(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dest: Array[Byte],
+      destOffset: Int): Int = {
+    Snappy.compress(src, srcOffset, length, dest, destOffset)
   }
 
-  override def close(): Unit = {
-    if (!closed) {
-      closed = true
-      os.close()
+  override def decompress(
+      src: Array[Byte],
+      length: Int,
+      dest: Array[Byte],
+      maxLength: Int): Int = {
+    val uncompressedLength = Snappy.uncompressedLength(src, 0, length)
+    if (uncompressedLength > maxLength) {
+      throw new IOException(
+        s"Snappy frame decompresses to $uncompressedLength bytes, more than $maxLength")
     }
+    Snappy.uncompress(src, 0, length, dest, 0)
   }
 }
@@ -0,0 +1,348 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.io
+
+import java.io.{EOFException, IOException, InputStream, OutputStream, PushbackInputStream}
+
+import com.google.common.io.ByteStreams
+
+/**
+ * Compresses and decompresses single frames of a [[FramedCompressionOutputStream]].
+ */
+private[spark] trait FrameCompressor {
+
+  /** Upper bound of the compressed length of `length` bytes. */
+  def maxCompressedLength(length: Int): Int
+
+  /**
+   * Compresses `length` bytes of `src` into `dest` from `destOffset` on, returning the compressed
+   * length.
+   */
+  def compress(
+      src: Array[Byte],
+      srcOffset: Int,
+      length: Int,
+      dest: Array[Byte],
+      destOffset: Int): Int
+
+  /**
+   * Decompresses `length` bytes of `src` into `dest`, returning the decompressed length, which
+   * must not exceed `maxLength`.
+   */
+  def decompress(
+      src: Array[Byte],
+      length: Int,
+      dest: Array[Byte],
+      maxLength: Int): Int
+}
+
+/**
+ * An output stream that compresses its data in independent frames of at most `blockSize` bytes.
+ * Every frame is preceded by its uncompressed and its compressed length, and frames that do not
+ * compress are stored as they are. A non-empty stream starts with [[FramedCompression.MAGIC]],
+ * which readers accept at any frame boundary, and there is no trailer, so concatenated streams
+ * are a valid stream themselves. This lets shuffle spill files be merged without being
+ * decompressed, and readers can skip whole frames without decompressing them.
+ *
+ * Flushing the stream ends the current frame.
+ */
+private[spark] class FramedCompressionOutputStream(
+    out: OutputStream,
+    compressor: FrameCompressor,
+    blockSize: Int)
+  extends OutputStream {
+
+  require(blockSize > 0 && blockSize <= FramedCompression.MAX_FRAME_SIZE,
+    s"Block size must be between 1 and ${FramedCompression.MAX_FRAME_SIZE}, but got $blockSize")
+
+  private[this] val buffer = new Array[Byte](blockSize)
+  private[this] val compressed =
+    new Array[Byte](FramedCompression.HEADER_SIZE + compressor.maxCompressedLength(blockSize))
+  private[this] var count = 0
+  private[this] var closed = false
+  private[this] var magicWritten = false
+
+  override def write(b: Int): Unit = {
+    ensureOpen()
+    if (count == blockSize) {
+      writeFrame()
+    }
+    buffer(count) = b.toByte
+    count += 1
+  }
+
+  override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+    ensureOpen()
+    var written = 0
+    while (written < len) {
+      if (count == blockSize) {
+        writeFrame()
+      }
+      val n = math.min(len - written, blockSize - count)
+      System.arraycopy(b, off + written, buffer, count, n)
+      count += n
+      written += n
+    }
+  }
+
+  override def flush(): Unit = {
+    ensureOpen()
+    writeFrame()
+    out.flush()
+  }
+
+  override def close(): Unit = {
+    if (!closed) {
+      try {
+        writeFrame()
+        out.flush()
+      } finally {
+        closed = true
+        out.close()
+      }
+    }
+  }
+
+  private def ensureOpen(): Unit = {
+    if (closed) {
+      throw new IOException("Stream is closed")
+    }
+  }
+
+  private def writeFrame(): Unit = {
+    if (count > 0) {
+      if (!magicWritten) {
+        out.write(FramedCompression.MAGIC)
+        magicWritten = true
+      }
+      val header = FramedCompression.HEADER_SIZE
+      var length = compressor.compress(buffer, 0, count, compressed, header)
+      if (length >= count) {
+        // Store incompressible data as it is; readers tell by the equal lengths.
+        System.arraycopy(buffer, 0, compressed, header, count)
+        length = count
+      }
+      FramedCompression.writeInt(compressed, 0, count)
+      FramedCompression.writeInt(compressed, 4, length)
+      out.write(compressed, 0, header + length)
+      count = 0
+    }
+  }
+}
+
+/**
+ * Reads the frames written by one or more concatenated [[FramedCompressionOutputStream]]s.
+ * Skipping past whole frames reads over them without decompressing them. Use
+ * [[FramedCompression.inputStream]] to also read streams written in a codec's older format.
+ */
+private[spark] class FramedCompressionInputStream(
+    in: InputStream,
+    compressor: FrameCompressor)
+  extends InputStream {
+
+  private[this] val header = new Array[Byte](FramedCompression.HEADER_SIZE)
+  private[this] var buffer = new Array[Byte](0)
+  private[this] var compressed = new Array[Byte](0)
+  private[this] var pos = 0
+  private[this] var limit = 0
+  // Lengths of the frame whose header was read last, or -1 if its data has been read as well.
+  private[this] var frameLength = -1
+  private[this] var frameCompressedLength = -1
+
+  override def read(): Int = {
+    if (!ensureBuffered()) {
+      -1
+    } else {
+      val b = buffer(pos) & 0xff
+      pos += 1
+      b
+    }
+  }
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = {
+    if (len == 0) {
+      0
+    } else if (!ensureBuffered()) {
+      -1
+    } else {
+      val n = math.min(len, limit - pos)
+      System.arraycopy(buffer, pos, b, off, n)
+      pos += n
+      n
+    }
+  }
+
+  override def skip(n: Long): Long = {
+    var skipped = 0L
+    var eof = false
+    while (skipped < n && !eof) {
+      if (pos < limit) {
+        val k = math.min(n - skipped, limit - pos).toInt
+        pos += k
+        skipped += k
+      } else if (frameLength < 0 && !readFrameHeader()) {
+        eof = true
+      } else if (frameLength <= n - skipped) {
+        ByteStreams.skipFully(in, frameCompressedLength)
+        skipped += frameLength
+        frameLength = -1
+      } else {
+        readFrameData()
+      }
+    }
+    skipped
+  }
+
+  override def available(): Int = limit - pos
+
+  override def close(): Unit = in.close()
+
+  /** Makes sure there are bytes to read in the buffer, returning false at the end of the input. */
+  private def ensureBuffered(): Boolean = {
+    while (pos == limit) {
+      if (frameLength < 0 && !readFrameHeader()) {
+        return false
+      }
+      readFrameData()
+    }
+    true
+  }
+
+  /**
+   * Reads the header of the next frame, passing over the magic numbers that start each of the
+   * concatenated streams, and returns false at the end of the input.
+   */
+  private def readFrameHeader(): Boolean = {
+    while (true) {
+      val n = ByteStreams.read(in, header, 0, header.length)
+      if (n == 0) {
+        return false
+      } else if (n < header.length) {
+        throw new EOFException("Unexpected end of input in the header of a compressed frame")
+      } else if (header(0) == FramedCompression.MAGIC(0)) {
+        FramedCompression.checkMagic(header)
+      } else {
+        frameLength = FramedCompression.readInt(header, 0)
+        frameCompressedLength = FramedCompression.readInt(header, 4)
+        // Check the lengths before they size any buffer, so that a corrupt header does not turn
+        // into a huge or negative allocation.
+        if (frameLength <= 0 || frameLength > FramedCompression.MAX_FRAME_SIZE ||
+            frameCompressedLength <= 0 || frameCompressedLength > frameLength) {
+          throw new IOException(s"Corrupt frame header: length $frameLength, " +
+            s"compressed length $frameCompressedLength")
+        }
+        return true
+      }
+    }
+    false
+  }
+
+  private def readFrameData(): Unit = {
+    if (buffer.length < frameLength) {
+      buffer = new Array[Byte](frameLength)
+    }
+    if (frameCompressedLength == frameLength) {
+      ByteStreams.readFully(in, buffer, 0, frameLength)
+    } else {
+      if (compressed.length < frameCompressedLength) {
+        compressed = new Array[Byte](frameCompressedLength)
+      }
+      ByteStreams.readFully(in, compressed, 0, frameCompressedLength)
+      val length = compressor.decompress(compressed, frameCompressedLength, buffer, frameLength)
+      if (length != frameLength) {
+        throw new IOException(
+          s"Compressed frame decompressed to $length bytes instead of $frameLength")
+      }
+    }
+    pos = 0
+    limit = frameLength
+    frameLength = -1
+  }
+}
+
+private[spark] object FramedCompression {
+
+  /** Size of the frame header: the uncompressed and the compressed length of the frame. */
+  val HEADER_SIZE = 8
+
+  /**
+   * Largest uncompressed frame, and so largest block size, that streams may use. This is the
+   * same limit as the block size of LZ4's block streams.
+   */
+  val MAX_FRAME_SIZE = 1 << 25
+
+  /**
+   * Starts every non-empty stream. It is as long as a frame header, and its first byte makes
+   * the frame length negative, so it cannot be mistaken for a frame. The first byte also differs
+   * from the first byte written by `SnappyOutputStream` and `LZ4BlockOutputStream`, which is
+   * how [[inputStream]] tells this format from theirs. The last byte is the format version.
+   */
+  val MAGIC: Array[Byte] = Array(0x93, 'S', 'F', 'R', 'A', 'M', 'E', 1).map(_.toByte)
+
+  /** Throws an IOException unless `header` is the magic number of a supported version. */
+  def checkMagic(header: Array[Byte]): Unit = {
+    var i = 0
+    while (i < MAGIC.length - 1) {
+      if (header(i) != MAGIC(i)) {
+        throw new IOException("Corrupt frame header: not a compressed frame or magic number")
+      }
+      i += 1
+    }
+    if (header(i) != MAGIC(i)) {
+      throw new IOException(s"Unsupported compressed frame format version ${header(i)}")
+    }
+  }
+
+  /**
+   * Opens a stream that reads the frames of [[FramedCompressionOutputStream]]s if `in` starts
+   * with a magic number or is empty, and otherwise reads `in` with `legacyStream`, the stream
+   * of the format the codec wrote before, such as that of event logs from earlier releases.
+   * Like `SnappyInputStream`, this reads the first byte of `in` right away.
+   */
+  def inputStream(
+      in: InputStream,
+      compressor: FrameCompressor,
+      legacyStream: InputStream => InputStream): InputStream = {
+    val pushback = new PushbackInputStream(in, 1)
+    val first = pushback.read()
+    if (first == -1) {
+      new FramedCompressionInputStream(pushback, compressor)
+    } else {
+      pushback.unread(first)
+      if (first.toByte == MAGIC(0)) {
+        new FramedCompressionInputStream(pushback, compressor)
+      } else {
+        legacyStream(pushback)
+      }
+    }
+  }
+
+  /** Writes a big-endian int at `offset` of `b`. */
+  def writeInt(b: Array[Byte], offset: Int, value: Int): Unit = {
+    b(offset) = (value >>> 24).toByte
+    b(offset + 1) = (value >>> 16).toByte
+    b(offset + 2) = (value >>> 8).toByte
+    b(offset + 3) = value.toByte
+  }
+
+  /** Reads a big-endian int at `offset` of `b`. */
+  def readInt(b: Array[Byte], offset: Int): Int = {
+    ((b(offset) & 0xff) << 24) | ((b(offset + 1) & 0xff) << 16) |
+      ((b(offset + 2) & 0xff) << 8) | (b(offset + 3) & 0xff)
+  }
+}
@@ -26,7 +26,8 @@ import org.apache.spark.network.buffer.ManagedBuffer
 import org.apache.spark.network.client.{ TransportClientBootstrap, RpcResponseCallback, TransportClientFactory }
 import org.apache.spark.network.sasl.{ SaslClientBootstrap, SaslServerBootstrap }
 import org.apache.spark.network.server._
-import org.apache.spark.network.shuffle.{ RetryingBlockFetcher, BlockFetchingListener, OneForOneBlockFetcher }
+import org.apache.spark.network.shuffle.{BlockFetchingListener, DownloadFileManager,
+  OneForOneBlockFetcher, RetryingBlockFetcher}
 import org.apache.spark.network.shuffle.protocol.UploadBlock
 import org.apache.spark.serializer.JavaSerializer
 import org.apache.spark.storage.{ BlockId, StorageLevel }
@@ -104,12 +105,23 @@ class NettyBlockTransferService(conf: SparkConf, securityManager: SecurityManage
     execId: String,
     blockIds: Array[String],
     listener: BlockFetchingListener): Unit = {
+    fetchBlocks(host, port, execId, blockIds, listener, null)
+  }
+
+  override def fetchBlocks(
+    host: String,
+    port: Int,
+    execId: String,
+    blockIds: Array[String],
+    listener: BlockFetchingListener,
+    downloadFileManager: DownloadFileManager): Unit = {
     logTrace(s"Fetch blocks from $host:$port (executor id $execId)")
     try {
       val blockFetchStarter = new RetryingBlockFetcher.BlockFetchStarter {
         override def createAndStart(blockIds: Array[String], listener: BlockFetchingListener) {
           val client = clientFactory.createClient(host, port)
-          new OneForOneBlockFetcher(client, appId, execId, blockIds.toArray, listener).start()
+          new OneForOneBlockFetcher(
+            client, appId, execId, blockIds.toArray, listener, downloadFileManager).start()
         }
       }
       //最大重试次数
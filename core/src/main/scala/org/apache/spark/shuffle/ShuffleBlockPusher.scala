@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.util.concurrent.ExecutorService
+
+import scala.collection.mutable.{ArrayBuffer, LinkedHashMap}
+import scala.util.control.NonFatal
+
+import org.apache.spark.{Logging, SparkConf}
+import org.apache.spark.network.shuffle.ExternalShuffleClient
+import org.apache.spark.storage.{BlockManager, BlockManagerId}
+import org.apache.spark.util.{ThreadUtils, Utils}
+
+/**
+ * Pushes the blocks of a committed map output to external shuffle services, which merge the
+ * blocks of each reduce partition into one file (see
+ * [[org.apache.spark.network.shuffle.RemoteBlockPushResolver]]). A reducer can then read the
+ * output of many map tasks with one sequential fetch from the merger of its partition, instead of
+ * a small random read from every map output.
+ *
+ * Pushing is best effort: it happens in the background once the map task has committed its output,
+ * so it never delays or fails the task, and reducers fetch whatever was not merged in time from the
+ * map outputs as usual (see [[org.apache.spark.shuffle.hash.HashShuffleReader]]). Blocks larger
+ * than spark.shuffle.push.maxBlockSizeToPush are not pushed, since reading them from the map
+ * output is efficient enough.
+ */
+private[spark] class ShuffleBlockPusher(conf: SparkConf, blockManager: BlockManager)
+  extends Logging {
+
+  import ShuffleBlockPusher._
+
+  private val maxBlockSizeToPush =
+    conf.getSizeAsBytes("spark.shuffle.push.maxBlockSizeToPush", "1m")
+  private val maxBlockBatchSize = conf.getSizeAsBytes("spark.shuffle.push.maxBlockBatchSize", "3m")
+
+  /**
+   * Starts pushing the blocks of the given map output, which task attempt mapAttemptId has
+   * committed to dataFile with the given partition lengths. Does nothing unless pushing is enabled.
+   */
+  def pushAsync(
+      shuffleId: Int,
+      mapId: Int,
+      mapAttemptId: Long,
+      dataFile: File,
+      partitionLengths: Array[Long]): Unit = {
+    if (isPushEnabled(conf, blockManager)) {
+      val client = blockManager.shuffleClient.asInstanceOf[ExternalShuffleClient]
+      val batches = planBatches(
+        partitionLengths, blockManager.getShufflePushMergers, maxBlockSizeToPush, maxBlockBatchSize)
+      if (batches.nonEmpty) {
+        getPushThreadPool(conf).execute(new Runnable {
+          override def run(): Unit = Utils.tryLogNonFatalError {
+            pushBatches(client, shuffleId, mapId, mapAttemptId, dataFile, batches)
+          }
+        })
+      }
+    }
+  }
+
+  private def pushBatches(
+      client: ExternalShuffleClient,
+      shuffleId: Int,
+      mapId: Int,
+      mapAttemptId: Long,
+      dataFile: File,
+      batches: Seq[PushBatch]): Unit = {
+    val timeoutMs = pushTimeoutMs(conf)
+    val file = new RandomAccessFile(dataFile, "r")
+    try {
+      for (batch <- batches) {
+        val blocks = batch.blocks.map { case (_, offset, length) =>
+          val block = new Array[Byte](length)
+          file.seek(offset)
+          file.readFully(block)
+          block
+        }
+        try {
+          client.pushBlocks(batch.merger.host, batch.merger.port, shuffleId, mapId, mapAttemptId,
+            batch.blocks.map(_._1).toArray, blocks.toArray, timeoutMs)
+        } catch {
+          case NonFatal(e) =>
+            // The reducers fetch these blocks from the map output instead.
+            logWarning(s"Failed to push ${batch.blocks.size} blocks of shuffle $shuffleId map " +
+              s"$mapId to ${batch.merger.hostPort}", e)
+        }
+      }
+    } catch {
+      case e: IOException =>
+        // The map output may have been removed in the meantime, e.g. by a cleanup of the shuffle.
+        logWarning(s"Stopped pushing blocks of shuffle $shuffleId map $mapId", e)
+    } finally {
+      file.close()
+    }
+  }
+}
+
+private[spark] object ShuffleBlockPusher {
+
+  /** Blocks of one map output to push to one merger, as (reduce id, offset, length). */
+  case class PushBatch(merger: BlockManagerId, blocks: Seq[(Int, Long, Int)])
+
+  private var pushThreadPool: ExecutorService = null
+
+  private def getPushThreadPool(conf: SparkConf): ExecutorService = synchronized {
+    if (pushThreadPool == null) {
+      pushThreadPool = ThreadUtils.newDaemonFixedThreadPool(
+        conf.getInt("spark.shuffle.push.numPushThreads", 2), "shuffle-block-push")
+    }
+    pushThreadPool
+  }
+
+  /** Whether map outputs are pushed to shuffle services for merging. */
+  def isPushEnabled(conf: SparkConf, blockManager: BlockManager): Boolean = {
+    conf.getBoolean("spark.shuffle.push.enabled", false) &&
+      blockManager.externalShuffleServiceEnabled
+  }
+
+  def pushTimeoutMs(conf: SparkConf): Long = conf.getTimeAsMs("spark.shuffle.push.timeout", "30s")
+
+  /** The merger that the blocks of the given reduce partition are pushed to. */
+  def mergerFor(mergers: Seq[BlockManagerId], reduceId: Int): BlockManagerId = {
+    mergers(reduceId % mergers.size)
+  }
+
+  /**
+   * Groups the non-empty blocks of a map output that are at most maxBlockSize bytes long by their
+   * merger, into batches of at most maxBatchSize bytes (or of a single block).
+   */
+  def planBatches(
+      partitionLengths: Array[Long],
+      mergers: Seq[BlockManagerId],
+      maxBlockSize: Long,
+      maxBatchSize: Long): Seq[PushBatch] = {
+    val batches = new ArrayBuffer[PushBatch]
+    if (mergers.nonEmpty) {
+      val currentBatches = new LinkedHashMap[BlockManagerId, ArrayBuffer[(Int, Long, Int)]]
+      val currentBatchSizes = new LinkedHashMap[BlockManagerId, Long]
+      var offset = 0L
+      for (reduceId <- partitionLengths.indices) {
+        val length = partitionLengths(reduceId)
+        if (length > 0 && length <= maxBlockSize && length <= Int.MaxValue) {
+          val merger = mergerFor(mergers, reduceId)
+          val batch = currentBatches.getOrElseUpdate(merger, new ArrayBuffer[(Int, Long, Int)])
+          val batchSize = currentBatchSizes.getOrElse(merger, 0L)
+          if (batch.nonEmpty && batchSize + length > maxBatchSize) {
+            batches += PushBatch(merger, batch.toList)
+            batch.clear()
+            currentBatchSizes(merger) = length
+          } else {
+            currentBatchSizes(merger) = batchSize + length
+          }
+          batch += ((reduceId, offset, length.toInt))
+        }
+        offset += length
+      }
+      for ((merger, batch) <- currentBatches if batch.nonEmpty) {
+        batches += PushBatch(merger, batch.toList)
+      }
+    }
+    batches
+  }
+}
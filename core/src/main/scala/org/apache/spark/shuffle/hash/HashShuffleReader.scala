@@ -17,10 +17,17 @@
 
 package org.apache.spark.shuffle.hash
 
+import java.io.InputStream
+
+import scala.util.control.NonFatal
+
 import org.apache.spark._
+import org.apache.spark.network.shuffle.ExternalShuffleClient
+import org.apache.spark.network.shuffle.protocol.MergedBlockMeta
+import org.apache.spark.network.util.LimitedInputStream
 import org.apache.spark.serializer.Serializer
-import org.apache.spark.shuffle.{BaseShuffleHandle, ShuffleReader}
-import org.apache.spark.storage.{BlockManager, ShuffleBlockFetcherIterator}
+import org.apache.spark.shuffle.{BaseShuffleHandle, ShuffleBlockPusher, ShuffleReader}
+import org.apache.spark.storage._
 import org.apache.spark.util.CompletionIterator
 import org.apache.spark.util.collection.ExternalSorter
 
@@ -33,8 +40,11 @@ private[spark] class HashShuffleReader[K, C](
     mapOutputTracker: MapOutputTracker = SparkEnv.get.mapOutputTracker)
   extends ShuffleReader[K, C] with Logging {
 
-  require(endPartition == startPartition + 1,
-    "Hash shuffle currently only supports fetching one partition")
+  // A range of partitions is read as the blocks of every partition, one after another for each
+  // map output. With spark.shuffle.service.fetchBlockRanges, the external shuffle service then
+  // serves the consecutive blocks of a map output as one chunk (see OneForOneBlockFetcher).
+  require(endPartition > startPartition,
+    s"Invalid range of partitions [$startPartition, $endPartition) to read")
 
   private val dep = handle.dependency
 
@@ -47,19 +57,34 @@ private[spark] class HashShuffleReader[K, C](
      * 2)对InterruptibleIterator执行聚合
      * 3)对InterruptibleIterator排序,由于使用ExternalSorter的inertAll
      */
+    // Note: we use getSizeAsMb when no suffix is provided for backwards compatibility
+    //在Shuffle的时候,每个Reducer任务获取缓存数据指定大小(以兆字节为单位)
+    val maxBytesInFlight =
+      SparkEnv.get.conf.getSizeAsMb("spark.reducer.maxSizeInFlight", "48m") * 1024 * 1024
+    val blocksByAddress =
+      mapOutputTracker.getMapSizesByExecutorId(handle.shuffleId, startPartition, endPartition)
+    // Read the map outputs that were pushed to the merger of this partition as one block
+    val mergedBlock = getMergedBlock(blocksByAddress)
     val blockFetcherItr = new ShuffleBlockFetcherIterator(
       context,
       blockManager.shuffleClient,
       blockManager,
-      mapOutputTracker.getMapSizesByExecutorId(handle.shuffleId, startPartition),
-      // Note: we use getSizeAsMb when no suffix is provided for backwards compatibility
-      //在Shuffle的时候,每个Reducer任务获取缓存数据指定大小(以兆字节为单位) 
-      SparkEnv.get.conf.getSizeAsMb("spark.reducer.maxSizeInFlight", "48m") * 1024 * 1024)
+      mergedBlock.map(_.blocksByAddress).getOrElse(blocksByAddress),
+      maxBytesInFlight,
+      SparkEnv.get.conf.getInt("spark.reducer.maxReqsInFlightPerAddress", Int.MaxValue),
+      SparkEnv.get.conf.getInt("spark.reducer.maxBlocksInFlightPerAddress", Int.MaxValue),
+      SparkEnv.get.conf.getBoolean("spark.reducer.adaptiveRequestSize", true),
+      // Blocks that do not even fit in the in-flight budget are written to disk as they arrive.
+      SparkEnv.get.conf.getSizeAsBytes("spark.reducer.maxBlockSizeFetchToMem", maxBytesInFlight),
+      mergedBlock.map(_.fallbackBlocks).getOrElse(Map.empty))
 
     // Wrap the streams for compression based on configuration
     //根据配置将流包装成压缩
-    val wrappedStreams = blockFetcherItr.map { case (blockId, inputStream) =>
-      blockManager.wrapForCompression(blockId, inputStream)
+    val wrappedStreams = blockFetcherItr.flatMap {
+      case (ShuffleMergedBlockId(shuffleId, reduceId), inputStream) =>
+        splitMergedBlock(shuffleId, reduceId, mergedBlock.get.meta, inputStream)
+      case (blockId, inputStream) =>
+        Iterator(blockManager.wrapForCompression(blockId, inputStream))
     }
 
     val ser = Serializer.getSerializer(dep.serializer)
@@ -130,4 +155,131 @@ private[spark] class HashShuffleReader[K, C](
         aggregatedIter
     }
   }
+
+  /**
+   * If map outputs are pushed to shuffle services for merging (see [[ShuffleBlockPusher]]), asks
+   * the merger of this partition which of them it merged, and replaces their blocks with the
+   * merged block. Returns None, so that every block is fetched from its map output, if nothing was
+   * merged, the merger cannot be reached, or the merged block holds the output of a different
+   * task attempt than the one the map statuses point at (e.g. of an attempt whose output was
+   * lost and recomputed).
+   */
+  private def getMergedBlock(
+      blocksByAddress: Seq[(BlockManagerId, Seq[(BlockId, Long)])]): Option[MergedBlock] = {
+    val conf = SparkEnv.get.conf
+    // A merged block holds a single partition.
+    if (endPartition != startPartition + 1 ||
+        !ShuffleBlockPusher.isPushEnabled(conf, blockManager)) {
+      return None
+    }
+    val mergers = blockManager.getShufflePushMergers
+    if (mergers.isEmpty) {
+      return None
+    }
+    val merger = ShuffleBlockPusher.mergerFor(mergers, startPartition)
+    val meta = try {
+      blockManager.shuffleClient.asInstanceOf[ExternalShuffleClient].getMergedBlockMeta(
+        merger.host, merger.port, handle.shuffleId, startPartition,
+        ShuffleBlockPusher.pushTimeoutMs(conf))
+    } catch {
+      case NonFatal(e) =>
+        logWarning(s"Failed to get the merged block of shuffle ${handle.shuffleId} partition " +
+          s"$startPartition from ${merger.hostPort}", e)
+        return None
+    }
+    val mergedMapIds = meta.mapIds.toSet
+    val fallbackBlocks = blocksByAddress.map { case (address, blockInfos) =>
+      (address, blockInfos.filter {
+        case (ShuffleBlockId(_, mapId, _), size) => size > 0 && mergedMapIds.contains(mapId)
+        case _ => false
+      })
+    }.filter(_._2.nonEmpty)
+    // Only use the merged block if it holds exactly the map outputs with data in this partition
+    // that it claims to; otherwise, e.g. after a map output was lost, read the map outputs.
+    if (mergedMapIds.isEmpty || fallbackBlocks.map(_._2.size).sum != mergedMapIds.size) {
+      return None
+    }
+    val mapTaskIds = mapOutputTracker.getMapTaskIds(handle.shuffleId).getOrElse(Array.empty[Long])
+    val mismatchedMapId = meta.mapIds.indices.find { i =>
+      val mapId = meta.mapIds(i)
+      mapId >= mapTaskIds.length || mapTaskIds(mapId) != meta.mapAttemptIds(i)
+    }
+    if (mismatchedMapId.isDefined) {
+      logInfo(s"Not reading the merged block of shuffle ${handle.shuffleId} partition " +
+        s"$startPartition from ${merger.hostPort}: it holds a different attempt of map " +
+        s"${meta.mapIds(mismatchedMapId.get)} than the map statuses")
+      return None
+    }
+    val mergedBlockId = ShuffleMergedBlockId(handle.shuffleId, startPartition)
+    logInfo(s"Reading ${mergedMapIds.size} map outputs of $mergedBlockId from ${merger.hostPort}")
+    val unmergedBlocks = blocksByAddress.map { case (address, blockInfos) =>
+      (address, blockInfos.filterNot {
+        case (ShuffleBlockId(_, mapId, _), _) => mergedMapIds.contains(mapId)
+        case _ => false
+      })
+    }
+    Some(MergedBlock(
+      unmergedBlocks :+ ((merger, Seq((mergedBlockId, meta.totalSize)))),
+      Map(mergedBlockId -> fallbackBlocks),
+      meta))
+  }
+
+  /**
+   * Splits a merged block into the blocks of the map outputs it holds, which are compressed and
+   * serialized separately. Each block must be read before the next one is returned; the stream of
+   * the merged block is closed along with the last one.
+   */
+  private def splitMergedBlock(
+      shuffleId: Int,
+      reduceId: Int,
+      meta: MergedBlockMeta,
+      inputStream: InputStream): Iterator[InputStream] = {
+    meta.mapIds.indices.iterator.map { i =>
+      val segment = new MergedBlockSegmentStream(
+        inputStream, meta.sizes(i), closeUnderlying = i == meta.mapIds.length - 1)
+      blockManager.wrapForCompression(ShuffleBlockId(shuffleId, meta.mapIds(i), reduceId), segment)
+    }
+  }
+}
+
+/**
+ * A merged block to read in place of some map outputs: the blocks to fetch with the merged block
+ * included, the blocks it replaces, and the map outputs it holds.
+ */
+private case class MergedBlock(
+    blocksByAddress: Seq[(BlockManagerId, Seq[(BlockId, Long)])],
+    fallbackBlocks: Map[BlockId, Seq[(BlockManagerId, Seq[(BlockId, Long)])]],
+    meta: MergedBlockMeta)
+
+/**
+ * The block of one map output within the stream of a merged block. Closing it skips to the end of
+ * the block, so that the next block can be read from the same stream, unless it is the last one.
+ */
+private class MergedBlockSegmentStream(
+    underlying: InputStream,
+    length: Long,
+    closeUnderlying: Boolean)
+  extends InputStream {
+  private[this] val limited = new LimitedInputStream(underlying, length)
+  private[this] var closed = false
+
+  override def read(): Int = limited.read()
+
+  override def read(b: Array[Byte], off: Int, len: Int): Int = limited.read(b, off, len)
+
+  override def skip(n: Long): Long = limited.skip(n)
+
+  override def available(): Int = limited.available()
+
+  override def close(): Unit = {
+    if (!closed) {
+      closed = true
+      if (closeUnderlying) {
+        underlying.close()
+      } else {
+        val buf = new Array[Byte](8192)
+        while (limited.read(buf, 0, buf.length) != -1) {}
+      }
+    }
+  }
 }
@@ -157,7 +157,7 @@ private[spark] class HashShuffleWriter[K, V](
         }
       }
     }
-    MapStatus(blockManager.shuffleServerId, sizes)
+    MapStatus(blockManager.shuffleServerId, sizes, context.taskAttemptId())
   }
 
   private def revertWrites(): Unit = {
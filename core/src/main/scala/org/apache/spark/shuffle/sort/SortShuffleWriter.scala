@@ -21,7 +21,8 @@ import org.apache.spark._
 import org.apache.spark.executor.ShuffleWriteMetrics
 import org.apache.spark.scheduler.MapStatus
 import org.apache.spark.serializer.Serializer
-import org.apache.spark.shuffle.{BaseShuffleHandle, IndexShuffleBlockResolver, ShuffleWriter}
+import org.apache.spark.shuffle.{BaseShuffleHandle, IndexShuffleBlockResolver, ShuffleBlockPusher,
+  ShuffleWriter}
 import org.apache.spark.storage.ShuffleBlockId
 import org.apache.spark.util.Utils
 import org.apache.spark.util.collection.ExternalSorter
@@ -109,8 +110,11 @@ private[spark] class SortShuffleWriter[K, V, C](
     //将Shuffle map后Stage2每个partition在outputFile的起始地址记录到index索引文件中
     //mapId对应RDD的partionsID
     shuffleBlockResolver.writeIndexFileAndCommit(dep.shuffleId, mapId, partitionLengths, tmp)
+    // Push the committed blocks to the shuffle services that merge them, if enabled
+    new ShuffleBlockPusher(SparkEnv.get.conf, blockManager)
+      .pushAsync(dep.shuffleId, mapId, context.taskAttemptId(), output, partitionLengths)
     //mapStatus是ShuffleMapTask的返回值 
-    mapStatus = MapStatus(blockManager.shuffleServerId, partitionLengths)
+    mapStatus = MapStatus(blockManager.shuffleServerId, partitionLengths, context.taskAttemptId())
   }
 
   /** 
@@ -90,8 +90,8 @@ private[spark] object UnsafeShuffleManager extends Logging {
  *
  * In addition, extra spill-merging optimizations are automatically applied when the shuffle
  * compression codec supports concatenation of serialized streams. This is currently supported by
- * Spark's LZF serializer.
-  * 此外,当随机压缩编解码器支持串行化流的连接时,会自动应用额外的溢出合并优化,这是Spark的LZF序列化程序当前支持
+ * Spark's LZF, LZ4 and Snappy codecs.
+  * 此外,当随机压缩编解码器支持串行化流的连接时,会自动应用额外的溢出合并优化,这是Spark的LZF、LZ4和Snappy编解码器当前支持
  *
  * At a high-level, UnsafeShuffleManager's design is similar to Spark's existing SortShuffleManager.
  * In sort-based shuffle, incoming records are sorted according to their target partition ids, then
@@ -80,6 +80,16 @@ case class ShuffleIndexBlockId(shuffleId: Int, mapId: Int, reduceId: Int) extend
   override def name: String = "shuffle_" + shuffleId + "_" + mapId + "_" + reduceId + ".index"
 }
 
+/**
+ * The blocks of one reduce partition that map tasks pushed to an external shuffle service, merged
+ * into one block. The name should be kept in sync with
+ * org.apache.spark.network.shuffle.RemoteBlockPushResolver#getMergedBlockData().
+ */
+@DeveloperApi
+case class ShuffleMergedBlockId(shuffleId: Int, reduceId: Int) extends BlockId {
+  override def name: String = "shuffleMerged_" + shuffleId + "_" + reduceId
+}
+
 @DeveloperApi
 case class BroadcastBlockId(broadcastId: Long, field: String = "") extends BlockId {
   override def name: String = "broadcast_" + broadcastId + (if (field == "") "" else "_" + field)
@@ -120,6 +130,7 @@ object BlockId {
   val SHUFFLE = "shuffle_([0-9]+)_([0-9]+)_([0-9]+)".r
   val SHUFFLE_DATA = "shuffle_([0-9]+)_([0-9]+)_([0-9]+).data".r
   val SHUFFLE_INDEX = "shuffle_([0-9]+)_([0-9]+)_([0-9]+).index".r
+  val SHUFFLE_MERGED = "shuffleMerged_([0-9]+)_([0-9]+)".r
   val BROADCAST = "broadcast_([0-9]+)([_A-Za-z0-9]*)".r
   val TASKRESULT = "taskresult_([0-9]+)".r
   val STREAM = "input-([0-9]+)-([0-9]+)".r
@@ -143,6 +154,8 @@ object BlockId {
     //mapId对应RDD的partionsID
     case SHUFFLE_INDEX(shuffleId, mapId, reduceId) =>
       ShuffleIndexBlockId(shuffleId.toInt, mapId.toInt, reduceId.toInt)
+    case SHUFFLE_MERGED(shuffleId, reduceId) =>
+      ShuffleMergedBlockId(shuffleId.toInt, reduceId.toInt)
     case BROADCAST(broadcastId, field) =>
       BroadcastBlockId(broadcastId.toLong, field.stripPrefix("_"))
     case TASKRESULT(taskId) =>
@@ -124,6 +124,15 @@ private[spark] class BlockManager(
       + " shuffle files in hash-based shuffle. Please disable spark.shuffle.consolidateFiles or "
       + " switch to sort-based shuffle.")
   }
+
+  // Ranges of blocks can only be served from the single data file of a sort-based map output.
+  if (externalShuffleServiceEnabled
+    && conf.getBoolean("spark.shuffle.service.fetchBlockRanges", false)
+    && shuffleManager.isInstanceOf[HashShuffleManager]) {
+    throw new UnsupportedOperationException("Cannot fetch ranges of shuffle blocks from the "
+      + "external shuffle service in hash-based shuffle. Please disable "
+      + "spark.shuffle.service.fetchBlockRanges or switch to sort-based shuffle.")
+  }
   //BlockManagerId表示executor计算的中间结果实际数据在那个位置
   var blockManagerId: BlockManagerId = _
 
@@ -266,7 +275,8 @@ private[spark] class BlockManager(
     val shuffleConfig = new ExecutorShuffleInfo(
       diskBlockManager.localDirs.map(_.toString),
       diskBlockManager.subDirsPerLocalDir,
-      shuffleManager.getClass.getName)
+      shuffleManager.getClass.getName,
+      conf.getDouble("spark.shuffle.service.fetchWeight", 1.0))
 
     val MAX_ATTEMPTS = 3
     val SLEEP_TIME_SECS = 5
@@ -1066,6 +1076,21 @@ private[spark] class BlockManager(
     updatedBlocks
   }
 
+  /**
+   * The external shuffle services that map tasks push shuffle blocks to for merging: one on every
+   * host that runs an executor of this application, sorted by host. Each executor builds the list
+   * from its own cached view of the application's block managers, which is refreshed every
+   * spark.storage.cachedPeersTtl, so while executors come and go a map task may push the blocks of
+   * a reduce partition to another merger than the one its reducer asks. That only costs the
+   * merge: the reducer's merger then reports those map outputs as not merged, and the reducer
+   * fetches them from the map outputs.
+   */
+  private[spark] def getShufflePushMergers: Seq[BlockManagerId] = {
+    val hosts = (getPeers(forceFetch = false).map(_.host) :+ blockManagerId.host).distinct.sorted
+    hosts.map(BlockManagerId(BlockManager.SHUFFLE_PUSH_MERGER_EXECUTOR_ID, _,
+      externalShuffleServicePort))
+  }
+
   /**
    * Get peer block managers in the system.
    * 获取其他所有BlockManagerId
@@ -1437,7 +1462,7 @@ private[spark] class BlockManager(
   /**
    * 判断是否经过压缩,共有四种压缩包——shuffle,broadcast,rdds,shuffleSpill
    */
-  private def shouldCompress(blockId: BlockId): Boolean = {
+  private[spark] def shouldCompress(blockId: BlockId): Boolean = {
     blockId match {
       case _: ShuffleBlockId     => compressShuffle
       case _: BroadcastBlockId   => compressBroadcast
@@ -1546,6 +1571,12 @@ private[spark] class BlockManager(
 private[spark] object BlockManager extends Logging {
   private val ID_GENERATOR = new IdGenerator
 
+  /**
+   * Executor id of the [[BlockManagerId]]s of shuffle push mergers, which are shuffle services
+   * rather than executors; the shuffle service serves merged blocks regardless of executor id.
+   */
+  private[spark] val SHUFFLE_PUSH_MERGER_EXECUTOR_ID = "shuffle-push-merger"
+
   /** Return the total amount of storage memory available.
     * 返回可用存储空间的总量 */
   private def getMaxMemory(conf: SparkConf): Long = {
@@ -31,6 +31,26 @@ import org.apache.spark.util.collection.SizeTrackingVector
  */
 private case class MemoryEntry(value: Any, size: Long, deserialized: Boolean)
 
+/**
+ * A value of a deserialized block that holds resources outside the heap, such as off-heap memory.
+ * The [[MemoryStore]] closes such values once their block has been removed from it, whether the
+ * block was evicted, dropped to disk or unpersisted.
+ *
+ * A task that gets or puts the block retains its values until the task completes, so that a
+ * block removed while the task is still reading it is closed without freeing the resources under
+ * the task. The store only retains values while their block is stored, so before they are closed.
+ */
+private[spark] trait CloseableBlockValue {
+
+  /** Keeps [[close]] from freeing the resources of this value until [[release]] is called. */
+  def retain(): Unit
+
+  def release(): Unit
+
+  /** Frees the resources of this value once it is no longer retained. */
+  def close(): Unit
+}
+
 /**
  * Stores blocks in memory, either as Arrays of deserialized Java objects or as
  * serialized ByteBuffers.
@@ -231,14 +251,22 @@ private[spark] class MemoryStore(blockManager: BlockManager, maxMemory: Long)
  */
   override def getBytes(blockId: BlockId): Option[ByteBuffer] = {
     //从entries(LinkedHashMap)中获取MemoryEntry,
-    val entry = entries.synchronized {
-      entries.get(blockId)//MemoryEntry
+    // Retain the values of a deserialized block while they are serialized, so that they are not
+    // closed under the serializer if the block is removed meanwhile.
+    //在序列化期间保留反序列化块的值,以免块同时被移除时值被关闭
+    val (entry, retained) = entries.synchronized {
+      val entry = entries.get(blockId)//MemoryEntry
+      (entry, if (entry != null) retainValues(entry) else Array.empty[CloseableBlockValue])
     }
     if (entry == null) {
       None
     } else if (entry.deserialized) {
      //如果MemoryEntry支持反序列化,则将MemoryEntry的value反序列化后返回
-      Some(blockManager.dataSerialize(blockId, entry.value.asInstanceOf[Array[Any]].iterator))
+      try {
+        Some(blockManager.dataSerialize(blockId, entry.value.asInstanceOf[Array[Any]].iterator))
+      } finally {
+        retained.foreach(_.release())
+      }
     } else {
       //不支持序列化,对MemoryEntny的value复制ByteBuffer后返回
       //实际上并不复制数据
@@ -252,7 +280,11 @@ private[spark] class MemoryStore(blockManager: BlockManager, maxMemory: Long)
   override def getValues(blockId: BlockId): Option[Iterator[Any]] = {
     //从entries(LinkedHashMap)中获取MemoryEntry,
     val entry = entries.synchronized {
-      entries.get(blockId)
+      val entry = entries.get(blockId)
+      if (entry != null) {
+        retainValuesForThisTask(entry)
+      }
+      entry
     }
     if (entry == null) {
       None
@@ -269,27 +301,86 @@ private[spark] class MemoryStore(blockManager: BlockManager, maxMemory: Long)
  * 用于从内存中删除Block数据,并更新当前内存
  */
   override def remove(blockId: BlockId): Boolean = {
-    entries.synchronized {
+    val entry = entries.synchronized {
        //从entries(LinkedHashMap)中获取MemoryEntry,
       val entry = entries.remove(blockId)//返回移除块实体MemoryEntry
       if (entry != null) {
         currentMemory -= entry.size//更新当前可用内存
         logDebug(s"Block $blockId of size ${entry.size} dropped from memory (free $freeMemory)")
-        true
-      } else {
-        false
       }
+      entry
+    }
+    if (entry != null) {
+      closeValues(entry)
+      true
+    } else {
+      false
     }
   }
 //清空entries,并令currentMemory为0
   override def clear() {
-    entries.synchronized {
+    val removedEntries = entries.synchronized {
+      val removedEntries = new ArrayBuffer[MemoryEntry](entries.size)
+      val iter = entries.values().iterator()
+      while (iter.hasNext) {
+        removedEntries += iter.next()
+      }
       entries.clear()
       currentMemory = 0
+      removedEntries
     }
+    removedEntries.foreach(closeValues)
     logInfo("MemoryStore cleared")
   }
 
+  /**
+   * Closes the values of a removed block that hold resources outside the heap. This is done
+   * outside of the lock on `entries`, since closing a value may take a while.
+   */
+  private def closeValues(entry: MemoryEntry): Unit = {
+    closeableValues(entry).foreach(_.close())
+  }
+
+  /**
+   * Returns the values of a block that hold resources outside the heap. The values of a block
+   * come from one partition, so they are taken to be closeable only if the first one is, which
+   * keeps gets of blocks of ordinary objects from looking at each of their values.
+   */
+  private def closeableValues(entry: MemoryEntry): Array[CloseableBlockValue] = {
+    if (entry.deserialized) {
+      val values = entry.value.asInstanceOf[Array[Any]]
+      if (values.length > 0 && values(0).isInstanceOf[CloseableBlockValue]) {
+        return values.collect { case value: CloseableBlockValue => value }
+      }
+    }
+    Array.empty
+  }
+
+  /**
+   * Retains the closeable values of a stored block, returning them. Must be called while holding
+   * the lock on `entries` and before the block is removed, which is when its values are closed.
+   */
+  private def retainValues(entry: MemoryEntry): Array[CloseableBlockValue] = {
+    val values = closeableValues(entry)
+    values.foreach(_.retain())
+    values
+  }
+
+  /**
+   * Retains the closeable values of a stored block until the current task completes, since the
+   * task may read them long after getting or putting the block. Must be called while holding the
+   * lock on `entries`. Outside of tasks, nothing is retained.
+   */
+  private def retainValuesForThisTask(entry: MemoryEntry): Unit = {
+    val taskContext = TaskContext.get()
+    if (taskContext != null) {
+      val retained = retainValues(entry)
+      if (retained.nonEmpty) {
+        taskContext.addTaskCompletionListener(_ => retained.foreach(_.release()))
+      }
+    }
+  }
+
   /**
    * Unroll the given block in memory safely.
    * 安全展开,为了防止写入内存的数据过大,导致内存溢出
@@ -496,6 +587,9 @@ private[spark] class MemoryStore(blockManager: BlockManager, maxMemory: Long)
           entries.put(blockId, entry)
           //currentMemory增加估算对象内存大小size
           currentMemory += size
+          // The putting task usually goes on to read the values it has just put.
+          //写入的任务通常会接着读取刚写入的值
+          retainValuesForThisTask(entry)
         }
         val valuesOrBytes = if (deserialized) "values" else "bytes"
         logInfo("Block %s stored as %s in memory (estimated size %s, free %s)".format(
@@ -17,15 +17,15 @@
 
 package org.apache.spark.storage
 
-import java.io.InputStream
-import java.util.concurrent.LinkedBlockingQueue
+import java.io.{File, InputStream}
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
 
-import scala.collection.mutable.{ArrayBuffer, HashSet, Queue}
+import scala.collection.mutable.{ArrayBuffer, HashMap, HashSet, LinkedHashMap, Queue}
 import scala.util.control.NonFatal
 
 import org.apache.spark.{Logging, SparkException, TaskContext}
-import org.apache.spark.network.buffer.ManagedBuffer
-import org.apache.spark.network.shuffle.{BlockFetchingListener, ShuffleClient}
+import org.apache.spark.network.buffer.{FileSegmentManagedBuffer, ManagedBuffer}
+import org.apache.spark.network.shuffle.{BlockFetchingListener, DownloadFileManager, ShuffleClient}
 import org.apache.spark.shuffle.FetchFailedException
 import org.apache.spark.util.Utils
 
@@ -56,6 +56,16 @@ import org.apache.spark.util.Utils
   *                        对于每个块,我们还需要大小(以字节为长字段),以节省内存使用
  * @param maxBytesInFlight max size (in bytes) of remote blocks to fetch at any given point.
   *                        在任何给定点获取的远程块的最大大小(以字节为单位)
+ * @param maxReqsInFlightPerAddress max number of fetch requests outstanding to a single address.
+ * @param maxBlocksInFlightPerAddress max number of blocks outstanding from a single address.
+ * @param adaptiveRequestSize whether to grow or shrink the size of fetch requests according to
+ *                            how long the previous requests took, instead of always asking for
+ *                            maxBytesInFlight / 5 at a time.
+ * @param maxBlockSizeFetchToMem remote blocks larger than this (in bytes) are written to temporary
+ *                               files as they arrive instead of being held in memory.
+ * @param fallbackBlocks for merged blocks in [[blocksByAddress]], the blocks they were merged
+ *                       from, grouped like [[blocksByAddress]]. If a merged block cannot be
+ *                       fetched, these blocks are fetched instead.
  */
 private[spark]
 final class ShuffleBlockFetcherIterator(
@@ -63,11 +73,21 @@ final class ShuffleBlockFetcherIterator(
     shuffleClient: ShuffleClient,
     blockManager: BlockManager,
     blocksByAddress: Seq[(BlockManagerId, Seq[(BlockId, Long)])],
-    maxBytesInFlight: Long)//单次请求最大字节数
+    maxBytesInFlight: Long,//单次请求最大字节数
+    maxReqsInFlightPerAddress: Int = Int.MaxValue,
+    maxBlocksInFlightPerAddress: Int = Int.MaxValue,
+    adaptiveRequestSize: Boolean = true,
+    maxBlockSizeFetchToMem: Long = Long.MaxValue,
+    fallbackBlocks: Map[BlockId, Seq[(BlockManagerId, Seq[(BlockId, Long)])]] = Map.empty)
   extends Iterator[(BlockId, InputStream)] with Logging {
 
   import ShuffleBlockFetcherIterator._
 
+  require(maxReqsInFlightPerAddress > 0, "maxReqsInFlightPerAddress must be positive")
+  require(maxBlocksInFlightPerAddress > 0, "maxBlocksInFlightPerAddress must be positive")
+  require(fallbackBlocks.values.forall(_.exists(_._2.exists(_._2 > 0))),
+    "Merged blocks must fall back to at least one non-empty block")
+
   /**
    * Total number of blocks to fetch. This can be smaller than the total number of blocks
    * in [[blocksByAddress]] because we filter out zero-sized blocks in [[initialize]].
@@ -116,11 +136,34 @@ final class ShuffleBlockFetcherIterator(
   @volatile private[this] var currentResult: FetchResult = null
 
   /**
-   * Queue of fetch requests to issue; we'll pull requests off this gradually to make sure that
-   * the number of bytes in flight is limited to maxBytesInFlight.
-   * 读取请求的队列,发送请求队列;我们会逐渐拉出请求,以确保飞行中的字节数限制为maxBytesInFlight,
+   * Remote blocks that have not been requested yet, by the address they live on. Fetch requests
+   * are built from these only when they are about to be sent, so that their size can follow the
+   * current [[targetRequestSize]] and the per-address limits.
+   */
+  private[this] val pendingBlocks = new LinkedHashMap[BlockManagerId, Queue[(BlockId, Long)]]
+
+  /** Addresses with pending blocks, in the order in which they get to send their next request. */
+  private[this] val pendingAddresses = new Queue[BlockManagerId]
+
+  /**
+   * Number of requests and of blocks in flight to each address. These are updated from the
+   * fetch callbacks, so access to them (and to [[targetRequestSize]]) is guarded by inFlightLock.
    */
-  private[this] val fetchRequests = new Queue[FetchRequest]
+  private[this] val reqsInFlightPerAddress = new HashMap[BlockManagerId, Int]
+  private[this] val blocksInFlightPerAddress = new HashMap[BlockManagerId, Int]
+  private[this] val inFlightLock = new Object
+
+  /**
+   * The size that fetch requests are filled up to. Make remote requests at most
+   * maxBytesInFlight / 5 in length to begin with; the reason to keep them smaller than
+   * maxBytesInFlight is to allow multiple, parallel fetches from up to 5 nodes, rather than
+   * blocking on reading output from one node. With adaptiveRequestSize this changes as requests
+   * complete, see [[adjustTargetRequestSize]].
+   */
+  private[this] var targetRequestSize = math.max(maxBytesInFlight / 5, 1L)
+
+  private[this] val minTargetRequestSize = math.max(maxBytesInFlight / 50, 1L)
+  private[this] val maxTargetRequestSize = math.max(maxBytesInFlight / 2, 1L)
 
   /** 
    *  Current bytes in flight from our requests
@@ -130,6 +173,20 @@ final class ShuffleBlockFetcherIterator(
 
   private[this] val shuffleMetrics = context.taskMetrics().createShuffleReadMetricsForDependency()
 
+  /**
+   * Temporary files that large remote blocks are fetched to, until they are consumed or the task
+   * completes. Files are added from the fetching threads, so access is synchronized on the set.
+   */
+  private[this] val downloadFiles = new HashSet[File]
+
+  private[this] val downloadFileManager = new DownloadFileManager {
+    override def createTempFile(): File = {
+      val file = blockManager.diskBlockManager.createTempLocalBlock()._2
+      downloadFiles.synchronized { downloadFiles += file }
+      file
+    }
+  }
+
   /**
    * Whether the iterator is still active. If isZombie is true, the callback interface will no
    * longer place fetched blocks into [[results]].
@@ -148,12 +205,24 @@ final class ShuffleBlockFetcherIterator(
     // Release the current buffer if necessary
     //释放当前缓冲区
     currentResult match {
-      case SuccessFetchResult(_, _, _, buf) => buf.release()
+      case SuccessFetchResult(_, _, _, buf) =>
+        buf.release()
+        deleteDownloadFile(buf)
       case _ =>
     }
     currentResult = null
   }
 
+  /** Deletes the file behind the given buffer, if it is one that a remote block was fetched to. */
+  private[this] def deleteDownloadFile(buf: ManagedBuffer): Unit = buf match {
+    case fileBuf: FileSegmentManagedBuffer =>
+      val file = fileBuf.getFile
+      if (downloadFiles.synchronized { downloadFiles.remove(file) } && !file.delete()) {
+        logWarning(s"Failed to delete fetched block file $file")
+      }
+    case _ =>
+  }
+
   /**
    * Mark the iterator as zombie, and release all buffers that haven't been deserialized yet.
    * 标记iterator为僵尸,释放所有缓冲区没有反序列化
@@ -171,6 +240,17 @@ final class ShuffleBlockFetcherIterator(
         case _ =>
       }
     }
+    // Delete the files of blocks that were not consumed, whether they arrived or not.
+    val unconsumedFiles = downloadFiles.synchronized {
+      val files = downloadFiles.toList
+      downloadFiles.clear()
+      files
+    }
+    unconsumedFiles.foreach { file =>
+      if (file.exists() && !file.delete()) {
+        logWarning(s"Failed to delete fetched block file $file")
+      }
+    }
   }
 /**
  * 获取远程Block,用于远程请求中间结果
@@ -186,51 +266,162 @@ final class ShuffleBlockFetcherIterator(
     val blockIds = req.blocks.map(_._1.toString)
 
     val address = req.address
-    //FetchRequest里封装的blockId,size,address等信息,fetchBlocks方法获取其他节点上的中间计算结果
-    shuffleClient.fetchBlocks(address.host, address.port, address.executorId, blockIds.toArray,
-      new BlockFetchingListener {
-        override def onBlockFetchSuccess(blockId: String, buf: ManagedBuffer): Unit = {
-          // Only add the buffer to results queue if the iterator is not zombie,
-          // i.e. cleanup() has not been called yet.
-          //如果迭代器不是僵尸,则只将缓冲区添加到结果队列,即cleanup（）尚未被调用。
-          if (!isZombie) {
-            // Increment the ref count because we need to pass this to a different thread.
-            // This needs to be released after use.
-            //增加引用计数,因为我们需要将其传递给不同的线程,这需要在使用后被释放。
-            buf.retain()
-            results.put(new SuccessFetchResult(BlockId(blockId), address, sizeMap(blockId), buf))
-            shuffleMetrics.incRemoteBytesRead(buf.size)
-            shuffleMetrics.incRemoteBlocksFetched(1)
+    inFlightLock.synchronized {
+      reqsInFlightPerAddress(address) = reqsInFlightPerAddress.getOrElse(address, 0) + 1
+      blocksInFlightPerAddress(address) =
+        blocksInFlightPerAddress.getOrElse(address, 0) + req.blocks.size
+    }
+    // Blocks of this request that have neither arrived nor failed yet. A block can be reported
+    // more than once (e.g. as a success and then as part of a failed retry), so only the first
+    // report of each block counts towards the request being done.
+    val outstanding = HashSet(blockIds: _*)
+    val requestStartTime = System.nanoTime()
+    def blockDone(blockId: String): Unit = inFlightLock.synchronized {
+      if (outstanding.remove(blockId)) {
+        blocksInFlightPerAddress(address) -= 1
+        if (outstanding.isEmpty) {
+          reqsInFlightPerAddress(address) -= 1
+          if (adaptiveRequestSize) {
+            adjustTargetRequestSize(
+              req.size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStartTime))
           }
-          logTrace("Got remote block " + blockId + " after " + Utils.getUsedTimeMs(startTime))
         }
+      }
+    }
 
-        override def onBlockFetchFailure(blockId: String, e: Throwable): Unit = {
-          logError(s"Failed to get block(s) from ${req.address.host}:${req.address.port}", e)
-          results.put(new FailureFetchResult(BlockId(blockId), address, e))
+    //FetchRequest里封装的blockId,size,address等信息,fetchBlocks方法获取其他节点上的中间计算结果
+    val listener = new BlockFetchingListener {
+      override def onBlockFetchSuccess(blockId: String, buf: ManagedBuffer): Unit = {
+        // Only add the buffer to results queue if the iterator is not zombie,
+        // i.e. cleanup() has not been called yet.
+        //如果迭代器不是僵尸,则只将缓冲区添加到结果队列,即cleanup（）尚未被调用。
+        if (!isZombie) {
+          // Increment the ref count because we need to pass this to a different thread.
+          // This needs to be released after use.
+          //增加引用计数,因为我们需要将其传递给不同的线程,这需要在使用后被释放。
+          buf.retain()
+          // Release the block's in-flight slot before handing it over, so that a next() woken
+          // up by this result already sees the slot free and can send the next request.
+          //先释放该块占用的在途名额再交出结果,使被唤醒的next()能立即发送下一个请求
+          blockDone(blockId)
+          results.put(new SuccessFetchResult(BlockId(blockId), address, sizeMap(blockId), buf))
+          shuffleMetrics.incRemoteBytesRead(buf.size)
+          shuffleMetrics.incRemoteBlocksFetched(1)
+        } else {
+          blockDone(blockId)
+          deleteDownloadFile(buf)
+        }
+        logTrace("Got remote block " + blockId + " after " + Utils.getUsedTimeMs(startTime))
+      }
+
+      override def onBlockFetchFailure(blockId: String, e: Throwable): Unit = {
+        logError(s"Failed to get block(s) from ${req.address.host}:${req.address.port}", e)
+        blockDone(blockId)
+        results.put(new FailureFetchResult(BlockId(blockId), address, sizeMap(blockId), e))
+      }
+    }
+
+    // Write the blocks of requests with a block too large to hold in memory to files instead.
+    if (req.blocks.exists(_._2 > maxBlockSizeFetchToMem)) {
+      shuffleClient.fetchBlocks(address.host, address.port, address.executorId, blockIds.toArray,
+        listener, downloadFileManager)
+    } else {
+      shuffleClient.fetchBlocks(address.host, address.port, address.executorId, blockIds.toArray,
+        listener)
+    }
+  }
+
+  /**
+   * Doubles the target request size while full-sized requests complete well within
+   * TARGET_REQUEST_LATENCY_MS, as their time then goes mostly to per-request overhead, and halves
+   * it when requests take much longer than that, so that one slow request does not hold back
+   * many blocks. The size stays between maxBytesInFlight / 50 and maxBytesInFlight / 2.
+   */
+  private[this] def adjustTargetRequestSize(requestSize: Long, latencyMs: Long): Unit = {
+    val oldTarget = targetRequestSize
+    if (latencyMs > 2 * TARGET_REQUEST_LATENCY_MS) {
+      targetRequestSize = math.max(oldTarget / 2, minTargetRequestSize)
+    } else if (latencyMs < TARGET_REQUEST_LATENCY_MS / 2 && requestSize >= oldTarget / 2) {
+      targetRequestSize = math.min(oldTarget * 2, maxTargetRequestSize)
+    }
+    if (targetRequestSize != oldTarget) {
+      logDebug(s"Request of ${Utils.bytesToString(requestSize)} took $latencyMs ms, changing " +
+        s"target request size from ${Utils.bytesToString(oldTarget)} to " +
+        Utils.bytesToString(targetRequestSize))
+    }
+  }
+
+  /**
+   * Builds the next request to the given address out of its pending blocks, without taking them
+   * off the queue. Small blocks are merged until the request reaches the target request size, but
+   * a block that would take a request past the target is left for a request of its own, so that a
+   * huge block never holds back the small blocks around it. Returns None if the address already
+   * has as many requests or blocks in flight as it is allowed.
+   */
+  private[this] def peekRequest(address: BlockManagerId): Option[FetchRequest] = {
+    val (reqsInFlight, blocksInFlight, target) = inFlightLock.synchronized {
+      (reqsInFlightPerAddress.getOrElse(address, 0),
+        blocksInFlightPerAddress.getOrElse(address, 0),
+        targetRequestSize)
+    }
+    val maxBlocks = maxBlocksInFlightPerAddress - blocksInFlight
+    if (reqsInFlight >= maxReqsInFlightPerAddress || maxBlocks <= 0) {
+      None
+    } else {
+      val blocks = new ArrayBuffer[(BlockId, Long)]
+      var size = 0L
+      val iter = pendingBlocks(address).iterator
+      var full = false
+      while (!full && iter.hasNext && blocks.size < maxBlocks) {
+        val (blockId, blockSize) = iter.next()
+        if (blocks.nonEmpty && size + blockSize > target) {
+          full = true
+        } else {
+          blocks += ((blockId, blockSize))
+          size += blockSize
         }
       }
-    )
+      Some(new FetchRequest(address, blocks))
+    }
   }
 
-  private[this] def splitLocalRemoteBlocks(): ArrayBuffer[FetchRequest] = {
-    // Make remote requests at most maxBytesInFlight / 5 in length; the reason to keep them
-    // smaller than maxBytesInFlight is to allow multiple, parallel fetches from up to 5
-    // nodes, rather than blocking on reading output from one node.
-    //maxBytesInFlight:一批请求数据,这批请求的字节总数不能超maxBytesInFlight,而且每个请求的字节数不能超过
-    //maxBytesInFlight的五分之一.可以通过参数Spark.reducer.maxBytesInFlight来控制大小.
-    //为什么每个请求不能过超五分之一呢?这样做是为了提高请求的并发度,允许5个请求分别从5个节点获取数据,最大限度
-    //利用各节点的资源.
-    //每个远程请求的最大尺寸
-    val targetRequestSize = math.max(maxBytesInFlight / 5, 1L)//每次请求的数据大小不会超过maxBytesInFlight的五分之一
-        
+  /**
+   * Sends requests for pending blocks as long as they fit in maxBytesInFlight and the
+   * per-address limits, letting the addresses take turns so that no single host takes up the
+   * whole budget. A request is always sent when nothing is in flight, so that blocks larger than
+   * maxBytesInFlight can still be fetched. Returns the number of requests sent.
+   */
+  private[this] def fetchUpToMaxBytes(): Int = {
+    var numRequests = 0
+    var turnsWithoutRequest = 0
+    while (pendingAddresses.nonEmpty && turnsWithoutRequest < pendingAddresses.size) {
+      val address = pendingAddresses.dequeue()
+      peekRequest(address) match {
+        case Some(req) if bytesInFlight == 0 || bytesInFlight + req.size <= maxBytesInFlight =>
+          val pending = pendingBlocks(address)
+          req.blocks.foreach(_ => pending.dequeue())
+          if (pending.nonEmpty) {
+            pendingAddresses.enqueue(address)
+          } else {
+            pendingBlocks.remove(address)
+          }
+          sendRequest(req)
+          numRequests += 1
+          turnsWithoutRequest = 0
+        case _ =>
+          pendingAddresses.enqueue(address)
+          turnsWithoutRequest += 1
+      }
+    }
+    numRequests
+  }
+
+  private[this] def splitLocalRemoteBlocks(): Unit = {
     logDebug("maxBytesInFlight: " + maxBytesInFlight + ", targetRequestSize: " + targetRequestSize)
 
-    // Split local and remote blocks. Remote blocks are further split into FetchRequests of size
-    // at most maxBytesInFlight in order to limit the amount of data in flight.
-    //拆分本地和远程区块,远程块进一步分为大小最大为maxBytesInFlight的FetchRequests,以限制飞行中的数据量。
-    //缓存需要远程请求的FetchRequest对象
-    val remoteRequests = new ArrayBuffer[FetchRequest]
+    // Split local and remote blocks. Remote blocks are queued up by address; they are grouped
+    // into FetchRequests of about targetRequestSize as the requests are sent, see peekRequest().
+    //拆分本地和远程区块,远程块按地址排队,在发送时才组成FetchRequest
 
     // Tracks total number of blocks (including zero sized blocks)
     //跟踪总块数（包括零大小块）
@@ -246,49 +437,61 @@ final class ShuffleBlockFetcherIterator(
         //一共要获取的Block数量
         numBlocksToFetch += localBlocks.size
       } else {//需要远程获取的Block
-        //否则将Blockinfo的BlockId和size累加到curBlocks,将blockId存入remoteBlocks,
-        val iterator = blockInfos.iterator
-        //当前累加到curBlocks中的所有Block的大小之和,用于保证每个远程请求的尺寸不超过targetRequestSize
-        var curRequestSize = 0L
-        //远程获取的累加缓存,用于保证每个远程请求的尺寸不超过targetRequestSize
-        //为什么要累加缓存?如果向一个机器节点频繁地请求字节很小的Block,那么势必造成网络拥塞并增加节点负担
-        //将多个小数据量的请求合并一个大的请求避免这些问题,提高系统性能.
-        var curBlocks = new ArrayBuffer[(BlockId, Long)]
-        while (iterator.hasNext) {
-          val (blockId, size) = iterator.next()
-          // Skip empty blocks
-          //跳过空的Block
-          if (size > 0) {
-            //将Blockinfo的BlockId和size累加到curBlocks
-            curBlocks += ((blockId, size))
-            //将blockId存入remoteBlocks
-            remoteBlocks += blockId            
-            numBlocksToFetch += 1
-            curRequestSize += size
-          } else if (size < 0) {
-            throw new BlockException(blockId, "Negative block size " + size)
-          }
-          //curRequestSize >= targetRequestSize大于,则新建FetchRequest放入remoteRequests
-          //并且为生成下一个FetchRequest做一些准备(curRequestSize设置为0)
-          if (curRequestSize >= targetRequestSize) {
-            // Add this FetchRequest
-            //当前总的size已经可以批量放入一次FetchRequest中
-            remoteRequests += new FetchRequest(address, curBlocks)
-            curBlocks = new ArrayBuffer[(BlockId, Long)]
-            logDebug(s"Creating fetch request of $curRequestSize at $address")
-            curRequestSize = 0
-          }
-        }
-        // Add in the final request
-        //剩余的请求组成一次FetchRequest
-        if (curBlocks.nonEmpty) {
-          //如果curBlocks仍然有缓存,新建FetchRequest放入remoteRequests
-          remoteRequests += new FetchRequest(address, curBlocks)
-        }
+        numBlocksToFetch += addPendingBlocks(address, blockInfos)
       }
     }
     logInfo(s"Getting $numBlocksToFetch non-empty blocks out of $totalBlocks blocks")
-    remoteRequests
+  }
+
+  /**
+   * Queues up the non-empty blocks of a remote address to be requested, and returns how many
+   * there were.
+   */
+  private[this] def addPendingBlocks(
+      address: BlockManagerId,
+      blockInfos: Seq[(BlockId, Long)]): Int = {
+    val pending = pendingBlocks.getOrElse(address, new Queue[(BlockId, Long)])
+    var numBlocks = 0
+    val iterator = blockInfos.iterator
+    while (iterator.hasNext) {
+      val (blockId, size) = iterator.next()
+      // Skip empty blocks
+      //跳过空的Block
+      if (size > 0) {
+        pending += ((blockId, size))
+        //将blockId存入remoteBlocks
+        remoteBlocks += blockId
+        numBlocks += 1
+      } else if (size < 0) {
+        throw new BlockException(blockId, "Negative block size " + size)
+      }
+    }
+    if (pending.nonEmpty) {
+      pendingBlocks(address) = pending
+    }
+    numBlocks
+  }
+
+  /**
+   * Fetches the blocks that a merged block was made of instead of the merged block, which could
+   * not be fetched. Returns the number of non-empty blocks that will be returned in its place.
+   */
+  private[this] def fetchFallbackBlocks(mergedBlockId: BlockId): Int = {
+    var numBlocks = 0
+    for ((address, blockInfos) <- fallbackBlocks(mergedBlockId)) {
+      if (address.executorId == blockManager.blockManagerId.executorId) {
+        val blockIds = blockInfos.filter(_._2 != 0).map(_._1)
+        numBlocks += blockIds.size
+        fetchLocalBlocks(blockIds)
+      } else {
+        val wasPending = pendingBlocks.contains(address)
+        numBlocks += addPendingBlocks(address, blockInfos)
+        if (!wasPending && pendingBlocks.contains(address)) {
+          pendingAddresses.enqueue(address)
+        }
+      }
+    }
+    numBlocks
   }
 
   /**
@@ -299,9 +502,9 @@ final class ShuffleBlockFetcherIterator(
     * 在获取远程块时获取本地块,这是可以的,因为当我们创建输入流时,[[ManagedBuffer]]的内存被懒惰地分配,
     * 所以我们在内存中跟踪的是ManagedBuffer引用本身。
    */
-  private[this] def fetchLocalBlocks() {
+  private[this] def fetchLocalBlocks(blockIds: Seq[BlockId]) {
     //已经将本地的Block列表存入localBlocks
-    val iter = localBlocks.iterator
+    val iter = blockIds.iterator
     while (iter.hasNext) {
       val blockId = iter.next()
       try {
@@ -317,16 +520,16 @@ final class ShuffleBlockFetcherIterator(
           // If we see an exception, stop immediately.
           // 如果我们看到一个异常,立即停止
           logError(s"Error occurred while fetching local blocks", e)
-          results.put(new FailureFetchResult(blockId, blockManager.blockManagerId, e))
+          results.put(new FailureFetchResult(blockId, blockManager.blockManagerId, 0, e))
           return
       }
     }
   }
   /**
    * 读取中间结果初始化过程如下:
-   * 1)splitLocalRemoteBlocks划分本地读取和远程读取的Block请求
-   * 2)FetchRequest随机排序后存入fetchRequests中
-   * 3)遍历fetchRequests中的所有FetchRequest,远程请求Block中间结果
+   * 1)splitLocalRemoteBlocks划分本地读取和远程读取的Block
+   * 2)远程地址随机排序后存入pendingAddresses中
+   * 3)轮流为各地址发送FetchRequest,远程请求Block中间结果
    * 4)调用fetchLocalBlocks获取本地Block
    */
 
@@ -337,26 +540,19 @@ final class ShuffleBlockFetcherIterator(
 
     // Split local and remote blocks.
     //splitLocalRemoteBlocks 用于划分那些Block从本地获取,哪些需要远程拉取,是获取中间计算结果的关键
-    val remoteRequests = splitLocalRemoteBlocks()
-    // Add the remote requests into our queue in a random order
-    //将FetchRequest随机排序添加到fetchRequests队列中
-    fetchRequests ++= Utils.randomize(remoteRequests)
+    splitLocalRemoteBlocks()
+    // Let the remote addresses take turns in a random order
+    //将远程地址随机排序添加到pendingAddresses队列中
+    pendingAddresses ++= Utils.randomize(pendingBlocks.keys)
 
-    // Send out initial requests for blocks, up to our maxBytesInFlight   
+    // Send out initial requests for blocks, up to our maxBytesInFlight
     //保证占用内存不超过设定的值spark.reducer.maxMbInFlight
-    while (fetchRequests.nonEmpty &&
-      //fetchRequests.front返回队列头部数据
-      (bytesInFlight == 0 || bytesInFlight + fetchRequests.front.size <= maxBytesInFlight)) {
-      //遍历fetchRequests中的所有FetchRequest,远程请求Block中间结果
-      sendRequest(fetchRequests.dequeue())//dequeue 出列
-    }
-
-    val numFetches = remoteRequests.size - fetchRequests.size
+    val numFetches = fetchUpToMaxBytes()
     logInfo("Started " + numFetches + " remote fetches in" + Utils.getUsedTimeMs(startTime))
 
     // Get Local Blocks
     //调用fetchLocalBlocks获取本地Block
-    fetchLocalBlocks()
+    fetchLocalBlocks(localBlocks)
     logDebug("Got local blocks in " + Utils.getUsedTimeMs(startTime))
   }
 
@@ -374,33 +570,45 @@ final class ShuffleBlockFetcherIterator(
    */
   override def next(): (BlockId, InputStream) = {
     numBlocksProcessed += 1 //进程数
-    //获取的开始时间
-    val startFetchWait = System.currentTimeMillis()
-    //获出results中数据
-    currentResult = results.take()
-    val result = currentResult
-    val stopFetchWait = System.currentTimeMillis()
-    shuffleMetrics.incFetchWaitTime(stopFetchWait - startFetchWait)
-
-    result match {
-      case SuccessFetchResult(_, _, size, _) => bytesInFlight -= size
-      case _ =>
-    }
-    // Send fetch requests up to maxBytesInFlight 来控制发出远程请求的数量 maxBytesInFlight
-    ///保证占用内存不超过设定的值spark.reducer.maxMbInFlight
-    /**
-     * 由于之前远程获取block时,一小部分请求可能就达到了maxMbInFlight的限制
-     * 所以很有可能会剩余很多请求没有发送,所以每次迭代ShuffleBlockFetcherIterator的时候
-     * 还会附加动作用于发送剩余请求
-     */
-    while (fetchRequests.nonEmpty &&
-       //fetchRequests.front返回队列头部数据
-      (bytesInFlight == 0 || bytesInFlight + fetchRequests.front.size <= maxBytesInFlight)) {
-      sendRequest(fetchRequests.dequeue())
+    var result: FetchResult = null
+    while (result == null) {
+      //获取的开始时间
+      val startFetchWait = System.currentTimeMillis()
+      //获出results中数据
+      currentResult = results.take()
+      val stopFetchWait = System.currentTimeMillis()
+      shuffleMetrics.incFetchWaitTime(stopFetchWait - startFetchWait)
+      shuffleMetrics.incFetchWaitTimeForHost(
+        currentResult.address.host, stopFetchWait - startFetchWait)
+
+      currentResult match {
+        case SuccessFetchResult(_, _, size, _) =>
+          bytesInFlight -= size
+          result = currentResult
+        case FailureFetchResult(blockId, address, size, e) if fallbackBlocks.contains(blockId) =>
+          // Fetch the blocks of the merged block instead; one of them takes its place. The merged
+          // block no longer holds its bytes in flight, or its fallback requests could never be
+          // sent when it was larger than maxBytesInFlight.
+          bytesInFlight -= size
+          logWarning(s"Failed to fetch merged block $blockId from ${address.hostPort}, " +
+            "fetching the blocks it was merged from instead", e)
+          numBlocksToFetch += fetchFallbackBlocks(blockId) - 1
+          currentResult = null
+        case _ =>
+          result = currentResult
+      }
+      // Send fetch requests up to maxBytesInFlight 来控制发出远程请求的数量 maxBytesInFlight
+      ///保证占用内存不超过设定的值spark.reducer.maxMbInFlight
+      /**
+       * 由于之前远程获取block时,一小部分请求可能就达到了maxMbInFlight的限制
+       * 所以很有可能会剩余很多请求没有发送,所以每次迭代ShuffleBlockFetcherIterator的时候
+       * 还会附加动作用于发送剩余请求
+       */
+      fetchUpToMaxBytes()
     }
 
     result match {
-      case FailureFetchResult(blockId, address, e) =>
+      case FailureFetchResult(blockId, address, _, e) =>
         throwFetchFailedException(blockId, address, e)
 
       case SuccessFetchResult(blockId, address, _, buf) =>
@@ -463,6 +671,12 @@ private class BufferReleasingInputStream(
 private[storage]
 object ShuffleBlockFetcherIterator {
 
+  /**
+   * The latency that adaptively sized fetch requests aim for. Requests that complete much faster
+   * than this are mostly paying per-request overhead; much slower ones hold back too many blocks.
+   */
+  private val TARGET_REQUEST_LATENCY_MS = 100L
+
   /**
    * A request to fetch blocks from a remote BlockManager.
    * 请求从远程blockmanager获取块
@@ -512,11 +726,13 @@ object ShuffleBlockFetcherIterator {
    * @param blockId block id
    * @param address BlockManager that the block was attempted to be fetched from
     *                 块管理器尝试从块中获取块
+   * @param size estimated size of the block, used to calculate bytesInFlight.
    * @param e the failure exception
    */
   private[storage] case class FailureFetchResult(
       blockId: BlockId,
       address: BlockManagerId,
+      size: Long,
       e: Throwable)
     extends FetchResult
 }
@@ -29,6 +29,14 @@ import org.apache.spark.Logging
 import org.apache.spark.annotation.DeveloperApi
 import org.apache.spark.util.collection.OpenHashSet
 
+/**
+ * An object that knows its own size, such as one that holds memory outside the heap which
+ * [[SizeEstimator]] cannot see. [[SizeEstimator]] uses `estimatedSize` as the size of such an
+ * object instead of walking its fields.
+ */
+private[spark] trait KnownSizeEstimation {
+  def estimatedSize: Long
+}
 
 /**
  * :: DeveloperApi ::
@@ -217,6 +225,8 @@ object SizeEstimator extends Logging {
     val cls = obj.getClass
     if (cls.isArray) {
       visitArray(obj, cls, state)
+    } else if (obj.isInstanceOf[KnownSizeEstimation]) {
+      state.size += obj.asInstanceOf[KnownSizeEstimation].estimatedSize
     } else if (obj.isInstanceOf[ClassLoader] || obj.isInstanceOf[Class[_]]) {
       // Hadoop JobConfs created in the interpreter have a ClassLoader, which greatly confuses
       // the size estimator since it references the whole REPL. Do nothing in this case. In
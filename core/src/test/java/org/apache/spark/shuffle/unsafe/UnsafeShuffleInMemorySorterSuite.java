@@ -103,20 +103,42 @@ public class UnsafeShuffleInMemorySorterSuite {
 
   @Test
   public void testSortingManyNumbers() throws Exception {
+    testSortingManyNumbers(false);
+  }
+
+  @Test
+  public void testSortingManyNumbersWithRadixSort() throws Exception {
+    testSortingManyNumbers(true);
+  }
+
+  private void testSortingManyNumbers(boolean useRadixSort) throws Exception {
     UnsafeShuffleInMemorySorter sorter = new UnsafeShuffleInMemorySorter(4);
     int[] numbersToSort = new int[128000];
     Random random = new Random(16);
     for (int i = 0; i < numbersToSort.length; i++) {
       numbersToSort[i] = random.nextInt(PackedRecordPointer.MAXIMUM_PARTITION_ID + 1);
-      sorter.insertRecord(0, numbersToSort[i]);
+      sorter.insertRecord(i, numbersToSort[i]);
     }
+    Assert.assertEquals(numbersToSort.length * 8L, sorter.getRadixSortBufferSize());
+    final long memoryUsage = sorter.getMemoryUsage();
     Arrays.sort(numbersToSort);
     int[] sorterResult = new int[numbersToSort.length];
-    UnsafeShuffleInMemorySorter.UnsafeShuffleSorterIterator iter = sorter.getSortedIterator();
+    UnsafeShuffleInMemorySorter.UnsafeShuffleSorterIterator iter =
+      sorter.getSortedIterator(useRadixSort);
+    Assert.assertEquals(memoryUsage, sorter.getMemoryUsage());
     int j = 0;
+    int prevPartitionId = -1;
+    long prevRecordPointer = -1;
     while (iter.hasNext()) {
       iter.loadNext();
       sorterResult[j] = iter.packedRecordPointer.getPartitionId();
+      // Both sorts are stable, so records of the same partition stay in insertion order.
+      final long recordPointer = iter.packedRecordPointer.getRecordPointer();
+      if (sorterResult[j] == prevPartitionId) {
+        Assert.assertTrue(recordPointer > prevRecordPointer);
+      }
+      prevPartitionId = sorterResult[j];
+      prevRecordPointer = recordPointer;
       j += 1;
     }
     Assert.assertArrayEquals(numbersToSort, sorterResult);
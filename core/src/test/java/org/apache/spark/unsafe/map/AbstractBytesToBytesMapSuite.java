@@ -31,6 +31,7 @@ import static org.mockito.Mockito.*;
 
 import org.apache.spark.shuffle.ShuffleMemoryManager;
 import org.apache.spark.unsafe.array.ByteArrayMethods;
+import org.apache.spark.unsafe.hash.UnsafeHasher;
 import org.apache.spark.unsafe.memory.*;
 import org.apache.spark.unsafe.Platform;
 
@@ -331,12 +332,33 @@ public abstract class AbstractBytesToBytesMapSuite {
 
   @Test
   public void randomizedStressTest() {
+    randomizedStressTest(false, UnsafeHasher.MURMUR3_32);
+  }
+
+  @Test
+  public void randomizedStressTestWithCompactSlots() {
+    randomizedStressTest(true, UnsafeHasher.MURMUR3_32);
+  }
+
+  @Test
+  public void randomizedStressTestWithXXH64() {
+    randomizedStressTest(false, UnsafeHasher.XXH64);
+  }
+
+  @Test
+  public void randomizedStressTestWithCompactSlotsAndXXH64() {
+    randomizedStressTest(true, UnsafeHasher.XXH64);
+  }
+
+  private void randomizedStressTest(boolean compactSlots, UnsafeHasher hasher) {
     final int size = 65536;
     // Java arrays' hashCodes() aren't based on the arrays' contents, so we need to wrap arrays
     // into ByteBuffers in order to use them as keys here.
     final Map<ByteBuffer, byte[]> expected = new HashMap<ByteBuffer, byte[]>();
     final BytesToBytesMap map = new BytesToBytesMap(
-      taskMemoryManager, shuffleMemoryManager, size, PAGE_SIZE_BYTES);
+      taskMemoryManager, shuffleMemoryManager, size, 0.70, PAGE_SIZE_BYTES, false, compactSlots,
+      hasher);
+    Assert.assertEquals(compactSlots, map.usesCompactSlots());
 
     try {
       // Fill the map to 90% full so that we can trigger probing
@@ -383,6 +405,67 @@ public abstract class AbstractBytesToBytesMapSuite {
     }
   }
 
+  @Test
+  public void compactSlotsSurviveGrowth() {
+    final BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, 64, 0.70, 1024, false, true);
+    try {
+      final int numKeys = 10000;
+      for (long i = 0; i < numKeys; i++) {
+        final long[] value = new long[] { i, i * 2 };
+        final BytesToBytesMap.Location loc =
+          map.lookup(value, Platform.LONG_ARRAY_OFFSET, 8);
+        Assert.assertFalse(loc.isDefined());
+        Assert.assertTrue(loc.putNewKey(
+          value, Platform.LONG_ARRAY_OFFSET, 8, value, Platform.LONG_ARRAY_OFFSET, 16));
+      }
+      for (long i = 0; i < numKeys; i++) {
+        final long[] key = new long[] { i };
+        final BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+        Assert.assertTrue(loc.isDefined());
+        Assert.assertEquals(16, loc.getValueLength());
+        Assert.assertEquals(i * 2, Platform.getLong(
+          loc.getValueAddress().getBaseObject(), loc.getValueAddress().getBaseOffset() + 8));
+      }
+      Assert.assertEquals(numKeys, map.numElements());
+    } finally {
+      map.free();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void compactSlotsRejectLargePages() {
+    new BytesToBytesMap(taskMemoryManager, shuffleMemoryManager, 64, 0.70,
+      TaskMemoryManager.MAXIMUM_COMPACT_PAGE_SIZE_BYTES * 2, false, true);
+  }
+
+  @Test
+  public void resetEmptiesTheMap() {
+    final BytesToBytesMap map = new BytesToBytesMap(
+      taskMemoryManager, shuffleMemoryManager, 64, 0.70, 1024, false);
+    try {
+      for (long i = 0; i < 1000; i++) {
+        final long[] value = new long[] { i, i * 2 };
+        Assert.assertTrue(map.lookup(value, Platform.LONG_ARRAY_OFFSET, 8).putNewKey(
+          value, Platform.LONG_ARRAY_OFFSET, 8, value, Platform.LONG_ARRAY_OFFSET, 16));
+      }
+      Assert.assertThat(map.getNumDataPages(), greaterThan(1));
+      Assert.assertTrue(map.reset());
+      Assert.assertEquals(0, map.numElements());
+      Assert.assertEquals(1, map.getNumDataPages());
+      Assert.assertEquals(1024, shuffleMemoryManager.getMemoryConsumptionForThisTask());
+      Assert.assertFalse(map.iterator().hasNext());
+      final long[] key = new long[] { 7 };
+      final BytesToBytesMap.Location loc = map.lookup(key, Platform.LONG_ARRAY_OFFSET, 8);
+      Assert.assertFalse(loc.isDefined());
+      Assert.assertTrue(loc.putNewKey(
+        key, Platform.LONG_ARRAY_OFFSET, 8, key, Platform.LONG_ARRAY_OFFSET, 8));
+      Assert.assertEquals(1, map.numElements());
+    } finally {
+      map.free();
+    }
+  }
+
   @Test
   public void randomizedTestWithRecordsLargerThanPageSize() {
     final long pageSizeBytes = 128;
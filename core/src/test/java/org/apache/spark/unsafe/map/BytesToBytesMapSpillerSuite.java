@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.map;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.UUID;
+
+import scala.Tuple2;
+import scala.Tuple2$;
+import scala.runtime.AbstractFunction1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.returnsSecondArg;
+import static org.mockito.Answers.RETURNS_SMART_NULLS;
+import static org.mockito.Mockito.*;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.executor.TaskMetrics;
+import org.apache.spark.serializer.SerializerInstance;
+import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.storage.*;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.memory.ExecutorMemoryManager;
+import org.apache.spark.unsafe.memory.MemoryAllocator;
+import org.apache.spark.unsafe.memory.TaskMemoryManager;
+import org.apache.spark.util.Utils;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterIterator;
+
+public class BytesToBytesMapSpillerSuite {
+
+  private static final long PAGE_SIZE_BYTES = 4096;
+
+  final LinkedList<File> spillFilesCreated = new LinkedList<File>();
+  final TaskMemoryManager taskMemoryManager =
+    new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+
+  File tempDir;
+  ShuffleMemoryManager shuffleMemoryManager;
+  TaskMetrics taskMetrics;
+  @Mock(answer = RETURNS_SMART_NULLS) BlockManager blockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) DiskBlockManager diskBlockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) TaskContext taskContext;
+
+  private static final class CompressStream extends AbstractFunction1<OutputStream, OutputStream> {
+    @Override
+    public OutputStream apply(OutputStream stream) {
+      return stream;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    tempDir = Utils.createTempDir(System.getProperty("java.io.tmpdir"), "unsafe-test");
+    shuffleMemoryManager = ShuffleMemoryManager.create(Long.MAX_VALUE, PAGE_SIZE_BYTES);
+    spillFilesCreated.clear();
+    taskMetrics = new TaskMetrics();
+    when(taskContext.taskMetrics()).thenReturn(taskMetrics);
+    when(blockManager.conf()).thenReturn(new SparkConf());
+    when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer<Tuple2<TempLocalBlockId, File>>() {
+        @Override
+        public Tuple2<TempLocalBlockId, File> answer(InvocationOnMock invocationOnMock)
+            throws Throwable {
+          TempLocalBlockId blockId = new TempLocalBlockId(UUID.randomUUID());
+          File file = File.createTempFile("spillFile", ".spill", tempDir);
+          spillFilesCreated.add(file);
+          return Tuple2$.MODULE$.apply(blockId, file);
+        }
+      });
+    when(blockManager.getDiskWriter(
+      any(BlockId.class),
+      any(File.class),
+      any(SerializerInstance.class),
+      anyInt(),
+      any(ShuffleWriteMetrics.class))).thenAnswer(new Answer<DiskBlockObjectWriter>() {
+      @Override
+      public DiskBlockObjectWriter answer(InvocationOnMock invocationOnMock) throws Throwable {
+        Object[] args = invocationOnMock.getArguments();
+        return new DiskBlockObjectWriter(
+          (BlockId) args[0],
+          (File) args[1],
+          (SerializerInstance) args[2],
+          (Integer) args[3],
+          new CompressStream(),
+          false,
+          (ShuffleWriteMetrics) args[4]
+        );
+      }
+    });
+    when(blockManager.wrapForCompression(any(BlockId.class), any(InputStream.class)))
+      .then(returnsSecondArg());
+  }
+
+  @After
+  public void tearDown() {
+    try {
+      long leakedUnsafeMemory = taskMemoryManager.cleanUpAllAllocatedMemory();
+      long leakedShuffleMemory = shuffleMemoryManager.getMemoryConsumptionForThisTask();
+      assertEquals(0L, leakedShuffleMemory);
+      assertEquals(0L, leakedUnsafeMemory);
+    } finally {
+      Utils.deleteRecursively(tempDir);
+      tempDir = null;
+    }
+  }
+
+  private BytesToBytesMap newMap() {
+    return new BytesToBytesMap(taskMemoryManager, shuffleMemoryManager, 64, PAGE_SIZE_BYTES);
+  }
+
+  private static void put(BytesToBytesMap map, long key, long value) {
+    final long[] keyData = new long[] { key };
+    final long[] valueData = new long[] { value };
+    final BytesToBytesMap.Location loc = map.lookup(keyData, Platform.LONG_ARRAY_OFFSET, 8);
+    assertFalse(loc.isDefined());
+    assertTrue(loc.putNewKey(
+      keyData, Platform.LONG_ARRAY_OFFSET, 8, valueData, Platform.LONG_ARRAY_OFFSET, 8));
+  }
+
+  /**
+   * Reads back a partition, checking that every record belongs to it, and sums the values by key.
+   */
+  private static void readPartition(
+      BytesToBytesMapSpiller spiller,
+      int partition,
+      Map<Long, Long> sums) throws Exception {
+    final UnsafeSorterIterator iter = spiller.readPartition(partition);
+    while (iter.hasNext()) {
+      iter.loadNext();
+      final Object baseObject = iter.getBaseObject();
+      final long baseOffset = iter.getBaseOffset();
+      assertEquals(8, Platform.getInt(baseObject, baseOffset));
+      assertEquals(4 + 8 + 8, iter.getRecordLength());
+      assertEquals(partition, spiller.partitionOf(baseObject, baseOffset + 4, 8));
+      final long key = Platform.getLong(baseObject, baseOffset + 4);
+      final long value = Platform.getLong(
+        baseObject, BytesToBytesMapSpiller.valueOffset(baseObject, baseOffset));
+      final Long sum = sums.get(key);
+      sums.put(key, sum == null ? value : sum + value);
+    }
+  }
+
+  private void assertSpillFilesWereCleanedUp() {
+    for (File spillFile : spillFilesCreated) {
+      assertFalse("Spill file " + spillFile.getPath() + " was not cleaned up",
+        spillFile.exists());
+    }
+  }
+
+  @Test
+  public void spillAndReadBackPartitions() throws Exception {
+    final BytesToBytesMapSpiller spiller = new BytesToBytesMapSpiller(
+      blockManager, taskContext, 8, 0);
+    final BytesToBytesMap map = newMap();
+    try {
+      assertFalse(spiller.hasSpilled());
+      // Spill the same keys twice so that every partition is made of two spill files.
+      for (int round = 0; round < 2; round++) {
+        for (long i = 0; i < 1000; i++) {
+          put(map, i, i);
+        }
+        assertTrue(spiller.spill(map) > 0);
+        assertTrue(map.reset());
+        assertEquals(0, map.numElements());
+      }
+      assertTrue(spiller.hasSpilled());
+      assertEquals(2000, spiller.numRecordsSpilled());
+      assertTrue(taskMetrics.memoryBytesSpilled() > 0);
+      assertTrue(taskMetrics.diskBytesSpilled() > 0);
+
+      final Map<Long, Long> sums = new HashMap<Long, Long>();
+      for (int partition = 0; partition < spiller.numPartitions(); partition++) {
+        assertTrue(spiller.hasRecords(partition));
+        readPartition(spiller, partition, sums);
+      }
+      assertEquals(1000, sums.size());
+      for (long i = 0; i < 1000; i++) {
+        assertEquals(Long.valueOf(2 * i), sums.get(i));
+      }
+      assertSpillFilesWereCleanedUp();
+    } finally {
+      map.free();
+      spiller.cleanup();
+    }
+  }
+
+  @Test
+  public void childSpillerSplitsAPartitionAgain() throws Exception {
+    final BytesToBytesMapSpiller spiller = new BytesToBytesMapSpiller(
+      blockManager, taskContext, 4, 0);
+    final BytesToBytesMapSpiller child = spiller.newChildSpiller();
+    assertEquals(1, child.level());
+    final BytesToBytesMap map = newMap();
+    try {
+      // All of these keys land in the same partition of the parent, but the child should spread
+      // them across more than one partition.
+      long numKeys = 0;
+      for (long i = 0; numKeys < 200; i++) {
+        final long[] key = new long[] { i };
+        if (spiller.partitionOf(key, Platform.LONG_ARRAY_OFFSET, 8) == 0) {
+          put(map, i, 1);
+          numKeys++;
+        }
+      }
+      child.spill(map);
+      int nonEmptyPartitions = 0;
+      final Map<Long, Long> sums = new HashMap<Long, Long>();
+      for (int partition = 0; partition < child.numPartitions(); partition++) {
+        if (child.hasRecords(partition)) {
+          nonEmptyPartitions++;
+          readPartition(child, partition, sums);
+        }
+      }
+      assertTrue(nonEmptyPartitions > 1);
+      assertEquals(200, sums.size());
+    } finally {
+      map.free();
+      spiller.cleanup();
+      child.cleanup();
+    }
+  }
+
+  @Test
+  public void cleanupDeletesUnreadSpillFiles() throws Exception {
+    final BytesToBytesMapSpiller spiller = new BytesToBytesMapSpiller(
+      blockManager, taskContext, 2, 0);
+    final BytesToBytesMap map = newMap();
+    try {
+      for (long i = 0; i < 100; i++) {
+        put(map, i, i);
+      }
+      spiller.spill(map);
+      assertFalse(spillFilesCreated.isEmpty());
+    } finally {
+      map.free();
+      spiller.cleanup();
+    }
+    assertSpillFilesWereCleanedUp();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void numPartitionsMustBeAPowerOfTwo() {
+    new BytesToBytesMapSpiller(blockManager, taskContext, 6, 0);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReadAheadInputStreamSuite {
+
+  private static byte[] randomBytes(int length) {
+    final byte[] bytes = new byte[length];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void readsTheWholeStream() throws IOException {
+    final byte[] data = randomBytes(100 * 1000 + 17);
+    final int[] bufferSizes = { 1, 7, 4096, data.length, data.length * 2 };
+    for (int bufferSize : bufferSizes) {
+      for (int depth = 2; depth <= 4; depth++) {
+        final InputStream in =
+          new ReadAheadInputStream(new ByteArrayInputStream(data), bufferSize, depth);
+        assertArrayEquals(data, ByteStreams.toByteArray(in));
+        assertEquals(-1, in.read());
+        in.close();
+      }
+    }
+  }
+
+  @Test
+  public void mixesSingleByteReadsAndSkips() throws IOException {
+    final byte[] data = randomBytes(10000);
+    final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 100, 2);
+    assertEquals(data[0] & 0xFF, in.read());
+    assertEquals(250, in.skip(250));
+    final byte[] chunk = new byte[1000];
+    ByteStreams.readFully(in, chunk);
+    assertArrayEquals(Arrays.copyOfRange(data, 251, 1251), chunk);
+    assertEquals(data.length - 1251, in.skip(Long.MAX_VALUE));
+    assertEquals(-1, in.read(chunk, 0, chunk.length));
+    in.close();
+  }
+
+  @Test
+  public void emptyStream() throws IOException {
+    final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), 10, 2);
+    assertEquals(-1, in.read());
+    assertEquals(0, in.skip(10));
+    in.close();
+  }
+
+  @Test
+  public void readErrorsAreRethrown() throws IOException {
+    final InputStream failing = new InputStream() {
+      private int remaining = 1000;
+
+      @Override
+      public int read() throws IOException {
+        if (remaining-- <= 0) {
+          throw new IOException("disk on fire");
+        }
+        return 1;
+      }
+    };
+    final InputStream in = new ReadAheadInputStream(failing, 64, 2);
+    try {
+      ByteStreams.toByteArray(in);
+      fail("Expected the read error to be rethrown");
+    } catch (IOException e) {
+      assertEquals("disk on fire", e.getMessage());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void closeBeforeTheEndClosesTheUnderlyingStream() throws Exception {
+    final boolean[] closed = { false };
+    final InputStream underlying = new ByteArrayInputStream(randomBytes(10000)) {
+      @Override
+      public void close() {
+        synchronized (this) {
+          closed[0] = true;
+          notifyAll();
+        }
+      }
+    };
+    final InputStream in = new ReadAheadInputStream(underlying, 100, 2);
+    in.read();
+    in.close();
+    // The underlying stream may be closed asynchronously by a read that was still in progress.
+    synchronized (underlying) {
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (!closed[0] && System.currentTimeMillis() < deadline) {
+        underlying.wait(100);
+      }
+    }
+    assertTrue(closed[0]);
+    assertEquals(-1, in.read());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void depthMustBeAtLeastTwo() {
+    new ReadAheadInputStream(new ByteArrayInputStream(new byte[1]), 10, 1);
+  }
+}
@@ -111,6 +111,7 @@ public class UnsafeExternalSorterSuite {
     spillFilesCreated.clear();
     taskContext = mock(TaskContext.class);
     when(taskContext.taskMetrics()).thenReturn(new TaskMetrics());
+    when(blockManager.conf()).thenReturn(new SparkConf());
     when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
     when(diskBlockManager.createTempLocalBlock()).thenAnswer(new Answer<Tuple2<TempLocalBlockId, File>>() {
       @Override
@@ -396,5 +397,88 @@ public class UnsafeExternalSorterSuite {
     }
   }
 
-}
+  @Test
+  public void readAheadMemoryIsSplitBetweenSpills() {
+    final long memory = 32L * 1024 * 1024;
+    // A few spills get the largest buffers and extra depth.
+    assertEquals(UnsafeExternalSorter.MAX_READ_AHEAD_BUFFER_SIZE,
+      UnsafeExternalSorter.readAheadBufferSize(memory, 4));
+    assertEquals(UnsafeExternalSorter.MAX_READ_AHEAD_DEPTH, UnsafeExternalSorter.readAheadDepth(
+      memory, 4, UnsafeExternalSorter.MAX_READ_AHEAD_BUFFER_SIZE));
+    // Many spills share the memory with smaller, double buffers.
+    assertEquals(256 * 1024, UnsafeExternalSorter.readAheadBufferSize(memory, 64));
+    assertEquals(2, UnsafeExternalSorter.readAheadDepth(memory, 64, 256 * 1024));
+    assertEquals(UnsafeExternalSorter.MIN_READ_AHEAD_BUFFER_SIZE,
+      UnsafeExternalSorter.readAheadBufferSize(memory, 512));
+    // Read-ahead is turned off rather than exceeding the memory with minimum-sized buffers.
+    assertEquals(0, UnsafeExternalSorter.readAheadBufferSize(memory, 513));
+    // No memory means no read-ahead.
+    assertEquals(0, UnsafeExternalSorter.readAheadBufferSize(0, 4));
+  }
+
+  @Test
+  public void mergingManySpillsWithReadAhead() throws Exception {
+    final UnsafeExternalSorter sorter = newSorter();
+    try {
+      for (int i = 0; i < 50; i++) {
+        for (int j = 0; j < 100; j++) {
+          insertNumber(sorter, j * 50 + i);
+        }
+        sorter.spill();
+      }
+      assertEquals(50, spillFilesCreated.size());
+      final UnsafeSorterIterator iter = sorter.getSortedIterator();
+      for (int i = 0; i < 5000; i++) {
+        assertTrue(iter.hasNext());
+        iter.loadNext();
+        assertEquals(i, Platform.getInt(iter.getBaseObject(), iter.getBaseOffset()));
+      }
+      assertFalse(iter.hasNext());
+    } finally {
+      sorter.cleanupResources();
+      assertSpillFilesWereCleanedUp();
+    }
+  }
 
+  @Test
+  public void abandonedMergeReleasesReadAheadMemory() throws Exception {
+    final UnsafeExternalSorter sorter = newSorter();
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 100; j++) {
+        insertNumber(sorter, j * 4 + i);
+      }
+      sorter.spill();
+    }
+    final long memoryBeforeMerge = shuffleMemoryManager.getMemoryConsumptionForThisTask();
+    final UnsafeSorterIterator iter = sorter.getSortedIterator();
+    assertTrue(shuffleMemoryManager.getMemoryConsumptionForThisTask() > memoryBeforeMerge);
+    iter.loadNext();
+    assertEquals(0, Platform.getInt(iter.getBaseObject(), iter.getBaseOffset()));
+    // Stop consuming the merge, as a limit would.
+    sorter.cleanupResources();
+    assertEquals(0L, shuffleMemoryManager.getMemoryConsumptionForThisTask());
+  }
+
+  @Test
+  public void mergeWithoutMemoryForReadAheadReadsSynchronously() throws Exception {
+    shuffleMemoryManager = ShuffleMemoryManager.create(pageSizeBytes, pageSizeBytes);
+    final UnsafeExternalSorter sorter = newSorter();
+    try {
+      for (int i = 0; i < 4; i++) {
+        for (int j = 0; j < 100; j++) {
+          insertNumber(sorter, j * 4 + i);
+        }
+        sorter.spill();
+      }
+      final UnsafeSorterIterator iter = sorter.getSortedIterator();
+      for (int i = 0; i < 400; i++) {
+        assertTrue(iter.hasNext());
+        iter.loadNext();
+        assertEquals(i, Platform.getInt(iter.getBaseObject(), iter.getBaseOffset()));
+      }
+      assertFalse(iter.hasNext());
+    } finally {
+      sorter.cleanupResources();
+    }
+  }
+}
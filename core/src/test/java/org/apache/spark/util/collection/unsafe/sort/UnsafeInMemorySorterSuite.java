@@ -18,6 +18,7 @@
 package org.apache.spark.util.collection.unsafe.sort;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -31,6 +32,7 @@ import org.apache.spark.unsafe.memory.ExecutorMemoryManager;
 import org.apache.spark.unsafe.memory.MemoryAllocator;
 import org.apache.spark.unsafe.memory.MemoryBlock;
 import org.apache.spark.unsafe.memory.TaskMemoryManager;
+import org.apache.spark.unsafe.types.UTF8String;
 
 public class UnsafeInMemorySorterSuite {
 
@@ -128,4 +130,180 @@ public class UnsafeInMemorySorterSuite {
     }
     assertEquals(dataToSort.length, iterLength);
   }
+
+  @Test
+  public void testRadixSortByStringPrefixWithTies() throws Exception {
+    // Many of these strings share their first 8 bytes, so the records have to be compared to
+    // break ties between equal prefixes.
+    final Random random = new Random(42);
+    final String[] dataToSort = new String[1000];
+    for (int i = 0; i < dataToSort.length; i++) {
+      final StringBuilder sb = new StringBuilder(random.nextBoolean() ? "abcdefgh" : "");
+      final int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        sb.append((char) ('a' + random.nextInt(3)));
+      }
+      dataToSort[i] = sb.toString();
+    }
+    final TaskMemoryManager memoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    final MemoryBlock dataPage = memoryManager.allocatePage(64 * 1024);
+    final Object baseObject = dataPage.getBaseObject();
+    final RecordComparator recordComparator = new RecordComparator() {
+      @Override
+      public int compare(
+        Object leftBaseObject,
+        long leftBaseOffset,
+        Object rightBaseObject,
+        long rightBaseOffset) {
+        final int leftLength = Platform.getInt(leftBaseObject, leftBaseOffset - 4);
+        final int rightLength = Platform.getInt(rightBaseObject, rightBaseOffset - 4);
+        return getStringFromDataPage(leftBaseObject, leftBaseOffset, leftLength).compareTo(
+          getStringFromDataPage(rightBaseObject, rightBaseOffset, rightLength));
+      }
+    };
+    final UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(memoryManager, recordComparator,
+      PrefixComparators.STRING, 16);
+    assertTrue(sorter.canUseRadixSort());
+    long position = dataPage.getBaseOffset();
+    for (String str : dataToSort) {
+      final byte[] strBytes = str.getBytes("utf-8");
+      final long address = memoryManager.encodePageNumberAndOffset(dataPage, position);
+      Platform.putInt(baseObject, position, strBytes.length);
+      Platform.copyMemory(
+        strBytes, Platform.BYTE_ARRAY_OFFSET, baseObject, position + 4, strBytes.length);
+      position += 4 + strBytes.length;
+      sorter.insertRecord(address, UTF8String.fromBytes(strBytes).getPrefix());
+    }
+    assertEquals(dataToSort.length * 16L, sorter.getRadixSortBufferSize());
+    final long memoryUsage = sorter.getMemoryUsage();
+    final UnsafeSorterIterator iter = sorter.getSortedIterator(true);
+    assertEquals(memoryUsage, sorter.getMemoryUsage());
+    Arrays.sort(dataToSort);
+    for (String expected : dataToSort) {
+      assertTrue(iter.hasNext());
+      iter.loadNext();
+      assertEquals(expected,
+        getStringFromDataPage(iter.getBaseObject(), iter.getBaseOffset(), iter.getRecordLength()));
+    }
+    assertFalse(iter.hasNext());
+    memoryManager.freePage(dataPage);
+  }
+
+  @Test
+  public void testRadixSortBySignedLongPrefix() throws Exception {
+    final Random random = new Random(42);
+    final long[] prefixes = new long[10000];
+    for (int i = 0; i < prefixes.length; i++) {
+      // Mix small values of both signs with values spread over the whole range.
+      prefixes[i] = random.nextBoolean() ? random.nextInt(200) - 100 : random.nextLong();
+    }
+    final TaskMemoryManager memoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    // Every record points to the same empty record; only the prefixes matter.
+    final MemoryBlock dataPage = memoryManager.allocatePage(64);
+    Platform.putInt(dataPage.getBaseObject(), dataPage.getBaseOffset(), 0);
+    final long address =
+      memoryManager.encodePageNumberAndOffset(dataPage, dataPage.getBaseOffset());
+    for (PrefixComparator prefixComparator :
+        new PrefixComparator[] { PrefixComparators.LONG, PrefixComparators.LONG_DESC }) {
+      final UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(
+        memoryManager, mock(RecordComparator.class), prefixComparator, 16);
+      for (long prefix : prefixes) {
+        sorter.insertRecord(address, prefix);
+      }
+      final UnsafeSorterIterator iter = sorter.getSortedIterator(true);
+      long prevPrefix = 0;
+      for (int i = 0; i < prefixes.length; i++) {
+        iter.loadNext();
+        if (i > 0) {
+          assertThat(prefixComparator.compare(prevPrefix, iter.getKeyPrefix()),
+            lessThanOrEqualTo(0));
+        }
+        prevPrefix = iter.getKeyPrefix();
+      }
+      assertFalse(iter.hasNext());
+    }
+    memoryManager.freePage(dataPage);
+  }
+
+  @Test
+  public void testWideKeyPrefixAvoidsRecordComparisons() throws Exception {
+    // URLs that all share their first 8 bytes, but differ within the first 16.
+    final Random random = new Random(42);
+    final String[] dataToSort = new String[1000];
+    for (int i = 0; i < dataToSort.length; i++) {
+      dataToSort[i] = String.format("https://%08x.example.com/", random.nextInt());
+    }
+    final TaskMemoryManager memoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    final MemoryBlock dataPage = memoryManager.allocatePage(64 * 1024);
+    final Object baseObject = dataPage.getBaseObject();
+    final int[] numRecordComparisons = new int[1];
+    final RecordComparator recordComparator = new RecordComparator() {
+      @Override
+      public int compare(
+        Object leftBaseObject,
+        long leftBaseOffset,
+        Object rightBaseObject,
+        long rightBaseOffset) {
+        numRecordComparisons[0]++;
+        final int leftLength = Platform.getInt(leftBaseObject, leftBaseOffset - 4);
+        final int rightLength = Platform.getInt(rightBaseObject, rightBaseOffset - 4);
+        return getStringFromDataPage(leftBaseObject, leftBaseOffset, leftLength).compareTo(
+          getStringFromDataPage(rightBaseObject, rightBaseOffset, rightLength));
+      }
+    };
+    final String[] expected = dataToSort.clone();
+    Arrays.sort(expected);
+    for (boolean wideKeyPrefix : new boolean[] { false, true }) {
+      for (boolean useRadixSort : new boolean[] { false, true }) {
+        final UnsafeInMemorySorter sorter = new UnsafeInMemorySorter(memoryManager,
+          recordComparator, PrefixComparators.STRING, 16, wideKeyPrefix);
+        assertEquals(wideKeyPrefix, sorter.hasWideKeyPrefix());
+        long position = dataPage.getBaseOffset();
+        for (String str : dataToSort) {
+          final byte[] strBytes = str.getBytes("utf-8");
+          final long address = memoryManager.encodePageNumberAndOffset(dataPage, position);
+          Platform.putInt(baseObject, position, strBytes.length);
+          Platform.copyMemory(
+            strBytes, Platform.BYTE_ARRAY_OFFSET, baseObject, position + 4, strBytes.length);
+          position += 4 + strBytes.length;
+          final UTF8String utf8 = UTF8String.fromBytes(strBytes);
+          sorter.insertRecord(address, utf8.getPrefix(), utf8.getSecondPrefix());
+        }
+        assertEquals(dataToSort.length * (wideKeyPrefix ? 24L : 16L),
+          sorter.getRadixSortBufferSize());
+        numRecordComparisons[0] = 0;
+        final UnsafeSorterIterator iter = sorter.getSortedIterator(useRadixSort);
+        if (wideKeyPrefix) {
+          // Only records with equal 16-byte prefixes need to be compared.
+          assertEquals(0, numRecordComparisons[0]);
+        } else {
+          assertThat(numRecordComparisons[0], greaterThan(dataToSort.length));
+        }
+        for (String str : expected) {
+          assertTrue(iter.hasNext());
+          iter.loadNext();
+          assertEquals(str,
+            getStringFromDataPage(iter.getBaseObject(), iter.getBaseOffset(),
+              iter.getRecordLength()));
+        }
+        assertFalse(iter.hasNext());
+      }
+    }
+    memoryManager.freePage(dataPage);
+  }
+
+  @Test
+  public void testRadixSortIsOnlyUsedForKnownPrefixComparators() {
+    final TaskMemoryManager memoryManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    assertFalse(new UnsafeInMemorySorter(memoryManager, mock(RecordComparator.class),
+      mock(PrefixComparator.class), 16).canUseRadixSort());
+    assertFalse(new UnsafeInMemorySorter(memoryManager, mock(RecordComparator.class),
+      PrefixComparators.DOUBLE, 16).canUseRadixSort());
+    assertTrue(new UnsafeInMemorySorter(memoryManager, mock(RecordComparator.class),
+      PrefixComparators.BINARY_DESC, 16).canUseRadixSort());
+  }
 }
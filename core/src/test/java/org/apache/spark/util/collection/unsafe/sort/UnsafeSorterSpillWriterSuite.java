@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.util.collection.unsafe.sort;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+
+import scala.Tuple2;
+import scala.Tuple2$;
+import scala.runtime.AbstractFunction1;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.returnsSecondArg;
+import static org.mockito.Answers.RETURNS_SMART_NULLS;
+import static org.mockito.Mockito.*;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.serializer.SerializerInstance;
+import org.apache.spark.storage.*;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.memory.MemoryAllocator;
+import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.util.Utils;
+
+public class UnsafeSorterSpillWriterSuite {
+
+  File tempDir;
+  SparkConf conf;
+  @Mock(answer = RETURNS_SMART_NULLS) BlockManager blockManager;
+  @Mock(answer = RETURNS_SMART_NULLS) DiskBlockManager diskBlockManager;
+
+  private static final class CompressStream extends AbstractFunction1<OutputStream, OutputStream> {
+    @Override
+    public OutputStream apply(OutputStream stream) {
+      return stream;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    tempDir = Utils.createTempDir(System.getProperty("java.io.tmpdir"), "unsafe-test");
+    conf = new SparkConf();
+    when(blockManager.conf()).thenReturn(conf);
+    when(blockManager.diskBlockManager()).thenReturn(diskBlockManager);
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer<Tuple2<TempLocalBlockId, File>>() {
+        @Override
+        public Tuple2<TempLocalBlockId, File> answer(InvocationOnMock invocationOnMock)
+            throws Throwable {
+          TempLocalBlockId blockId = new TempLocalBlockId(UUID.randomUUID());
+          File file = File.createTempFile("spillFile", ".spill", tempDir);
+          return Tuple2$.MODULE$.apply(blockId, file);
+        }
+      });
+    when(blockManager.getDiskWriter(
+      any(BlockId.class),
+      any(File.class),
+      any(SerializerInstance.class),
+      anyInt(),
+      any(ShuffleWriteMetrics.class))).thenAnswer(new Answer<DiskBlockObjectWriter>() {
+      @Override
+      public DiskBlockObjectWriter answer(InvocationOnMock invocationOnMock) throws Throwable {
+        Object[] args = invocationOnMock.getArguments();
+        return new DiskBlockObjectWriter(
+          (BlockId) args[0],
+          (File) args[1],
+          (SerializerInstance) args[2],
+          (Integer) args[3],
+          new CompressStream(),
+          false,
+          (ShuffleWriteMetrics) args[4]
+        );
+      }
+    });
+    when(blockManager.wrapForCompression(any(BlockId.class), any(InputStream.class)))
+      .then(returnsSecondArg());
+  }
+
+  @After
+  public void tearDown() {
+    Utils.deleteRecursively(tempDir);
+    tempDir = null;
+  }
+
+  /**
+   * Spills many small records and one that is larger than the write buffer from a page of the
+   * given allocator, then reads them back and checks every byte.
+   */
+  private void writeAndReadBack(MemoryAllocator allocator, boolean compress) throws Exception {
+    when(blockManager.shouldCompress(any(BlockId.class))).thenReturn(compress);
+    final int numSmallRecords = 3000;
+    final int largeRecordLength = UnsafeSorterSpillWriter.DISK_WRITE_BUFFER_SIZE * 5 / 2;
+    final int[] lengths = new int[numSmallRecords + 1];
+    long pageSize = largeRecordLength;
+    for (int i = 0; i < numSmallRecords; i++) {
+      lengths[i] = i % 50;
+      pageSize += lengths[i];
+    }
+    lengths[numSmallRecords] = largeRecordLength;
+    final byte[] data = new byte[(int) pageSize];
+    new Random(42).nextBytes(data);
+    final MemoryBlock page = allocator.allocate((pageSize + 7) / 8 * 8);
+    try {
+      Platform.copyMemory(data, Platform.BYTE_ARRAY_OFFSET, page.getBaseObject(),
+        page.getBaseOffset(), pageSize);
+      final ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+      final UnsafeSorterSpillWriter writer =
+        new UnsafeSorterSpillWriter(blockManager, 32 * 1024, writeMetrics, lengths.length);
+      long offset = 0;
+      for (int i = 0; i < lengths.length; i++) {
+        writer.write(page.getBaseObject(), page.getBaseOffset() + offset, lengths[i], i);
+        offset += lengths[i];
+      }
+      writer.close();
+      assertEquals(lengths.length, writeMetrics.shuffleRecordsWritten());
+      assertEquals(writer.getFile().length(), writeMetrics.shuffleBytesWritten());
+
+      final UnsafeSorterSpillReader reader = writer.getReader(blockManager);
+      offset = 0;
+      for (int i = 0; i < lengths.length; i++) {
+        assertTrue(reader.hasNext());
+        reader.loadNext();
+        assertEquals(i, reader.getKeyPrefix());
+        assertEquals(lengths[i], reader.getRecordLength());
+        final byte[] record = new byte[lengths[i]];
+        Platform.copyMemory(reader.getBaseObject(), reader.getBaseOffset(), record,
+          Platform.BYTE_ARRAY_OFFSET, lengths[i]);
+        for (int j = 0; j < lengths[i]; j++) {
+          assertEquals(data[(int) offset + j], record[j]);
+        }
+        offset += lengths[i];
+      }
+      assertFalse(reader.hasNext());
+    } finally {
+      allocator.free(page);
+    }
+  }
+
+  @Test
+  public void directWriteFromOnHeapPage() throws Exception {
+    writeAndReadBack(MemoryAllocator.HEAP, false);
+  }
+
+  @Test
+  public void directWriteFromOffHeapPage() throws Exception {
+    writeAndReadBack(MemoryAllocator.UNSAFE, false);
+  }
+
+  @Test
+  public void directWriteWithSyncWrites() throws Exception {
+    conf.set("spark.shuffle.sync", "true");
+    writeAndReadBack(MemoryAllocator.UNSAFE, false);
+  }
+
+  @Test
+  public void compressedWriteFromOnHeapPage() throws Exception {
+    writeAndReadBack(MemoryAllocator.HEAP, true);
+  }
+
+  @Test
+  public void compressedWriteFromOffHeapPage() throws Exception {
+    writeAndReadBack(MemoryAllocator.UNSAFE, true);
+  }
+
+  @Test
+  public void uncompressedSpillsDoNotUseTheDiskWriter() throws Exception {
+    when(blockManager.shouldCompress(any(BlockId.class))).thenReturn(false);
+    final UnsafeSorterSpillWriter writer =
+      new UnsafeSorterSpillWriter(blockManager, 32 * 1024, new ShuffleWriteMetrics(), 0);
+    writer.close();
+    verify(blockManager, never()).getDiskWriter(
+      any(BlockId.class),
+      any(File.class),
+      any(SerializerInstance.class),
+      anyInt(),
+      any(ShuffleWriteMetrics.class));
+    assertEquals(4, writer.getFile().length());
+  }
+
+  @Test
+  public void revertDiscardsPartialSpill() throws Exception {
+    when(blockManager.shouldCompress(any(BlockId.class))).thenReturn(false);
+    final byte[] record = new byte[100];
+    final ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+    final UnsafeSorterSpillWriter writer =
+      new UnsafeSorterSpillWriter(blockManager, 32 * 1024, writeMetrics, 2);
+    writer.write(record, Platform.BYTE_ARRAY_OFFSET, record.length, 0L);
+    writer.revertPartialWritesAndClose();
+    assertEquals(0, writer.getFile().length());
+    assertEquals(0, writeMetrics.shuffleRecordsWritten());
+    assertEquals(0, writeMetrics.shuffleBytesWritten());
+    // Reverting again, as a caller's cleanup might, does nothing.
+    writer.revertPartialWritesAndClose();
+  }
+}
@@ -82,6 +82,23 @@ class MapOutputTrackerSuite extends SparkFunSuite {
     rpcEnv.shutdown()
   }
 
+  test("map task ids of fetched statuses") {//已获取状态的Map任务ID
+    val rpcEnv = createRpcEnv("test")
+    val tracker = new MapOutputTrackerMaster(conf)
+    tracker.trackerEndpoint = rpcEnv.setupEndpoint(MapOutputTracker.ENDPOINT_NAME,
+      new MapOutputTrackerMasterEndpoint(rpcEnv, tracker, conf))
+    tracker.registerShuffle(10, 2)
+    assert(tracker.getMapTaskIds(10).map(_.toSeq) === Some(Seq(-1L, -1L)))
+    tracker.registerMapOutput(10, 0, MapStatus(BlockManagerId("a", "hostA", 1000),
+      Array(1000L, 10000L), 7L))
+    tracker.registerMapOutput(10, 1, MapStatus(BlockManagerId("b", "hostB", 1000),
+      Array(10000L, 1000L)))
+    assert(tracker.getMapTaskIds(10).map(_.toSeq) === Some(Seq(7L, -1L)))
+    assert(tracker.getMapTaskIds(11) === None)
+    tracker.stop()
+    rpcEnv.shutdown()
+  }
+
   test("master register and unregister shuffle") {//主节点注册shuffle和注销shuffle
     val rpcEnv = createRpcEnv("test")
     val tracker = new MapOutputTrackerMaster(conf)
@@ -17,9 +17,13 @@
 
 package org.apache.spark.io
 
-import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, EOFException, IOException,
+  OutputStream}
+import java.util.Random
 
 import com.google.common.io.ByteStreams
+import net.jpountz.lz4.LZ4BlockOutputStream
+import org.xerial.snappy.SnappyOutputStream
 
 import org.apache.spark.{SparkConf, SparkFunSuite}
 
@@ -63,13 +67,16 @@ class CompressionCodecSuite extends SparkFunSuite {
     assert(codec.getClass === classOf[LZ4CompressionCodec])
     testCodec(codec)
   }
-  //lz4不支持串行化流的连接
-  test("lz4 does not support concatenation of serialized streams") {
+  //lz4支持串行化流的连接
+  test("lz4 supports concatenation of serialized streams") {
     val codec = CompressionCodec.createCodec(conf, classOf[LZ4CompressionCodec].getName)
     assert(codec.getClass === classOf[LZ4CompressionCodec])
-    intercept[Exception] {
-      testConcatenationOfSerializedStreams(codec)
-    }
+    assert(CompressionCodec.supportsConcatenationOfSerializedStreams(codec))
+    testConcatenationOfSerializedStreams(codec)
+  }
+
+  test("lz4 skips whole frames and stores incompressible frames") {
+    testFrames(CompressionCodec.createCodec(conf, "lz4"))
   }
 
   test("lzf compression codec") {//lzf压缩编解码器
@@ -101,20 +108,117 @@ class CompressionCodecSuite extends SparkFunSuite {
     assert(codec.getClass === classOf[SnappyCompressionCodec])
     testCodec(codec)
   }
-  //snappy不支持串行化流的连接
-  test("snappy does not support concatenation of serialized streams") {
+  //snappy支持串行化流的连接
+  test("snappy supports concatenation of serialized streams") {
     val codec = CompressionCodec.createCodec(conf, classOf[SnappyCompressionCodec].getName)
     assert(codec.getClass === classOf[SnappyCompressionCodec])
-    intercept[Exception] {
-      testConcatenationOfSerializedStreams(codec)
+    assert(CompressionCodec.supportsConcatenationOfSerializedStreams(codec))
+    testConcatenationOfSerializedStreams(codec)
+  }
+
+  test("snappy skips whole frames and stores incompressible frames") {
+    testFrames(CompressionCodec.createCodec(conf, "snappy"))
+  }
+
+  test("truncated frames are detected") {
+    val codec = CompressionCodec.createCodec(conf, "snappy")
+    val baos = new ByteArrayOutputStream()
+    val out = codec.compressedOutputStream(baos)
+    out.write(Array.fill[Byte](1000)(1))
+    out.close()
+    val bytes = baos.toByteArray
+    for (length <- Seq(3, bytes.length - 1)) {
+      val in = codec.compressedInputStream(new ByteArrayInputStream(bytes.take(length)))
+      intercept[EOFException] {
+        ByteStreams.toByteArray(in)
+      }
+    }
+  }
+  test("snappy and lz4 read streams written by earlier releases") {
+    val data = (0 until 100000).map(i => (i % 97).toByte).toArray
+    val legacyStreams = Seq[(String, ByteArrayOutputStream => OutputStream)](
+      ("snappy", new SnappyOutputStream(_)),
+      ("lz4", new LZ4BlockOutputStream(_)))
+    for ((name, legacyStream) <- legacyStreams) {
+      val baos = new ByteArrayOutputStream()
+      val out = legacyStream(baos)
+      out.write(data)
+      out.close()
+      val codec = CompressionCodec.createCodec(conf, name)
+      val in = codec.compressedInputStream(new ByteArrayInputStream(baos.toByteArray))
+      assert(ByteStreams.toByteArray(in).toSeq === data.toSeq)
     }
   }
+
+  test("corrupt frame headers are detected") {
+    val codec = CompressionCodec.createCodec(conf, "lz4")
+    def frameHeader(length: Int, compressedLength: Int): Array[Byte] = {
+      val header = new Array[Byte](FramedCompression.HEADER_SIZE)
+      FramedCompression.writeInt(header, 0, length)
+      FramedCompression.writeInt(header, 4, compressedLength)
+      header
+    }
+    val badHeaders = Seq(
+      frameHeader(Int.MaxValue, 10),
+      frameHeader(FramedCompression.MAX_FRAME_SIZE + 1, 10),
+      frameHeader(0, 0),
+      frameHeader(10, 0),
+      frameHeader(10, 11),
+      frameHeader(10, -1),
+      FramedCompression.MAGIC.updated(FramedCompression.MAGIC.length - 1, 2.toByte),
+      FramedCompression.MAGIC.updated(2, 0.toByte))
+    for (header <- badHeaders) {
+      val in = codec.compressedInputStream(
+        new ByteArrayInputStream(FramedCompression.MAGIC ++ header ++ new Array[Byte](100)))
+      val e = intercept[IOException] {
+        ByteStreams.toByteArray(in)
+      }
+      assert(!e.isInstanceOf[EOFException])
+    }
+  }
+
   //坏的压缩编解码器
   test("bad compression codec") {
     intercept[IllegalArgumentException] {
       CompressionCodec.createCodec(conf, "foobar")
     }
   }
+  /**
+   * Writes compressible and incompressible data in several frames, flushing in between, and
+   * reads it back with skips that land both within and across frames.
+   */
+  private def testFrames(codec: CompressionCodec): Unit = {
+    val random = new Random(42)
+    val data = new Array[Byte](200000)
+    random.nextBytes(data)
+    java.util.Arrays.fill(data, 50000, 150000, 7.toByte)
+    val baos = new ByteArrayOutputStream()
+    val out = codec.compressedOutputStream(baos)
+    out.write(data, 0, 1000)
+    out.flush()
+    out.write(data, 1000, data.length - 1000)
+    out.close()
+    out.close()
+    intercept[IOException] {
+      out.write(0)
+    }
+    assert(baos.size() < data.length)
+
+    val in = codec.compressedInputStream(new ByteArrayInputStream(baos.toByteArray))
+    var pos = 0
+    for (skip <- Seq(10, 990, 70000, 1, 100000, 5)) {
+      assert(in.skip(skip) === skip)
+      pos += skip
+      assert(in.read() === (data(pos) & 0xff))
+      pos += 1
+    }
+    val rest = ByteStreams.toByteArray(in)
+    assert(rest.toSeq === data.drop(pos).toSeq)
+    assert(in.skip(10) === 0)
+    assert(in.read() === -1)
+    in.close()
+  }
+
   //测试序列化流的连接
   private def testConcatenationOfSerializedStreams(codec: CompressionCodec): Unit = {
     val bytes1: Array[Byte] = {
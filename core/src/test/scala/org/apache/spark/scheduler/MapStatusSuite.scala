@@ -93,6 +93,18 @@ class MapStatusSuite extends SparkFunSuite {
     }
   }
 
+  //Map状态保留写入它的任务尝试的ID
+  test("MapStatus keeps the id of the task attempt that wrote it") {
+    val loc = BlockManagerId("a", "b", 10)
+    for (numSizes <- Seq(10, 3000)) {
+      val sizes = Array.fill[Long](numSizes)(5L)
+      val status = compressAndDecompressMapStatus(MapStatus(loc, sizes, 42L))
+      assert(status.mapTaskId === 42L)
+      assert(status.getSizeForBlock(1) > 0)
+    }
+    assert(compressAndDecompressMapStatus(MapStatus(loc, Array(1L))).mapTaskId === -1L)
+  }
+
   def compressAndDecompressMapStatus(status: MapStatus): MapStatus = {
     val ser = new JavaSerializer(new SparkConf)
     val buf = ser.newInstance().serialize(status)
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.shuffle
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.shuffle.ShuffleBlockPusher.PushBatch
+import org.apache.spark.storage.BlockManagerId
+
+class ShuffleBlockPusherSuite extends SparkFunSuite {
+
+  private val mergers = Seq(
+    BlockManagerId("shuffle-push-merger", "host-0", 7337),
+    BlockManagerId("shuffle-push-merger", "host-1", 7337))
+
+  test("blocks are pushed to the merger of their reduce partition") {
+    val batches = ShuffleBlockPusher.planBatches(
+      Array(10L, 20L, 0L, 30L), mergers, maxBlockSize = 100, maxBatchSize = 100)
+    assert(batches === Seq(
+      PushBatch(mergers(0), Seq((0, 0L, 10))),
+      PushBatch(mergers(1), Seq((1, 10L, 20), (3, 30L, 30)))))
+  }
+
+  test("blocks are grouped into batches of at most maxBatchSize") {
+    val batches = ShuffleBlockPusher.planBatches(
+      Array(40L, 40L, 40L, 150L), mergers.take(1), maxBlockSize = 200, maxBatchSize = 100)
+    assert(batches === Seq(
+      PushBatch(mergers(0), Seq((0, 0L, 40), (1, 40L, 40))),
+      PushBatch(mergers(0), Seq((2, 80L, 40))),
+      PushBatch(mergers(0), Seq((3, 120L, 150)))))
+  }
+
+  test("blocks larger than maxBlockSize are not pushed") {
+    val batches = ShuffleBlockPusher.planBatches(
+      Array(10L, 500L, 10L), mergers.take(1), maxBlockSize = 100, maxBatchSize = 100)
+    assert(batches === Seq(PushBatch(mergers(0), Seq((0, 0L, 10), (2, 510L, 10)))))
+    assert(ShuffleBlockPusher.planBatches(Array(10L), Seq.empty, 100, 100).isEmpty)
+  }
+}
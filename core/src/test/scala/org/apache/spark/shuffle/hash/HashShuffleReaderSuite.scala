@@ -17,7 +17,7 @@
 
 package org.apache.spark.shuffle.hash
 
-import java.io.{ByteArrayOutputStream, InputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, InputStream}
 import java.nio.ByteBuffer
 
 import org.mockito.Matchers.{eq => meq, _}
@@ -126,7 +126,7 @@ class HashShuffleReaderSuite extends SparkFunSuite with LocalSparkContext {
     // shuffle data to read.
     // 让读者使用的洗牌要确定一个模拟 MapOutputTracker将数据混为读
     val mapOutputTracker = mock(classOf[MapOutputTracker])
-    when(mapOutputTracker.getMapSizesByExecutorId(shuffleId, reduceId)).thenReturn {
+    when(mapOutputTracker.getMapSizesByExecutorId(shuffleId, reduceId, reduceId + 1)).thenReturn {
       // Test a scenario where all data is local, to avoid creating a bunch of additional mocks
       // for the code to read data over the network.
       //测试的情况下,所有的数据都是局部的,以避免创建一组额外的模拟用于在网络上读取数据的代码。
@@ -167,4 +167,68 @@ class HashShuffleReaderSuite extends SparkFunSuite with LocalSparkContext {
       assert(buffer.callsToRelease === 1)
     }
   }
+
+  test("read() reads every block of a range of partitions") {//读取一个分区范围内的所有块
+    val testConf = new SparkConf(false)
+    sc = new SparkContext("local", "test", testConf)
+    val shuffleId = 7
+    val numMaps = 2
+    val serializer = new JavaSerializer(testConf)
+    val blockManager = mock(classOf[BlockManager])
+    val localBlockManagerId = BlockManagerId("test-client", "test-client", 1)
+    when(blockManager.blockManagerId).thenReturn(localBlockManagerId)
+    when(blockManager.wrapForCompression(any[ShuffleBlockId](), any[InputStream]()))
+      .thenAnswer(new Answer[InputStream] {
+        override def answer(invocation: InvocationOnMock): InputStream =
+          invocation.getArguments()(1).asInstanceOf[InputStream]
+      })
+
+    // Every block holds the single record (mapId, reduceId).
+    val blocks = for (mapId <- 0 until numMaps; reduceId <- 3 until 5) yield {
+      val byteOutputStream = new ByteArrayOutputStream()
+      val serializationStream = serializer.newInstance().serializeStream(byteOutputStream)
+      serializationStream.writeKey(mapId)
+      serializationStream.writeValue(reduceId)
+      serializationStream.close()
+      val blockId = ShuffleBlockId(shuffleId, mapId, reduceId)
+      when(blockManager.getBlockData(blockId)).thenReturn(
+        new NioManagedBuffer(ByteBuffer.wrap(byteOutputStream.toByteArray)))
+      (blockId, byteOutputStream.size().toLong)
+    }
+    val mapOutputTracker = mock(classOf[MapOutputTracker])
+    when(mapOutputTracker.getMapSizesByExecutorId(shuffleId, 3, 5))
+      .thenReturn(Seq((localBlockManagerId, blocks)))
+
+    val shuffleHandle = {
+      val dependency = mock(classOf[ShuffleDependency[Int, Int, Int]])
+      when(dependency.serializer).thenReturn(Some(serializer))
+      when(dependency.aggregator).thenReturn(None)
+      when(dependency.keyOrdering).thenReturn(None)
+      new BaseShuffleHandle(shuffleId, numMaps, dependency)
+    }
+    val shuffleReader = new HashShuffleReader(
+      shuffleHandle, 3, 5, TaskContext.empty(), blockManager, mapOutputTracker)
+
+    assert(shuffleReader.read().map(r => (r._1, r._2)).toSet ===
+      Set((0, 3), (0, 4), (1, 3), (1, 4)))
+  }
+
+  test("segments of a merged block are read one after another") {
+    val closed = new Array[Boolean](1)
+    val merged = new ByteArrayInputStream("HelloWorld!".getBytes("UTF-8")) {
+      override def close(): Unit = closed(0) = true
+    }
+    val first = new MergedBlockSegmentStream(merged, 5, closeUnderlying = false)
+    assert(first.read() === 'H'.toInt)
+    // Closing a segment early skips the rest of it.
+    first.close()
+    assert(!closed(0))
+    val second = new MergedBlockSegmentStream(merged, 6, closeUnderlying = true)
+    val buf = new Array[Byte](10)
+    assert(second.read(buf, 0, 10) === 6)
+    assert(new String(buf, 0, 6, "UTF-8") === "World!")
+    assert(second.read() === -1)
+    second.close()
+    assert(closed(0))
+  }
 }
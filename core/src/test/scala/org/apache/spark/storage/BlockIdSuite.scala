@@ -70,6 +70,18 @@ class BlockIdSuite extends SparkFunSuite {
     assertSame(id, BlockId(id.toString))
   }
 
+  test("shuffle merged") {
+    val id = ShuffleMergedBlockId(1, 3)
+    assertSame(id, ShuffleMergedBlockId(1, 3))
+    assertDifferent(id, ShuffleMergedBlockId(3, 1))
+    assert(id.name === "shuffleMerged_1_3")
+    assert(id.asRDDId === None)
+    assert(id.shuffleId === 1)
+    assert(id.reduceId === 3)
+    assert(!id.isShuffle)
+    assertSame(id, BlockId(id.toString))
+  }
+
   test("broadcast") {//广播
     val id = BroadcastBlockId(42)
     assertSame(id, BroadcastBlockId(42))
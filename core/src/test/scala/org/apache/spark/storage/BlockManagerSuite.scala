@@ -1426,4 +1426,73 @@ class BlockManagerSuite extends SparkFunSuite with Matchers with BeforeAndAfterE
     assert(result.data === Right(bytes))
     assert(result.droppedBlocks === Nil)
   }
+
+  test("close values of blocks removed from MemoryStore") {
+    store = makeBlockManager(12000)
+    val v1 = new CloseableValue(4000)
+    val v2 = new CloseableValue(4000)
+    val v3 = new CloseableValue(4000)
+    store.putSingle("a1", v1, StorageLevel.MEMORY_ONLY)
+    store.putSingle("a2", v2, StorageLevel.MEMORY_ONLY)
+    assert(!v1.closed && !v2.closed)
+    // Putting a3 evicts a1, which was used the longest time ago.
+    store.putSingle("a3", v3, StorageLevel.MEMORY_ONLY)
+    assert(store.getSingle("a1") === None, "a1 was in store")
+    assert(v1.closed, "a1 was not closed after being evicted")
+    assert(!v2.closed && !v3.closed)
+    store.removeBlock("a2")
+    assert(v2.closed, "a2 was not closed after being removed")
+    store.memoryStore.clear()
+    assert(v3.closed, "a3 was not closed after the store was cleared")
+  }
+
+  test("tasks retain the closeable values of the blocks they get and put until they complete") {
+    store = makeBlockManager(12000)
+    val v1 = new CloseableValue(4000)
+    val v2 = new CloseableValue(4000)
+    val v3 = new CloseableValue(4000)
+    store.putSingle("a1", v1, StorageLevel.MEMORY_ONLY)
+    assert(v1.refCount === 0, "a1 was retained outside of a task")
+
+    val context = TaskContext.empty()
+    TaskContext.setTaskContext(context)
+    try {
+      assert(store.getSingle("a1") === Some(v1))
+      store.putSingle("a2", v2, StorageLevel.MEMORY_ONLY)
+      assert(v1.refCount === 1 && v2.refCount === 1)
+      // Putting a3 evicts a1 while the task may still be reading it.
+      store.putSingle("a3", v3, StorageLevel.MEMORY_ONLY)
+      assert(v1.closed && v1.refCount === 1)
+      store.removeBlock("a2")
+      assert(v2.closed && v2.refCount === 1)
+    } finally {
+      context.markTaskCompleted()
+      TaskContext.unset()
+    }
+    assert(v1.refCount === 0 && v2.refCount === 0 && v3.refCount === 0)
+
+    // Serializing a deserialized block retains its values only while they are serialized.
+    assert(store.memoryStore.getBytes("a3").isDefined)
+    assert(v3.refCount === 0)
+  }
+}
+
+private class CloseableValue(override val estimatedSize: Long)
+  extends CloseableBlockValue with KnownSizeEstimation with Serializable {
+
+  @volatile var closed = false
+  @volatile var refCount = 0
+
+  override def retain(): Unit = synchronized {
+    assert(!closed, "retained after being closed")
+    refCount += 1
+  }
+
+  override def release(): Unit = synchronized {
+    refCount -= 1
+  }
+
+  override def close(): Unit = {
+    closed = true
+  }
 }
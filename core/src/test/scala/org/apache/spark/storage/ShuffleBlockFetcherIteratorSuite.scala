@@ -17,23 +17,29 @@
 
 package org.apache.spark.storage
 
-import java.io.InputStream
-import java.util.concurrent.Semaphore
+import java.io.{File, InputStream}
+import java.util.UUID
+import java.util.concurrent.{Semaphore, TimeUnit}
 
+import scala.collection.mutable.ArrayBuffer
 import scala.concurrent.ExecutionContext.Implicits.global
-import scala.concurrent.future
+import scala.concurrent.{Await, ExecutionContext, future}
+import scala.concurrent.duration._
 
+import com.google.common.io.Files
 import org.mockito.Matchers.{any, eq => meq}
 import org.mockito.Mockito._
 import org.mockito.invocation.InvocationOnMock
 import org.mockito.stubbing.Answer
 import org.scalatest.PrivateMethodTester
 
-import org.apache.spark.{SparkFunSuite, TaskContext}
+import org.apache.spark.{SparkConf, SparkFunSuite, TaskContext}
 import org.apache.spark.network._
-import org.apache.spark.network.buffer.ManagedBuffer
-import org.apache.spark.network.shuffle.BlockFetchingListener
+import org.apache.spark.network.buffer.{FileSegmentManagedBuffer, ManagedBuffer}
+import org.apache.spark.network.netty.SparkTransportConf
+import org.apache.spark.network.shuffle.{BlockFetchingListener, DownloadFileManager}
 import org.apache.spark.shuffle.FetchFailedException
+import org.apache.spark.util.{ThreadUtils, Utils}
 
 //ShuffleBlockFetcherIterator实现了取Shuffle的Blocks的逻辑，包括读取本地的和发起网络请求读取其他节点上
 class ShuffleBlockFetcherIteratorSuite extends SparkFunSuite with PrivateMethodTester {
@@ -261,4 +267,310 @@ class ShuffleBlockFetcherIteratorSuite extends SparkFunSuite with PrivateMethodT
     intercept[FetchFailedException] { iterator.next() }
     intercept[FetchFailedException] { iterator.next() }
   }
+
+  /**
+   * Creates a mock [[BlockTransferService]] that answers every request right away and records
+   * the block ids of each request in `requests`.
+   */
+  private def createRecordingTransfer(
+      data: Map[BlockId, ManagedBuffer],
+      requests: ArrayBuffer[Seq[String]]): BlockTransferService = {
+    val transfer = mock(classOf[BlockTransferService])
+    when(transfer.fetchBlocks(any(), any(), any(), any(), any())).thenAnswer(new Answer[Unit] {
+      override def answer(invocation: InvocationOnMock): Unit = {
+        val blocks = invocation.getArguments()(3).asInstanceOf[Array[String]]
+        val listener = invocation.getArguments()(4).asInstanceOf[BlockFetchingListener]
+        requests += blocks.toSeq
+        blocks.foreach(blockId => listener.onBlockFetchSuccess(blockId, data(BlockId(blockId))))
+      }
+    })
+    transfer
+  }
+
+  test("limit requests and blocks in flight per address") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blockIds = (0 until 3).map(i => ShuffleBlockId(0, i, 0))
+    val blocks = blockIds.map(blockId => (blockId: BlockId) -> createMockManagedBuffer()).toMap
+
+    // Hold on to the listeners so that the test decides when each request completes.
+    val listeners = new ArrayBuffer[(Array[String], BlockFetchingListener)]
+    val transfer = mock(classOf[BlockTransferService])
+    when(transfer.fetchBlocks(any(), any(), any(), any(), any())).thenAnswer(new Answer[Unit] {
+      override def answer(invocation: InvocationOnMock): Unit = {
+        listeners += ((invocation.getArguments()(3).asInstanceOf[Array[String]],
+          invocation.getArguments()(4).asInstanceOf[BlockFetchingListener]))
+      }
+    })
+    def completeRequest(i: Int): Unit = {
+      val (ids, listener) = listeners(i)
+      ids.foreach(id => listener.onBlockFetchSuccess(id, blocks(BlockId(id))))
+    }
+
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((remoteBmId, blockIds.map(blockId => (blockId, 1L)))),
+      48 * 1024 * 1024,
+      maxReqsInFlightPerAddress = 1,
+      maxBlocksInFlightPerAddress = 1)
+
+    // All blocks would fit in one request, but only one block may be in flight at a time.
+    assert(listeners.size === 1)
+    assert(listeners(0)._1.toSeq === Seq(blockIds(0).toString))
+    for (i <- 0 until 3) {
+      completeRequest(i)
+      iterator.next()._2.close()
+      assert(listeners.size === math.min(i + 2, 3))
+    }
+    assert(!iterator.hasNext)
+  }
+
+  test("send the next request to an address as soon as a block from it is returned") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blockIds = (0 until 5).map(i => ShuffleBlockId(0, i, 0))
+    // Each block's fetch callback stays inside the listener until the caller has returned from
+    // next() for that block, which is where the iterator sends the next request.
+    val nextReturned = new Semaphore(0)
+    val blocks = blockIds.map { blockId =>
+      val buf = createMockManagedBuffer()
+      when(buf.size()).thenAnswer(new Answer[Long] {
+        override def answer(invocation: InvocationOnMock): Long = {
+          nextReturned.tryAcquire(10, TimeUnit.SECONDS)
+          1L
+        }
+      })
+      (blockId: BlockId) -> buf
+    }.toMap
+
+    // Answer every request from another thread, like the network layer does. The threads come
+    // from a pool of their own, as callbacks that wait for the caller must not starve it.
+    val callbackThreads = ExecutionContext.fromExecutorService(
+      ThreadUtils.newDaemonCachedThreadPool("test-fetch-callbacks"))
+    val transfer = mock(classOf[BlockTransferService])
+    when(transfer.fetchBlocks(any(), any(), any(), any(), any())).thenAnswer(new Answer[Unit] {
+      override def answer(invocation: InvocationOnMock): Unit = {
+        val ids = invocation.getArguments()(3).asInstanceOf[Array[String]]
+        val listener = invocation.getArguments()(4).asInstanceOf[BlockFetchingListener]
+        future {
+          ids.foreach(id => listener.onBlockFetchSuccess(id, blocks(BlockId(id))))
+        }(callbackThreads)
+      }
+    })
+
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((remoteBmId, blockIds.map(blockId => (blockId, 1L)))),
+      48 * 1024 * 1024,
+      maxBlocksInFlightPerAddress = 1)
+
+    try {
+      for (i <- 0 until blockIds.size) {
+        val (blockId, stream) =
+          Await.result(future(iterator.next())(callbackThreads), 10.seconds)
+        nextReturned.release()
+        assert(blockId === blockIds(i))
+        stream.close()
+      }
+      assert(!iterator.hasNext)
+      verify(transfer, times(blockIds.size)).fetchBlocks(any(), any(), any(), any(), any())
+    } finally {
+      callbackThreads.shutdownNow()
+    }
+  }
+
+  test("a block larger than the target request size gets a request of its own") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blockIds = (0 until 4).map(i => ShuffleBlockId(0, i, 0))
+    val blocks = blockIds.map(blockId => (blockId: BlockId) -> createMockManagedBuffer()).toMap
+    val requests = new ArrayBuffer[Seq[String]]
+    val transfer = createRecordingTransfer(blocks, requests)
+
+    // With 100 bytes in flight, requests are filled up to 20 bytes.
+    val sizes = Seq(1L, 1L, 50L, 1L)
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((remoteBmId, blockIds.zip(sizes))),
+      100)
+
+    assert(requests === Seq(
+      Seq(blockIds(0).toString, blockIds(1).toString),
+      Seq(blockIds(2).toString),
+      Seq(blockIds(3).toString)))
+    iterator.foreach(_._2.close())
+  }
+
+  test("adaptive request size grows while requests complete quickly") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blockIds = (0 until 20).map(i => ShuffleBlockId(0, i, 0))
+    val blocks = blockIds.map(blockId => (blockId: BlockId) -> createMockManagedBuffer()).toMap
+    val requests = new ArrayBuffer[Seq[String]]
+    val transfer = createRecordingTransfer(blocks, requests)
+
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((remoteBmId, blockIds.map(blockId => (blockId, 10L)))),
+      100,
+      adaptiveRequestSize = true)
+    iterator.foreach(_._2.close())
+
+    // The target starts at 20 bytes and doubles after every fast request, up to 50 bytes.
+    assert(requests.map(_.size).take(3) === Seq(2, 4, 5))
+    assert(requests.map(_.size).sum === 20)
+  }
+
+  test("fetch blocks larger than maxBlockSizeFetchToMem to files") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+    val tempDir = Utils.createTempDir()
+    val diskBlockManager = mock(classOf[DiskBlockManager])
+    doReturn(diskBlockManager).when(blockManager).diskBlockManager
+    when(diskBlockManager.createTempLocalBlock()).thenAnswer(
+      new Answer[(TempLocalBlockId, File)] {
+        override def answer(invocation: InvocationOnMock): (TempLocalBlockId, File) = {
+          val blockId = TempLocalBlockId(UUID.randomUUID())
+          (blockId, new File(tempDir, blockId.name))
+        }
+      })
+
+    // The transfer writes every block to a file from the download file manager.
+    val transportConf = SparkTransportConf.fromSparkConf(new SparkConf(), 1)
+    val transfer = mock(classOf[BlockTransferService])
+    when(transfer.fetchBlocks(any(), any(), any(), any(), any(), any())).thenAnswer(
+      new Answer[Unit] {
+        override def answer(invocation: InvocationOnMock): Unit = {
+          val blocks = invocation.getArguments()(3).asInstanceOf[Array[String]]
+          val listener = invocation.getArguments()(4).asInstanceOf[BlockFetchingListener]
+          val fileManager = invocation.getArguments()(5).asInstanceOf[DownloadFileManager]
+          for (blockId <- blocks) {
+            val file = fileManager.createTempFile()
+            Files.write(new Array[Byte](100), file)
+            listener.onBlockFetchSuccess(
+              blockId, new FileSegmentManagedBuffer(transportConf, file, 0, 100))
+          }
+        }
+      })
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val blockIds = (0 until 2).map(i => ShuffleBlockId(0, i, 0))
+    val taskContext = TaskContext.empty()
+    try {
+      val iterator = new ShuffleBlockFetcherIterator(
+        taskContext,
+        transfer,
+        blockManager,
+        Seq((remoteBmId, blockIds.map(blockId => (blockId, 100L)))),
+        48 * 1024 * 1024,
+        maxBlockSizeFetchToMem = 50)
+      verify(transfer, times(0)).fetchBlocks(any(), any(), any(), any(), any())
+      assert(tempDir.listFiles().length === 2)
+
+      // A consumed block's file is deleted right away, the rest when the task completes.
+      iterator.next()._2.close()
+      assert(tempDir.listFiles().length === 1)
+      taskContext.markTaskCompleted()
+      assert(tempDir.listFiles().isEmpty)
+    } finally {
+      Utils.deleteRecursively(tempDir)
+    }
+  }
+
+  test("record fetch wait time per host") {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+    val localBlockId = ShuffleBlockId(0, 0, 0)
+    doReturn(createMockManagedBuffer()).when(blockManager).getBlockData(meq(localBlockId))
+
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val remoteBlockId = ShuffleBlockId(0, 1, 0)
+    val transfer = createMockTransfer(Map(remoteBlockId -> createMockManagedBuffer()))
+
+    val taskContext = TaskContext.empty()
+    val iterator = new ShuffleBlockFetcherIterator(
+      taskContext,
+      transfer,
+      blockManager,
+      Seq((localBmId, Seq((localBlockId, 1L))), (remoteBmId, Seq((remoteBlockId, 1L)))),
+      48 * 1024 * 1024)
+    iterator.foreach(_._2.close())
+
+    taskContext.taskMetrics.updateShuffleReadMetrics()
+    val readMetrics = taskContext.taskMetrics.shuffleReadMetrics.get
+    assert(readMetrics.fetchWaitTimeByHost.keySet === Set("test-client", "test-client-1"))
+    assert(readMetrics.fetchWaitTimeByHost.values.sum === readMetrics.fetchWaitTime)
+  }
+
+  /**
+   * Fetches a merged block of the given size that the merger does not have, and checks that the
+   * blocks it was merged from are returned instead.
+   */
+  private def testMergedBlockFallback(mergedSize: Long, maxBytesInFlight: Long): Unit = {
+    val blockManager = mock(classOf[BlockManager])
+    val localBmId = BlockManagerId("test-client", "test-client", 1)
+    doReturn(localBmId).when(blockManager).blockManagerId
+    val localBlockId = ShuffleBlockId(0, 0, 0)
+    doReturn(createMockManagedBuffer()).when(blockManager).getBlockData(meq(localBlockId))
+
+    // The merger does not have the merged block, but the executors have the original blocks.
+    val remoteBmId = BlockManagerId("test-client-1", "test-client-1", 2)
+    val mergerId = BlockManagerId("shuffle-push-merger", "test-client-2", 3)
+    val remoteBlockIds = Seq(ShuffleBlockId(0, 1, 0), ShuffleBlockId(0, 2, 0))
+    val mergedBlockId = ShuffleMergedBlockId(0, 0)
+    val transfer = createMockTransfer(remoteBlockIds.map(_ -> createMockManagedBuffer()).toMap)
+
+    val iterator = new ShuffleBlockFetcherIterator(
+      TaskContext.empty(),
+      transfer,
+      blockManager,
+      Seq((mergerId, Seq((mergedBlockId, mergedSize)))),
+      maxBytesInFlight,
+      fallbackBlocks = Map(mergedBlockId -> Seq(
+        (localBmId, Seq((localBlockId, 1L))),
+        (remoteBmId, remoteBlockIds.map((_, 1L)))))
+    )
+
+    // Fetch on another thread, so that a fallback request that is never sent fails the test
+    // instead of blocking it.
+    val fetched = Await.result(future {
+      iterator.map { case (blockId, stream) =>
+        stream.close()
+        blockId
+      }.toList
+    }, 10.seconds)
+    assert(fetched.toSet === (remoteBlockIds :+ localBlockId).toSet)
+    assert(fetched.size === 3)
+    assert(!iterator.hasNext)
+  }
+
+  test("fetch the original blocks of a merged block that cannot be fetched") {
+    testMergedBlockFallback(mergedSize = 3L, maxBytesInFlight = 48 * 1024 * 1024)
+  }
+
+  test("fetch the original blocks of a merged block larger than maxBytesInFlight") {
+    testMergedBlockFallback(mergedSize = 100L, maxBytesInFlight = 10L)
+  }
 }
@@ -226,6 +226,16 @@ class JsonProtocolSuite extends SparkFunSuite {
     assert(newMetrics.outputMetrics.get.recordsWritten == 0)
   }
 
+  test("Peak page table occupancy backward compatibility") {//页表占用向后兼容性
+    // Peak page table occupancy was added after 1.5
+    val metrics = makeTaskMetrics(1L, 2L, 3L, 4L, 5, 6, hasHadoopInput = false, hasOutput = false)
+    metrics.setPeakPageTableOccupancy(7)
+    val newJson = JsonProtocol.taskMetricsToJson(metrics)
+    assert(JsonProtocol.taskMetricsFromJson(newJson).peakPageTableOccupancy === 7)
+    val oldJson = newJson.removeField { case (field, _) => field == "Peak Page Table Occupancy" }
+    assert(JsonProtocol.taskMetricsFromJson(oldJson).peakPageTableOccupancy === 0)
+  }
+
   test("Shuffle Read/Write records backwards compatibility") {//Shuffle读/写记录向后兼容性
     // records read were added after 1.2
     val metrics = makeTaskMetrics(1L, 2L, 3L, 4L, 5, 6,
@@ -572,6 +582,7 @@ class JsonProtocolSuite extends SparkFunSuite {
     assert(metrics1.resultSerializationTime === metrics2.resultSerializationTime)
     assert(metrics1.memoryBytesSpilled === metrics2.memoryBytesSpilled)
     assert(metrics1.diskBytesSpilled === metrics2.diskBytesSpilled)
+    assert(metrics1.peakPageTableOccupancy === metrics2.peakPageTableOccupancy)
     assertOptionEquals(
       metrics1.shuffleReadMetrics, metrics2.shuffleReadMetrics, assertShuffleReadEquals)
     assertOptionEquals(
@@ -1081,6 +1092,7 @@ class JsonProtocolSuite extends SparkFunSuite {
       |    "Result Serialization Time": 700,
       |    "Memory Bytes Spilled": 800,
       |    "Disk Bytes Spilled": 0,
+      |    "Peak Page Table Occupancy": 0,
       |    "Shuffle Read Metrics": {
       |      "Remote Blocks Fetched": 800,
       |      "Local Blocks Fetched": 700,
@@ -1171,6 +1183,7 @@ class JsonProtocolSuite extends SparkFunSuite {
       |    "Result Serialization Time": 700,
       |    "Memory Bytes Spilled": 800,
       |    "Disk Bytes Spilled": 0,
+      |    "Peak Page Table Occupancy": 0,
       |    "Shuffle Write Metrics": {
       |      "Shuffle Bytes Written": 1200,
       |      "Shuffle Write Time": 1500,
@@ -1257,6 +1270,7 @@ class JsonProtocolSuite extends SparkFunSuite {
       |    "Result Serialization Time": 700,
       |    "Memory Bytes Spilled": 800,
       |    "Disk Bytes Spilled": 0,
+      |    "Peak Page Table Occupancy": 0,
       |    "Input Metrics": {
       |      "Data Read Method": "Hadoop",
       |      "Bytes Read": 2100,
@@ -1735,6 +1749,7 @@ class JsonProtocolSuite extends SparkFunSuite {
      |    "Result Serialization Time": 700,
      |    "Memory Bytes Spilled": 800,
      |    "Disk Bytes Spilled": 0,
+     |    "Peak Page Table Occupancy": 0,
      |    "Input Metrics": {
      |      "Data Read Method": "Hadoop",
      |      "Bytes Read": 2100,
@@ -55,6 +55,44 @@ class PrefixComparatorsSuite extends SparkFunSuite with PropertyChecks {
     forAll { (s1: String, s2: String) => testPrefixComparison(s1, s2) }
   }
 
+  test("String 16-byte prefix comparator") {
+
+    def testPrefixComparison(s1: String, s2: String): Unit = {
+      val utf8string1 = UTF8String.fromString(s1)
+      val utf8string2 = UTF8String.fromString(s2)
+      var prefixComparisonResult = PrefixComparators.STRING.compare(
+        PrefixComparators.StringPrefixComparator.computePrefix(utf8string1),
+        PrefixComparators.StringPrefixComparator.computePrefix(utf8string2))
+      if (prefixComparisonResult == 0) {
+        prefixComparisonResult = PrefixComparators.STRING.compare(
+          PrefixComparators.StringPrefixComparator.computeSecondPrefix(utf8string1),
+          PrefixComparators.StringPrefixComparator.computeSecondPrefix(utf8string2))
+      }
+
+      val cmp = UnsignedBytes.lexicographicalComparator().compare(
+        utf8string1.getBytes.take(16), utf8string2.getBytes.take(16))
+
+      assert(
+        (prefixComparisonResult == 0 && cmp == 0) ||
+        (prefixComparisonResult < 0 && utf8string1.compareTo(utf8string2) < 0) ||
+        (prefixComparisonResult > 0 && utf8string1.compareTo(utf8string2) > 0))
+    }
+
+    val regressionTests = Table(
+      ("s1", "s2"),
+      ("https://spark.apache.org/docs", "https://spark.apache.org/news"),
+      ("https://apache.org", "https://spark.apache.org"),
+      ("0123456789abcdef0", "0123456789abcdef1"),
+      ("01234567", "012345678")
+    )
+
+    forAll (regressionTests) { (s1: String, s2: String) => testPrefixComparison(s1, s2) }
+    forAll { (s1: String, s2: String) => testPrefixComparison(s1, s2) }
+    forAll { (s1: String, s2: String) =>
+      testPrefixComparison("https://" + s1, "https://" + s2)
+    }
+  }
+
   test("Binary prefix comparator") {//二进制前缀比较器
 
      def compareBinary(x: Array[Byte], y: Array[Byte]): Int = {
@@ -37,8 +37,11 @@ import org.apache.spark.network.server.TransportChannelHandler;
 import org.apache.spark.network.server.TransportRequestHandler;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.server.TransportServerBootstrap;
+import org.apache.spark.network.util.IOMode;
 import org.apache.spark.network.util.NettyUtils;
+import org.apache.spark.network.util.TcpCorkHandler;
 import org.apache.spark.network.util.TransportConf;
+import org.apache.spark.network.util.TransportFrameDecoder;
 
 /**
  * Contains the context to create a {@link TransportServer}, {@link TransportClientFactory}, and to
@@ -73,6 +76,10 @@ public class TransportContext {
     this.encoder = new MessageEncoder();    
     //在Shuffle的I/O服务端对客户端传来的ByteBuffer进行解析,防止丢包和解析错误
     this.decoder = new MessageDecoder();
+    if (IOMode.EPOLL.name().equals(conf.ioMode()) && conf.lazyFileDescriptor()) {
+      logger.info("spark.shuffle.io.lazyFD does not apply to spark.shuffle.io.mode=epoll: files " +
+        "are opened when their chunk is sent, as sendfile can only send open files");
+    }
   }
 
   /**
@@ -130,14 +137,20 @@ public class TransportContext {
       RpcHandler channelRpcHandler) {
     try {
       TransportChannelHandler channelHandler = createChannelHandler(channel, channelRpcHandler);
+      if (conf.tcpCork() && NettyUtils.isEpollChannel(channel)) {
+        channel.pipeline().addLast("tcpCork", new TcpCorkHandler());
+      }
       channel.pipeline()
         .addLast("encoder", encoder)
-        .addLast("frameDecoder", NettyUtils.createFrameDecoder())
+        .addLast("frameDecoder",
+          new TransportFrameDecoder(conf, channelHandler.getResponseHandler()))
         .addLast("decoder", decoder)
         .addLast("idleStateHandler", new IdleStateHandler(0, 0, conf.connectionTimeoutMs() / 1000))
-        // NOTE: Chunks are currently guaranteed to be returned in the order of request, but this
-        // would require more logic to guarantee if this were not part of the same event loop.
-              //注意：块根据请求的顺序被保证被返回,但是这样做将需要更多的逻辑来保证这不是同一事件循环的一部分。
+        // NOTE: Chunks are returned in the order of request unless the StreamManager answers a
+        // chunk request later and from another thread, as the external shuffle service's
+        // FairShuffleStreamManager does once spark.shuffle.service.maxChunkReadsPerDisk is set.
+        // Clients match every response to its request by its StreamChunkId.
+        //注意：除非StreamManager稍后从其他线程响应块请求,否则块按请求的顺序返回,客户端通过StreamChunkId将响应与请求对应起来
         .addLast("handler", channelHandler);
       return channelHandler;
     } catch (RuntimeException e) {
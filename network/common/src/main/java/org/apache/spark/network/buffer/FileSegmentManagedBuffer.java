@@ -29,6 +29,7 @@ import com.google.common.base.Objects;
 import com.google.common.io.ByteStreams;
 import io.netty.channel.DefaultFileRegion;
 
+import org.apache.spark.network.util.IOMode;
 import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.LimitedInputStream;
 import org.apache.spark.network.util.TransportConf;
@@ -132,9 +133,14 @@ public final class FileSegmentManagedBuffer extends ManagedBuffer {
     return this;
   }
 
+  /**
+   * Returns a {@link LazyFileRegion} if file descriptors are opened lazily, or otherwise a
+   * {@link DefaultFileRegion}, which is also the only kind of file region the epoll transport
+   * can send (with sendfile).
+   */
   @Override
   public Object convertToNetty() throws IOException {
-    if (conf.lazyFileDescriptor()) {
+    if (conf.lazyFileDescriptor() && !IOMode.EPOLL.name().equals(conf.ioMode())) {
       return new LazyFileRegion(file, offset, length);
     } else {
       FileChannel fileChannel = new FileInputStream(file).getChannel();
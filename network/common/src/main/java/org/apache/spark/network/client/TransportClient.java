@@ -18,6 +18,7 @@
 package org.apache.spark.network.client;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.UUID;
@@ -107,12 +108,39 @@ public class TransportClient implements Closeable {
       long streamId,
       final int chunkIndex,
       final ChunkReceivedCallback callback) {
+    fetchChunk(streamId, chunkIndex, null, callback);
+  }
+
+  /**
+   * Like {@link #fetchChunk(long, int, ChunkReceivedCallback)}, but the chunk is written to the
+   * given file as it arrives instead of being held in memory, and the callback receives a buffer
+   * backed by that file. This bounds the memory needed to receive chunks of any size. The file is
+   * overwritten, and it is up to the caller to delete it.
+   */
+  public void fetchChunkToFile(
+      long streamId,
+      int chunkIndex,
+      File file,
+      ChunkReceivedCallback callback) {
+    Preconditions.checkNotNull(file, "file");
+    fetchChunk(streamId, chunkIndex, file, callback);
+  }
+
+  private void fetchChunk(
+      long streamId,
+      final int chunkIndex,
+      File file,
+      final ChunkReceivedCallback callback) {
     final String serverAddr = NettyUtils.getRemoteAddress(channel);
     final long startTime = System.currentTimeMillis();
     logger.debug("Sending fetch chunk request {} to {}", chunkIndex, serverAddr);
 
     final StreamChunkId streamChunkId = new StreamChunkId(streamId, chunkIndex);
-    handler.addFetchRequest(streamChunkId, callback);
+    if (file != null) {
+      handler.addFetchRequest(streamChunkId, callback, file);
+    } else {
+      handler.addFetchRequest(streamChunkId, callback);
+    }
 
     channel.writeAndFlush(new ChunkFetchRequest(streamChunkId)).addListener(
       new ChannelFutureListener() {
@@ -17,6 +17,7 @@
 
 package org.apache.spark.network.client;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -51,6 +52,9 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
 
   private final Map<StreamChunkId, ChunkReceivedCallback> outstandingFetches;
 
+  /** Files that the outstanding fetches which were asked to go to disk are written to. */
+  private final Map<StreamChunkId, File> fetchFiles;
+
   private final Map<Long, RpcResponseCallback> outstandingRpcs;
 
   /** Records the time (in system nanoseconds) that the last fetch or RPC request was sent.
@@ -60,6 +64,7 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
   public TransportResponseHandler(Channel channel) {
     this.channel = channel;
     this.outstandingFetches = new ConcurrentHashMap<StreamChunkId, ChunkReceivedCallback>();
+    this.fetchFiles = new ConcurrentHashMap<StreamChunkId, File>();
     this.outstandingRpcs = new ConcurrentHashMap<Long, RpcResponseCallback>();
     this.timeOfLastRequestNs = new AtomicLong(0);
   }
@@ -69,8 +74,29 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
     outstandingFetches.put(streamChunkId, callback);
   }
 
+  /**
+   * Adds a fetch request whose chunk should be written to the given file as it arrives, instead of
+   * being held in memory.
+   */
+  public void addFetchRequest(
+      StreamChunkId streamChunkId,
+      ChunkReceivedCallback callback,
+      File file) {
+    fetchFiles.put(streamChunkId, file);
+    addFetchRequest(streamChunkId, callback);
+  }
+
   public void removeFetchRequest(StreamChunkId streamChunkId) {
     outstandingFetches.remove(streamChunkId);
+    fetchFiles.remove(streamChunkId);
+  }
+
+  /**
+   * Returns the file that the given chunk should be written to, or null if it should be received
+   * into memory.
+   */
+  public File getFetchFile(StreamChunkId streamChunkId) {
+    return fetchFiles.get(streamChunkId);
   }
 
   public void addRpcRequest(long requestId, RpcResponseCallback callback) {
@@ -98,6 +124,7 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
     // It's OK if new fetches appear, as they will fail immediately.
       //如果出现新的提取,则可以立即失败。
     outstandingFetches.clear();
+    fetchFiles.clear();
     outstandingRpcs.clear();
   }
 
@@ -132,7 +159,7 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
           resp.streamChunkId, remoteAddress);
         resp.buffer.release();
       } else {
-        outstandingFetches.remove(resp.streamChunkId);
+        removeFetchRequest(resp.streamChunkId);
         listener.onSuccess(resp.streamChunkId.chunkIndex, resp.buffer);
         resp.buffer.release();
       }
@@ -143,7 +170,7 @@ public class TransportResponseHandler extends MessageHandler<ResponseMessage> {
         logger.warn("Ignoring response for block {} from {} ({}) since it is not outstanding",
           resp.streamChunkId, remoteAddress, resp.errorString);
       } else {
-        outstandingFetches.remove(resp.streamChunkId);
+        removeFetchRequest(resp.streamChunkId);
         listener.onFailure(resp.streamChunkId.chunkIndex, new ChunkFetchFailureException(
           "Failure while fetching " + resp.streamChunkId + ": " + resp.errorString));
       }
@@ -26,9 +26,14 @@ import io.netty.handler.codec.MessageToMessageEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.spark.network.util.NettyUtils;
+
 /**
  * Encoder used by the server side to encode server-to-client responses.
  * This encoder is stateless so it is safe to be shared by multiple threads.
+ *
+ * On epoll channels, the header and the body of a message are written as separate messages,
+ * since the native transport only writes ByteBufs and {@link io.netty.channel.DefaultFileRegion}s.
  * 服务器端使用的编码器对服务器到客户端的响应进行编码,该编码器是无状态的,因此可以安全地由多个线程共享
  */
 @ChannelHandler.Sharable
@@ -73,14 +78,27 @@ public final class MessageEncoder extends MessageToMessageEncoder<Message> {
       //所有消息都具有帧长度，消息类型和消息本身。
     int headerLength = 8 + msgType.encodedLength() + in.encodedLength();
     long frameLength = headerLength + bodyLength;
-    ByteBuf header = ctx.alloc().heapBuffer(headerLength);
+    // The epoll transport copies heap buffers into direct ones before writing them.
+      //epoll传输在写入之前会把堆缓冲区复制到直接缓冲区
+    boolean epoll = NettyUtils.isEpollChannel(ctx.channel());
+    ByteBuf header = epoll ? ctx.alloc().directBuffer(headerLength)
+      : ctx.alloc().heapBuffer(headerLength);
     header.writeLong(frameLength);
     msgType.encode(header);
     in.encode(header);
     assert header.writableBytes() == 0;
 
     if (body != null && bodyLength > 0) {
-      out.add(new MessageWithHeader(header, body, bodyLength));
+      if (epoll) {
+        // The epoll transport cannot write a MessageWithHeader, but it writes the header with
+        // writev and a DefaultFileRegion body with sendfile, so they are written one after the
+        // other. TcpCorkHandler keeps them from going out in separate packets.
+          //epoll传输无法写MessageWithHeader,因此头和体依次写出
+        out.add(header);
+        out.add(body);
+      } else {
+        out.add(new MessageWithHeader(header, body, bodyLength));
+      }
     } else {
       out.add(header);
     }
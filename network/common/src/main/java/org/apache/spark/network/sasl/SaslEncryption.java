@@ -32,6 +32,8 @@ import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 import io.netty.channel.FileRegion;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.AbstractReferenceCounted;
 import io.netty.util.ReferenceCountUtil;
 
@@ -66,6 +68,12 @@ class SaslEncryption {
       .addFirst(ENCRYPTION_HANDLER_NAME, new EncryptionHandler(backend, maxOutboundBlockSize))
       .addFirst("saslDecryption", new DecryptionHandler(backend))
       .addFirst("saslFrameDecoder", NettyUtils.createFrameDecoder());
+    if (NettyUtils.isEpollChannel(channel)) {
+      // The epoll transport cannot write an EncryptedMessage as a FileRegion, so its encrypted
+      // chunks are written as ByteBufs instead, one at a time as the channel becomes writable.
+        //epoll传输无法将EncryptedMessage作为FileRegion写出,因此在通道可写时逐个写出其加密块
+      channel.pipeline().addFirst("saslChunkedWriter", new ChunkedWriteHandler());
+    }
   }
 
   private static class EncryptionHandler extends ChannelOutboundHandlerAdapter {
@@ -134,21 +142,31 @@ class SaslEncryption {
 
   }
 
+  /**
+   * A message that is encrypted in chunks of at most the max outbound block size as it is sent.
+   * It is either written as a {@link FileRegion}, or, on channels that can only write ByteBufs, as
+   * a {@link ChunkedInput} that produces one pooled buffer per encrypted chunk.
+   * 发送时按块加密的消息,可以作为FileRegion写出,或在只能写ByteBuf的通道上作为每个加密块产生一个池化缓冲区的ChunkedInput写出
+   */
   @VisibleForTesting
-  static class EncryptedMessage extends AbstractReferenceCounted implements FileRegion {
+  static class EncryptedMessage extends AbstractReferenceCounted
+      implements FileRegion, ChunkedInput<ByteBuf> {
 
     private final SaslEncryptionBackend backend;
     private final boolean isByteBuf;
     private final ByteBuf buf;
     private final FileRegion region;
+    private final long count;
+    private final int maxOutboundBlockSize;
 
     /**
      * A channel used to buffer input data for encryption. The channel has an upper size bound
      * so that if the input is larger than the allowed buffer, it will be broken into multiple
-     * chunks.
+     * chunks. It is only created for input that is not already in a heap buffer, since such
+     * input is encrypted in place.
      * 用于缓冲输入数据进行加密的通道,频道具有较大的边界所以如果输入大于允许的缓冲区,它将被分解成多个块。
      */
-    private final ByteArrayWritableChannel byteChannel;
+    private ByteArrayWritableChannel byteChannel;
 
     private ByteBuf currentHeader;
     private ByteBuffer currentChunk;
@@ -164,7 +182,8 @@ class SaslEncryption {
       this.isByteBuf = msg instanceof ByteBuf;
       this.buf = isByteBuf ? (ByteBuf) msg : null;
       this.region = isByteBuf ? null : (FileRegion) msg;
-      this.byteChannel = new ByteArrayWritableChannel(maxOutboundBlockSize);
+      this.count = isByteBuf ? buf.readableBytes() : region.count();
+      this.maxOutboundBlockSize = maxOutboundBlockSize;
     }
 
     /**
@@ -182,7 +201,7 @@ class SaslEncryption {
      */
     @Override
     public long count() {
-      return isByteBuf ? buf.readableBytes() : region.count();
+      return count;
     }
 
     @Override
@@ -276,6 +295,29 @@ class SaslEncryption {
     }
 
     private void nextChunk() throws IOException {
+      byte[] encrypted = encryptNextChunk();
+      this.currentChunk = ByteBuffer.wrap(encrypted);
+      this.currentChunkSize = encrypted.length;
+      this.currentHeader = Unpooled.copyLong(8 + currentChunkSize);
+    }
+
+    /**
+     * Encrypts the next chunk of the original message and sets {@link #unencryptedChunkSize} to
+     * its size. Heap buffers are encrypted straight from their backing array; anything else is
+     * first copied into {@link #byteChannel}.
+     */
+    private byte[] encryptNextChunk() throws IOException {
+      if (isByteBuf && buf.hasArray()) {
+        int length = Math.min(buf.readableBytes(), maxOutboundBlockSize);
+        byte[] encrypted = backend.wrap(buf.array(), buf.arrayOffset() + buf.readerIndex(), length);
+        buf.skipBytes(length);
+        this.unencryptedChunkSize = length;
+        return encrypted;
+      }
+
+      if (byteChannel == null) {
+        byteChannel = new ByteArrayWritableChannel(maxOutboundBlockSize);
+      }
       byteChannel.reset();
       if (isByteBuf) {
         int copied = byteChannel.write(buf.nioBuffer());
@@ -283,12 +325,39 @@ class SaslEncryption {
       } else {
         region.transferTo(byteChannel, region.transfered());
       }
-
-      byte[] encrypted = backend.wrap(byteChannel.getData(), 0, byteChannel.length());
-      this.currentChunk = ByteBuffer.wrap(encrypted);
-      this.currentChunkSize = encrypted.length;
-      this.currentHeader = Unpooled.copyLong(8 + currentChunkSize);
       this.unencryptedChunkSize = byteChannel.length();
+      return backend.wrap(byteChannel.getData(), 0, byteChannel.length());
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+      return transferred >= count;
+    }
+
+    /**
+     * Returns the next encrypted chunk, preceded by its frame length, in a single buffer from the
+     * channel's allocator.
+     * 返回下一个加密块(前面是其帧长度),位于从通道分配器分配的单个缓冲区中
+     */
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws IOException {
+      if (isEndOfInput()) {
+        return null;
+      }
+      byte[] encrypted = encryptNextChunk();
+      ByteBuf chunk = ctx.alloc().directBuffer(8 + encrypted.length);
+      chunk.writeLong(8 + encrypted.length);
+      chunk.writeBytes(encrypted);
+      transferred += unencryptedChunkSize;
+      return chunk;
+    }
+
+    /** Releases the message once it has been written as a {@link ChunkedInput}. */
+    @Override
+    public void close() {
+      if (refCnt() > 0) {
+        release();
+      }
     }
 
     @Override
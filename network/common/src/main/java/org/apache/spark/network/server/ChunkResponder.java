@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.server;
+
+import io.netty.channel.ChannelFuture;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+
+/**
+ * Answers a single fetchChunk() request; see {@link StreamManager#fetchChunk}. Exactly one of the
+ * methods should be called, from any thread.
+ * 应答单个fetchChunk()请求,只应调用其中一个方法,可以从任何线程调用
+ */
+public interface ChunkResponder {
+
+  /**
+   * Sends the chunk to the client. The returned future completes once the chunk has been written
+   * to the network, or has failed to be.
+   */
+  ChannelFuture send(ManagedBuffer chunk);
+
+  /** Fails the request with the given error. */
+  void fail(Throwable cause);
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.NettyUtils;
+
+/**
+ * Reads file segments on a small pool of threads per disk, so that a slow disk cannot stall the
+ * Netty event loops, and so that the reads queued for a disk are issued in file and offset order
+ * rather than in the order their requests arrived, which keeps spinning disks from seeking back
+ * and forth.
+ * 在每个磁盘的小线程池上读取文件段,使慢速磁盘不会阻塞Netty事件循环,并按文件和偏移顺序而不是请求到达顺序发出磁盘读取
+ *
+ * Each disk's threads take the queued reads like an elevator: the next read is the first one at
+ * or after the position of the previous read, wrapping around to the lowest position when there
+ * is none. A read brings the segment into the OS page cache, through a small buffer that each
+ * thread reuses, and then hands back the segment itself. The event loop thus still sends it
+ * with a zero-copy file transfer, which now finds the data in memory instead of on the disk.
+ * Nothing is held in the JVM between the read and the send; a segment evicted from the page
+ * cache in between is read again by the transfer.
+ * 读取会通过每个线程复用的小缓冲区把文件段读入操作系统页缓存,然后交回文件段本身,事件循环仍以零拷贝方式从内存发送
+ */
+public class DiskReadDispatcher implements Closeable {
+  private final Logger logger = LoggerFactory.getLogger(DiskReadDispatcher.class);
+
+  /** Size of the buffer each disk thread reads segments through. */
+  private static final int READ_AHEAD_BUFFER_SIZE = 64 * 1024;
+
+  private final int threadsPerDisk;
+
+  /** Queue and threads of each disk. Guarded by this. */
+  private final Map<Object, DiskQueue> disks = new HashMap<Object, DiskQueue>();
+
+  private boolean closed = false;
+
+  /** Sequence number of each read, so that reads of the same position keep their order. */
+  private final AtomicLong nextSeq = new AtomicLong();
+
+  private final ThreadLocal<ByteBuffer> readAheadBuffer = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(READ_AHEAD_BUFFER_SIZE);
+    }
+  };
+
+  /** Receives the result of a read, on the disk's thread. */
+  public interface ReadCallback {
+    void onSuccess(ManagedBuffer data);
+
+    void onFailure(Throwable cause);
+  }
+
+  public DiskReadDispatcher(int threadsPerDisk) {
+    if (threadsPerDisk <= 0) {
+      throw new IllegalArgumentException(
+        "Number of threads per disk must be positive, got " + threadsPerDisk);
+    }
+    this.threadsPerDisk = threadsPerDisk;
+  }
+
+  /**
+   * Queues a read of the segment on the threads of the given disk. Once the segment is in the
+   * page cache, the callback is given the segment itself.
+   */
+  public void read(
+      Object disk, final FileSegmentManagedBuffer segment, final ReadCallback callback) {
+    queueOf(disk).add(new PendingRead(segment.getFile(), segment.getOffset()) {
+      @Override
+      void run() {
+        try {
+          readAhead(segment);
+        } catch (Throwable t) {
+          logger.error("Failed to read " + segment, t);
+          callback.onFailure(t);
+          return;
+        }
+        callback.onSuccess(segment);
+      }
+    });
+  }
+
+  /** Reads the whole segment through this thread's buffer, dropping the data. */
+  private void readAhead(FileSegmentManagedBuffer segment) throws IOException {
+    ByteBuffer buf = readAheadBuffer.get();
+    FileChannel channel = new RandomAccessFile(segment.getFile(), "r").getChannel();
+    try {
+      long position = segment.getOffset();
+      long end = position + segment.getLength();
+      while (position < end) {
+        buf.clear();
+        buf.limit((int) Math.min(buf.capacity(), end - position));
+        int read = channel.read(buf, position);
+        if (read == -1) {
+          throw new IOException(String.format("Reached EOF before reading the segment\n" +
+            "offset=%s\nfile=%s\nremaining=%s",
+            segment.getOffset(), segment.getFile().getAbsoluteFile(), end - position));
+        }
+        position += read;
+      }
+    } finally {
+      JavaUtils.closeQuietly(channel);
+    }
+  }
+
+  private synchronized DiskQueue queueOf(Object disk) {
+    if (closed) {
+      throw new IllegalStateException("Disk read dispatcher has been closed");
+    }
+    DiskQueue queue = disks.get(disk);
+    if (queue == null) {
+      queue = new DiskQueue(disk);
+      disks.put(disk, queue);
+    }
+    return queue;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (DiskQueue queue : disks.values()) {
+      queue.threads.shutdownNow();
+      try {
+        queue.threads.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** A read queued for a disk, at the position in a file where it starts. */
+  private abstract class PendingRead implements Comparable<PendingRead> {
+    final String path;
+    final long offset;
+    final long seq;
+
+    PendingRead(File file, long offset) {
+      this.path = file.getPath();
+      this.offset = offset;
+      this.seq = nextSeq.getAndIncrement();
+    }
+
+    /** Reads and hands over the data, on one of the disk's threads. */
+    abstract void run();
+
+    @Override
+    public int compareTo(PendingRead other) {
+      int c = path.compareTo(other.path);
+      if (c != 0) {
+        return c;
+      }
+      if (offset != other.offset) {
+        return offset < other.offset ? -1 : 1;
+      }
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+  }
+
+  private class DiskQueue {
+    final ExecutorService threads;
+
+    /** Reads waiting for a thread, by position. Guarded by this. */
+    final TreeSet<PendingRead> pending = new TreeSet<PendingRead>();
+
+    /** The last read taken, where the elevator currently is. Guarded by this. */
+    PendingRead position = null;
+
+    DiskQueue(Object disk) {
+      String name = disk instanceof File ? ((File) disk).getName() : String.valueOf(disk);
+      this.threads = Executors.newFixedThreadPool(threadsPerDisk,
+        NettyUtils.createThreadFactory("shuffle-disk-reader-" + name));
+    }
+
+    void add(PendingRead read) {
+      synchronized (this) {
+        pending.add(read);
+      }
+      // Every task reads whichever segment is next in elevator order, not necessarily this one.
+      threads.execute(new Runnable() {
+        @Override
+        public void run() {
+          PendingRead next = takeNext();
+          if (next != null) {
+            next.run();
+          }
+        }
+      });
+    }
+
+    synchronized PendingRead takeNext() {
+      PendingRead next = position == null ? null : pending.higher(position);
+      if (next == null) {
+        next = pending.pollFirst();
+      } else {
+        pending.remove(next);
+      }
+      if (next != null) {
+        position = next;
+      }
+      return next;
+    }
+  }
+}
@@ -49,6 +49,9 @@ public class OneForOneStreamManager extends StreamManager {
    * */
   
   private static class StreamState {
+    // The application that opened the stream, if known
+      //打开流的应用程序(如果已知)
+    final String appId;
     final Iterator<ManagedBuffer> buffers;
 
     // The channel associated to the stream
@@ -60,7 +63,8 @@ public class OneForOneStreamManager extends StreamManager {
       //用于跟踪用户检索的缓冲区的索引,只是为了确保呼叫者按顺序一次请求每个块
     int curChunk = 0;
 
-    StreamState(Iterator<ManagedBuffer> buffers) {
+    StreamState(String appId, Iterator<ManagedBuffer> buffers) {
+      this.appId = appId;
       this.buffers = Preconditions.checkNotNull(buffers);
     }
   }
@@ -129,8 +133,34 @@ public class OneForOneStreamManager extends StreamManager {
    * 如果一个客户端连接在迭代器完全耗尽之前关闭，然后是剩余的缓冲区都将被release()'d。
    */
   public long registerStream(Iterator<ManagedBuffer> buffers) {
+    return registerStream(null, buffers);
+  }
+
+  /**
+   * Like {@link #registerStream(Iterator)}, but also records the application that opened the
+   * stream, for stream managers that treat applications differently.
+   */
+  public long registerStream(String appId, Iterator<ManagedBuffer> buffers) {
     long myStreamId = nextStreamId.getAndIncrement();
-    streams.put(myStreamId, new StreamState(buffers));
+    streams.put(myStreamId, new StreamState(appId, buffers));
     return myStreamId;
   }
+
+  /**
+   * Returns the application that opened the given stream, or null if it is not known. Streams are
+   * forgotten once their last chunk has been requested.
+   */
+  protected String getAppId(long streamId) {
+    StreamState state = streams.get(streamId);
+    return state == null ? null : state.appId;
+  }
+
+  /**
+   * Returns the channel the given stream is being fetched over, or null if it is not known.
+   * Streams are forgotten once their last chunk has been requested.
+   */
+  protected Channel getChannel(long streamId) {
+    StreamState state = streams.get(streamId);
+    return state == null ? null : state.associatedChannel;
+  }
 }
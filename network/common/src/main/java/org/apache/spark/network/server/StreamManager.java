@@ -53,6 +53,17 @@ public abstract class StreamManager {
    */
   public abstract ManagedBuffer getChunk(long streamId, int chunkIndex);
 
+  /**
+   * Called by {@link TransportRequestHandler} in response to a fetchChunk() request. The default
+   * implementation sends the result of {@link #getChunk(long, int)} right away; stream managers
+   * that queue or throttle chunk reads can override this and answer the request later, possibly
+   * from another thread.
+   * 响应fetchChunk()请求,默认实现立即发送getChunk()的结果,需要排队或限制块读取的流管理器可以覆盖此方法并稍后应答
+   */
+  public void fetchChunk(long streamId, int chunkIndex, ChunkResponder responder) {
+    responder.send(getChunk(streamId, chunkIndex));
+  }
+
   /**
    * Associates a stream with a single client connection, which is guaranteed to be the only reader
    * of the stream. The getChunk() method will be called serially on this connection and once the
@@ -80,6 +80,10 @@ public class TransportChannelHandler extends SimpleChannelInboundHandler<Message
     return client;
   }
 
+  public TransportResponseHandler getResponseHandler() {
+    return responseHandler;
+  }
+
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
     logger.warn("Exception in connection from " + NettyUtils.getRemoteAddress(ctx.channel()),
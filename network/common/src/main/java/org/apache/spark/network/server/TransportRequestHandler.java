@@ -103,18 +103,26 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
 
     logger.trace("Received req from {} to fetch block {}", client, req.streamChunkId);
 
-    ManagedBuffer buf;
+    ChunkResponder responder = new ChunkResponder() {
+      @Override
+      public ChannelFuture send(ManagedBuffer chunk) {
+        return respond(new ChunkFetchSuccess(req.streamChunkId, chunk));
+      }
+
+      @Override
+      public void fail(Throwable cause) {
+        logger.error(String.format(
+          "Error opening block %s for request from %s", req.streamChunkId, client), cause);
+        respond(new ChunkFetchFailure(req.streamChunkId, Throwables.getStackTraceAsString(cause)));
+      }
+    };
     try {
       streamManager.registerChannel(channel, req.streamChunkId.streamId);
-      buf = streamManager.getChunk(req.streamChunkId.streamId, req.streamChunkId.chunkIndex);
+      streamManager.fetchChunk(req.streamChunkId.streamId, req.streamChunkId.chunkIndex,
+        responder);
     } catch (Exception e) {
-      logger.error(String.format(
-        "Error opening block %s for request from %s", req.streamChunkId, client), e);
-      respond(new ChunkFetchFailure(req.streamChunkId, Throwables.getStackTraceAsString(e)));
-      return;
+      responder.fail(e);
     }
-
-    respond(new ChunkFetchSuccess(req.streamChunkId, buf));
   }
 
   private void processRpcRequest(final RpcRequest req) {
@@ -142,9 +150,9 @@ public class TransportRequestHandler extends MessageHandler<RequestMessage> {
    * it will be logged and the channel closed.
    * 它将被记录并且通道关闭
    */
-  private void respond(final Encodable result) {
+  private ChannelFuture respond(final Encodable result) {
     final String remoteAddress = channel.remoteAddress().toString();
-    channel.writeAndFlush(result).addListener(
+    return channel.writeAndFlush(result).addListener(
       new ChannelFutureListener() {
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
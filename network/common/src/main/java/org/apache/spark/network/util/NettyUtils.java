@@ -90,6 +90,15 @@ public class NettyUtils {
     }
   }
 
+  /**
+   * Returns whether the channel uses the native epoll transport. Such channels only write ByteBufs
+   * and {@link io.netty.channel.DefaultFileRegion}s, the latter with sendfile(2).
+   * 返回通道是否使用原生epoll传输,这种通道只能写ByteBuf和DefaultFileRegion(后者使用sendfile)
+   */
+  public static boolean isEpollChannel(Channel channel) {
+    return channel instanceof EpollSocketChannel;
+  }
+
   /**
    * Creates a LengthFieldBasedFrameDecoder where the first 8 bytes are the length of the frame.
    * This is used before all decoders.
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.util;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.channel.epoll.EpollSocketChannel;
+
+/**
+ * Corks the socket of an epoll channel (TCP_CORK) while its pending messages are flushed, so that
+ * small writes, such as a response header written before a file region, are coalesced with what
+ * follows them into full-sized packets. The socket is uncorked once the flush returns, which
+ * sends any partial packet right away, so corking never delays a response.
+ * 刷新epoll通道的待发送消息时对套接字设置TCP_CORK,使小的写入(如文件区域之前的响应头)与其后的数据合并为完整大小的数据包,
+ * 刷新返回后取消TCP_CORK,立即发送剩余的数据
+ *
+ * Only flushes that include a file region are corked. Buffers are already gathered into one
+ * writev(2) call by the epoll transport, so for them the two setsockopt(2) calls would be pure
+ * overhead, which TcpCorkBenchmark shows for small RPCs. A handler keeps the state of one channel.
+ * 只有包含文件区域的刷新才会设置TCP_CORK,每个处理器只对应一个通道
+ */
+public final class TcpCorkHandler extends ChannelOutboundHandlerAdapter {
+
+  // Whether a file region was written since the last flush. Only touched on the event loop.
+  private boolean fileRegionPending = false;
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+      throws Exception {
+    if (msg instanceof FileRegion) {
+      fileRegionPending = true;
+    }
+    ctx.write(msg, promise);
+  }
+
+  @Override
+  public void flush(ChannelHandlerContext ctx) throws Exception {
+    EpollSocketChannel channel = (EpollSocketChannel) ctx.channel();
+    if (!fileRegionPending || !channel.isOpen()) {
+      ctx.flush();
+      return;
+    }
+    fileRegionPending = false;
+    channel.config().setTcpCork(true);
+    try {
+      ctx.flush();
+    } finally {
+      if (channel.isOpen()) {
+        channel.config().setTcpCork(false);
+      }
+    }
+  }
+
+}
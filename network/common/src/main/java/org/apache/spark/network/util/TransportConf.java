@@ -132,11 +132,25 @@ public class TransportConf {
    * Whether to initialize shuffle FileDescriptor lazily or not. If true, file descriptors are
    * created only when data is going to be transferred. This can reduce the number of open files.
    * 是否轻松地初始化乱码FileDescriptor？ 如果为true,则只有在要传输数据时才会创建文件描述符,这可以减少打开文件的数量。
+   *
+   * Ignored if {@link #ioMode()} is EPOLL, since the epoll transport can only send files that
+   * are already open.
    */
   public boolean lazyFileDescriptor() {
     return conf.getBoolean("spark.shuffle.io.lazyFD", true);
   }
 
+  /**
+   * Whether to cork epoll sockets (TCP_CORK) while flushing, so that a response header and its
+   * body go out in full-sized packets rather than the header in a packet of its own. Only used if
+   * {@link #ioMode()} is EPOLL. Off by default: it only measurably helps chunks of a few KB (see
+   * TcpCorkBenchmark), and costs two extra system calls per flush that sends a file.
+   * 刷新时是否对epoll套接字设置TCP_CORK,使响应头和响应体以完整大小的数据包发送,仅在EPOLL模式下使用,默认关闭
+   */
+  public boolean tcpCork() {
+    return conf.getBoolean("spark.shuffle.io.tcpCork", false);
+  }
+
   /**
    * Maximum number of retries when binding to a port before giving up.
    * 绑定到一个端口在放弃之前,最大重试次数时.
@@ -162,4 +176,65 @@ public class TransportConf {
     return conf.getBoolean("spark.network.sasl.serverAlwaysEncrypt", false);
   }
 
+  /**
+   * Maximum memory used by the external shuffle service to cache the offsets read from sort-based
+   * shuffle index files. 0 disables the cache.
+   * 外部Shuffle服务缓存排序Shuffle索引文件偏移量所用的最大内存,0表示禁用缓存
+   */
+  public long shuffleIndexCacheSize() {
+    return JavaUtils.byteStringAsBytes(conf.get("spark.shuffle.service.index.cache.size", "100m"));
+  }
+
+  /**
+   * Maximum number of chunks the external shuffle service reads from one disk at a time. Chunk
+   * requests beyond that are queued and served in weighted fair order across applications, and
+   * may then be answered out of order. 0, the default, serves every chunk request as soon as it
+   * arrives.
+   * 外部Shuffle服务一次从一个磁盘读取的最大块数,超出的块请求会排队并在应用程序之间按加权公平顺序提供,0(默认)表示请求到达后立即提供
+   */
+  public int maxChunkReadsPerDisk() {
+    return conf.getInt("spark.shuffle.service.maxChunkReadsPerDisk", 0);
+  }
+
+  /**
+   * Number of threads per disk that the external shuffle service reads chunks into the page cache
+   * with, off the Netty event loops and in file and offset order, before the event loops send them.
+   * 0 reads chunks on the event loops as they are sent. Only used if
+   * {@link #maxChunkReadsPerDisk()} is positive.
+   * 外部Shuffle服务每个磁盘将块读入页缓存的线程数,0表示在事件循环上读取块
+   */
+  public int diskReadThreads() {
+    return conf.getInt("spark.shuffle.service.diskReadThreads", 1);
+  }
+
+  /**
+   * Maximum number of bytes of chunks the external shuffle service has on their way to one client
+   * connection at a time, once they have been read. A chunk larger than that is sent on its own.
+   * Only used if {@link #maxChunkReadsPerDisk()} is positive.
+   * 外部Shuffle服务同时发往一个客户端连接的块的最大字节数,大于该值的块单独发送
+   */
+  public long maxChunkBytesInFlightPerChannel() {
+    return JavaUtils.byteStringAsBytes(
+      conf.get("spark.shuffle.service.maxChunkBytesInFlightPerChannel", "48m"));
+  }
+
+  /**
+   * Number of threads that the external shuffle service merges pushed shuffle blocks with, off
+   * the Netty event loops.
+   * 外部Shuffle服务合并推送的Shuffle块所用的线程数,不占用Netty事件循环
+   */
+  public int pushMergeThreads() {
+    return conf.getInt("spark.shuffle.service.pushMergeThreads", 2);
+  }
+
+  /**
+   * Whether clients of the external shuffle service fetch consecutive shuffle blocks of one map
+   * output as a single range, with one chunk instead of one per block. Only supported by shuffle
+   * services that understand ranges, and only for sort-based shuffles.
+   * 外部Shuffle服务的客户端是否把一个map输出的连续Shuffle块作为一个范围用一个块获取
+   */
+  public boolean fetchShuffleBlockRanges() {
+    return conf.getBoolean("spark.shuffle.service.fetchBlockRanges", false);
+  }
+
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.client.TransportResponseHandler;
+import org.apache.spark.network.protocol.ChunkFetchFailure;
+import org.apache.spark.network.protocol.ChunkFetchSuccess;
+import org.apache.spark.network.protocol.Message;
+import org.apache.spark.network.protocol.StreamChunkId;
+
+/**
+ * Splits the incoming bytes into frames, like the decoder from
+ * {@link NettyUtils#createFrameDecoder()}, except for the bodies of fetched chunks that the client
+ * asked to be written to a file (see
+ * {@link org.apache.spark.network.client.TransportClient#fetchChunkToFile}).
+ *
+ * Those bodies are written to their file as they arrive instead of being collected into one frame,
+ * so that receiving a large chunk takes no more memory than the socket buffers. Once the whole
+ * body has been written, a {@link ChunkFetchSuccess} whose buffer is the file is passed on, or a
+ * {@link ChunkFetchFailure} if the file could not be written.
+ */
+public class TransportFrameDecoder extends LengthFieldBasedFrameDecoder {
+  private final Logger logger = LoggerFactory.getLogger(TransportFrameDecoder.class);
+
+  private static final int LENGTH_SIZE = 8;
+
+  /** The message type and stream chunk id that a ChunkFetchSuccess frame starts with. */
+  private static final int CHUNK_HEADER_SIZE = 1 + 12;
+
+  private final TransportConf conf;
+  private final TransportResponseHandler responseHandler;
+
+  /** The chunk whose body is being written to a file, or null if there is none. */
+  private StreamChunkId downloadChunkId;
+  private File downloadFile;
+  private FileChannel downloadChannel;
+  private long downloadLength;
+  private long downloadRemaining;
+  private IOException downloadFailure;
+
+  public TransportFrameDecoder(TransportConf conf, TransportResponseHandler responseHandler) {
+    // Same frame format as NettyUtils.createFrameDecoder().
+    super(Integer.MAX_VALUE, 0, LENGTH_SIZE, -LENGTH_SIZE, LENGTH_SIZE);
+    this.conf = conf;
+    this.responseHandler = responseHandler;
+  }
+
+  @Override
+  protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+    if (downloadChunkId == null && in.readableBytes() >= LENGTH_SIZE + CHUNK_HEADER_SIZE) {
+      ByteBuf header = in.slice(in.readerIndex() + LENGTH_SIZE, CHUNK_HEADER_SIZE);
+      if (Message.Type.decode(header) == Message.Type.ChunkFetchSuccess) {
+        StreamChunkId streamChunkId = StreamChunkId.decode(header);
+        File file = responseHandler.getFetchFile(streamChunkId);
+        if (file != null) {
+          long frameLength = in.readLong();
+          in.skipBytes(CHUNK_HEADER_SIZE);
+          startDownload(streamChunkId, file, frameLength - LENGTH_SIZE - CHUNK_HEADER_SIZE);
+        }
+      }
+    }
+    if (downloadChunkId != null) {
+      return continueDownload(in);
+    }
+    return super.decode(ctx, in);
+  }
+
+  private void startDownload(StreamChunkId streamChunkId, File file, long length) {
+    logger.debug("Writing {} bytes of chunk {} to {}", length, streamChunkId, file);
+    downloadChunkId = streamChunkId;
+    downloadFile = file;
+    downloadLength = length;
+    downloadRemaining = length;
+    downloadFailure = null;
+    try {
+      downloadChannel = new RandomAccessFile(file, "rw").getChannel();
+      downloadChannel.truncate(0);
+    } catch (IOException e) {
+      downloadFailed(e);
+    }
+  }
+
+  /**
+   * Writes as much of the current chunk body as has arrived to its file, and returns the message
+   * for the chunk once all of it has been received. If writing fails, the rest of the body is
+   * still read, and dropped, so that the following frames can be decoded.
+   */
+  private Object continueDownload(ByteBuf in) {
+    int length = (int) Math.min(in.readableBytes(), downloadRemaining);
+    int written = 0;
+    if (downloadChannel != null) {
+      try {
+        while (written < length) {
+          written += in.readBytes(downloadChannel, length - written);
+        }
+      } catch (IOException e) {
+        downloadFailed(e);
+      }
+    }
+    in.skipBytes(length - written);
+    downloadRemaining -= length;
+    if (downloadRemaining > 0) {
+      return null;
+    }
+
+    Object message;
+    if (downloadFailure == null && closeDownload()) {
+      message = new ChunkFetchSuccess(downloadChunkId,
+        new FileSegmentManagedBuffer(conf, downloadFile, 0, downloadLength));
+    } else {
+      message = new ChunkFetchFailure(downloadChunkId, "Failed to write chunk to " +
+        downloadFile + ": " + downloadFailure);
+    }
+    downloadChunkId = null;
+    downloadFile = null;
+    downloadFailure = null;
+    return message;
+  }
+
+  private void downloadFailed(IOException e) {
+    logger.error("Failed to write chunk " + downloadChunkId + " to " + downloadFile, e);
+    downloadFailure = e;
+    closeDownload();
+  }
+
+  /** Closes the file of the current chunk, returning whether that succeeded. */
+  private boolean closeDownload() {
+    if (downloadChannel == null) {
+      return true;
+    }
+    try {
+      downloadChannel.close();
+      return true;
+    } catch (IOException e) {
+      logger.error("Failed to close " + downloadFile, e);
+      if (downloadFailure == null) {
+        downloadFailure = e;
+      }
+      return false;
+    } finally {
+      downloadChannel = null;
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    // The response handler fails the chunk, as it is still outstanding.
+    closeDownload();
+    super.channelInactive(ctx);
+  }
+}
@@ -29,13 +29,17 @@ import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import io.netty.channel.epoll.Epoll;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.*;
 
 import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
@@ -47,6 +51,8 @@ import org.apache.spark.network.client.TransportClientFactory;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.MapConfigProvider;
 import org.apache.spark.network.util.SystemPropertyConfigProvider;
 import org.apache.spark.network.util.TransportConf;
 
@@ -136,6 +142,25 @@ public class ChunkFetchIntegrationSuite {
   }
 
   private FetchResult fetchChunks(List<Integer> chunkIndices) throws Exception {
+    return fetchChunks(chunkIndices, Collections.<Integer>emptySet(), null);
+  }
+
+  /**
+   * Fetches the given chunks, writing those in {@code chunksToFile} to files in {@code dir}.
+   */
+  private FetchResult fetchChunks(
+      List<Integer> chunkIndices,
+      Set<Integer> chunksToFile,
+      File dir) throws Exception {
+    return fetchChunks(clientFactory, server, chunkIndices, chunksToFile, dir);
+  }
+
+  private FetchResult fetchChunks(
+      TransportClientFactory clientFactory,
+      TransportServer server,
+      List<Integer> chunkIndices,
+      Set<Integer> chunksToFile,
+      File dir) throws Exception {
     TransportClient client = clientFactory.createClient(TestUtils.getLocalHost(), server.getPort());
     final Semaphore sem = new Semaphore(0);
 
@@ -161,7 +186,12 @@ public class ChunkFetchIntegrationSuite {
     };
 
     for (int chunkIndex : chunkIndices) {
-      client.fetchChunk(STREAM_ID, chunkIndex, callback);
+      if (chunksToFile.contains(chunkIndex)) {
+        File file = new File(dir, "chunk-" + chunkIndex);
+        client.fetchChunkToFile(STREAM_ID, chunkIndex, file, callback);
+      } else {
+        client.fetchChunk(STREAM_ID, chunkIndex, callback);
+      }
     }
     if (!sem.tryAcquire(chunkIndices.size(), 5, TimeUnit.SECONDS)) {
       fail("Timeout getting response from the server");
@@ -214,6 +244,88 @@ public class ChunkFetchIntegrationSuite {
     res.releaseBuffers();
   }
 
+  @Test
+  public void fetchChunksToFiles() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // The buffer chunk in the middle is received into memory, between two chunks that are
+      // to be written to files.
+      FetchResult res = fetchChunks(
+        Lists.newArrayList(FILE_CHUNK_INDEX, BUFFER_CHUNK_INDEX, 12345),
+        Sets.newHashSet(FILE_CHUNK_INDEX, 12345), dir);
+      assertEquals(res.successChunks, Sets.newHashSet(BUFFER_CHUNK_INDEX, FILE_CHUNK_INDEX));
+      assertEquals(res.failedChunks, Sets.newHashSet(12345));
+      assertBufferListsEqual(res.buffers, Lists.newArrayList(fileChunk, bufferChunk));
+      assertTrue(res.buffers.get(0) instanceof FileSegmentManagedBuffer);
+      assertEquals(new File(dir, "chunk-" + FILE_CHUNK_INDEX),
+        ((FileSegmentManagedBuffer) res.buffers.get(0)).getFile());
+      assertFalse(res.buffers.get(1) instanceof FileSegmentManagedBuffer);
+      res.releaseBuffers();
+    } finally {
+      JavaUtils.deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void fetchLargeChunkToFile() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // A chunk much larger than what arrives in one read from the socket.
+      FetchResult res = fetchChunks(
+        Lists.newArrayList(BUFFER_CHUNK_INDEX), Sets.newHashSet(BUFFER_CHUNK_INDEX), dir);
+      assertEquals(res.successChunks, Sets.newHashSet(BUFFER_CHUNK_INDEX));
+      assertEquals(bufferChunk.size(), new File(dir, "chunk-" + BUFFER_CHUNK_INDEX).length());
+      assertBufferListsEqual(res.buffers, Lists.newArrayList(bufferChunk));
+      res.releaseBuffers();
+    } finally {
+      JavaUtils.deleteRecursively(dir);
+    }
+  }
+
+  @Test
+  public void fetchBothChunksWithEpoll() throws Exception {
+    assumeTrue(Epoll.isAvailable());
+    // File chunks are sent with sendfile, after their header, on a corked socket.
+    final TransportConf conf = new TransportConf(new MapConfigProvider(
+      ImmutableMap.of("spark.shuffle.io.mode", "epoll")));
+    final StreamManager epollStreamManager = new StreamManager() {
+      @Override
+      public ManagedBuffer getChunk(long streamId, int chunkIndex) {
+        if (chunkIndex == FILE_CHUNK_INDEX) {
+          return new FileSegmentManagedBuffer(conf, testFile, 10, testFile.length() - 25);
+        } else {
+          return streamManager.getChunk(streamId, chunkIndex);
+        }
+      }
+    };
+    RpcHandler handler = new RpcHandler() {
+      @Override
+      public void receive(TransportClient client, byte[] message, RpcResponseCallback callback) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public StreamManager getStreamManager() {
+        return epollStreamManager;
+      }
+    };
+    TransportContext context = new TransportContext(conf, handler);
+    TransportServer epollServer = context.createServer();
+    TransportClientFactory epollClientFactory = context.createClientFactory();
+    try {
+      FetchResult res = fetchChunks(epollClientFactory, epollServer,
+        Lists.newArrayList(FILE_CHUNK_INDEX, BUFFER_CHUNK_INDEX),
+        Collections.<Integer>emptySet(), null);
+      assertEquals(res.successChunks, Sets.newHashSet(BUFFER_CHUNK_INDEX, FILE_CHUNK_INDEX));
+      assertTrue(res.failedChunks.isEmpty());
+      assertBufferListsEqual(res.buffers, Lists.newArrayList(fileChunk, bufferChunk));
+      res.releaseBuffers();
+    } finally {
+      epollClientFactory.close();
+      epollServer.close();
+    }
+  }
+
   private void assertBufferListsEqual(List<ManagedBuffer> list0, List<ManagedBuffer> list1)
       throws Exception {
     assertEquals(list0.size(), list1.size());
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.server.DiskReadDispatcher;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.SystemPropertyConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+public class DiskReadDispatcherSuite {
+  static final int SEGMENT_SIZE = 100;
+  static final int NUM_SEGMENTS = 10;
+
+  TransportConf conf = new TransportConf(new SystemPropertyConfigProvider());
+  File tempDir;
+  File file;
+  DiskReadDispatcher dispatcher;
+
+  /** Queues the offset of every segment read, and its data or error. */
+  static class RecordingCallback implements DiskReadDispatcher.ReadCallback {
+    final LinkedBlockingQueue<Object> results;
+    final long offset;
+
+    RecordingCallback(LinkedBlockingQueue<Object> results, long offset) {
+      this.results = results;
+      this.offset = offset;
+    }
+
+    @Override
+    public void onSuccess(ManagedBuffer data) {
+      results.add(offset);
+      results.add(data);
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+      results.add(offset);
+      results.add(cause);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    file = new File(tempDir, "shuffle_0_0_0.data");
+    byte[] data = new byte[SEGMENT_SIZE * NUM_SEGMENTS];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i / SEGMENT_SIZE);
+    }
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+    dispatcher = new DiskReadDispatcher(1);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dispatcher.close();
+    JavaUtils.deleteRecursively(tempDir);
+  }
+
+  private FileSegmentManagedBuffer segment(int i) {
+    return new FileSegmentManagedBuffer(conf, file, i * SEGMENT_SIZE, SEGMENT_SIZE);
+  }
+
+  @Test
+  public void readSegmentsAreHandedBackForZeroCopySends() throws Exception {
+    LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+    FileSegmentManagedBuffer segment = segment(3);
+    dispatcher.read("disk0", segment, new RecordingCallback(results, 3));
+    assertEquals(3L, results.poll(10, TimeUnit.SECONDS));
+    // The segment is only brought into the page cache; it is still sent from the file.
+    assertSame(segment, results.poll(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void queuedReadsAreIssuedInElevatorOrder() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+    // Keep the disk's only thread busy at segment 5 while the other reads are queued.
+    dispatcher.read("disk0", segment(5), new DiskReadDispatcher.ReadCallback() {
+      @Override
+      public void onSuccess(ManagedBuffer data) {
+        blocked.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        blocked.countDown();
+      }
+    });
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+    List<Integer> order = Lists.newArrayList(7, 2, 9, 0, 6, 1, 8, 3, 4);
+    for (int i : order) {
+      dispatcher.read("disk0", segment(i), new RecordingCallback(results, i));
+    }
+    release.countDown();
+
+    List<Long> readOrder = Lists.newArrayList();
+    for (int i = 0; i < order.size(); i++) {
+      readOrder.add((Long) results.poll(10, TimeUnit.SECONDS));
+      assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof ManagedBuffer);
+    }
+    // The elevator first moves up from segment 5, then wraps around to the start of the file.
+    assertEquals(Lists.newArrayList(6L, 7L, 8L, 9L, 0L, 1L, 2L, 3L, 4L), readOrder);
+  }
+
+  @Test
+  public void segmentsLargerThanTheReadBufferAreRead() throws Exception {
+    File large = new File(tempDir, "shuffle_0_1_0.data");
+    byte[] data = new byte[200 * 1024];
+    FileOutputStream out = new FileOutputStream(large);
+    out.write(data);
+    out.close();
+    LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+    FileSegmentManagedBuffer segment =
+      new FileSegmentManagedBuffer(conf, large, 10, data.length - 10);
+    dispatcher.read("disk0", segment, new RecordingCallback(results, 10));
+    assertEquals(10L, results.poll(10, TimeUnit.SECONDS));
+    assertSame(segment, results.poll(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void readsPastTheEndOfTheFileFail() throws Exception {
+    LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+    FileSegmentManagedBuffer truncated =
+      new FileSegmentManagedBuffer(conf, file, (NUM_SEGMENTS - 1) * SEGMENT_SIZE, 2 * SEGMENT_SIZE);
+    dispatcher.read("disk0", truncated, new RecordingCallback(results, 9));
+    assertEquals(9L, results.poll(10, TimeUnit.SECONDS));
+    assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof IOException);
+  }
+
+  @Test
+  public void readErrorsAreReported() throws Exception {
+    LinkedBlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+    FileSegmentManagedBuffer missing =
+      new FileSegmentManagedBuffer(conf, new File(tempDir, "missing"), 0, 10);
+    dispatcher.read("disk0", missing, new RecordingCallback(results, 0));
+    assertEquals(0L, results.poll(10, TimeUnit.SECONDS));
+    assertTrue(results.poll(10, TimeUnit.SECONDS) instanceof Throwable);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readsAreRejectedAfterClose() {
+    dispatcher.close();
+    dispatcher.read("disk0", segment(0), new RecordingCallback(
+      new LinkedBlockingQueue<Object>(), 0));
+  }
+}
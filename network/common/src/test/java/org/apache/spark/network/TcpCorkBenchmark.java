@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import io.netty.channel.epoll.Epoll;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.client.ChunkReceivedCallback;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.client.TransportClientFactory;
+import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.StreamManager;
+import org.apache.spark.network.server.TransportServer;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.MapConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * Measures small RPCs and chunk fetches served from a file over the epoll transport, with and
+ * without spark.shuffle.io.tcpCork:
+ *
+ *  - RPCs of 64 bytes sent one after the other, and with many of them in flight at once;
+ *  - chunks of 4 KB up to several MB, fetched one after the other.
+ *
+ * This is not run as part of the test suite; run it with
+ *
+ *   java -cp ... org.apache.spark.network.TcpCorkBenchmark [numRequests]
+ */
+public class TcpCorkBenchmark {
+
+  private static final int RPC_SIZE = 64;
+  private static final int RPCS_IN_FLIGHT = 64;
+  private static final int[] CHUNK_SIZES = {
+    4 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+  // Fetches of large chunks are limited to this many bytes per run, to keep runs short.
+  private static final long MAX_BYTES_PER_RUN = 512L * 1024 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (!Epoll.isAvailable()) {
+      System.out.println("The epoll transport is not available: " + Epoll.unavailabilityCause());
+      return;
+    }
+    final int numRequests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    File dir = Files.createTempDir();
+    try {
+      File file = new File(dir, "chunks");
+      Files.write(new byte[CHUNK_SIZES[CHUNK_SIZES.length - 1]], file);
+      System.out.printf("%-16s %-8s %14s %10s%n", "request", "tcpCork", "us/request", "MB/s");
+      // Every setting is measured twice, as the first runs also warm up the JVM.
+      for (String tcpCork : new String[] { "false", "true", "false", "true" }) {
+        TransportConf conf = new TransportConf(new MapConfigProvider(ImmutableMap.of(
+          "spark.shuffle.io.mode", "epoll",
+          "spark.shuffle.io.tcpCork", tcpCork)));
+        TransportContext context = new TransportContext(conf, new BenchmarkRpcHandler(conf, file));
+        TransportServer server = context.createServer();
+        TransportClientFactory clientFactory = context.createClientFactory();
+        try {
+          TransportClient client = clientFactory.createClient(
+            TestUtils.getLocalHost(), server.getPort());
+          // Warm up before timing.
+          sendRpcs(client, numRequests);
+          sendPipelinedRpcs(client, numRequests);
+          fetchChunks(client, CHUNK_SIZES[0], numRequests);
+          report("rpc", tcpCork, sendRpcs(client, numRequests), numRequests, RPC_SIZE);
+          report("rpc x" + RPCS_IN_FLIGHT, tcpCork, sendPipelinedRpcs(client, numRequests),
+            numRequests, RPC_SIZE);
+          for (int chunkSize : CHUNK_SIZES) {
+            int numChunks =
+              (int) Math.max(100, Math.min(numRequests, MAX_BYTES_PER_RUN / chunkSize));
+            String size = chunkSize < 1024 * 1024
+              ? chunkSize / 1024 + " KB" : chunkSize / 1024 / 1024 + " MB";
+            report("chunk " + size, tcpCork,
+              fetchChunks(client, chunkSize, numChunks), numChunks, chunkSize);
+          }
+        } finally {
+          clientFactory.close();
+          server.close();
+        }
+      }
+    } finally {
+      JavaUtils.deleteRecursively(dir);
+    }
+  }
+
+  private static void report(
+      String request, String tcpCork, long nanos, int numRequests, int requestSize) {
+    System.out.printf("%-16s %-8s %14.1f %10.1f%n", request, tcpCork,
+      nanos / 1000.0 / numRequests, (double) numRequests * requestSize / (1 << 20) / nanos * 1e9);
+  }
+
+  /** Sends RPCs one after the other, and returns how long they took in nanoseconds. */
+  private static long sendRpcs(TransportClient client, int numRequests) {
+    byte[] request = new byte[RPC_SIZE];
+    long start = System.nanoTime();
+    for (int i = 0; i < numRequests; i++) {
+      client.sendRpcSync(request, 10000);
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Sends RPCs with up to RPCS_IN_FLIGHT of them waiting for a response at any time, and returns
+   * how long they took in nanoseconds.
+   */
+  private static long sendPipelinedRpcs(TransportClient client, int numRequests)
+      throws Exception {
+    final Semaphore inFlight = new Semaphore(RPCS_IN_FLIGHT);
+    RpcResponseCallback callback = new RpcResponseCallback() {
+      @Override
+      public void onSuccess(byte[] response) {
+        inFlight.release();
+      }
+
+      @Override
+      public void onFailure(Throwable e) {
+        e.printStackTrace();
+      }
+    };
+    byte[] request = new byte[RPC_SIZE];
+    long start = System.nanoTime();
+    for (int i = 0; i < numRequests; i++) {
+      if (!inFlight.tryAcquire(10, TimeUnit.SECONDS)) {
+        throw new RuntimeException("Timed out waiting for RPC responses");
+      }
+      client.sendRpc(request, callback);
+    }
+    if (!inFlight.tryAcquire(RPCS_IN_FLIGHT, 10, TimeUnit.SECONDS)) {
+      throw new RuntimeException("Timed out waiting for RPC responses");
+    }
+    inFlight.release(RPCS_IN_FLIGHT);
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Fetches chunks of the given size one after the other, and returns how long they took in
+   * nanoseconds.
+   */
+  private static long fetchChunks(TransportClient client, int chunkSize, int numChunks)
+      throws Exception {
+    final Semaphore received = new Semaphore(0);
+    ChunkReceivedCallback callback = new ChunkReceivedCallback() {
+      @Override
+      public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
+        received.release();
+      }
+
+      @Override
+      public void onFailure(int chunkIndex, Throwable e) {
+        e.printStackTrace();
+      }
+    };
+    long start = System.nanoTime();
+    for (int i = 0; i < numChunks; i++) {
+      // The stream id is the size of the chunk to serve, see BenchmarkRpcHandler.
+      client.fetchChunk(chunkSize, i, callback);
+      if (!received.tryAcquire(10, TimeUnit.SECONDS)) {
+        throw new RuntimeException("Timed out waiting for chunk " + i);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Answers RPCs with the request itself, and serves every chunk from the start of the same file.
+   * Chunks are as long as the id of the stream they are fetched from.
+   */
+  private static class BenchmarkRpcHandler extends RpcHandler {
+    private final StreamManager streamManager;
+
+    BenchmarkRpcHandler(final TransportConf conf, final File file) {
+      this.streamManager = new StreamManager() {
+        @Override
+        public ManagedBuffer getChunk(long streamId, int chunkIndex) {
+          return new FileSegmentManagedBuffer(conf, file, 0, streamId);
+        }
+      };
+    }
+
+    @Override
+    public void receive(TransportClient client, byte[] message, RpcResponseCallback callback) {
+      callback.onSuccess(message);
+    }
+
+    @Override
+    public StreamManager getStreamManager() {
+      return streamManager;
+    }
+  }
+}
@@ -18,6 +18,7 @@
 package org.apache.spark.network.sasl;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.*;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
@@ -35,10 +36,12 @@ import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.epoll.Epoll;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -52,6 +55,7 @@ import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.client.TransportClientBootstrap;
 import org.apache.spark.network.server.RpcHandler;
+import org.apache.spark.network.server.ChunkResponder;
 import org.apache.spark.network.server.StreamManager;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.server.TransportServerBootstrap;
@@ -237,10 +241,57 @@ public class SparkSaslSuite {
     }
   }
 
+  @Test
+  public void testEncryptedMessageChunkedInput() throws Exception {
+    SaslEncryptionBackend backend = mock(SaslEncryptionBackend.class);
+    final byte[] encrypted = new byte[100];
+    new Random().nextBytes(encrypted);
+    when(backend.wrap(any(byte[].class), anyInt(), anyInt())).thenReturn(encrypted);
+    ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    when(ctx.alloc()).thenReturn(UnpooledByteBufAllocator.DEFAULT);
+
+    ByteBuf msg = Unpooled.buffer();
+    msg.writeBytes(new byte[1024]);
+    SaslEncryption.EncryptedMessage emsg = new SaslEncryption.EncryptedMessage(backend, msg, 256);
+    for (int i = 0; i < 4; i++) {
+      assertFalse(emsg.isEndOfInput());
+      ByteBuf chunk = emsg.readChunk(ctx);
+      try {
+        assertEquals(8 + encrypted.length, chunk.readableBytes());
+        assertEquals(8 + encrypted.length, chunk.readLong());
+        byte[] data = new byte[encrypted.length];
+        chunk.readBytes(data);
+        assertTrue(Arrays.equals(encrypted, data));
+      } finally {
+        chunk.release();
+      }
+    }
+    assertTrue(emsg.isEndOfInput());
+    assertNull(emsg.readChunk(ctx));
+    assertEquals(1024, emsg.transfered());
+    // Heap buffers are encrypted in place, in chunks of at most the max block size.
+    verify(backend, times(4)).wrap(same(msg.array()), anyInt(), eq(256));
+
+    emsg.close();
+    assertEquals(0, msg.refCnt());
+  }
+
   @Test
   public void testFileRegionEncryption() throws Exception {
+    testFileRegionEncryption("nio");
+  }
+
+  @Test
+  public void testFileRegionEncryptionWithEpoll() throws Exception {
+    assumeTrue(Epoll.isAvailable());
+    testFileRegionEncryption("epoll");
+  }
+
+  private void testFileRegionEncryption(String ioMode) throws Exception {
     final String blockSizeConf = "spark.network.sasl.maxEncryptedBlockSize";
     System.setProperty(blockSizeConf, "1k");
+    final String ioModeConf = "spark.shuffle.io.mode";
+    System.setProperty(ioModeConf, ioMode);
 
     final AtomicReference<ManagedBuffer> response = new AtomicReference<>();
     final File file = File.createTempFile("sasltest", ".txt");
@@ -254,6 +305,7 @@ public class SparkSaslSuite {
             return new FileSegmentManagedBuffer(conf, file, 0, file.length());
           }
         });
+      doCallRealMethod().when(sm).fetchChunk(anyLong(), anyInt(), any(ChunkResponder.class));
 
       RpcHandler rpcHandler = mock(RpcHandler.class);
       when(rpcHandler.getStreamManager()).thenReturn(sm);
@@ -298,6 +350,7 @@ public class SparkSaslSuite {
         response.get().release();
       }
       System.clearProperty(blockSizeConf);
+      System.clearProperty(ioModeConf);
     }
   }
 
@@ -0,0 +1,32 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+
+/**
+ * Hands out the files that a {@link ShuffleClient} writes fetched blocks to when they are too
+ * large to be held in memory. The blocks are then passed to the {@link BlockFetchingListener} as
+ * buffers backed by these files. Whoever provides the files is also responsible for deleting
+ * them, including files of blocks whose fetch failed.
+ */
+public interface DownloadFileManager {
+
+  /** Returns a new, empty file to write a fetched block to. */
+  File createTempFile();
+}
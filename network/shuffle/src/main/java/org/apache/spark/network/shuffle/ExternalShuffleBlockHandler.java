@@ -17,10 +17,18 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import org.apache.spark.network.util.TransportConf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,11 +36,15 @@ import org.slf4j.LoggerFactory;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
+import org.apache.spark.network.server.DiskReadDispatcher;
 import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.StreamManager;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.GetMergedBlockMeta;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.OpenShuffleBlockRanges;
+import org.apache.spark.network.shuffle.protocol.PushBlocks;
 import org.apache.spark.network.shuffle.protocol.RegisterExecutor;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 
@@ -42,7 +54,23 @@ import org.apache.spark.network.shuffle.protocol.StreamHandle;
  *
  * Handles registering executors and opening shuffle blocks from them. Shuffle blocks are registered
  * with the "one-for-one" strategy, meaning each Transport-layer Chunk is equivalent to one Spark-
- * level shuffle block.
+ * level shuffle block. The exception is {@link OpenShuffleBlockRanges}, which maps each Chunk to
+ * a range of contiguous shuffle blocks of one map output.
+ *
+ * If {@link TransportConf#maxChunkReadsPerDisk()} is positive, chunks are served through a
+ * {@link FairShuffleStreamManager}, which limits concurrent reads per disk and the bytes on their
+ * way to each connection, shares the disks fairly between applications, and reads chunks ahead
+ * into the page cache on per-disk threads (see {@link DiskReadDispatcher}) unless
+ * {@link TransportConf#diskReadThreads()} is 0.
+ *
+ * Shuffle blocks pushed by map tasks are merged per reduce id by a {@link RemoteBlockPushResolver},
+ * which answers pushes from threads of its own, and the merged blocks are opened like any other
+ * block.
+ *
+ * The handler's metrics, such as those of the shuffle index cache and, with a
+ * {@link FairShuffleStreamManager}, the chunk queue depth and bytes served of each application, are
+ * available through
+ * {@link #getAllMetrics()} for the process running the service to publish.
  * 处理注册执行人员并打开他们的洗牌,Shuffle块使用“一对一”策略注册,这意味着每个传输层块相当于一个Spark级别的Shuffle块。
  */
 public class ExternalShuffleBlockHandler extends RpcHandler {
@@ -50,9 +78,40 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
 
   private final ExternalShuffleBlockResolver blockManager;
   private final OneForOneStreamManager streamManager;
+  private final RemoteBlockPushResolver pushResolver;
+  private final ShuffleMetrics metrics = new ShuffleMetrics();
 
   public ExternalShuffleBlockHandler(TransportConf conf) {
-    this(new OneForOneStreamManager(), new ExternalShuffleBlockResolver(conf));
+    this(conf, createStreamManager(conf), new ExternalShuffleBlockResolver(conf));
+  }
+
+  /**
+   * Creates a handler that journals executor registrations to the given file and restores them
+   * from it, so that they survive a restart of the shuffle service.
+   */
+  public ExternalShuffleBlockHandler(TransportConf conf, File registeredExecutorFile)
+      throws IOException {
+    this(conf, createStreamManager(conf),
+      new ExternalShuffleBlockResolver(conf, registeredExecutorFile));
+  }
+
+  private ExternalShuffleBlockHandler(
+      TransportConf conf,
+      OneForOneStreamManager streamManager,
+      ExternalShuffleBlockResolver blockManager) {
+    this(streamManager, blockManager, new RemoteBlockPushResolver(conf, blockManager));
+  }
+
+  private static OneForOneStreamManager createStreamManager(TransportConf conf) {
+    int maxChunkReadsPerDisk = conf.maxChunkReadsPerDisk();
+    if (maxChunkReadsPerDisk > 0) {
+      int diskReadThreads = conf.diskReadThreads();
+      return new FairShuffleStreamManager(maxChunkReadsPerDisk,
+        diskReadThreads > 0 ? new DiskReadDispatcher(diskReadThreads) : null,
+        conf.maxChunkBytesInFlightPerChannel());
+    } else {
+      return new OneForOneStreamManager();
+    }
   }
 
   /** Enables mocking out the StreamManager and BlockManager.
@@ -60,9 +119,19 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
   @VisibleForTesting
   ExternalShuffleBlockHandler(
       OneForOneStreamManager streamManager,
-      ExternalShuffleBlockResolver blockManager) {
+      ExternalShuffleBlockResolver blockManager,
+      RemoteBlockPushResolver pushResolver) {
     this.streamManager = streamManager;
     this.blockManager = blockManager;
+    this.pushResolver = pushResolver;
+    if (streamManager instanceof FairShuffleStreamManager) {
+      // Executors restored from the journal do not register again, so apply their weights now.
+      //从日志恢复的执行器不会再次注册,因此现在应用它们的权重
+      for (Map.Entry<String, Double> entry : blockManager.getApplicationWeights().entrySet()) {
+        ((FairShuffleStreamManager) streamManager).setApplicationWeight(
+          entry.getKey(), entry.getValue());
+      }
+    }
   }
 
   @Override
@@ -80,17 +149,50 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
       List<ManagedBuffer> blocks = Lists.newArrayList();
 
       for (String blockId : msg.blockIds) {
-        blocks.add(blockManager.getBlockData(msg.appId, msg.execId, blockId));
+        if (blockId.startsWith("shuffleMerged_")) {
+          blocks.add(pushResolver.getMergedBlockData(msg.appId, blockId));
+        } else {
+          blocks.add(blockManager.getBlockData(msg.appId, msg.execId, blockId));
+        }
       }
-      long streamId = streamManager.registerStream(blocks.iterator());
+      long streamId = streamManager.registerStream(msg.appId, blocks.iterator());
       logger.trace("Registered streamId {} with {} buffers", streamId, msg.blockIds.length);
       callback.onSuccess(new StreamHandle(streamId, msg.blockIds.length).toByteArray());
 
+    } else if (msgObj instanceof OpenShuffleBlockRanges) {
+      OpenShuffleBlockRanges msg = (OpenShuffleBlockRanges) msgObj;
+      List<ManagedBuffer> blocks = Lists.newArrayList();
+      // The client splits each range back into its blocks by their sizes in the index.
+      List<Long> blockSizes = Lists.newArrayList();
+
+      for (int i = 0; i < msg.numRanges(); i++) {
+        blocks.add(blockManager.getContiguousBlocksData(msg.appId, msg.execId, msg.shuffleId,
+          msg.mapIds[i], msg.startReduceIds[i], msg.endReduceIds[i]));
+        blockSizes.addAll(Longs.asList(blockManager.getContiguousBlockSizes(msg.appId,
+          msg.execId, msg.shuffleId, msg.mapIds[i], msg.startReduceIds[i], msg.endReduceIds[i])));
+      }
+      long streamId = streamManager.registerStream(msg.appId, blocks.iterator());
+      logger.trace("Registered streamId {} with {} block ranges", streamId, msg.numRanges());
+      callback.onSuccess(
+        new StreamHandle(streamId, msg.numRanges(), Longs.toArray(blockSizes)).toByteArray());
+
     } else if (msgObj instanceof RegisterExecutor) {
       RegisterExecutor msg = (RegisterExecutor) msgObj;
+      if (streamManager instanceof FairShuffleStreamManager) {
+        ((FairShuffleStreamManager) streamManager).setApplicationWeight(
+          msg.appId, msg.executorInfo.fetchWeight);
+      }
       blockManager.registerExecutor(msg.appId, msg.execId, msg.executorInfo);
       callback.onSuccess(new byte[0]);
 
+    } else if (msgObj instanceof PushBlocks) {
+      PushBlocks msg = (PushBlocks) msgObj;
+      pushResolver.pushBlocks(msg, callback);
+
+    } else if (msgObj instanceof GetMergedBlockMeta) {
+      GetMergedBlockMeta msg = (GetMergedBlockMeta) msgObj;
+      pushResolver.finalizeMergedBlock(msg.appId, msg.shuffleId, msg.reduceId, callback);
+
     } else {
       throw new UnsupportedOperationException("Unexpected message: " + msgObj);
     }
@@ -101,12 +203,100 @@ public class ExternalShuffleBlockHandler extends RpcHandler {
     return streamManager;
   }
 
+  /** Returns the metrics of the shuffle service. 返回Shuffle服务的度量指标 */
+  public MetricSet getAllMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Journals the secret an application authenticates with next to its executor registrations, if
+   * they are journaled, so that a restarted service can authenticate its executors again.
+   */
+  public void registerApplicationSecret(String appId, String secret) {
+    blockManager.registerApplicationSecret(appId, secret);
+  }
+
+  /** Returns the application secrets restored from the registered executor journal. */
+  public Map<String, String> getApplicationSecrets() {
+    return blockManager.getApplicationSecrets();
+  }
+
   /**
    * Removes an application (once it has been terminated), and optionally will clean up any
    * local directories associated with the executors of that application in a separate thread.
    * 删除应用程序(一旦终止),并且可以选择清理任何应用程序在单独的线程中与该应用程序的执行程序相关联的本地目录。
    */
   public void applicationRemoved(String appId, boolean cleanupLocalDirs) {
+    pushResolver.applicationRemoved(appId);
     blockManager.applicationRemoved(appId, cleanupLocalDirs);
+    if (streamManager instanceof FairShuffleStreamManager) {
+      ((FairShuffleStreamManager) streamManager).applicationRemoved(appId);
+    }
+  }
+
+  /** Releases the resources held by the handler, such as the registered executor journal. */
+  public void close() {
+    pushResolver.close();
+    blockManager.close();
+    if (streamManager instanceof FairShuffleStreamManager) {
+      ((FairShuffleStreamManager) streamManager).close();
+    }
+  }
+
+  /**
+   * Metrics of the shuffle service. They are collected anew on every call, since the applications
+   * being served come and go.
+   */
+  private class ShuffleMetrics implements MetricSet {
+    @Override
+    public Map<String, Metric> getMetrics() {
+      Map<String, Metric> metrics = new HashMap<String, Metric>();
+      // Lookups, evictions and size in bytes of the shuffle index cache, to size it by.
+      //Shuffle索引缓存的查找次数、驱逐次数和字节大小,用于确定缓存大小
+      metrics.put("indexCacheHits", new Gauge<Long>() {
+        @Override
+        public Long getValue() {
+          return blockManager.getIndexCacheStats().hitCount();
+        }
+      });
+      metrics.put("indexCacheMisses", new Gauge<Long>() {
+        @Override
+        public Long getValue() {
+          return blockManager.getIndexCacheStats().missCount();
+        }
+      });
+      metrics.put("indexCacheEvictions", new Gauge<Long>() {
+        @Override
+        public Long getValue() {
+          return blockManager.getIndexCacheStats().evictionCount();
+        }
+      });
+      metrics.put("indexCacheWeight", new Gauge<Long>() {
+        @Override
+        public Long getValue() {
+          return blockManager.getIndexCacheWeight();
+        }
+      });
+      if (streamManager instanceof FairShuffleStreamManager) {
+        // Chunk requests waiting for a disk, and bytes of chunks served, of each application.
+        //每个应用程序等待磁盘的块请求数以及已提供的块字节数
+        final FairShuffleStreamManager fairManager = (FairShuffleStreamManager) streamManager;
+        for (final String appId : fairManager.getApplicationIds()) {
+          metrics.put("app." + appId + ".chunkQueueDepth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+              return fairManager.getQueueDepth(appId);
+            }
+          });
+          metrics.put("app." + appId + ".servedBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+              return fairManager.getServedBytes(appId);
+            }
+          });
+        }
+      }
+      return metrics;
+    }
   }
 }
@@ -17,18 +17,26 @@
 
 package org.apache.spark.network.shuffle;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +56,15 @@ import org.apache.spark.network.util.TransportConf;
  *
  * Executors with shuffle file consolidation are not currently supported, as the index is stored in
  * the Executor's memory, unlike the IndexShuffleBlockResolver.
+ *
+ * The offsets read from sort-based shuffle index files are kept in a cache bounded by
+ * {@link TransportConf#shuffleIndexCacheSize()}, so that the index file of a map output is not
+ * re-read for every reducer. This is safe because a committed map output is never rewritten.
+ *
+ * If a registered executor file is given, registrations are also journaled to it (see
+ * {@link RegisteredExecutorsLog}) and restored from it on construction, so that a restarted
+ * shuffle service keeps serving the executors of running applications. The secrets those
+ * applications authenticate with are journaled alongside them.
  */
 public class ExternalShuffleBlockResolver {
   private static final Logger logger = LoggerFactory.getLogger(ExternalShuffleBlockResolver.class);
@@ -62,20 +79,80 @@ public class ExternalShuffleBlockResolver {
 
   private final TransportConf conf;
 
+  // Parsed sort-based shuffle index files, weighed by their size in bytes.
+  //已解析的排序Shuffle索引文件,按其字节大小加权
+  private final Cache<ShuffleMapId, ShuffleIndexInformation> indexCache;
+
+  // Total size in bytes of the index files in the cache.
+  //缓存中索引文件的总字节数
+  private final AtomicLong indexCacheWeight = new AtomicLong(0L);
+
+  // Journal of the registered executors, or null if registrations are only kept in memory.
+  //已注册执行者的日志,如果注册只保存在内存中则为null
+  private final RegisteredExecutorsLog registeredExecutorsLog;
+
   public ExternalShuffleBlockResolver(TransportConf conf) {
-    this(conf, Executors.newSingleThreadExecutor(
+    this(conf, newDirectoryCleaner());
+  }
+
+  public ExternalShuffleBlockResolver(TransportConf conf, File registeredExecutorFile)
+      throws IOException {
+    this(conf, registeredExecutorFile, newDirectoryCleaner());
+  }
+
+  private static Executor newDirectoryCleaner() {
+    return Executors.newSingleThreadExecutor(
         // Add `spark` prefix because it will run in NM in Yarn mode.
             //添加`spark`前缀，因为它将以Yarn模式在NM中运行
-        NettyUtils.createThreadFactory("spark-shuffle-directory-cleaner")));
+        NettyUtils.createThreadFactory("spark-shuffle-directory-cleaner"));
   }
 
   // Allows tests to have more control over when directories are cleaned up.
     //允许测试更好地控制清理目录的时间
   @VisibleForTesting
   ExternalShuffleBlockResolver(TransportConf conf, Executor directoryCleaner) {
+    this(conf, null, directoryCleaner, null);
+  }
+
+  @VisibleForTesting
+  ExternalShuffleBlockResolver(
+      TransportConf conf,
+      File registeredExecutorFile,
+      Executor directoryCleaner) throws IOException {
+    this(conf, registeredExecutorFile, directoryCleaner,
+      registeredExecutorFile == null ? null : new RegisteredExecutorsLog(registeredExecutorFile));
+  }
+
+  private ExternalShuffleBlockResolver(
+      TransportConf conf,
+      File registeredExecutorFile,
+      Executor directoryCleaner,
+      RegisteredExecutorsLog registeredExecutorsLog) {
     this.conf = conf;
     this.executors = Maps.newConcurrentMap();
     this.directoryCleaner = directoryCleaner;
+    this.registeredExecutorsLog = registeredExecutorsLog;
+    if (registeredExecutorsLog != null) {
+      executors.putAll(registeredExecutorsLog.getExecutors());
+      logger.info("Restored {} registered executors from {}", executors.size(),
+        registeredExecutorFile);
+    }
+    this.indexCache = CacheBuilder.newBuilder()
+      .maximumWeight(conf.shuffleIndexCacheSize())
+      .weigher(new Weigher<ShuffleMapId, ShuffleIndexInformation>() {
+        @Override
+        public int weigh(ShuffleMapId key, ShuffleIndexInformation value) {
+          return value.getSize();
+        }
+      })
+      .removalListener(new RemovalListener<ShuffleMapId, ShuffleIndexInformation>() {
+        @Override
+        public void onRemoval(RemovalNotification<ShuffleMapId, ShuffleIndexInformation> entry) {
+          indexCacheWeight.addAndGet(-entry.getValue().getSize());
+        }
+      })
+      .recordStats()
+      .build();
   }
 
   /** Registers a new Executor with all the configuration we need to find its shuffle files.
@@ -86,7 +163,49 @@ public class ExternalShuffleBlockResolver {
       ExecutorShuffleInfo executorInfo) {
     AppExecId fullId = new AppExecId(appId, execId);
     logger.info("Registered executor {} with {}", fullId, executorInfo);
-    executors.put(fullId, executorInfo);
+    if (executors.put(fullId, executorInfo) != null) {
+      // The executor may have moved its shuffle files, so forget what we read from the old ones.
+      invalidateIndexCache(appId, execId);
+    }
+    if (registeredExecutorsLog != null) {
+      try {
+        registeredExecutorsLog.registerExecutor(fullId, executorInfo);
+      } catch (IOException e) {
+        // The executor can still be served until the service restarts.
+        logger.error("Failed to journal the registration of executor " + fullId, e);
+      }
+    }
+  }
+
+  /**
+   * Journals the secret an application authenticates with, so that it is restored along with the
+   * application's executors. Does nothing if registrations are only kept in memory.
+   */
+  public void registerApplicationSecret(String appId, String secret) {
+    if (registeredExecutorsLog != null) {
+      try {
+        registeredExecutorsLog.registerAppSecret(appId, secret);
+      } catch (IOException e) {
+        logger.error("Failed to journal the secret of application " + appId, e);
+      }
+    }
+  }
+
+  /** Returns the application secrets restored from the journal, or journaled since. */
+  public Map<String, String> getApplicationSecrets() {
+    if (registeredExecutorsLog == null) {
+      return Collections.emptyMap();
+    }
+    return registeredExecutorsLog.getAppSecrets();
+  }
+
+  /** Returns the fetch weight that the executors of each registered application were given. */
+  public Map<String, Double> getApplicationWeights() {
+    Map<String, Double> weights = Maps.newHashMap();
+    for (Map.Entry<AppExecId, ExecutorShuffleInfo> entry : executors.entrySet()) {
+      weights.put(entry.getKey().appId, entry.getValue().fetchWeight);
+    }
+    return weights;
   }
 
   /**
@@ -108,23 +227,102 @@ public class ExternalShuffleBlockResolver {
     int mapId = Integer.parseInt(blockIdParts[2]);
     int reduceId = Integer.parseInt(blockIdParts[3]);
 
-    ExecutorShuffleInfo executor = executors.get(new AppExecId(appId, execId));
-    if (executor == null) {
-      throw new RuntimeException(
-        String.format("Executor is not registered (appId=%s, execId=%s)", appId, execId));
-    }
-
+    AppExecId fullId = new AppExecId(appId, execId);
+    ExecutorShuffleInfo executor = getExecutor(fullId);
     if ("org.apache.spark.shuffle.hash.HashShuffleManager".equals(executor.shuffleManager)) {
       return getHashBasedShuffleBlockData(executor, blockId);
-    } else if ("org.apache.spark.shuffle.sort.SortShuffleManager".equals(executor.shuffleManager)
-      || "org.apache.spark.shuffle.unsafe.UnsafeShuffleManager".equals(executor.shuffleManager)) {
-      return getSortBasedShuffleBlockData(executor, shuffleId, mapId, reduceId);
+    } else if (isSortBased(executor)) {
+      return getSortBasedShuffleBlockData(fullId, executor, shuffleId, mapId, reduceId,
+        reduceId + 1);
     } else {
       throw new UnsupportedOperationException(
         "Unsupported shuffle manager: " + executor.shuffleManager);
     }
   }
 
+  /**
+   * Obtains a single FileSegmentManagedBuffer covering the shuffle blocks of one map output from
+   * startReduceId (inclusive) to endReduceId (exclusive). This is only supported for sort-based
+   * shuffles, which store all blocks of a map output next to each other in one data file.
+   * 获取一个覆盖一个map输出从startReduceId到endReduceId的Shuffle块的FileSegmentManagedBuffer
+   */
+  public ManagedBuffer getContiguousBlocksData(
+      String appId,
+      String execId,
+      int shuffleId,
+      int mapId,
+      int startReduceId,
+      int endReduceId) {
+    AppExecId fullId = new AppExecId(appId, execId);
+    ExecutorShuffleInfo executor = getSortBasedExecutor(fullId);
+    return getSortBasedShuffleBlockData(fullId, executor, shuffleId, mapId, startReduceId,
+      endReduceId);
+  }
+
+  /**
+   * Returns the sizes of the shuffle blocks of one map output from startReduceId (inclusive) to
+   * endReduceId (exclusive), as recorded in the map output's index file, so that a range fetched
+   * with {@link #getContiguousBlocksData} can be split back into its blocks.
+   * 返回一个map输出从startReduceId到endReduceId的各Shuffle块大小,用于把范围拆回单个块
+   */
+  public long[] getContiguousBlockSizes(
+      String appId,
+      String execId,
+      int shuffleId,
+      int mapId,
+      int startReduceId,
+      int endReduceId) {
+    AppExecId fullId = new AppExecId(appId, execId);
+    ExecutorShuffleInfo executor = getSortBasedExecutor(fullId);
+    ShuffleIndexInformation index = getSortBasedShuffleIndex(fullId, executor, shuffleId, mapId);
+    // Checks the range as a whole.
+    index.getLength(startReduceId, endReduceId);
+    long[] sizes = new long[endReduceId - startReduceId];
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = index.getLength(startReduceId + i);
+    }
+    return sizes;
+  }
+
+  private ExecutorShuffleInfo getSortBasedExecutor(AppExecId fullId) {
+    ExecutorShuffleInfo executor = getExecutor(fullId);
+    if (!isSortBased(executor)) {
+      throw new UnsupportedOperationException(
+        "Ranges of shuffle blocks are not supported by shuffle manager " +
+        executor.shuffleManager);
+    }
+    return executor;
+  }
+
+  private ExecutorShuffleInfo getExecutor(AppExecId fullId) {
+    ExecutorShuffleInfo executor = executors.get(fullId);
+    if (executor == null) {
+      throw new RuntimeException(String.format("Executor is not registered (appId=%s, execId=%s)",
+        fullId.appId, fullId.execId));
+    }
+    return executor;
+  }
+
+  /**
+   * Returns a file with the given name in the local directories of one of the registered executors
+   * of the given application, for data that the shuffle service writes on behalf of the
+   * application. The file is deleted along with those directories.
+   */
+  public File getApplicationFile(String appId, String filename) {
+    for (Map.Entry<AppExecId, ExecutorShuffleInfo> entry : executors.entrySet()) {
+      if (appId.equals(entry.getKey().appId)) {
+        ExecutorShuffleInfo executor = entry.getValue();
+        return getFile(executor.localDirs, executor.subDirsPerLocalDir, filename);
+      }
+    }
+    throw new RuntimeException("No executor is registered for application " + appId);
+  }
+
+  private static boolean isSortBased(ExecutorShuffleInfo executor) {
+    return "org.apache.spark.shuffle.sort.SortShuffleManager".equals(executor.shuffleManager)
+      || "org.apache.spark.shuffle.unsafe.UnsafeShuffleManager".equals(executor.shuffleManager);
+  }
+
   /**
    * Removes our metadata of all executors registered for the given application, and optionally
    * also deletes the local directories associated with the executors of that application in a
@@ -163,6 +361,54 @@ public class ExternalShuffleBlockResolver {
         }
       }
     }
+    if (registeredExecutorsLog != null) {
+      try {
+        registeredExecutorsLog.applicationRemoved(appId);
+      } catch (IOException e) {
+        logger.error("Failed to journal the removal of application " + appId, e);
+      }
+    }
+    invalidateIndexCache(appId, null);
+  }
+
+  /**
+   * Statistics of the cache of shuffle index files, for sizing the cache.
+   * 索引文件缓存的统计信息,用于确定缓存大小
+   */
+  public CacheStats getIndexCacheStats() {
+    return indexCache.stats();
+  }
+
+  /** Total size in bytes of the index files in the cache. 缓存中索引文件的总字节数 */
+  public long getIndexCacheWeight() {
+    return indexCacheWeight.get();
+  }
+
+  @VisibleForTesting
+  long indexCacheSize() {
+    return indexCache.size();
+  }
+
+  /** Closes the journal of registered executors, if there is one. */
+  public void close() {
+    if (registeredExecutorsLog != null) {
+      try {
+        registeredExecutorsLog.close();
+      } catch (IOException e) {
+        logger.error("Failed to close the journal of registered executors", e);
+      }
+    }
+  }
+
+  /** Drops the cached index files of an application, or only of one executor if execId is set. */
+  private void invalidateIndexCache(String appId, String execId) {
+    Iterator<ShuffleMapId> it = indexCache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      AppExecId fullId = it.next().appExecId;
+      if (appId.equals(fullId.appId) && (execId == null || execId.equals(fullId.execId))) {
+        it.remove();
+      }
+    }
   }
 
   /**
@@ -203,28 +449,38 @@ public class ExternalShuffleBlockResolver {
    * 块id格式来自ShuffleDataBlockId和ShuffleIndexBlockId
    */
   private ManagedBuffer getSortBasedShuffleBlockData(
-    ExecutorShuffleInfo executor, int shuffleId, int mapId, int reduceId) {
-    File indexFile = getFile(executor.localDirs, executor.subDirsPerLocalDir,
-      "shuffle_" + shuffleId + "_" + mapId + "_0.index");
+    AppExecId fullId,
+    ExecutorShuffleInfo executor,
+    int shuffleId,
+    int mapId,
+    int startReduceId,
+    int endReduceId) {
+    ShuffleIndexInformation index = getSortBasedShuffleIndex(fullId, executor, shuffleId, mapId);
+    return new FileSegmentManagedBuffer(
+      conf,
+      getFile(executor.localDirs, executor.subDirsPerLocalDir,
+        "shuffle_" + shuffleId + "_" + mapId + "_0.data"),
+      index.getOffset(startReduceId),
+      index.getLength(startReduceId, endReduceId));
+  }
 
-    DataInputStream in = null;
+  /** Returns the index of a sort-based map output, from the index cache if it is there. */
+  private ShuffleIndexInformation getSortBasedShuffleIndex(
+      AppExecId fullId, ExecutorShuffleInfo executor, int shuffleId, int mapId) {
+    final File indexFile = getFile(executor.localDirs, executor.subDirsPerLocalDir,
+      "shuffle_" + shuffleId + "_" + mapId + "_0.index");
     try {
-      in = new DataInputStream(new FileInputStream(indexFile));
-      in.skipBytes(reduceId * 8);
-      long offset = in.readLong();
-      long nextOffset = in.readLong();
-      return new FileSegmentManagedBuffer(
-        conf,
-        getFile(executor.localDirs, executor.subDirsPerLocalDir,
-          "shuffle_" + shuffleId + "_" + mapId + "_0.data"),
-        offset,
-        nextOffset - offset);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to open file: " + indexFile, e);
-    } finally {
-      if (in != null) {
-        JavaUtils.closeQuietly(in);
-      }
+      return indexCache.get(new ShuffleMapId(fullId, shuffleId, mapId),
+        new Callable<ShuffleIndexInformation>() {
+          @Override
+          public ShuffleIndexInformation call() throws Exception {
+            ShuffleIndexInformation loaded = new ShuffleIndexInformation(indexFile);
+            indexCacheWeight.addAndGet(loaded.getSize());
+            return loaded;
+          }
+        });
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Failed to open file: " + indexFile, e.getCause());
     }
   }
 
@@ -241,13 +497,41 @@ public class ExternalShuffleBlockResolver {
     return new File(new File(localDir, String.format("%02x", subDirId)), filename);
   }
 
+  /** Identifies the output of one map task of one of an executor's shuffles. */
+  private static class ShuffleMapId {
+    final AppExecId appExecId;
+    final int shuffleId;
+    final int mapId;
+
+    private ShuffleMapId(AppExecId appExecId, int shuffleId, int mapId) {
+      this.appExecId = appExecId;
+      this.shuffleId = shuffleId;
+      this.mapId = mapId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      ShuffleMapId other = (ShuffleMapId) o;
+      return shuffleId == other.shuffleId && mapId == other.mapId &&
+        appExecId.equals(other.appExecId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(appExecId, shuffleId, mapId);
+    }
+  }
+
   /** Simply encodes an executor's full ID, which is appId + execId.
    * 只需编码一个执行者的完整ID，即appId + execId*/
-  private static class AppExecId {
+  static class AppExecId {
     final String appId;
     final String execId;
 
-    private AppExecId(String appId, String execId) {
+    AppExecId(String appId, String execId) {
       this.appId = appId;
       this.execId = execId;
     }
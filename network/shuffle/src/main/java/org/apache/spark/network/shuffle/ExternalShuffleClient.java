@@ -32,7 +32,11 @@ import org.apache.spark.network.client.TransportClientFactory;
 import org.apache.spark.network.sasl.SaslClientBootstrap;
 import org.apache.spark.network.sasl.SecretKeyHolder;
 import org.apache.spark.network.server.NoOpRpcHandler;
+import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+import org.apache.spark.network.shuffle.protocol.GetMergedBlockMeta;
+import org.apache.spark.network.shuffle.protocol.MergedBlockMeta;
+import org.apache.spark.network.shuffle.protocol.PushBlocks;
 import org.apache.spark.network.shuffle.protocol.RegisterExecutor;
 import org.apache.spark.network.util.TransportConf;
 
@@ -89,13 +93,24 @@ public class ExternalShuffleClient extends ShuffleClient {
     clientFactory = context.createClientFactory(bootstraps);
   }
 
+  @Override
+  public void fetchBlocks(
+      String host,
+      int port,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener) {
+    fetchBlocks(host, port, execId, blockIds, listener, null);
+  }
+
   @Override
   public void fetchBlocks(
       final String host,
       final int port,
       final String execId,
       String[] blockIds,
-      BlockFetchingListener listener) {
+      BlockFetchingListener listener,
+      final DownloadFileManager downloadFileManager) {
     checkInit();
     logger.debug("External shuffle fetch from {}:{} (executor id {})", host, port, execId);
     try {
@@ -105,7 +120,8 @@ public class ExternalShuffleClient extends ShuffleClient {
           public void createAndStart(String[] blockIds, BlockFetchingListener listener)
               throws IOException {
             TransportClient client = clientFactory.createClient(host, port);
-            new OneForOneBlockFetcher(client, appId, execId, blockIds, listener).start();
+            new OneForOneBlockFetcher(client, appId, execId, blockIds, listener,
+              downloadFileManager, conf.fetchShuffleBlockRanges()).start();
           }
         };
 
@@ -149,6 +165,48 @@ public class ExternalShuffleClient extends ShuffleClient {
     client.sendRpcSync(registerMessage, 5000 /* timeoutMs */);
   }
 
+  /**
+   * Pushes shuffle blocks of one map output to a shuffle server, which merges them per reduce id.
+   * Returns once the server has handled the blocks; blocks that it could not merge are dropped
+   * without an error.
+   *
+   * @param mapAttemptId the task attempt that wrote the map output.
+   * @param blocks block {@code i} holds the data of the map output for reduce id
+   *               {@code reduceIds[i]}.
+   */
+  public void pushBlocks(
+      String host,
+      int port,
+      int shuffleId,
+      int mapId,
+      long mapAttemptId,
+      int[] reduceIds,
+      byte[][] blocks,
+      long timeoutMs) throws IOException {
+    checkInit();
+    TransportClient client = clientFactory.createClient(host, port);
+    byte[] pushMessage =
+      new PushBlocks(appId, shuffleId, mapId, mapAttemptId, reduceIds, blocks).toByteArray();
+    client.sendRpcSync(pushMessage, timeoutMs);
+  }
+
+  /**
+   * Asks a shuffle server which map outputs it merged for the given reduce id. The merged block
+   * takes no more pushed blocks afterwards.
+   */
+  public MergedBlockMeta getMergedBlockMeta(
+      String host,
+      int port,
+      int shuffleId,
+      int reduceId,
+      long timeoutMs) throws IOException {
+    checkInit();
+    TransportClient client = clientFactory.createClient(host, port);
+    byte[] request = new GetMergedBlockMeta(appId, shuffleId, reduceId).toByteArray();
+    return (MergedBlockMeta) BlockTransferMessage.Decoder.fromByteArray(
+      client.sendRpcSync(request, timeoutMs));
+  }
+
   @Override
   public void close() {
     clientFactory.close();
@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.server.ChunkResponder;
+import org.apache.spark.network.server.DiskReadDispatcher;
+import org.apache.spark.network.server.OneForOneStreamManager;
+
+/**
+ * A {@link OneForOneStreamManager} for the external shuffle service that bounds how many chunks are
+ * read from each disk at a time, and serves the chunk requests waiting for a disk in weighted fair
+ * order across applications instead of in arrival order. This keeps one application with a huge
+ * shuffle from making the fetches of small applications on the same node wait behind it.
+ * 外部Shuffle服务的流管理器,限制每个磁盘同时读取的块数,并在应用程序之间按加权公平顺序提供等待磁盘的块请求
+ *
+ * Every chunk request is queued under the application that opened its stream. Applications share
+ * the disks in proportion to their weights, which their executors send when they register (see
+ * {@link org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo#fetchWeight}). Whenever
+ * a disk has a free read slot, the application with the least bytes served per unit of weight
+ * (its virtual time) sends its oldest chunk queued on that disk whose connection has room for
+ * it. An application that becomes backlogged starts no earlier than the virtual time of the last
+ * chunk sent, so it cannot claim bandwidth for the time it was idle. Chunks that are not backed
+ * by a file are sent right away.
+ *
+ * If a {@link DiskReadDispatcher} is given, chunks that get a read slot are first read into the
+ * page cache on their disk's threads, in file and offset order, and then sent by the event loop
+ * from the cache. A chunk then gives up its read slot as soon as it has been read, so a slow
+ * client cannot keep the disk from serving others. Without a dispatcher the chunk is read as it
+ * is written, and holds the slot until it has been written to the network.
+ *
+ * Separately, the chunks on their way to each connection, from the time they get a read slot
+ * until they have been written, may hold at most a given number of bytes, which bounds how much
+ * is read ahead of a slow client. A connection with nothing in flight may always take one chunk,
+ * however large.
+ *
+ * Files are mapped to disks by the file store that holds their executor's local directory.
+ */
+public class FairShuffleStreamManager extends OneForOneStreamManager implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(FairShuffleStreamManager.class);
+
+  private final int maxReadsPerDisk;
+  private final long maxBytesPerChannel;
+
+  // Reads chunks off the event loops, or null to let the event loops read them as they are sent.
+  private final DiskReadDispatcher diskReader;
+
+  /** Scheduling state of each application that has fetched chunks. Guarded by this. */
+  private final Map<String, AppState> apps = new HashMap<String, AppState>();
+
+  /** Number of chunks holding a read slot of each disk. Guarded by this. */
+  private final Map<Object, Integer> readsPerDisk = new HashMap<Object, Integer>();
+
+  /** Bytes of the chunks on their way to each channel. Guarded by this. */
+  private final Map<Channel, Long> bytesPerChannel = new HashMap<Channel, Long>();
+
+  /** Virtual time of the last chunk that was sent. Guarded by this. */
+  private double virtualTime = 0.0;
+
+  /** Whether a thread is sending queued chunks; only one thread does so at a time. */
+  private boolean dispatching = false;
+
+  /** Disk of each executor local directory. */
+  private final Cache<File, Object> diskOfDir = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build();
+
+  public FairShuffleStreamManager(int maxReadsPerDisk) {
+    this(maxReadsPerDisk, null);
+  }
+
+  public FairShuffleStreamManager(int maxReadsPerDisk, DiskReadDispatcher diskReader) {
+    this(maxReadsPerDisk, diskReader, Long.MAX_VALUE);
+  }
+
+  public FairShuffleStreamManager(
+      int maxReadsPerDisk,
+      DiskReadDispatcher diskReader,
+      long maxBytesPerChannel) {
+    if (maxReadsPerDisk <= 0) {
+      throw new IllegalArgumentException(
+        "Maximum number of chunk reads per disk must be positive, got " + maxReadsPerDisk);
+    }
+    if (maxBytesPerChannel <= 0) {
+      throw new IllegalArgumentException(
+        "Maximum number of chunk bytes in flight per channel must be positive, got " +
+        maxBytesPerChannel);
+    }
+    this.maxReadsPerDisk = maxReadsPerDisk;
+    this.diskReader = diskReader;
+    this.maxBytesPerChannel = maxBytesPerChannel;
+  }
+
+  /** A chunk request waiting for a read slot on its disk. */
+  private static class PendingChunk {
+    final ManagedBuffer chunk;
+    final ChunkResponder responder;
+    final Object disk;
+    // The channel the chunk is sent over, or null if it is not known.
+    final Channel channel;
+    final long size;
+
+    PendingChunk(ManagedBuffer chunk, ChunkResponder responder, Object disk, Channel channel) {
+      this.chunk = chunk;
+      this.responder = responder;
+      this.disk = disk;
+      this.channel = channel;
+      this.size = chunk.size();
+    }
+  }
+
+  private static class AppState {
+    double weight = 1.0;
+    double virtualTime = 0.0;
+    final LinkedList<PendingChunk> pending = new LinkedList<PendingChunk>();
+    long servedChunks = 0;
+    long servedBytes = 0;
+  }
+
+  @Override
+  public void fetchChunk(long streamId, int chunkIndex, ChunkResponder responder) {
+    // Look up the application first, as the stream is forgotten once its last chunk is taken.
+    String appId = getAppId(streamId);
+    Channel channel = getChannel(streamId);
+    ManagedBuffer chunk = getChunk(streamId, chunkIndex);
+    Object disk = diskOf(chunk);
+    synchronized (this) {
+      AppState app = getOrCreateApp(appId);
+      if (disk == null) {
+        app.servedChunks++;
+        app.servedBytes += chunk.size();
+      } else {
+        if (app.pending.isEmpty()) {
+          app.virtualTime = Math.max(app.virtualTime, virtualTime);
+        }
+        app.pending.add(new PendingChunk(chunk, responder, disk, channel));
+      }
+    }
+    if (disk == null) {
+      responder.send(chunk);
+    } else {
+      dispatch();
+    }
+  }
+
+  /**
+   * Sets the share of disk bandwidth that an application gets relative to the others, which all
+   * start with a weight of 1.
+   */
+  public synchronized void setApplicationWeight(String appId, double weight) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Application weight must be positive, got " + weight);
+    }
+    getOrCreateApp(appId).weight = weight;
+  }
+
+  /** Applications that have fetched chunks or been given a weight, and not been removed. */
+  public synchronized List<String> getApplicationIds() {
+    return new ArrayList<String>(apps.keySet());
+  }
+
+  /** Number of chunk requests of the application that are waiting for a disk. */
+  public synchronized int getQueueDepth(String appId) {
+    AppState app = apps.get(appId);
+    return app == null ? 0 : app.pending.size();
+  }
+
+  /** Number of bytes of chunks sent (or being sent) to the application. */
+  public synchronized long getServedBytes(String appId) {
+    AppState app = apps.get(appId);
+    return app == null ? 0 : app.servedBytes;
+  }
+
+  /**
+   * Forgets the scheduling state of an application, failing any chunk requests it still has
+   * queued.
+   */
+  public void applicationRemoved(String appId) {
+    AppState app;
+    synchronized (this) {
+      app = apps.remove(appId);
+    }
+    if (app != null) {
+      logger.info("Application {} was served {} chunks ({} bytes) by the shuffle service",
+        appId, app.servedChunks, app.servedBytes);
+      for (PendingChunk pending : app.pending) {
+        pending.responder.fail(new IllegalStateException("Application " + appId + " was removed"));
+      }
+    }
+  }
+
+  /** Stops the disk reader threads, if there are any. */
+  @Override
+  public void close() {
+    if (diskReader != null) {
+      diskReader.close();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int readsInFlight(Object disk) {
+    Integer reads = readsPerDisk.get(disk);
+    return reads == null ? 0 : reads;
+  }
+
+  @VisibleForTesting
+  synchronized long bytesInFlight(Channel channel) {
+    Long bytes = bytesPerChannel.get(channel);
+    return bytes == null ? 0 : bytes;
+  }
+
+  private AppState getOrCreateApp(String appId) {
+    AppState app = apps.get(appId);
+    if (app == null) {
+      app = new AppState();
+      apps.put(appId, app);
+    }
+    return app;
+  }
+
+  /**
+   * Sends queued chunks for as long as there are disks with free read slots. Chunks are sent
+   * outside of the lock, since a send may complete, and so call back into this class, right away.
+   */
+  private void dispatch() {
+    synchronized (this) {
+      if (dispatching) {
+        // The thread that is dispatching will pick up our chunks before it stops.
+        return;
+      }
+      dispatching = true;
+    }
+    while (true) {
+      List<PendingChunk> ready;
+      synchronized (this) {
+        ready = takeReadyChunks();
+        if (ready.isEmpty()) {
+          dispatching = false;
+          return;
+        }
+      }
+      for (PendingChunk pending : ready) {
+        send(pending);
+      }
+    }
+  }
+
+  /**
+   * Takes the chunks that can be sent now, in fair order, and reserves their read slots and the
+   * room they take up on their channels.
+   */
+  private List<PendingChunk> takeReadyChunks() {
+    List<PendingChunk> ready = new ArrayList<PendingChunk>();
+    while (true) {
+      AppState next = null;
+      PendingChunk nextChunk = null;
+      for (AppState app : apps.values()) {
+        if (next != null && app.virtualTime >= next.virtualTime) {
+          continue;
+        }
+        PendingChunk chunk = firstSendable(app);
+        if (chunk != null) {
+          next = app;
+          nextChunk = chunk;
+        }
+      }
+      if (next == null) {
+        return ready;
+      }
+      next.pending.remove(nextChunk);
+      virtualTime = next.virtualTime;
+      next.virtualTime += nextChunk.size / next.weight;
+      next.servedChunks++;
+      next.servedBytes += nextChunk.size;
+      readsPerDisk.put(nextChunk.disk, readsInFlight(nextChunk.disk) + 1);
+      if (nextChunk.channel != null) {
+        bytesPerChannel.put(nextChunk.channel, bytesInFlight(nextChunk.channel) + nextChunk.size);
+      }
+      ready.add(nextChunk);
+    }
+  }
+
+  /**
+   * Returns the oldest chunk of the application whose disk has a free read slot and whose channel
+   * has room for it.
+   */
+  private PendingChunk firstSendable(AppState app) {
+    for (PendingChunk chunk : app.pending) {
+      if (readsInFlight(chunk.disk) < maxReadsPerDisk && hasRoom(chunk)) {
+        return chunk;
+      }
+    }
+    return null;
+  }
+
+  private boolean hasRoom(PendingChunk chunk) {
+    if (chunk.channel == null) {
+      return true;
+    }
+    long bytes = bytesInFlight(chunk.channel);
+    return bytes == 0 || bytes + chunk.size <= maxBytesPerChannel;
+  }
+
+  private void send(final PendingChunk pending) {
+    if (diskReader != null) {
+      try {
+        diskReader.read(pending.disk, (FileSegmentManagedBuffer) pending.chunk,
+          new DiskReadDispatcher.ReadCallback() {
+            @Override
+            public void onSuccess(ManagedBuffer data) {
+              // The chunk is in the page cache, so it needs the disk no longer while it is written.
+              send(pending, data, false);
+              finished(pending, true, false);
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+              pending.responder.fail(cause);
+              finished(pending, true, true);
+            }
+          });
+      } catch (RuntimeException e) {
+        pending.responder.fail(e);
+        finished(pending, true, true);
+      }
+    } else {
+      // The event loop reads the chunk as it writes it, so it keeps the read slot until then.
+      send(pending, pending.chunk, true);
+    }
+  }
+
+  private void send(final PendingChunk pending, ManagedBuffer data, final boolean holdsReadSlot) {
+    ChannelFuture future;
+    try {
+      future = pending.responder.send(data);
+    } catch (RuntimeException e) {
+      logger.error("Failed to send chunk " + pending.chunk, e);
+      finished(pending, holdsReadSlot, true);
+      return;
+    }
+    future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) {
+        finished(pending, holdsReadSlot, true);
+      }
+    });
+  }
+
+  /**
+   * Gives up the chunk's read slot once it has been read, and its room on the channel once it has
+   * been written, and sends the chunks that were waiting for them.
+   */
+  private void finished(PendingChunk pending, boolean read, boolean written) {
+    synchronized (this) {
+      if (read) {
+        int reads = readsInFlight(pending.disk) - 1;
+        if (reads == 0) {
+          readsPerDisk.remove(pending.disk);
+        } else {
+          readsPerDisk.put(pending.disk, reads);
+        }
+      }
+      if (written && pending.channel != null) {
+        long bytes = bytesInFlight(pending.channel) - pending.size;
+        if (bytes == 0) {
+          bytesPerChannel.remove(pending.channel);
+        } else {
+          bytesPerChannel.put(pending.channel, bytes);
+        }
+      }
+    }
+    dispatch();
+  }
+
+  /**
+   * Returns the disk a chunk is read from, or null if it is not read from a file. Shuffle files
+   * live in a sub-directory of one of their executor's local directories.
+   */
+  @VisibleForTesting
+  Object diskOf(ManagedBuffer chunk) {
+    if (!(chunk instanceof FileSegmentManagedBuffer)) {
+      return null;
+    }
+    File dir = ((FileSegmentManagedBuffer) chunk).getFile().getAbsoluteFile().getParentFile();
+    if (dir.getParentFile() != null) {
+      dir = dir.getParentFile();
+    }
+    final File localDir = dir;
+    try {
+      return diskOfDir.get(localDir, new Callable<Object>() {
+        @Override
+        public Object call() {
+          try {
+            return Files.getFileStore(localDir.toPath());
+          } catch (IOException e) {
+            // Treat the directory as a disk of its own.
+            return localDir;
+          }
+        }
+      });
+    } catch (ExecutionException e) {
+      return localDir;
+    }
+  }
+}
@@ -17,17 +17,25 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NettyManagedBuffer;
 import org.apache.spark.network.client.ChunkReceivedCallback;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.OpenShuffleBlockRanges;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 
 /**
@@ -40,15 +48,27 @@ import org.apache.spark.network.shuffle.protocol.StreamHandle;
  *
  * Note that this typically corresponds to a
  * {@link org.apache.spark.network.server.OneForOneStreamManager} on the server side.
+ *
+ * If fetching block ranges is enabled, runs of shuffle blocks with consecutive reduce ids of one
+ * map output are opened with an {@link OpenShuffleBlockRanges} message, which only the external
+ * shuffle service handles, and each run is fetched as a single chunk. The chunk is split back
+ * into its blocks by the block sizes the service returns, and the listener is called for every
+ * block as usual.
+ *
+ * If a {@link DownloadFileManager} is given, every block is written to one of its files as it
+ * arrives instead of being held in memory. Blocks are then never fetched as ranges.
  */
 public class OneForOneBlockFetcher {
   private final Logger logger = LoggerFactory.getLogger(OneForOneBlockFetcher.class);
 
   private final TransportClient client;
-  private final OpenBlocks openMessage;
+  private final BlockTransferMessage openMessage;
   private final String[] blockIds;
   private final BlockFetchingListener listener;
   private final ChunkReceivedCallback chunkCallback;
+  private final DownloadFileManager downloadFileManager;
+  /** Chunk i holds the blocks from chunkFirstBlocks[i] (inclusive) to chunkFirstBlocks[i + 1]. */
+  private final int[] chunkFirstBlocks;
 
   private StreamHandle streamHandle = null;
 
@@ -58,32 +78,163 @@ public class OneForOneBlockFetcher {
       String execId,
       String[] blockIds,
       BlockFetchingListener listener) {
+    this(client, appId, execId, blockIds, listener, null);
+  }
+
+  public OneForOneBlockFetcher(
+      TransportClient client,
+      String appId,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener,
+      DownloadFileManager downloadFileManager) {
+    this(client, appId, execId, blockIds, listener, downloadFileManager, false);
+  }
+
+  public OneForOneBlockFetcher(
+      TransportClient client,
+      String appId,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener,
+      DownloadFileManager downloadFileManager,
+      boolean fetchBlockRanges) {
     this.client = client;
-    this.openMessage = new OpenBlocks(appId, execId, blockIds);
+    this.openMessage = createOpenMessage(
+      appId, execId, blockIds, fetchBlockRanges && downloadFileManager == null);
     this.blockIds = blockIds;
     this.listener = listener;
     this.chunkCallback = new ChunkCallback();
+    this.downloadFileManager = downloadFileManager;
+    this.chunkFirstBlocks = chunkFirstBlocks(openMessage, blockIds.length);
   }
 
-  /** Callback invoked on receipt of each chunk. We equate a single chunk to a single block.
+  /**
+   * Creates the message that opens the given blocks: an {@link OpenShuffleBlockRanges} if ranges
+   * are to be fetched and some of the blocks are shuffle blocks with consecutive reduce ids of one
+   * map output, or an {@link OpenBlocks} otherwise. Blocks are never reordered, so that range i
+   * holds the blocks that follow those of range i - 1.
+   */
+  @VisibleForTesting
+  static BlockTransferMessage createOpenMessage(
+      String appId, String execId, String[] blockIds, boolean fetchBlockRanges) {
+    OpenBlocks openBlocks = new OpenBlocks(appId, execId, blockIds);
+    if (!fetchBlockRanges) {
+      return openBlocks;
+    }
+
+    int shuffleId = -1;
+    List<Integer> mapIds = Lists.newArrayList();
+    List<Integer> startReduceIds = Lists.newArrayList();
+    List<Integer> endReduceIds = Lists.newArrayList();
+    for (int i = 0; i < blockIds.length; i++) {
+      String[] blockIdParts = blockIds[i].split("_");
+      if (blockIdParts.length != 4 || !blockIdParts[0].equals("shuffle")) {
+        return openBlocks;
+      }
+      int blockShuffleId = Integer.parseInt(blockIdParts[1]);
+      if (i > 0 && blockShuffleId != shuffleId) {
+        return openBlocks;
+      }
+      shuffleId = blockShuffleId;
+      int mapId = Integer.parseInt(blockIdParts[2]);
+      int reduceId = Integer.parseInt(blockIdParts[3]);
+      int last = mapIds.size() - 1;
+      if (last >= 0 && mapIds.get(last) == mapId && endReduceIds.get(last) == reduceId) {
+        endReduceIds.set(last, reduceId + 1);
+      } else {
+        mapIds.add(mapId);
+        startReduceIds.add(reduceId);
+        endReduceIds.add(reduceId + 1);
+      }
+    }
+    if (mapIds.size() == blockIds.length) {
+      // No two blocks could be fetched together.
+      return openBlocks;
+    }
+    return new OpenShuffleBlockRanges(appId, execId, shuffleId,
+      Ints.toArray(mapIds), Ints.toArray(startReduceIds), Ints.toArray(endReduceIds));
+  }
+
+  /** Returns the index of the first block of every chunk, followed by the number of blocks. */
+  private static int[] chunkFirstBlocks(BlockTransferMessage openMessage, int numBlocks) {
+    if (openMessage instanceof OpenShuffleBlockRanges) {
+      OpenShuffleBlockRanges ranges = (OpenShuffleBlockRanges) openMessage;
+      int[] firstBlocks = new int[ranges.numRanges() + 1];
+      for (int i = 0; i < ranges.numRanges(); i++) {
+        firstBlocks[i + 1] =
+          firstBlocks[i] + ranges.endReduceIds[i] - ranges.startReduceIds[i];
+      }
+      return firstBlocks;
+    }
+    int[] firstBlocks = new int[numBlocks + 1];
+    for (int i = 0; i <= numBlocks; i++) {
+      firstBlocks[i] = i;
+    }
+    return firstBlocks;
+  }
+
+  /**
+   * Callback invoked on receipt of each chunk. We equate a single chunk to a single block, or to
+   * a range of blocks that is split back into its blocks.
    * 收到每个块后调用回调,我们将单个块等同于单个块 */
   private class ChunkCallback implements ChunkReceivedCallback {
     @Override
     public void onSuccess(int chunkIndex, ManagedBuffer buffer) {
       // On receipt of a chunk, pass it upwards as a block.
         //收到一个块后,将其向上传递给块
-      listener.onBlockFetchSuccess(blockIds[chunkIndex], buffer);
+      int firstBlock = chunkFirstBlocks[chunkIndex];
+      int endBlock = chunkFirstBlocks[chunkIndex + 1];
+      if (endBlock - firstBlock == 1) {
+        listener.onBlockFetchSuccess(blockIds[firstBlock], buffer);
+      } else {
+        splitBlockRange(firstBlock, endBlock, buffer);
+      }
     }
 
     @Override
     public void onFailure(int chunkIndex, Throwable e) {
       // On receipt of a failure, fail every block from chunkIndex onwards.
         //收到失败后,每个block都不能从chunkIndex开始。
-      String[] remainingBlockIds = Arrays.copyOfRange(blockIds, chunkIndex, blockIds.length);
+      String[] remainingBlockIds =
+        Arrays.copyOfRange(blockIds, chunkFirstBlocks[chunkIndex], blockIds.length);
       failRemainingBlocks(remainingBlockIds, e);
     }
   }
 
+  /**
+   * Passes each block of a chunk holding a range of blocks upwards on its own, as a slice of the
+   * chunk. The slices share the chunk's reference count, so a listener that retains a block keeps
+   * the chunk alive until it releases the block.
+   */
+  private void splitBlockRange(int firstBlock, int endBlock, ManagedBuffer range) {
+    ByteBuf data;
+    try {
+      long[] sizes = streamHandle.blockSizes;
+      if (sizes == null || sizes.length != blockIds.length) {
+        throw new IOException("Shuffle service did not return the sizes of the blocks in ranges");
+      }
+      long rangeSize = 0;
+      for (int i = firstBlock; i < endBlock; i++) {
+        rangeSize += sizes[i];
+      }
+      if (rangeSize != range.size()) {
+        throw new IOException("Range of blocks " + blockIds[firstBlock] + " to " +
+          blockIds[endBlock - 1] + " has " + range.size() + " bytes, expected " + rangeSize);
+      }
+      data = (ByteBuf) range.convertToNetty();
+    } catch (Exception e) {
+      failRemainingBlocks(Arrays.copyOfRange(blockIds, firstBlock, endBlock), e);
+      return;
+    }
+    int offset = data.readerIndex();
+    for (int i = firstBlock; i < endBlock; i++) {
+      int size = (int) streamHandle.blockSizes[i];
+      listener.onBlockFetchSuccess(blockIds[i], new NettyManagedBuffer(data.slice(offset, size)));
+      offset += size;
+    }
+  }
+
   /**
    * Begins the fetching process, calling the listener with every block fetched.
    * 开始获取进程，调用每个获取的块的侦听器
@@ -107,7 +258,12 @@ public class OneForOneBlockFetcher {
           // reasonable due to higher level chunking in [[ShuffleBlockFetcherIterator]].
             //立即请求所有块 - 我们预计请求的总大小是合理的,因为[[ShuffleBlockFetcherIterator]]中更高级别的分块
           for (int i = 0; i < streamHandle.numChunks; i++) {
-            client.fetchChunk(streamHandle.streamId, i, chunkCallback);
+            if (downloadFileManager != null) {
+              client.fetchChunkToFile(streamHandle.streamId, i,
+                downloadFileManager.createTempFile(), chunkCallback);
+            } else {
+              client.fetchChunk(streamHandle.streamId, i, chunkCallback);
+            }
           }
         } catch (Exception e) {
           logger.error("Failed while starting block fetches after success", e);
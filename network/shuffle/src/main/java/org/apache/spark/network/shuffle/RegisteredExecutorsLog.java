@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.protocol.Encoders;
+import org.apache.spark.network.shuffle.ExternalShuffleBlockResolver.AppExecId;
+import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+
+/**
+ * An append-only journal of the executors registered with an external shuffle service, and of the
+ * secrets their applications authenticate with, so that a restarted service (for example during a
+ * rolling upgrade of the YARN NodeManager it runs in) can keep serving the shuffle files of
+ * executors that registered with the previous instance.
+ *
+ * Every registration, application secret and application removal is appended to the file as one
+ * record:
+ *
+ *   int length | int checksum | byte type | payload
+ *
+ * where the length and the CRC32 checksum cover the type and the payload. The payload of a
+ * REGISTER record is the appId, the execId and the executor's {@link ExecutorShuffleInfo} in its
+ * wire encoding, that of a SECRET record is the appId and its secret, and that of a REMOVE_APP
+ * record is the appId. Replaying the records in order gives the registered executors and secrets.
+ * Replay stops at the first record that is cut short or does not match its checksum, as left by a
+ * crash in the middle of an append or by a damaged disk, and everything from that record on is
+ * dropped when the journal is rewritten on opening.
+ *
+ * Each append is synced to the disk before it returns, so that a registration the executor was
+ * told about survives a crash of the machine as well as of the service. Executors register once
+ * and applications come and go rarely, so this costs little.
+ *
+ * Removed applications and re-registered executors leave dead records behind, so the journal is
+ * rewritten with only the live records when it is opened and whenever the dead records outnumber
+ * the live ones. As it holds secrets, the file can only be read by the user the service runs as.
+ */
+class RegisteredExecutorsLog implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(RegisteredExecutorsLog.class);
+
+  private static final byte REGISTER = 0;
+  private static final byte REMOVE_APP = 1;
+  private static final byte SECRET = 2;
+
+  /** The journal is not compacted before it holds at least this many records. */
+  @VisibleForTesting
+  static final int MIN_RECORDS_TO_COMPACT = 1000;
+
+  private final File file;
+
+  /** The registrations the journal currently describes. */
+  private final Map<AppExecId, ExecutorShuffleInfo> executors = Maps.newLinkedHashMap();
+
+  /** The secret of each application, for those that have one. */
+  private final Map<String, String> secrets = Maps.newLinkedHashMap();
+
+  /** Number of records in the file, live or dead. */
+  private int numRecords;
+
+  private FileOutputStream out;
+
+  /**
+   * Opens the journal at the given path, replaying and compacting it if it exists, or creating an
+   * empty one if it does not.
+   */
+  RegisteredExecutorsLog(File file) throws IOException {
+    this.file = file;
+    if (file.exists()) {
+      replay(Unpooled.wrappedBuffer(Files.readAllBytes(file.toPath())));
+      logger.info("Recovered {} registered executors and {} application secrets from {}",
+        executors.size(), secrets.size(), file);
+    }
+    compact();
+  }
+
+  /** Returns the registered executors that the journal currently describes. */
+  synchronized Map<AppExecId, ExecutorShuffleInfo> getExecutors() {
+    return Maps.newHashMap(executors);
+  }
+
+  /** Returns the application secrets that the journal currently describes. */
+  synchronized Map<String, String> getAppSecrets() {
+    return Maps.newHashMap(secrets);
+  }
+
+  synchronized void registerExecutor(AppExecId fullId, ExecutorShuffleInfo executorInfo)
+      throws IOException {
+    executors.put(fullId, executorInfo);
+    append(encodeRegister(fullId, executorInfo));
+  }
+
+  synchronized void registerAppSecret(String appId, String secret) throws IOException {
+    if (!secret.equals(secrets.put(appId, secret))) {
+      append(encodeSecret(appId, secret));
+    }
+  }
+
+  /** Forgets the executors and the secret of the application. */
+  synchronized void applicationRemoved(String appId) throws IOException {
+    if (removeApp(appId)) {
+      ByteBuf record = Unpooled.buffer(1 + Encoders.Strings.encodedLength(appId));
+      record.writeByte(REMOVE_APP);
+      Encoders.Strings.encode(record, appId);
+      append(record);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int numRecords() {
+    return numRecords;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+  }
+
+  /** Removes the executors and the secret of the application, returning whether it had any. */
+  private boolean removeApp(String appId) {
+    boolean removed = secrets.remove(appId) != null;
+    Iterator<AppExecId> it = executors.keySet().iterator();
+    while (it.hasNext()) {
+      if (appId.equals(it.next().appId)) {
+        it.remove();
+        removed = true;
+      }
+    }
+    return removed;
+  }
+
+  private void replay(ByteBuf buf) {
+    while (buf.readableBytes() >= 8) {
+      int length = buf.readInt();
+      int checksum = buf.readInt();
+      if (length <= 0 || buf.readableBytes() < length) {
+        buf.readerIndex(buf.readerIndex() - 8);
+        break;
+      }
+      ByteBuf record = buf.slice(buf.readerIndex(), length);
+      if (checksum(record) != checksum || !replayRecord(record)) {
+        buf.readerIndex(buf.readerIndex() - 8);
+        break;
+      }
+      buf.skipBytes(length);
+    }
+    if (buf.isReadable()) {
+      logger.warn("Dropping {} bytes of {} from the first truncated or corrupt record on",
+        buf.readableBytes(), file);
+    }
+  }
+
+  /** Applies a record whose checksum matched, returning false if it cannot be understood. */
+  private boolean replayRecord(ByteBuf record) {
+    try {
+      byte type = record.readByte();
+      if (type == REGISTER) {
+        String appId = Encoders.Strings.decode(record);
+        String execId = Encoders.Strings.decode(record);
+        executors.put(new AppExecId(appId, execId), ExecutorShuffleInfo.decode(record));
+      } else if (type == SECRET) {
+        String appId = Encoders.Strings.decode(record);
+        secrets.put(appId, Encoders.Strings.decode(record));
+      } else if (type == REMOVE_APP) {
+        removeApp(Encoders.Strings.decode(record));
+      } else {
+        logger.warn("Unknown record type {} in {}", type, file);
+        return false;
+      }
+      return true;
+    } catch (IndexOutOfBoundsException e) {
+      logger.warn("Record of " + file + " is shorter than its contents", e);
+      return false;
+    }
+  }
+
+  /**
+   * Rewrites the journal with one record per live registration. The new journal is written next
+   * to the old one and moved over it, so a crash in between leaves one of the two intact.
+   */
+  private void compact() throws IOException {
+    close();
+    File tmpFile = new File(file.getPath() + ".tmp");
+    FileOutputStream tmpOut = new FileOutputStream(tmpFile);
+    try {
+      tmpFile.setReadable(false, false);
+      tmpFile.setReadable(true, true);
+      for (Map.Entry<String, String> entry : secrets.entrySet()) {
+        writeRecord(tmpOut, encodeSecret(entry.getKey(), entry.getValue()));
+      }
+      for (Map.Entry<AppExecId, ExecutorShuffleInfo> entry : executors.entrySet()) {
+        writeRecord(tmpOut, encodeRegister(entry.getKey(), entry.getValue()));
+      }
+      tmpOut.getFD().sync();
+    } finally {
+      tmpOut.close();
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+      StandardCopyOption.ATOMIC_MOVE);
+    numRecords = secrets.size() + executors.size();
+    out = new FileOutputStream(file, true);
+  }
+
+  private void append(ByteBuf record) throws IOException {
+    if (out == null) {
+      throw new IOException("Journal " + file + " is closed");
+    }
+    writeRecord(out, record);
+    out.getFD().sync();
+    numRecords++;
+    int liveRecords = secrets.size() + executors.size();
+    if (numRecords >= MIN_RECORDS_TO_COMPACT && numRecords > 2 * liveRecords) {
+      compact();
+    }
+  }
+
+  private static ByteBuf encodeRegister(AppExecId fullId, ExecutorShuffleInfo executorInfo) {
+    ByteBuf record = Unpooled.buffer(1 + Encoders.Strings.encodedLength(fullId.appId)
+      + Encoders.Strings.encodedLength(fullId.execId) + executorInfo.encodedLength());
+    record.writeByte(REGISTER);
+    Encoders.Strings.encode(record, fullId.appId);
+    Encoders.Strings.encode(record, fullId.execId);
+    executorInfo.encode(record);
+    return record;
+  }
+
+  private static ByteBuf encodeSecret(String appId, String secret) {
+    ByteBuf record = Unpooled.buffer(1 + Encoders.Strings.encodedLength(appId)
+      + Encoders.Strings.encodedLength(secret));
+    record.writeByte(SECRET);
+    Encoders.Strings.encode(record, appId);
+    Encoders.Strings.encode(record, secret);
+    return record;
+  }
+
+  private static int checksum(ByteBuf record) {
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), record.arrayOffset() + record.readerIndex(),
+      record.readableBytes());
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Writes the record with its length and checksum in a single write, so it cannot be interleaved.
+   */
+  private static void writeRecord(OutputStream out, ByteBuf record) throws IOException {
+    int length = record.readableBytes();
+    ByteBuf framed = Unpooled.buffer(8 + length);
+    framed.writeInt(length);
+    framed.writeInt(checksum(record));
+    framed.writeBytes(record);
+    out.write(framed.array(), framed.arrayOffset(), framed.readableBytes());
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.shuffle.protocol.MergedBlockMeta;
+import org.apache.spark.network.shuffle.protocol.PushBlocks;
+import org.apache.spark.network.util.NettyUtils;
+import org.apache.spark.network.util.TransportConf;
+
+/**
+ * Merges shuffle blocks that map tasks push to the shuffle service, so that a reducer can read
+ * the output of many map tasks for its partition as one sequential block instead of fetching a
+ * small block from every map output.
+ *
+ * The blocks pushed for one reduce id of a shuffle are appended to a single merged file, placed in
+ * the local directories of one of the application's registered executors. The first
+ * {@link #finalizeMergedBlock} call for a reduce id closes its merged file to further pushes and
+ * returns the map outputs it holds; the file can then be read as the block
+ * "shuffleMerged_ShuffleId_ReduceId". Pushes are best effort: a block that arrives after the
+ * merged file was finalized, or that duplicates a map output that was already merged, is dropped,
+ * and readers fetch whatever map outputs are not listed in the {@link MergedBlockMeta} from the
+ * executors that wrote them.
+ *
+ * A map output is identified by its map id and the task attempt that wrote it. Once blocks of two
+ * attempts of the same map were pushed for a reduce id, it is unknown which attempt's output the
+ * reducer will read, so nothing is reported as merged for that reduce id.
+ *
+ * Blocks are merged, and merged files finalized, on threads of their own (see
+ * {@link TransportConf#pushMergeThreads()}) rather than on the Netty event loops, since both
+ * wait for file I/O.
+ *
+ * What was merged is only kept in memory, so it is lost when the shuffle service restarts; the
+ * reducers then fetch all blocks unmerged.
+ */
+public class RemoteBlockPushResolver {
+  private static final Logger logger = LoggerFactory.getLogger(RemoteBlockPushResolver.class);
+
+  private final TransportConf conf;
+  private final ExternalShuffleBlockResolver blockResolver;
+  private final ConcurrentMap<AppShufflePartitionId, MergedPartition> partitions;
+  private final ExecutorService mergeThreads;
+
+  public RemoteBlockPushResolver(TransportConf conf, ExternalShuffleBlockResolver blockResolver) {
+    this(conf, blockResolver, Executors.newFixedThreadPool(conf.pushMergeThreads(),
+      // Add `spark` prefix because it will run in NM in Yarn mode.
+      NettyUtils.createThreadFactory("spark-shuffle-block-merger")));
+  }
+
+  // Allows tests to merge blocks on the calling thread.
+  @VisibleForTesting
+  RemoteBlockPushResolver(
+      TransportConf conf,
+      ExternalShuffleBlockResolver blockResolver,
+      ExecutorService mergeThreads) {
+    this.conf = conf;
+    this.blockResolver = blockResolver;
+    this.partitions = Maps.newConcurrentMap();
+    this.mergeThreads = mergeThreads;
+  }
+
+  /**
+   * Appends the pushed blocks to the merged files of their reduce ids on a merge thread, and then
+   * answers the callback.
+   */
+  public void pushBlocks(final PushBlocks msg, final RpcResponseCallback callback) {
+    mergeThreads.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          pushBlocks(msg);
+        } catch (Exception e) {
+          callback.onFailure(e);
+          return;
+        }
+        callback.onSuccess(new byte[0]);
+      }
+    });
+  }
+
+  /**
+   * Finalizes the merged block of the given reduce id on a merge thread, as it may have to wait
+   * for a block that is being appended, and answers the callback with its {@link MergedBlockMeta}.
+   */
+  public void finalizeMergedBlock(
+      final String appId,
+      final int shuffleId,
+      final int reduceId,
+      final RpcResponseCallback callback) {
+    mergeThreads.execute(new Runnable() {
+      @Override
+      public void run() {
+        byte[] meta;
+        try {
+          meta = finalizeMergedBlock(appId, shuffleId, reduceId).toByteArray();
+        } catch (Exception e) {
+          callback.onFailure(e);
+          return;
+        }
+        callback.onSuccess(meta);
+      }
+    });
+  }
+
+  /** Appends the pushed blocks to the merged files of their reduce ids. */
+  @VisibleForTesting
+  void pushBlocks(PushBlocks msg) {
+    for (int i = 0; i < msg.reduceIds.length; i++) {
+      MergedPartition partition = getOrCreatePartition(
+        new AppShufflePartitionId(msg.appId, msg.shuffleId, msg.reduceIds[i]));
+      try {
+        partition.append(msg.mapId, msg.mapAttemptId, msg.blocks[i]);
+      } catch (IOException e) {
+        // The block is simply not merged, and will be fetched from the map output instead.
+        logger.warn("Failed to merge block of map " + msg.mapId + " into " + partition.file, e);
+      }
+    }
+  }
+
+  /**
+   * Stops merging blocks into the merged file of the given reduce id, and returns the map outputs
+   * it holds. Calling this again returns the same result.
+   */
+  @VisibleForTesting
+  MergedBlockMeta finalizeMergedBlock(String appId, int shuffleId, int reduceId) {
+    return getOrCreatePartition(new AppShufflePartitionId(appId, shuffleId, reduceId)).finish();
+  }
+
+  /**
+   * Obtains the merged block with the given id, which has the format
+   * "shuffleMerged_ShuffleId_ReduceId". The block must have been finalized.
+   */
+  public ManagedBuffer getMergedBlockData(String appId, String blockId) {
+    String[] blockIdParts = blockId.split("_");
+    if (blockIdParts.length != 3 || !blockIdParts[0].equals("shuffleMerged")) {
+      throw new IllegalArgumentException("Unexpected merged block id format: " + blockId);
+    }
+    AppShufflePartitionId id = new AppShufflePartitionId(appId,
+      Integer.parseInt(blockIdParts[1]), Integer.parseInt(blockIdParts[2]));
+    MergedPartition partition = partitions.get(id);
+    if (partition == null) {
+      throw new RuntimeException("No blocks were merged for " + id);
+    }
+    synchronized (partition) {
+      if (!partition.finalized) {
+        throw new IllegalStateException("Merged block " + id + " was not finalized");
+      }
+      return new FileSegmentManagedBuffer(conf, partition.file, 0, partition.length);
+    }
+  }
+
+  /** Forgets the merged blocks of the given application, and deletes their files. */
+  public void applicationRemoved(String appId) {
+    Iterator<Map.Entry<AppShufflePartitionId, MergedPartition>> it =
+      partitions.entrySet().iterator();
+    int numRemoved = 0;
+    while (it.hasNext()) {
+      Map.Entry<AppShufflePartitionId, MergedPartition> entry = it.next();
+      if (appId.equals(entry.getKey().appId)) {
+        it.remove();
+        numRemoved++;
+        MergedPartition partition = entry.getValue();
+        synchronized (partition) {
+          // Make sure that a push that is still in flight does not recreate the file.
+          partition.finalized = true;
+          if (partition.file.exists() && !partition.file.delete()) {
+            logger.warn("Failed to delete merged shuffle file {}", partition.file);
+          }
+        }
+      }
+    }
+    if (numRemoved > 0) {
+      logger.info("Removed {} merged shuffle partitions of application {}", numRemoved, appId);
+    }
+  }
+
+  /** Stops the merge threads. Blocks that are pushed afterwards are rejected. */
+  public void close() {
+    mergeThreads.shutdown();
+  }
+
+  @VisibleForTesting
+  int numMergedPartitions() {
+    return partitions.size();
+  }
+
+  private MergedPartition getOrCreatePartition(AppShufflePartitionId id) {
+    MergedPartition partition = partitions.get(id);
+    if (partition == null) {
+      String filename = "shuffleMerged_" + id.appId + "_" + id.shuffleId + "_" + id.reduceId +
+        ".data";
+      MergedPartition newPartition =
+        new MergedPartition(blockResolver.getApplicationFile(id.appId, filename));
+      partition = partitions.putIfAbsent(id, newPartition);
+      if (partition == null) {
+        partition = newPartition;
+      }
+    }
+    return partition;
+  }
+
+  /** The merged file of one reduce id of a shuffle, and the map outputs it holds. */
+  private static class MergedPartition {
+    final File file;
+    final List<Integer> mapIds = Lists.newArrayList();
+    final List<Long> mapAttemptIds = Lists.newArrayList();
+    final List<Long> sizes = Lists.newArrayList();
+    long length = 0;
+    boolean finalized = false;
+    // Whether blocks of two attempts of one map were pushed, see the class comment.
+    boolean ambiguous = false;
+
+    MergedPartition(File file) {
+      this.file = file;
+    }
+
+    synchronized void append(int mapId, long mapAttemptId, byte[] block) throws IOException {
+      if (finalized || ambiguous) {
+        return;
+      }
+      int index = mapIds.indexOf(mapId);
+      if (index >= 0) {
+        if (mapAttemptIds.get(index) != mapAttemptId) {
+          logger.info("Blocks of attempts {} and {} of map {} were pushed for {}, not using it",
+            mapAttemptIds.get(index), mapAttemptId, mapId, file);
+          ambiguous = true;
+        }
+        return;
+      }
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+        throw new IOException("Failed to create directory " + parent);
+      }
+      RandomAccessFile out = new RandomAccessFile(file, "rw");
+      try {
+        try {
+          out.seek(length);
+          out.write(block);
+        } catch (IOException e) {
+          // Drop whatever part of the block was written, so that the file stays consistent with
+          // the map outputs that we report.
+          out.setLength(length);
+          throw e;
+        }
+      } finally {
+        out.close();
+      }
+      mapIds.add(mapId);
+      mapAttemptIds.add(mapAttemptId);
+      sizes.add((long) block.length);
+      length += block.length;
+    }
+
+    synchronized MergedBlockMeta finish() {
+      finalized = true;
+      if (ambiguous) {
+        return new MergedBlockMeta(new int[0], new long[0], new long[0]);
+      }
+      int[] mapIdArray = new int[mapIds.size()];
+      long[] mapAttemptIdArray = new long[mapAttemptIds.size()];
+      long[] sizeArray = new long[sizes.size()];
+      for (int i = 0; i < mapIdArray.length; i++) {
+        mapIdArray[i] = mapIds.get(i);
+        mapAttemptIdArray[i] = mapAttemptIds.get(i);
+        sizeArray[i] = sizes.get(i);
+      }
+      return new MergedBlockMeta(mapIdArray, mapAttemptIdArray, sizeArray);
+    }
+  }
+
+  /** Identifies one reduce id of a shuffle of an application. */
+  private static class AppShufflePartitionId {
+    final String appId;
+    final int shuffleId;
+    final int reduceId;
+
+    AppShufflePartitionId(String appId, int shuffleId, int reduceId) {
+      this.appId = appId;
+      this.shuffleId = shuffleId;
+      this.reduceId = reduceId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      AppShufflePartitionId that = (AppShufflePartitionId) o;
+      return shuffleId == that.shuffleId && reduceId == that.reduceId &&
+        Objects.equal(appId, that.appId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(appId, shuffleId, reduceId);
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+        .add("appId", appId)
+        .add("shuffleId", shuffleId)
+        .add("reduceId", reduceId)
+        .toString();
+    }
+  }
+}
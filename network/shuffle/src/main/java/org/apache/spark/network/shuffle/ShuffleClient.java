@@ -47,4 +47,20 @@ public abstract class ShuffleClient implements Closeable {
       String execId,
       String[] blockIds,
       BlockFetchingListener listener);
+
+  /**
+   * Like {@link #fetchBlocks(String, int, String, String[], BlockFetchingListener)}, but each
+   * block is written to a file from the given {@link DownloadFileManager} as it arrives, so that
+   * fetching large blocks does not need as much memory. Clients that cannot write blocks to files
+   * fetch them into memory.
+   */
+  public void fetchBlocks(
+      String host,
+      int port,
+      String execId,
+      String[] blockIds,
+      BlockFetchingListener listener,
+      DownloadFileManager downloadFileManager) {
+    fetchBlocks(host, port, execId, blockIds, listener);
+  }
 }
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * The offsets of a sort-based shuffle index file ("shuffle_ShuffleId_MapId_0.index"), read into
+ * memory so that the {@link ExternalShuffleBlockResolver} can look up blocks without opening the
+ * index file every time.
+ * 排序Shuffle索引文件的偏移量,读入内存,以便查找块时不必每次打开索引文件
+ */
+public class ShuffleIndexInformation {
+  /** Offsets of the blocks in the data file; block i spans offsets[i] to offsets[i + 1]. */
+  private final long[] offsets;
+
+  public ShuffleIndexInformation(File indexFile) throws IOException {
+    // Index files are small, so read the whole file with a single call.
+    final byte[] bytes = Files.readAllBytes(indexFile.toPath());
+    if (bytes.length % 8 != 0 || bytes.length < 8) {
+      throw new IOException(
+        "Invalid shuffle index file of " + bytes.length + " bytes: " + indexFile);
+    }
+    offsets = new long[bytes.length / 8];
+    ByteBuffer.wrap(bytes).asLongBuffer().get(offsets);
+  }
+
+  /** The number of blocks (reduce partitions) in the data file. */
+  public int numBlocks() {
+    return offsets.length - 1;
+  }
+
+  /** The approximate memory used by this object, in bytes. */
+  public int getSize() {
+    return offsets.length * 8 + 16;
+  }
+
+  public long getOffset(int reduceId) {
+    checkReduceId(reduceId);
+    return offsets[reduceId];
+  }
+
+  public long getLength(int reduceId) {
+    checkReduceId(reduceId);
+    return offsets[reduceId + 1] - offsets[reduceId];
+  }
+
+  /** The total length of the blocks from startReduceId (inclusive) to endReduceId (exclusive). */
+  public long getLength(int startReduceId, int endReduceId) {
+    checkReduceId(startReduceId);
+    if (endReduceId <= startReduceId || endReduceId > numBlocks()) {
+      throw new IndexOutOfBoundsException("Reduce id range [" + startReduceId + ", " +
+        endReduceId + ") out of range for " + numBlocks() + " blocks");
+    }
+    return offsets[endReduceId] - offsets[startReduceId];
+  }
+
+  private void checkReduceId(int reduceId) {
+    if (reduceId < 0 || reduceId >= numBlocks()) {
+      throw new IndexOutOfBoundsException(
+        "Reduce id " + reduceId + " out of range for " + numBlocks() + " blocks");
+    }
+  }
+}
@@ -32,13 +32,19 @@ import org.apache.spark.network.shuffle.protocol.mesos.RegisterDriver;
  *     shuffle service. It returns a StreamHandle.
  *   - UploadBlock is only handled by the NettyBlockTransferService.
  *   - RegisterExecutor is only handled by the external shuffle service.
+ *   - OpenShuffleBlockRanges is only handled by the external shuffle service. It returns a
+ *     StreamHandle with one chunk per range of blocks.
+ *   - PushBlocks and GetMergedBlockMeta are only handled by the external shuffle service, when it
+ *     merges pushed shuffle blocks. GetMergedBlockMeta returns a MergedBlockMeta.
  */
 public abstract class BlockTransferMessage implements Encodable {
   protected abstract Type type();
 
   /** Preceding every serialized message is its type, which allows us to deserialize it. */
   public static enum Type {
-    OPEN_BLOCKS(0), UPLOAD_BLOCK(1), REGISTER_EXECUTOR(2), STREAM_HANDLE(3), REGISTER_DRIVER(4);
+    OPEN_BLOCKS(0), UPLOAD_BLOCK(1), REGISTER_EXECUTOR(2), STREAM_HANDLE(3), REGISTER_DRIVER(4),
+    OPEN_SHUFFLE_BLOCK_RANGES(5), PUSH_BLOCKS(6), GET_MERGED_BLOCK_META(7),
+    MERGED_BLOCK_META(8);
 
     private final byte id;
 
@@ -66,6 +72,10 @@ public abstract class BlockTransferMessage implements Encodable {
         case 2: return RegisterExecutor.decode(buf);
         case 3: return StreamHandle.decode(buf);
         case 4: return RegisterDriver.decode(buf);
+        case 5: return OpenShuffleBlockRanges.decode(buf);
+        case 6: return PushBlocks.decode(buf);
+        case 7: return GetMergedBlockMeta.decode(buf);
+        case 8: return MergedBlockMeta.decode(buf);
         default: throw new IllegalArgumentException("Unknown message type: " + type);
       }
     }
@@ -37,16 +37,34 @@ public class ExecutorShuffleInfo implements Encodable {
   /** Shuffle manager (SortShuffleManager or HashShuffleManager) that the executor is using.
    *Shuffle管理器(SortShuffleManager或HashShuffleManager),执行器正在使用它*/
   public final String shuffleManager;
+  /**
+   * Share of the shuffle service's disk bandwidth that the executor's application gets relative
+   * to other applications, if the service schedules chunk reads fairly (see
+   * FairShuffleStreamManager). Encoded last and optional, so that registrations from executors
+   * that do not send it decode with a weight of 1.
+   * 执行器所属应用程序相对于其他应用程序获得的Shuffle服务磁盘带宽份额
+   */
+  public final double fetchWeight;
 
   public ExecutorShuffleInfo(String[] localDirs, int subDirsPerLocalDir, String shuffleManager) {
+    this(localDirs, subDirsPerLocalDir, shuffleManager, 1.0);
+  }
+
+  public ExecutorShuffleInfo(
+      String[] localDirs,
+      int subDirsPerLocalDir,
+      String shuffleManager,
+      double fetchWeight) {
     this.localDirs = localDirs;
     this.subDirsPerLocalDir = subDirsPerLocalDir;
     this.shuffleManager = shuffleManager;
+    this.fetchWeight = fetchWeight;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(subDirsPerLocalDir, shuffleManager) * 41 + Arrays.hashCode(localDirs);
+    return Objects.hashCode(subDirsPerLocalDir, shuffleManager, fetchWeight) * 41
+      + Arrays.hashCode(localDirs);
   }
 
   @Override
@@ -55,6 +73,7 @@ public class ExecutorShuffleInfo implements Encodable {
       .add("localDirs", Arrays.toString(localDirs))
       .add("subDirsPerLocalDir", subDirsPerLocalDir)
       .add("shuffleManager", shuffleManager)
+      .add("fetchWeight", fetchWeight)
       .toString();
   }
 
@@ -64,7 +83,8 @@ public class ExecutorShuffleInfo implements Encodable {
       ExecutorShuffleInfo o = (ExecutorShuffleInfo) other;
       return Arrays.equals(localDirs, o.localDirs)
         && Objects.equal(subDirsPerLocalDir, o.subDirsPerLocalDir)
-        && Objects.equal(shuffleManager, o.shuffleManager);
+        && Objects.equal(shuffleManager, o.shuffleManager)
+        && fetchWeight == o.fetchWeight;
     }
     return false;
   }
@@ -73,7 +93,8 @@ public class ExecutorShuffleInfo implements Encodable {
   public int encodedLength() {
     return Encoders.StringArrays.encodedLength(localDirs)
         + 4 // int
-        + Encoders.Strings.encodedLength(shuffleManager);
+        + Encoders.Strings.encodedLength(shuffleManager)
+        + 8; // double
   }
 
   @Override
@@ -81,12 +102,14 @@ public class ExecutorShuffleInfo implements Encodable {
     Encoders.StringArrays.encode(buf, localDirs);
     buf.writeInt(subDirsPerLocalDir);
     Encoders.Strings.encode(buf, shuffleManager);
+    buf.writeDouble(fetchWeight);
   }
 
   public static ExecutorShuffleInfo decode(ByteBuf buf) {
     String[] localDirs = Encoders.StringArrays.decode(buf);
     int subDirsPerLocalDir = buf.readInt();
     String shuffleManager = Encoders.Strings.decode(buf);
-    return new ExecutorShuffleInfo(localDirs, subDirsPerLocalDir, shuffleManager);
+    double fetchWeight = buf.isReadable() ? buf.readDouble() : 1.0;
+    return new ExecutorShuffleInfo(localDirs, subDirsPerLocalDir, shuffleManager, fetchWeight);
   }
 }
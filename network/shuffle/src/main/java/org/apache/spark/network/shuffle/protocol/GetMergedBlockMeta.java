@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle.protocol;
+
+import com.google.common.base.Objects;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * Asks a shuffle service which map outputs it merged for one reduce id. From then on the merged
+ * file of that reduce id takes no more blocks, so that it can be read as the block
+ * "shuffleMerged_ShuffleId_ReduceId". Returns {@link MergedBlockMeta}.
+ */
+public class GetMergedBlockMeta extends BlockTransferMessage {
+  public final String appId;
+  public final int shuffleId;
+  public final int reduceId;
+
+  public GetMergedBlockMeta(String appId, int shuffleId, int reduceId) {
+    this.appId = appId;
+    this.shuffleId = shuffleId;
+    this.reduceId = reduceId;
+  }
+
+  @Override
+  protected Type type() { return Type.GET_MERGED_BLOCK_META; }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(appId, shuffleId, reduceId);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("appId", appId)
+      .add("shuffleId", shuffleId)
+      .add("reduceId", reduceId)
+      .toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other != null && other instanceof GetMergedBlockMeta) {
+      GetMergedBlockMeta o = (GetMergedBlockMeta) other;
+      return Objects.equal(appId, o.appId)
+        && shuffleId == o.shuffleId
+        && reduceId == o.reduceId;
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    return Encoders.Strings.encodedLength(appId) + 4 + 4;
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    Encoders.Strings.encode(buf, appId);
+    buf.writeInt(shuffleId);
+    buf.writeInt(reduceId);
+  }
+
+  public static GetMergedBlockMeta decode(ByteBuf buf) {
+    String appId = Encoders.Strings.decode(buf);
+    int shuffleId = buf.readInt();
+    int reduceId = buf.readInt();
+    return new GetMergedBlockMeta(appId, shuffleId, reduceId);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle.protocol;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * The map outputs that were merged for one reduce id, in the order in which they appear in the
+ * merged block: the block of map {@code mapIds[i]}, written by task attempt
+ * {@code mapAttemptIds[i]}, is {@code sizes[i]} bytes long. Returned by
+ * {@link GetMergedBlockMeta}; all arrays are empty if nothing was merged.
+ */
+public class MergedBlockMeta extends BlockTransferMessage {
+  public final int[] mapIds;
+  public final long[] mapAttemptIds;
+  public final long[] sizes;
+
+  public MergedBlockMeta(int[] mapIds, long[] mapAttemptIds, long[] sizes) {
+    if (mapIds.length != mapAttemptIds.length || mapIds.length != sizes.length) {
+      throw new IllegalArgumentException(
+        "Map ids, map attempt ids and sizes must have the same length");
+    }
+    this.mapIds = mapIds;
+    this.mapAttemptIds = mapAttemptIds;
+    this.sizes = sizes;
+  }
+
+  /** The size of the merged block. */
+  public long totalSize() {
+    long totalSize = 0;
+    for (long size : sizes) {
+      totalSize += size;
+    }
+    return totalSize;
+  }
+
+  @Override
+  protected Type type() { return Type.MERGED_BLOCK_META; }
+
+  @Override
+  public int hashCode() {
+    return (Arrays.hashCode(mapIds) * 41 + Arrays.hashCode(mapAttemptIds)) * 41 +
+      Arrays.hashCode(sizes);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("mapIds", Arrays.toString(mapIds))
+      .add("mapAttemptIds", Arrays.toString(mapAttemptIds))
+      .add("sizes", Arrays.toString(sizes))
+      .toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other != null && other instanceof MergedBlockMeta) {
+      MergedBlockMeta o = (MergedBlockMeta) other;
+      return Arrays.equals(mapIds, o.mapIds) && Arrays.equals(mapAttemptIds, o.mapAttemptIds)
+        && Arrays.equals(sizes, o.sizes);
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    return Encoders.IntArrays.encodedLength(mapIds)
+      + Encoders.LongArrays.encodedLength(mapAttemptIds)
+      + Encoders.LongArrays.encodedLength(sizes);
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    Encoders.IntArrays.encode(buf, mapIds);
+    Encoders.LongArrays.encode(buf, mapAttemptIds);
+    Encoders.LongArrays.encode(buf, sizes);
+  }
+
+  public static MergedBlockMeta decode(ByteBuf buf) {
+    int[] mapIds = Encoders.IntArrays.decode(buf);
+    long[] mapAttemptIds = Encoders.LongArrays.decode(buf);
+    long[] sizes = Encoders.LongArrays.decode(buf);
+    return new MergedBlockMeta(mapIds, mapAttemptIds, sizes);
+  }
+}
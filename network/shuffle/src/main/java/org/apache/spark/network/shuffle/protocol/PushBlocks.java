@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle.protocol;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+import io.netty.buffer.ByteBuf;
+
+import org.apache.spark.network.protocol.Encoders;
+
+// Needed by ScalaDoc. See SPARK-7726
+import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
+
+/**
+ * Pushes shuffle blocks of one map output to a shuffle service that merges them: block {@code i}
+ * holds the data of map {@code mapId} for reduce id {@code reduceIds[i]}. The service appends each
+ * block to the merged file of its reduce id, unless that file is already being read. Returns an
+ * empty response; whether a block was merged is only known once its merged file is read.
+ */
+public class PushBlocks extends BlockTransferMessage {
+  public final String appId;
+  public final int shuffleId;
+  public final int mapId;
+  /** The task attempt that wrote the map output, see {@code TaskContext.taskAttemptId()}. */
+  public final long mapAttemptId;
+  public final int[] reduceIds;
+  public final byte[][] blocks;
+
+  public PushBlocks(
+      String appId,
+      int shuffleId,
+      int mapId,
+      long mapAttemptId,
+      int[] reduceIds,
+      byte[][] blocks) {
+    if (reduceIds.length != blocks.length) {
+      throw new IllegalArgumentException("Reduce ids and blocks must have the same length");
+    }
+    this.appId = appId;
+    this.shuffleId = shuffleId;
+    this.mapId = mapId;
+    this.mapAttemptId = mapAttemptId;
+    this.reduceIds = reduceIds;
+    this.blocks = blocks;
+  }
+
+  @Override
+  protected Type type() { return Type.PUSH_BLOCKS; }
+
+  @Override
+  public int hashCode() {
+    int hash = Objects.hashCode(appId, shuffleId, mapId, mapAttemptId);
+    hash = hash * 41 + Arrays.hashCode(reduceIds);
+    return hash * 41 + Arrays.deepHashCode(blocks);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+      .add("appId", appId)
+      .add("shuffleId", shuffleId)
+      .add("mapId", mapId)
+      .add("mapAttemptId", mapAttemptId)
+      .add("reduceIds", Arrays.toString(reduceIds))
+      .add("numBlocks", blocks.length)
+      .toString();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other != null && other instanceof PushBlocks) {
+      PushBlocks o = (PushBlocks) other;
+      return Objects.equal(appId, o.appId)
+        && shuffleId == o.shuffleId
+        && mapId == o.mapId
+        && mapAttemptId == o.mapAttemptId
+        && Arrays.equals(reduceIds, o.reduceIds)
+        && Arrays.deepEquals(blocks, o.blocks);
+    }
+    return false;
+  }
+
+  @Override
+  public int encodedLength() {
+    int length = Encoders.Strings.encodedLength(appId)
+      + 4
+      + 4
+      + 8
+      + Encoders.IntArrays.encodedLength(reduceIds);
+    for (byte[] block : blocks) {
+      length += Encoders.ByteArrays.encodedLength(block);
+    }
+    return length;
+  }
+
+  @Override
+  public void encode(ByteBuf buf) {
+    Encoders.Strings.encode(buf, appId);
+    buf.writeInt(shuffleId);
+    buf.writeInt(mapId);
+    buf.writeLong(mapAttemptId);
+    Encoders.IntArrays.encode(buf, reduceIds);
+    for (byte[] block : blocks) {
+      Encoders.ByteArrays.encode(buf, block);
+    }
+  }
+
+  public static PushBlocks decode(ByteBuf buf) {
+    String appId = Encoders.Strings.decode(buf);
+    int shuffleId = buf.readInt();
+    int mapId = buf.readInt();
+    long mapAttemptId = buf.readLong();
+    int[] reduceIds = Encoders.IntArrays.decode(buf);
+    byte[][] blocks = new byte[reduceIds.length][];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = Encoders.ByteArrays.decode(buf);
+    }
+    return new PushBlocks(appId, shuffleId, mapId, mapAttemptId, reduceIds, blocks);
+  }
+}
@@ -17,9 +17,13 @@
 
 package org.apache.spark.network.shuffle.protocol;
 
+import java.util.Arrays;
+
 import com.google.common.base.Objects;
 import io.netty.buffer.ByteBuf;
 
+import org.apache.spark.network.protocol.Encoders;
+
 // Needed by ScalaDoc. See SPARK-7726
 import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Type;
 
@@ -32,10 +36,22 @@ import static org.apache.spark.network.shuffle.protocol.BlockTransferMessage.Typ
 public class StreamHandle extends BlockTransferMessage {
   public final long streamId;
   public final int numChunks;
+  /**
+   * The sizes of the blocks that the chunks hold, in order, if the chunks are ranges of blocks
+   * opened by {@link OpenShuffleBlockRanges}; null if every chunk is a single block. Encoded last
+   * and only if present, so that clients that do not expect it ignore it.
+   * 如果块是连续Shuffle块的范围,按顺序列出其中每个Shuffle块的大小
+   */
+  public final long[] blockSizes;
 
   public StreamHandle(long streamId, int numChunks) {
+    this(streamId, numChunks, null);
+  }
+
+  public StreamHandle(long streamId, int numChunks, long[] blockSizes) {
     this.streamId = streamId;
     this.numChunks = numChunks;
+    this.blockSizes = blockSizes;
   }
 
   @Override
@@ -43,7 +59,7 @@ public class StreamHandle extends BlockTransferMessage {
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(streamId, numChunks);
+    return Objects.hashCode(streamId, numChunks) * 41 + Arrays.hashCode(blockSizes);
   }
 
   @Override
@@ -51,6 +67,7 @@ public class StreamHandle extends BlockTransferMessage {
     return Objects.toStringHelper(this)
       .add("streamId", streamId)
       .add("numChunks", numChunks)
+      .add("blockSizes", Arrays.toString(blockSizes))
       .toString();
   }
 
@@ -59,25 +76,30 @@ public class StreamHandle extends BlockTransferMessage {
     if (other != null && other instanceof StreamHandle) {
       StreamHandle o = (StreamHandle) other;
       return Objects.equal(streamId, o.streamId)
-        && Objects.equal(numChunks, o.numChunks);
+        && Objects.equal(numChunks, o.numChunks)
+        && Arrays.equals(blockSizes, o.blockSizes);
     }
     return false;
   }
 
   @Override
   public int encodedLength() {
-    return 8 + 4;
+    return 8 + 4 + (blockSizes != null ? Encoders.LongArrays.encodedLength(blockSizes) : 0);
   }
 
   @Override
   public void encode(ByteBuf buf) {
     buf.writeLong(streamId);
     buf.writeInt(numChunks);
+    if (blockSizes != null) {
+      Encoders.LongArrays.encode(buf, blockSizes);
+    }
   }
 
   public static StreamHandle decode(ByteBuf buf) {
     long streamId = buf.readLong();
     int numChunks = buf.readInt();
-    return new StreamHandle(streamId, numChunks);
+    long[] blockSizes = buf.isReadable() ? Encoders.LongArrays.decode(buf) : null;
+    return new StreamHandle(streamId, numChunks, blockSizes);
   }
 }
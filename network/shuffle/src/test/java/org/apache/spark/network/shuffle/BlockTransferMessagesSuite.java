@@ -17,10 +17,13 @@
 
 package org.apache.spark.network.shuffle;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 
+import org.apache.spark.network.protocol.Encoders;
 import org.apache.spark.network.shuffle.protocol.*;
 
 /**
@@ -33,9 +36,38 @@ public class BlockTransferMessagesSuite {
     checkSerializeDeserialize(new OpenBlocks("app-1", "exec-2", new String[] { "b1", "b2" }));
     checkSerializeDeserialize(new RegisterExecutor("app-1", "exec-2", new ExecutorShuffleInfo(
       new String[] { "/local1", "/local2" }, 32, "MyShuffleManager")));
+    checkSerializeDeserialize(new RegisterExecutor("app-1", "exec-2", new ExecutorShuffleInfo(
+      new String[] { "/local1" }, 32, "MyShuffleManager", 2.5)));
     checkSerializeDeserialize(new UploadBlock("app-1", "exec-2", "block-3", new byte[] { 1, 2 },
       new byte[] { 4, 5, 6, 7} ));
     checkSerializeDeserialize(new StreamHandle(12345, 16));
+    checkSerializeDeserialize(new StreamHandle(12345, 2, new long[] { 3, 0, 7 }));
+    checkSerializeDeserialize(new OpenShuffleBlockRanges("app-1", "exec-2", 3,
+      new int[] { 0, 1 }, new int[] { 2, 0 }, new int[] { 5, 1 }));
+    checkSerializeDeserialize(new PushBlocks("app-1", 3, 4, 1L << 33, new int[] { 0, 2 },
+      new byte[][] { new byte[] { 1, 2 }, new byte[0] }));
+    checkSerializeDeserialize(new GetMergedBlockMeta("app-1", 3, 2));
+    checkSerializeDeserialize(new MergedBlockMeta(
+      new int[] { 4, 1 }, new long[] { 7L, 1L << 33 }, new long[] { 2, 1L << 40 }));
+  }
+
+  @Test
+  public void decodeRegistrationWithoutFetchWeight() {
+    // Executors that predate the fetch weight end the registration after the shuffle manager.
+    String[] localDirs = new String[] { "/local1" };
+    ByteBuf buf = Unpooled.buffer();
+    buf.writeByte(2);
+    Encoders.Strings.encode(buf, "app-1");
+    Encoders.Strings.encode(buf, "exec-2");
+    Encoders.StringArrays.encode(buf, localDirs);
+    buf.writeInt(32);
+    Encoders.Strings.encode(buf, "MyShuffleManager");
+    byte[] bytes = new byte[buf.readableBytes()];
+    buf.readBytes(bytes);
+
+    RegisterExecutor msg = (RegisterExecutor) BlockTransferMessage.Decoder.fromByteArray(bytes);
+    assertEquals(new ExecutorShuffleInfo(localDirs, 32, "MyShuffleManager"), msg.executorInfo);
+    assertEquals(1.0, msg.executorInfo.fetchWeight, 0.0);
   }
 
   private void checkSerializeDeserialize(BlockTransferMessage msg) {
@@ -19,13 +19,20 @@ package org.apache.spark.network.shuffle;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.Map;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 import org.apache.spark.network.buffer.ManagedBuffer;
@@ -33,10 +40,12 @@ import org.apache.spark.network.buffer.NioManagedBuffer;
 import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.server.OneForOneStreamManager;
-import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+import org.apache.spark.network.shuffle.protocol.GetMergedBlockMeta;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.OpenShuffleBlockRanges;
+import org.apache.spark.network.shuffle.protocol.PushBlocks;
 import org.apache.spark.network.shuffle.protocol.RegisterExecutor;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 import org.apache.spark.network.shuffle.protocol.UploadBlock;
@@ -46,13 +55,15 @@ public class ExternalShuffleBlockHandlerSuite {
 
   OneForOneStreamManager streamManager;
   ExternalShuffleBlockResolver blockResolver;
-  RpcHandler handler;
+  RemoteBlockPushResolver pushResolver;
+  ExternalShuffleBlockHandler handler;
 
   @Before
   public void beforeEach() {
     streamManager = mock(OneForOneStreamManager.class);
     blockResolver = mock(ExternalShuffleBlockResolver.class);
-    handler = new ExternalShuffleBlockHandler(streamManager, blockResolver);
+    pushResolver = mock(RemoteBlockPushResolver.class);
+    handler = new ExternalShuffleBlockHandler(streamManager, blockResolver, pushResolver);
   }
 
   @Test
@@ -93,13 +104,87 @@ public class ExternalShuffleBlockHandlerSuite {
     @SuppressWarnings("unchecked")
     ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
         (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
-    verify(streamManager, times(1)).registerStream(stream.capture());
+    verify(streamManager, times(1)).registerStream(eq("app0"), stream.capture());
     Iterator<ManagedBuffer> buffers = stream.getValue();
     assertEquals(block0Marker, buffers.next());
     assertEquals(block1Marker, buffers.next());
     assertFalse(buffers.hasNext());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testOpenShuffleBlockRanges() {
+    RpcResponseCallback callback = mock(RpcResponseCallback.class);
+
+    ManagedBuffer range0Marker = new NioManagedBuffer(ByteBuffer.wrap(new byte[3]));
+    ManagedBuffer range1Marker = new NioManagedBuffer(ByteBuffer.wrap(new byte[7]));
+    when(blockResolver.getContiguousBlocksData("app0", "exec1", 2, 0, 0, 4))
+      .thenReturn(range0Marker);
+    when(blockResolver.getContiguousBlocksData("app0", "exec1", 2, 1, 3, 4))
+      .thenReturn(range1Marker);
+    when(blockResolver.getContiguousBlockSizes("app0", "exec1", 2, 0, 0, 4))
+      .thenReturn(new long[] { 1, 0, 2, 0 });
+    when(blockResolver.getContiguousBlockSizes("app0", "exec1", 2, 1, 3, 4))
+      .thenReturn(new long[] { 7 });
+    byte[] openRanges = new OpenShuffleBlockRanges("app0", "exec1", 2,
+      new int[] { 0, 1 }, new int[] { 0, 3 }, new int[] { 4, 4 }).toByteArray();
+    handler.receive(client, openRanges, callback);
+    verify(blockResolver, times(1)).getContiguousBlocksData("app0", "exec1", 2, 0, 0, 4);
+    verify(blockResolver, times(1)).getContiguousBlocksData("app0", "exec1", 2, 1, 3, 4);
+
+    ArgumentCaptor<byte[]> response = ArgumentCaptor.forClass(byte[].class);
+    verify(callback, times(1)).onSuccess(response.capture());
+    verify(callback, never()).onFailure((Throwable) any());
+
+    StreamHandle handle =
+      (StreamHandle) BlockTransferMessage.Decoder.fromByteArray(response.getValue());
+    assertEquals(2, handle.numChunks);
+    assertArrayEquals(new long[] { 1, 0, 2, 0, 7 }, handle.blockSizes);
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
+        (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
+    verify(streamManager, times(1)).registerStream(eq("app0"), stream.capture());
+    Iterator<ManagedBuffer> buffers = stream.getValue();
+    assertEquals(range0Marker, buffers.next());
+    assertEquals(range1Marker, buffers.next());
+    assertFalse(buffers.hasNext());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testPushAndOpenMergedBlocks() {
+    RpcResponseCallback pushCallback = mock(RpcResponseCallback.class);
+    PushBlocks push = new PushBlocks("app0", 2, 5, 7L, new int[] { 0, 1 },
+      new byte[][] { new byte[3], new byte[4] });
+    handler.receive(client, push.toByteArray(), pushCallback);
+    // The push resolver answers the callbacks once it has merged the blocks on its own threads.
+    verify(pushResolver, times(1)).pushBlocks(push, pushCallback);
+
+    RpcResponseCallback metaCallback = mock(RpcResponseCallback.class);
+    handler.receive(client, new GetMergedBlockMeta("app0", 2, 0).toByteArray(), metaCallback);
+    verify(pushResolver, times(1)).finalizeMergedBlock("app0", 2, 0, metaCallback);
+
+    // Merged blocks are opened through the push resolver, other blocks as usual.
+    RpcResponseCallback openCallback = mock(RpcResponseCallback.class);
+    ManagedBuffer mergedMarker = new NioManagedBuffer(ByteBuffer.wrap(new byte[3]));
+    ManagedBuffer blockMarker = new NioManagedBuffer(ByteBuffer.wrap(new byte[7]));
+    when(pushResolver.getMergedBlockData("app0", "shuffleMerged_2_0")).thenReturn(mergedMarker);
+    when(blockResolver.getBlockData("app0", "exec1", "shuffle_2_1_0")).thenReturn(blockMarker);
+    byte[] openBlocks = new OpenBlocks("app0", "exec1",
+      new String[] { "shuffleMerged_2_0", "shuffle_2_1_0" }).toByteArray();
+    handler.receive(client, openBlocks, openCallback);
+    verify(openCallback, times(1)).onSuccess((byte[]) any());
+
+    ArgumentCaptor<Iterator<ManagedBuffer>> stream = (ArgumentCaptor<Iterator<ManagedBuffer>>)
+        (ArgumentCaptor<?>) ArgumentCaptor.forClass(Iterator.class);
+    verify(streamManager, times(1)).registerStream(eq("app0"), stream.capture());
+    Iterator<ManagedBuffer> buffers = stream.getValue();
+    assertEquals(mergedMarker, buffers.next());
+    assertEquals(blockMarker, buffers.next());
+    assertFalse(buffers.hasNext());
+  }
+
   @Test
   public void testBadMessages() {
     RpcResponseCallback callback = mock(RpcResponseCallback.class);
@@ -123,4 +208,41 @@ public class ExternalShuffleBlockHandlerSuite {
     verify(callback, never()).onSuccess((byte[]) any());
     verify(callback, never()).onFailure((Throwable) any());
   }
+
+  @Test
+  public void testFairSchedulingWeightsAndMetrics() {
+    FairShuffleStreamManager fairManager = mock(FairShuffleStreamManager.class);
+    when(blockResolver.getApplicationWeights()).thenReturn(ImmutableMap.of("app0", 3.0));
+    ExternalShuffleBlockHandler fairHandler =
+      new ExternalShuffleBlockHandler(fairManager, blockResolver, pushResolver);
+    // Weights of the executors restored from the journal are applied right away.
+    verify(fairManager, times(1)).setApplicationWeight("app0", 3.0);
+
+    RpcResponseCallback callback = mock(RpcResponseCallback.class);
+    ExecutorShuffleInfo config =
+      new ExecutorShuffleInfo(new String[] {"/a", "/b"}, 16, "sort", 2.0);
+    fairHandler.receive(client, new RegisterExecutor("app1", "exec1", config).toByteArray(),
+      callback);
+    verify(fairManager, times(1)).setApplicationWeight("app1", 2.0);
+    verify(blockResolver, times(1)).registerExecutor("app1", "exec1", config);
+
+    when(blockResolver.getIndexCacheStats()).thenReturn(new CacheStats(0, 0, 0, 0, 0, 0));
+    when(fairManager.getApplicationIds()).thenReturn(Lists.newArrayList("app1"));
+    when(fairManager.getQueueDepth("app1")).thenReturn(4);
+    when(fairManager.getServedBytes("app1")).thenReturn(1000L);
+    Map<String, Metric> metrics = fairHandler.getAllMetrics().getMetrics();
+    assertEquals(4, ((Gauge<?>) metrics.get("app.app1.chunkQueueDepth")).getValue());
+    assertEquals(1000L, ((Gauge<?>) metrics.get("app.app1.servedBytes")).getValue());
+  }
+
+  @Test
+  public void testIndexCacheMetrics() {
+    when(blockResolver.getIndexCacheStats()).thenReturn(new CacheStats(5, 2, 2, 0, 0, 1));
+    when(blockResolver.getIndexCacheWeight()).thenReturn(80L);
+    Map<String, Metric> metrics = handler.getAllMetrics().getMetrics();
+    assertEquals(5L, ((Gauge<?>) metrics.get("indexCacheHits")).getValue());
+    assertEquals(2L, ((Gauge<?>) metrics.get("indexCacheMisses")).getValue());
+    assertEquals(1L, ((Gauge<?>) metrics.get("indexCacheEvictions")).getValue());
+    assertEquals(80L, ((Gauge<?>) metrics.get("indexCacheWeight")).getValue());
+  }
 }
@@ -17,6 +17,7 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -109,6 +110,137 @@ public class ExternalShuffleBlockResolverSuite {
     assertEquals(sortBlock1, block1);
   }
 
+  @Test
+  public void testRecoverRegisteredExecutors() throws IOException {
+    File registeredExecutorFile = new File(dataContext.localDirs[0], "registeredExecutors.log");
+    try {
+      ExternalShuffleBlockResolver resolver =
+        new ExternalShuffleBlockResolver(conf, registeredExecutorFile);
+      resolver.registerExecutor("app0", "exec0",
+        dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+      resolver.registerExecutor("app1", "exec0",
+        dataContext.createExecutorInfo("org.apache.spark.shuffle.hash.HashShuffleManager"));
+      resolver.applicationRemoved("app1", false);
+      resolver.close();
+
+      // A resolver started from the same file, as after a restart of the shuffle service, can
+      // still serve the executors of applications that are running.
+      ExternalShuffleBlockResolver restarted =
+        new ExternalShuffleBlockResolver(conf, registeredExecutorFile);
+      InputStream block1Stream =
+        restarted.getBlockData("app0", "exec0", "shuffle_0_0_1").createInputStream();
+      assertEquals(sortBlock1, CharStreams.toString(new InputStreamReader(block1Stream)));
+      block1Stream.close();
+      try {
+        restarted.getBlockData("app1", "exec0", "shuffle_1_0_0");
+        fail("Should have failed");
+      } catch (RuntimeException e) {
+        assertTrue("Bad error message: " + e, e.getMessage().contains("not registered"));
+      }
+      restarted.close();
+    } finally {
+      registeredExecutorFile.delete();
+    }
+  }
+
+  @Test
+  public void testSortShuffleBlockRanges() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    resolver.registerExecutor("app0", "exec1",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.hash.HashShuffleManager"));
+
+    InputStream rangeStream =
+      resolver.getContiguousBlocksData("app0", "exec0", 0, 0, 0, 2).createInputStream();
+    String range = CharStreams.toString(new InputStreamReader(rangeStream));
+    rangeStream.close();
+    assertEquals(sortBlock0 + sortBlock1, range);
+
+    assertEquals(sortBlock1.length(),
+      resolver.getContiguousBlocksData("app0", "exec0", 0, 0, 1, 2).size());
+    assertArrayEquals(new long[] { sortBlock0.length(), sortBlock1.length() },
+      resolver.getContiguousBlockSizes("app0", "exec0", 0, 0, 0, 2));
+
+    try {
+      resolver.getContiguousBlocksData("app0", "exec1", 1, 0, 0, 2);
+      fail("Should have failed");
+    } catch (UnsupportedOperationException e) {
+      // pass
+    }
+    try {
+      resolver.getContiguousBlockSizes("app0", "exec1", 1, 0, 0, 2);
+      fail("Should have failed");
+    } catch (UnsupportedOperationException e) {
+      // pass
+    }
+  }
+
+  @Test
+  public void testSortShuffleIndexCache() throws IOException {
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
+    resolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    resolver.registerExecutor("app1", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+
+    // The index file is read once per executor, and the cached offsets serve the other blocks.
+    //每个执行器只读取一次索引文件,缓存的偏移量用于其他块
+    assertEquals(sortBlock0.length(),
+      resolver.getBlockData("app0", "exec0", "shuffle_0_0_0").size());
+    assertEquals(sortBlock1.length(),
+      resolver.getBlockData("app0", "exec0", "shuffle_0_0_1").size());
+    InputStream block1Stream =
+      resolver.getBlockData("app1", "exec0", "shuffle_0_0_1").createInputStream();
+    assertEquals(sortBlock1, CharStreams.toString(new InputStreamReader(block1Stream)));
+    block1Stream.close();
+    assertEquals(2, resolver.getIndexCacheStats().missCount());
+    assertEquals(1, resolver.getIndexCacheStats().hitCount());
+    assertEquals(2, resolver.indexCacheSize());
+    // Each index holds three offsets, plus the object overhead.
+    long indexSize = 3 * 8 + 16;
+    assertEquals(2 * indexSize, resolver.getIndexCacheWeight());
+
+    // Out-of-range reduce ids are still rejected.
+    try {
+      resolver.getBlockData("app0", "exec0", "shuffle_0_0_2");
+      fail("Should have failed");
+    } catch (IndexOutOfBoundsException e) {
+      // pass
+    }
+
+    resolver.applicationRemoved("app0", false);
+    assertEquals(1, resolver.indexCacheSize());
+    assertEquals(indexSize, resolver.getIndexCacheWeight());
+    // Re-registering an executor forgets its cached index files.
+    resolver.registerExecutor("app1", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    assertEquals(0, resolver.indexCacheSize());
+    assertEquals(0, resolver.getIndexCacheWeight());
+  }
+
+  @Test
+  public void testSortShuffleBlocksWithoutIndexCache() throws IOException {
+    System.setProperty("spark.shuffle.service.index.cache.size", "0");
+    try {
+      ExternalShuffleBlockResolver resolver =
+        new ExternalShuffleBlockResolver(new TransportConf(new SystemPropertyConfigProvider()));
+      resolver.registerExecutor("app0", "exec0",
+        dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+      for (int i = 0; i < 2; i++) {
+        InputStream block1Stream =
+          resolver.getBlockData("app0", "exec0", "shuffle_0_0_1").createInputStream();
+        assertEquals(sortBlock1, CharStreams.toString(new InputStreamReader(block1Stream)));
+        block1Stream.close();
+      }
+      assertEquals(0, resolver.getIndexCacheStats().hitCount());
+      assertEquals(0, resolver.indexCacheSize());
+      assertEquals(0, resolver.getIndexCacheWeight());
+    } finally {
+      System.clearProperty("spark.shuffle.service.index.cache.size");
+    }
+  }
+
   @Test
   public void testHashShuffleBlocks() throws IOException {
     ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
@@ -17,19 +17,24 @@
 
 package org.apache.spark.network.shuffle;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -39,10 +44,13 @@ import static org.junit.Assert.*;
 
 import org.apache.spark.network.TestUtils;
 import org.apache.spark.network.TransportContext;
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
 import org.apache.spark.network.buffer.ManagedBuffer;
 import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.server.OneForOneStreamManager;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.SystemPropertyConfigProvider;
 import org.apache.spark.network.util.TransportConf;
 
@@ -131,14 +139,32 @@ public class ExternalShuffleIntegrationSuite {
   // to allow connecting to invalid servers.
   //从预注册的执行器中提取一组块,连接到给定端口上的服务器,允许连接到无效的服务器
   private FetchResult fetchBlocks(String execId, String[] blockIds, int port) throws Exception {
+    return fetchBlocks(execId, blockIds, port, null);
+  }
+
+  private FetchResult fetchBlocks(
+      String execId,
+      String[] blockIds,
+      int port,
+      DownloadFileManager downloadFileManager) throws Exception {
+    return fetchBlocks(execId, blockIds, port, downloadFileManager, conf);
+  }
+
+  private FetchResult fetchBlocks(
+      String execId,
+      String[] blockIds,
+      int port,
+      DownloadFileManager downloadFileManager,
+      TransportConf clientConf) throws Exception {
     final FetchResult res = new FetchResult();
     res.successBlocks = Collections.synchronizedSet(new HashSet<String>());
     res.failedBlocks = Collections.synchronizedSet(new HashSet<String>());
-    res.buffers = Collections.synchronizedList(new LinkedList<ManagedBuffer>());
+    // The service may complete chunks out of order, so keep the buffers in the order of the blocks.
+    final Map<String, ManagedBuffer> buffers = Maps.newConcurrentMap();
 
     final Semaphore requestsRemaining = new Semaphore(0);
 
-    ExternalShuffleClient client = new ExternalShuffleClient(conf, null, false, false);
+    ExternalShuffleClient client = new ExternalShuffleClient(clientConf, null, false, false);
     client.init(APP_ID);
     client.fetchBlocks(TestUtils.getLocalHost(), port, execId, blockIds,
       new BlockFetchingListener() {
@@ -148,7 +174,7 @@ public class ExternalShuffleIntegrationSuite {
             if (!res.successBlocks.contains(blockId) && !res.failedBlocks.contains(blockId)) {
               data.retain();
               res.successBlocks.add(blockId);
-              res.buffers.add(data);
+              buffers.put(blockId, data);
               requestsRemaining.release();
             }
           }
@@ -163,12 +189,18 @@ public class ExternalShuffleIntegrationSuite {
             }
           }
         }
-      });
+      }, downloadFileManager);
 
     if (!requestsRemaining.tryAcquire(blockIds.length, 5, TimeUnit.SECONDS)) {
       fail("Timeout getting response from the server");
     }
     client.close();
+    res.buffers = Lists.newArrayList();
+    for (String blockId : blockIds) {
+      if (buffers.containsKey(blockId)) {
+        res.buffers.add(buffers.get(blockId));
+      }
+    }
     return res;
   }
 
@@ -182,6 +214,36 @@ public class ExternalShuffleIntegrationSuite {
     exec0Fetch.releaseBuffers();
   }
 
+  @Test
+  public void testFetchToFiles() throws Exception {
+    registerExecutor("exec-1", dataContext1.createExecutorInfo(HASH_MANAGER));
+    final File dir = Files.createTempDir();
+    try {
+      final List<File> files = Collections.synchronizedList(new LinkedList<File>());
+      FetchResult execFetch = fetchBlocks("exec-1",
+        new String[] { "shuffle_1_0_0", "shuffle_1_0_1" }, server.getPort(),
+        new DownloadFileManager() {
+          @Override
+          public File createTempFile() {
+            File file = new File(dir, "block-" + files.size());
+            files.add(file);
+            return file;
+          }
+        });
+      assertEquals(Sets.newHashSet("shuffle_1_0_0", "shuffle_1_0_1"), execFetch.successBlocks);
+      assertTrue(execFetch.failedBlocks.isEmpty());
+      assertEquals(2, files.size());
+      for (ManagedBuffer buffer : execFetch.buffers) {
+        assertTrue(buffer instanceof FileSegmentManagedBuffer);
+        assertTrue(files.contains(((FileSegmentManagedBuffer) buffer).getFile()));
+      }
+      assertBufferListsEqual(execFetch.buffers, Lists.newArrayList(exec1Blocks));
+      execFetch.releaseBuffers();
+    } finally {
+      JavaUtils.deleteRecursively(dir);
+    }
+  }
+
   //@Test
   public void testFetchThreeSort() throws Exception {
     registerExecutor("exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
@@ -205,6 +267,73 @@ public class ExternalShuffleIntegrationSuite {
     execFetch.releaseBuffers();
   }
 
+  @Test
+  public void testFetchBlockRanges() throws Exception {
+    final AtomicInteger chunksServed = new AtomicInteger();
+    OneForOneStreamManager countingStreamManager = new OneForOneStreamManager() {
+      @Override
+      public ManagedBuffer getChunk(long streamId, int chunkIndex) {
+        chunksServed.incrementAndGet();
+        return super.getChunk(streamId, chunkIndex);
+      }
+    };
+    ExternalShuffleBlockResolver resolver = new ExternalShuffleBlockResolver(conf);
+    ExternalShuffleBlockHandler rangeHandler = new ExternalShuffleBlockHandler(
+      countingStreamManager, resolver, new RemoteBlockPushResolver(conf, resolver));
+    TransportServer rangeServer = new TransportContext(conf, rangeHandler).createServer();
+    System.setProperty("spark.shuffle.service.fetchBlockRanges", "true");
+    try {
+      TransportConf rangeConf = new TransportConf(new SystemPropertyConfigProvider());
+      ExternalShuffleClient client = new ExternalShuffleClient(rangeConf, null, false, false);
+      client.init(APP_ID);
+      client.registerWithShuffleServer(TestUtils.getLocalHost(), rangeServer.getPort(),
+        "exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      client.close();
+      // The two consecutive blocks of map 0 are served as one chunk, and split back by the client.
+      FetchResult exec0Fetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_0_0_0", "shuffle_0_0_1" }, rangeServer.getPort(), null, rangeConf);
+      assertEquals(Sets.newHashSet("shuffle_0_0_0", "shuffle_0_0_1"), exec0Fetch.successBlocks);
+      assertTrue(exec0Fetch.failedBlocks.isEmpty());
+      assertEquals(1, chunksServed.get());
+      assertBufferListsEqual(exec0Fetch.buffers,
+        Lists.newArrayList(exec0Blocks[0], exec0Blocks[1]));
+      exec0Fetch.releaseBuffers();
+    } finally {
+      System.clearProperty("spark.shuffle.service.fetchBlockRanges");
+      rangeServer.close();
+      rangeHandler.applicationRemoved(APP_ID, false /* cleanupLocalDirs */);
+    }
+  }
+
+  @Test
+  public void testFetchReadAheadOnDiskThreads() throws Exception {
+    // Chunks are scheduled fairly and read into the page cache on per-disk threads before they
+    // are sent.
+    System.setProperty("spark.shuffle.service.maxChunkReadsPerDisk", "4");
+    TransportConf streamingConf = new TransportConf(new SystemPropertyConfigProvider());
+    ExternalShuffleBlockHandler streamingHandler = new ExternalShuffleBlockHandler(streamingConf);
+    TransportServer streamingServer =
+      new TransportContext(streamingConf, streamingHandler).createServer();
+    try {
+      ExternalShuffleClient client = new ExternalShuffleClient(conf, null, false, false);
+      client.init(APP_ID);
+      client.registerWithShuffleServer(TestUtils.getLocalHost(), streamingServer.getPort(),
+        "exec-0", dataContext0.createExecutorInfo(SORT_MANAGER));
+      client.close();
+      FetchResult exec0Fetch = fetchBlocks("exec-0",
+        new String[] { "shuffle_0_0_1", "shuffle_0_0_2" }, streamingServer.getPort());
+      assertEquals(Sets.newHashSet("shuffle_0_0_1", "shuffle_0_0_2"), exec0Fetch.successBlocks);
+      assertTrue(exec0Fetch.failedBlocks.isEmpty());
+      assertBufferListsEqual(exec0Fetch.buffers,
+        Lists.newArrayList(exec0Blocks[1], exec0Blocks[2]));
+      exec0Fetch.releaseBuffers();
+    } finally {
+      streamingServer.close();
+      streamingHandler.applicationRemoved(APP_ID, false /* cleanupLocalDirs */);
+      System.clearProperty("spark.shuffle.service.maxChunkReadsPerDisk");
+    }
+  }
+
   @Test
   public void testFetchWrongShuffle() throws Exception {
     registerExecutor("exec-1", dataContext1.createExecutorInfo(SORT_MANAGER /* wrong manager */));
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.apache.spark.network.buffer.FileSegmentManagedBuffer;
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.buffer.NioManagedBuffer;
+import org.apache.spark.network.server.ChunkResponder;
+import org.apache.spark.network.server.DiskReadDispatcher;
+import org.apache.spark.network.util.JavaUtils;
+import org.apache.spark.network.util.SystemPropertyConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+public class FairShuffleStreamManagerSuite {
+  static TransportConf conf = new TransportConf(new SystemPropertyConfigProvider());
+
+  File localDir;
+  EmbeddedChannel channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+
+  /** Records the chunks that were sent, and lets the test decide when each send completes. */
+  class RecordingResponder implements ChunkResponder {
+    final String name;
+    volatile ManagedBuffer sent;
+    volatile ChannelPromise promise;
+    volatile Throwable failure;
+
+    RecordingResponder(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public ChannelFuture send(ManagedBuffer chunk) {
+      promise = channel.newPromise();
+      sendOrder.add(name);
+      sent = chunk;
+      return promise;
+    }
+
+    @Override
+    public void fail(Throwable cause) {
+      failure = cause;
+    }
+  }
+
+  List<String> sendOrder = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void setUp() {
+    localDir = Files.createTempDir();
+    new File(localDir, "00").mkdirs();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    JavaUtils.deleteRecursively(localDir);
+  }
+
+  private ManagedBuffer fileChunk(String name, long length) {
+    return new FileSegmentManagedBuffer(conf, new File(new File(localDir, "00"), name), 0, length);
+  }
+
+  /** Opens a stream of the given chunks and requests all of them. */
+  private List<RecordingResponder> fetchAll(
+      FairShuffleStreamManager manager,
+      String appId,
+      List<ManagedBuffer> chunks) {
+    long streamId = manager.registerStream(appId, chunks.iterator());
+    List<RecordingResponder> responders = Lists.newArrayList();
+    for (int i = 0; i < chunks.size(); i++) {
+      RecordingResponder responder = new RecordingResponder(appId + "-" + i);
+      responders.add(responder);
+      manager.fetchChunk(streamId, i, responder);
+    }
+    return responders;
+  }
+
+  @Test
+  public void testLimitsReadsPerDisk() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(2);
+    List<ManagedBuffer> chunks = Lists.newArrayList(
+      fileChunk("a", 10), fileChunk("b", 10), fileChunk("c", 10), fileChunk("d", 10));
+    Object disk = manager.diskOf(chunks.get(0));
+    assertNotNull(disk);
+
+    List<RecordingResponder> responders = fetchAll(manager, "app0", chunks);
+    assertEquals(Lists.newArrayList("app0-0", "app0-1"), sendOrder);
+    assertEquals(2, manager.readsInFlight(disk));
+    assertEquals(2, manager.getQueueDepth("app0"));
+
+    responders.get(1).promise.setSuccess();
+    assertEquals(Lists.newArrayList("app0-0", "app0-1", "app0-2"), sendOrder);
+    assertEquals(1, manager.getQueueDepth("app0"));
+
+    // A failed send frees its slot as well.
+    responders.get(0).promise.setFailure(new IOException("Connection reset"));
+    responders.get(2).promise.setSuccess();
+    responders.get(3).promise.setSuccess();
+    assertEquals(4, sendOrder.size());
+    assertEquals(0, manager.readsInFlight(disk));
+    assertEquals(0, manager.getQueueDepth("app0"));
+    assertEquals(40, manager.getServedBytes("app0"));
+  }
+
+  @Test
+  public void testSmallApplicationDoesNotWaitBehindLargeOne() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(1);
+    List<ManagedBuffer> bigChunks = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      bigChunks.add(fileChunk("big" + i, 1000));
+    }
+    List<RecordingResponder> big = fetchAll(manager, "big", bigChunks);
+    List<RecordingResponder> small =
+      fetchAll(manager, "small", Lists.newArrayList(fileChunk("small", 1000)));
+    assertEquals(9, manager.getQueueDepth("big"));
+    assertEquals(1, manager.getQueueDepth("small"));
+
+    big.get(0).promise.setSuccess();
+    assertEquals(Lists.newArrayList("big-0", "small-0"), sendOrder);
+    small.get(0).promise.setSuccess();
+    assertEquals("big-1", sendOrder.get(2));
+  }
+
+  @Test
+  public void testWeightedShares() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(1);
+    manager.setApplicationWeight("heavy", 3.0);
+    List<ManagedBuffer> heavyChunks = Lists.newArrayList();
+    List<ManagedBuffer> lightChunks = Lists.newArrayList();
+    for (int i = 0; i < 8; i++) {
+      heavyChunks.add(fileChunk("heavy" + i, 100));
+      lightChunks.add(fileChunk("light" + i, 100));
+    }
+    List<RecordingResponder> responders = Lists.newArrayList();
+    responders.addAll(fetchAll(manager, "heavy", heavyChunks));
+    responders.addAll(fetchAll(manager, "light", lightChunks));
+    for (int i = 0; i < 8; i++) {
+      for (RecordingResponder responder : responders) {
+        if (responder.promise != null && !responder.promise.isDone()) {
+          responder.promise.setSuccess();
+          break;
+        }
+      }
+    }
+    // Of the first 8 chunks sent, the heavy application gets 3 for every one of the light one.
+    int heavySent = 0;
+    for (String name : sendOrder.subList(0, 8)) {
+      if (name.startsWith("heavy")) {
+        heavySent++;
+      }
+    }
+    assertEquals(6, heavySent);
+  }
+
+  @Test
+  public void testLimitsBytesInFlightPerChannel() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(4, null, 25);
+    List<ManagedBuffer> chunks = Lists.newArrayList(
+      fileChunk("a", 10), fileChunk("b", 10), fileChunk("c", 10), fileChunk("d", 30));
+    long streamId = manager.registerStream("app0", chunks.iterator());
+    manager.registerChannel(channel, streamId);
+    List<RecordingResponder> responders = Lists.newArrayList();
+    for (int i = 0; i < chunks.size(); i++) {
+      RecordingResponder responder = new RecordingResponder("app0-" + i);
+      responders.add(responder);
+      manager.fetchChunk(streamId, i, responder);
+    }
+    assertEquals(Lists.newArrayList("app0-0", "app0-1"), sendOrder);
+    assertEquals(20, manager.bytesInFlight(channel));
+
+    responders.get(0).promise.setSuccess();
+    assertEquals(Lists.newArrayList("app0-0", "app0-1", "app0-2"), sendOrder);
+    assertEquals(20, manager.bytesInFlight(channel));
+
+    // A chunk larger than the limit is sent once the channel has nothing else in flight.
+    responders.get(1).promise.setSuccess();
+    assertEquals(3, sendOrder.size());
+    responders.get(2).promise.setSuccess();
+    assertEquals(Lists.newArrayList("app0-0", "app0-1", "app0-2", "app0-3"), sendOrder);
+    responders.get(3).promise.setSuccess();
+    assertEquals(0, manager.bytesInFlight(channel));
+  }
+
+  @Test
+  public void testChunksNotBackedByFilesAreSentRightAway() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(1);
+    ManagedBuffer chunk = new NioManagedBuffer(ByteBuffer.wrap(new byte[7]));
+    assertNull(manager.diskOf(chunk));
+    List<RecordingResponder> responders =
+      fetchAll(manager, "app0", Lists.newArrayList(chunk, chunk, chunk));
+    for (RecordingResponder responder : responders) {
+      assertSame(chunk, responder.sent);
+    }
+    assertEquals(21, manager.getServedBytes("app0"));
+  }
+
+  @Test
+  public void testChunksAreReadOnDiskThreads() throws Exception {
+    File file = new File(new File(localDir, "00"), "data");
+    Files.write(new byte[] { 1, 2, 3, 4, 5, 6 }, file);
+    DiskReadDispatcher diskReader = new DiskReadDispatcher(1);
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(1, diskReader);
+    try {
+      ManagedBuffer second = new FileSegmentManagedBuffer(conf, file, 2, 4);
+      List<ManagedBuffer> chunks = Lists.<ManagedBuffer>newArrayList(
+        new FileSegmentManagedBuffer(conf, file, 0, 2), second);
+      List<RecordingResponder> responders = fetchAll(manager, "app0", chunks);
+      // Reading a chunk frees the disk's only slot for the next one, while the first chunk is
+      // still being written.
+      for (RecordingResponder responder : responders) {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (responder.sent == null && System.currentTimeMillis() < deadline) {
+          Thread.sleep(10);
+        }
+        assertNotNull(responder.sent);
+      }
+      assertFalse(responders.get(0).promise.isDone());
+      // The segments themselves are sent, so that they still go out as zero-copy file transfers.
+      assertSame(second, responders.get(1).sent);
+      for (RecordingResponder responder : responders) {
+        responder.promise.setSuccess();
+      }
+    } finally {
+      manager.close();
+    }
+  }
+
+  @Test
+  public void testApplicationRemovedFailsQueuedChunks() {
+    FairShuffleStreamManager manager = new FairShuffleStreamManager(1);
+    List<RecordingResponder> responders = fetchAll(manager, "app0",
+      Lists.newArrayList(fileChunk("a", 10), fileChunk("b", 10)));
+    manager.applicationRemoved("app0");
+    assertNotNull(responders.get(0).sent);
+    assertNull(responders.get(1).sent);
+    assertNotNull(responders.get(1).failure);
+    assertEquals(0, manager.getQueueDepth("app0"));
+
+    responders.get(0).promise.setSuccess();
+    assertEquals(1, sendOrder.size());
+  }
+}
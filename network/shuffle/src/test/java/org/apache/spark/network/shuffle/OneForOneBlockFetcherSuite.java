@@ -25,9 +25,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.google.common.collect.Maps;
 import io.netty.buffer.Unpooled;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
@@ -47,6 +49,7 @@ import org.apache.spark.network.client.RpcResponseCallback;
 import org.apache.spark.network.client.TransportClient;
 import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
 import org.apache.spark.network.shuffle.protocol.OpenBlocks;
+import org.apache.spark.network.shuffle.protocol.OpenShuffleBlockRanges;
 import org.apache.spark.network.shuffle.protocol.StreamHandle;
 
 public class OneForOneBlockFetcherSuite {
@@ -117,6 +120,78 @@ public class OneForOneBlockFetcherSuite {
     }
   }
 
+  @Test
+  public void testOpenMessageForBlockRanges() {
+    String[] blockIds = new String[] {
+      "shuffle_0_1_2", "shuffle_0_1_3", "shuffle_0_1_5", "shuffle_0_2_0", "shuffle_0_2_1" };
+    assertEquals(new OpenBlocks("app-id", "exec-id", blockIds),
+      OneForOneBlockFetcher.createOpenMessage("app-id", "exec-id", blockIds, false));
+    assertEquals(
+      new OpenShuffleBlockRanges("app-id", "exec-id", 0,
+        new int[] { 1, 1, 2 }, new int[] { 2, 5, 0 }, new int[] { 4, 6, 2 }),
+      OneForOneBlockFetcher.createOpenMessage("app-id", "exec-id", blockIds, true));
+
+    // Blocks that cannot be fetched together are opened one by one.
+    String[] noRuns = new String[] { "shuffle_0_1_2", "shuffle_0_2_3" };
+    assertEquals(new OpenBlocks("app-id", "exec-id", noRuns),
+      OneForOneBlockFetcher.createOpenMessage("app-id", "exec-id", noRuns, true));
+    String[] twoShuffles = new String[] { "shuffle_0_1_2", "shuffle_0_1_3", "shuffle_1_1_4" };
+    assertEquals(new OpenBlocks("app-id", "exec-id", twoShuffles),
+      OneForOneBlockFetcher.createOpenMessage("app-id", "exec-id", twoShuffles, true));
+    String[] notShuffle = new String[] { "shuffle_0_1_2", "shuffle_0_1_3", "rdd_1_1" };
+    assertEquals(new OpenBlocks("app-id", "exec-id", notShuffle),
+      OneForOneBlockFetcher.createOpenMessage("app-id", "exec-id", notShuffle, true));
+  }
+
+  @Test
+  public void testFetchBlockRanges() throws Exception {
+    TransportClient client = mock(TransportClient.class);
+    BlockFetchingListener listener = mock(BlockFetchingListener.class);
+    final String[] blockIds = new String[] { "shuffle_0_1_2", "shuffle_0_1_3", "shuffle_0_2_0" };
+    OneForOneBlockFetcher fetcher = new OneForOneBlockFetcher(
+      client, "app-id", "exec-id", blockIds, listener, null, true);
+
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocationOnMock) throws Throwable {
+        RpcResponseCallback callback = (RpcResponseCallback) invocationOnMock.getArguments()[1];
+        callback.onSuccess(new StreamHandle(123, 2, new long[] { 2, 3, 1 }).toByteArray());
+        return null;
+      }
+    }).when(client).sendRpc((byte[]) any(), (RpcResponseCallback) any());
+    final ManagedBuffer[] chunks = new ManagedBuffer[] {
+      new NettyManagedBuffer(Unpooled.wrappedBuffer(new byte[] { 1, 2, 3, 4, 5 })),
+      new NioManagedBuffer(ByteBuffer.wrap(new byte[] { 6 })) };
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        int chunkIndex = (Integer) invocation.getArguments()[1];
+        ChunkReceivedCallback callback = (ChunkReceivedCallback) invocation.getArguments()[2];
+        callback.onSuccess(chunkIndex, chunks[chunkIndex]);
+        return null;
+      }
+    }).when(client).fetchChunk(anyLong(), anyInt(), (ChunkReceivedCallback) any());
+
+    fetcher.start();
+
+    // The range of map 1 is split back into its two blocks.
+    verify(client, times(2)).fetchChunk(anyLong(), anyInt(), (ChunkReceivedCallback) any());
+    ArgumentCaptor<ManagedBuffer> first = ArgumentCaptor.forClass(ManagedBuffer.class);
+    verify(listener).onBlockFetchSuccess(eq("shuffle_0_1_2"), first.capture());
+    assertArrayEquals(new byte[] { 1, 2 }, toBytes(first.getValue()));
+    ArgumentCaptor<ManagedBuffer> second = ArgumentCaptor.forClass(ManagedBuffer.class);
+    verify(listener).onBlockFetchSuccess(eq("shuffle_0_1_3"), second.capture());
+    assertArrayEquals(new byte[] { 3, 4, 5 }, toBytes(second.getValue()));
+    verify(listener).onBlockFetchSuccess("shuffle_0_2_0", chunks[1]);
+  }
+
+  private static byte[] toBytes(ManagedBuffer buffer) throws Exception {
+    ByteBuffer nio = buffer.nioByteBuffer();
+    byte[] bytes = new byte[nio.remaining()];
+    nio.get(bytes);
+    return bytes;
+  }
+
   /**
    * Begins a fetch on the given set of blocks by mocking out the server side of the RPC which
    * simply returns the given (BlockId, Block) pairs.
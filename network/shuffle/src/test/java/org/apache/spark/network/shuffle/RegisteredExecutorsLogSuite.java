@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+import org.apache.spark.network.shuffle.ExternalShuffleBlockResolver.AppExecId;
+import org.apache.spark.network.shuffle.protocol.ExecutorShuffleInfo;
+import org.apache.spark.network.util.JavaUtils;
+
+public class RegisteredExecutorsLogSuite {
+  File tempDir;
+  File file;
+
+  ExecutorShuffleInfo sortInfo = new ExecutorShuffleInfo(new String[] { "/a", "/b" }, 16,
+    "org.apache.spark.shuffle.sort.SortShuffleManager");
+  ExecutorShuffleInfo hashInfo = new ExecutorShuffleInfo(new String[] { "/c" }, 32,
+    "org.apache.spark.shuffle.hash.HashShuffleManager");
+
+  @Before
+  public void setUp() {
+    tempDir = Files.createTempDir();
+    file = new File(tempDir, "registeredExecutors.log");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    JavaUtils.deleteRecursively(tempDir);
+  }
+
+  @Test
+  public void testRecoverRegistrations() throws IOException {
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    assertTrue(log.getExecutors().isEmpty());
+    log.registerExecutor(new AppExecId("app0", "exec0"), sortInfo);
+    log.registerExecutor(new AppExecId("app0", "exec1"), sortInfo);
+    log.registerExecutor(new AppExecId("app1", "exec0"), hashInfo);
+    // Re-registering replaces the old registration.
+    log.registerExecutor(new AppExecId("app0", "exec1"), hashInfo);
+    log.applicationRemoved("app1");
+    log.close();
+
+    log = new RegisteredExecutorsLog(file);
+    Map<AppExecId, ExecutorShuffleInfo> executors = log.getExecutors();
+    assertEquals(2, executors.size());
+    assertEquals(sortInfo, executors.get(new AppExecId("app0", "exec0")));
+    assertEquals(hashInfo, executors.get(new AppExecId("app0", "exec1")));
+    // Opening the journal drops the records of the removed application.
+    assertEquals(2, log.numRecords());
+    log.close();
+  }
+
+  @Test
+  public void testTruncatedRecordIsDropped() throws IOException {
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    log.registerExecutor(new AppExecId("app0", "exec0"), sortInfo);
+    log.close();
+    long completeLength = file.length();
+
+    log = new RegisteredExecutorsLog(file);
+    log.registerExecutor(new AppExecId("app0", "exec1"), hashInfo);
+    log.close();
+    // Cut the second record short, as a crash in the middle of the append would.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(file.length() - 3);
+    } finally {
+      raf.close();
+    }
+    assertTrue(file.length() > completeLength);
+
+    log = new RegisteredExecutorsLog(file);
+    Map<AppExecId, ExecutorShuffleInfo> executors = log.getExecutors();
+    assertEquals(1, executors.size());
+    assertEquals(sortInfo, executors.get(new AppExecId("app0", "exec0")));
+    assertEquals(completeLength, file.length());
+    log.close();
+  }
+
+  @Test
+  public void testRecoverAppSecrets() throws IOException {
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    log.registerAppSecret("app0", "secret0");
+    log.registerAppSecret("app1", "secret1");
+    log.registerExecutor(new AppExecId("app1", "exec0"), hashInfo);
+    log.applicationRemoved("app1");
+    log.close();
+
+    log = new RegisteredExecutorsLog(file);
+    Map<String, String> secrets = log.getAppSecrets();
+    assertEquals(1, secrets.size());
+    assertEquals("secret0", secrets.get("app0"));
+    assertEquals(1, log.numRecords());
+    log.close();
+  }
+
+  @Test
+  public void testReplayStopsAtCorruptRecord() throws IOException {
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    log.registerExecutor(new AppExecId("app0", "exec0"), sortInfo);
+    long firstLength = file.length();
+    log.registerExecutor(new AppExecId("app0", "exec1"), hashInfo);
+    log.registerExecutor(new AppExecId("app0", "exec2"), hashInfo);
+    log.close();
+    // Flip a byte in the payload of the second record, so that its checksum no longer matches.
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.seek(firstLength + 12);
+      int b = raf.read();
+      raf.seek(firstLength + 12);
+      raf.write(b ^ 0xff);
+    } finally {
+      raf.close();
+    }
+
+    // The records from the corrupt one on are dropped, although the last one is intact.
+    log = new RegisteredExecutorsLog(file);
+    Map<AppExecId, ExecutorShuffleInfo> executors = log.getExecutors();
+    assertEquals(1, executors.size());
+    assertEquals(sortInfo, executors.get(new AppExecId("app0", "exec0")));
+    assertEquals(firstLength, file.length());
+    log.close();
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    new FileOutputStream(file).close();
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    assertTrue(log.getExecutors().isEmpty());
+    log.close();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    RegisteredExecutorsLog log = new RegisteredExecutorsLog(file);
+    try {
+      log.registerExecutor(new AppExecId("app0", "exec0"), sortInfo);
+      for (int i = 0; i < RegisteredExecutorsLog.MIN_RECORDS_TO_COMPACT; i++) {
+        log.registerExecutor(new AppExecId("app1", "exec" + i), hashInfo);
+        log.applicationRemoved("app1");
+        assertTrue(log.numRecords() < RegisteredExecutorsLog.MIN_RECORDS_TO_COMPACT);
+      }
+      assertEquals(1, log.getExecutors().size());
+    } finally {
+      log.close();
+    }
+
+    log = new RegisteredExecutorsLog(file);
+    assertEquals(sortInfo, log.getExecutors().get(new AppExecId("app0", "exec0")));
+    assertEquals(1, log.getExecutors().size());
+    log.close();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.shuffle;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.apache.spark.network.buffer.ManagedBuffer;
+import org.apache.spark.network.client.RpcResponseCallback;
+import org.apache.spark.network.shuffle.protocol.BlockTransferMessage;
+import org.apache.spark.network.shuffle.protocol.MergedBlockMeta;
+import org.apache.spark.network.shuffle.protocol.PushBlocks;
+import org.apache.spark.network.util.SystemPropertyConfigProvider;
+import org.apache.spark.network.util.TransportConf;
+
+public class RemoteBlockPushResolverSuite {
+  static TransportConf conf = new TransportConf(new SystemPropertyConfigProvider());
+
+  TestShuffleDataContext dataContext;
+  ExternalShuffleBlockResolver blockResolver;
+  RemoteBlockPushResolver pushResolver;
+
+  @Before
+  public void beforeEach() {
+    dataContext = new TestShuffleDataContext(2, 5);
+    dataContext.create();
+    blockResolver = new ExternalShuffleBlockResolver(conf);
+    blockResolver.registerExecutor("app0", "exec0",
+      dataContext.createExecutorInfo("org.apache.spark.shuffle.sort.SortShuffleManager"));
+    pushResolver = new RemoteBlockPushResolver(conf, blockResolver,
+      MoreExecutors.sameThreadExecutor());
+  }
+
+  @After
+  public void afterEach() {
+    dataContext.cleanup();
+  }
+
+  private void push(int mapId, int[] reduceIds, String... blocks) {
+    pushAttempt(mapId, mapId, reduceIds, blocks);
+  }
+
+  private void pushAttempt(int mapId, long mapAttemptId, int[] reduceIds, String... blocks) {
+    pushResolver.pushBlocks(pushMessage(mapId, mapAttemptId, reduceIds, blocks));
+  }
+
+  private PushBlocks pushMessage(
+      int mapId,
+      long mapAttemptId,
+      int[] reduceIds,
+      String... blocks) {
+    byte[][] blockBytes = new byte[blocks.length][];
+    for (int i = 0; i < blocks.length; i++) {
+      blockBytes[i] = blocks[i].getBytes();
+    }
+    return new PushBlocks("app0", 0, mapId, mapAttemptId, reduceIds, blockBytes);
+  }
+
+  private String readMergedBlock(int reduceId) throws IOException {
+    ManagedBuffer buffer = pushResolver.getMergedBlockData("app0", "shuffleMerged_0_" + reduceId);
+    InputStream in = buffer.createInputStream();
+    try {
+      return new String(ByteStreams.toByteArray(in));
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testMergeBlocksPerReduceId() throws IOException {
+    push(0, new int[] { 0, 1 }, "Hello", "World");
+    push(1, new int[] { 1 }, "!!");
+    // A block of map 0 that is pushed again is not merged again.
+    push(0, new int[] { 0 }, "Hello");
+
+    assertEquals(new MergedBlockMeta(new int[] { 0 }, new long[] { 0 }, new long[] { 5 }),
+      pushResolver.finalizeMergedBlock("app0", 0, 0));
+    MergedBlockMeta meta = pushResolver.finalizeMergedBlock("app0", 0, 1);
+    assertEquals(
+      new MergedBlockMeta(new int[] { 0, 1 }, new long[] { 0, 1 }, new long[] { 5, 2 }), meta);
+    assertEquals(7, meta.totalSize());
+    assertEquals("Hello", readMergedBlock(0));
+    assertEquals("World!!", readMergedBlock(1));
+  }
+
+  @Test
+  public void testBlocksOfTwoAttemptsOfOneMap() throws IOException {
+    pushAttempt(0, 10L, new int[] { 0, 1 }, "Hello", "World");
+    pushAttempt(1, 11L, new int[] { 0 }, "!!");
+    pushAttempt(0, 12L, new int[] { 0 }, "Howdy");
+
+    // Which attempt of map 0 is read is unknown, so nothing is used for reduce id 0.
+    assertEquals(new MergedBlockMeta(new int[0], new long[0], new long[0]),
+      pushResolver.finalizeMergedBlock("app0", 0, 0));
+    assertEquals(new MergedBlockMeta(new int[] { 0 }, new long[] { 10L }, new long[] { 5 }),
+      pushResolver.finalizeMergedBlock("app0", 0, 1));
+    assertEquals("World", readMergedBlock(1));
+  }
+
+  @Test
+  public void testAnswerCallbacks() {
+    RpcResponseCallback pushCallback = mock(RpcResponseCallback.class);
+    pushResolver.pushBlocks(pushMessage(0, 0L, new int[] { 0 }, "Hello"), pushCallback);
+    verify(pushCallback, times(1)).onSuccess(new byte[0]);
+
+    RpcResponseCallback metaCallback = mock(RpcResponseCallback.class);
+    pushResolver.finalizeMergedBlock("app0", 0, 0, metaCallback);
+    ArgumentCaptor<byte[]> response = ArgumentCaptor.forClass(byte[].class);
+    verify(metaCallback, times(1)).onSuccess(response.capture());
+    assertEquals(new MergedBlockMeta(new int[] { 0 }, new long[] { 0 }, new long[] { 5 }),
+      BlockTransferMessage.Decoder.fromByteArray(response.getValue()));
+  }
+
+  @Test
+  public void testNoMergeAfterFinalize() throws IOException {
+    push(0, new int[] { 0 }, "Hello");
+    MergedBlockMeta meta = pushResolver.finalizeMergedBlock("app0", 0, 0);
+    push(1, new int[] { 0 }, "World");
+
+    assertEquals(meta, pushResolver.finalizeMergedBlock("app0", 0, 0));
+    assertEquals("Hello", readMergedBlock(0));
+
+    // Nothing was pushed for reduce id 1, which is simply reported as empty.
+    assertEquals(new MergedBlockMeta(new int[0], new long[0], new long[0]),
+      pushResolver.finalizeMergedBlock("app0", 0, 1));
+  }
+
+  @Test
+  public void testReadBeforeFinalize() {
+    push(0, new int[] { 0 }, "Hello");
+    try {
+      pushResolver.getMergedBlockData("app0", "shuffleMerged_0_0");
+      fail("Should have failed");
+    } catch (IllegalStateException e) {
+      assertTrue("Bad error message: " + e, e.getMessage().contains("not finalized"));
+    }
+  }
+
+  @Test
+  public void testApplicationRemoved() throws IOException {
+    push(0, new int[] { 0 }, "Hello");
+    pushResolver.finalizeMergedBlock("app0", 0, 0);
+    File mergedFile = blockResolver.getApplicationFile("app0", "shuffleMerged_app0_0_0.data");
+    assertTrue(mergedFile.exists());
+
+    pushResolver.applicationRemoved("app0");
+    assertFalse(mergedFile.exists());
+    assertEquals(0, pushResolver.numMergedPartitions());
+  }
+}
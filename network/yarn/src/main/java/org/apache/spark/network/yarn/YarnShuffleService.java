@@ -17,11 +17,15 @@
 
 package org.apache.spark.network.yarn;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 
 import com.google.common.collect.Lists;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.server.api.AuxiliaryService;
@@ -39,6 +43,7 @@ import org.apache.spark.network.server.RpcHandler;
 import org.apache.spark.network.server.TransportServer;
 import org.apache.spark.network.server.TransportServerBootstrap;
 import org.apache.spark.network.shuffle.ExternalShuffleBlockHandler;
+import org.apache.spark.network.util.JavaUtils;
 import org.apache.spark.network.util.TransportConf;
 import org.apache.spark.network.yarn.util.HadoopConfigProvider;
 
@@ -59,6 +64,15 @@ import org.apache.spark.network.yarn.util.HadoopConfigProvider;
  * is because an application running on the same Yarn cluster may choose to not use the external
  * shuffle service, in which case its setting of `spark.authenticate` should be independent of
  * the service's.
+ *
+ * Executor registrations are journaled to a file in one of the NodeManager's local dirs and
+ * restored from it when the service starts, so that the executors of running applications can
+ * still be served after the NodeManager is restarted, for example during a rolling upgrade. With
+ * authentication enabled, the applications' shuffle secrets are journaled and restored with them,
+ * since YARN does not initialize the running applications again after the restart.
+ *
+ * The metrics of the service are published to the NodeManager's metrics system as the
+ * "sparkShuffleService" record.
  */
 public class YarnShuffleService extends AuxiliaryService {
   private final Logger logger = LoggerFactory.getLogger(YarnShuffleService.class);
@@ -73,6 +87,10 @@ public class YarnShuffleService extends AuxiliaryService {
   private static final String SPARK_AUTHENTICATE_KEY = "spark.authenticate";
   private static final boolean DEFAULT_SPARK_AUTHENTICATE = false;
 
+  // Name of the file, in one of the NodeManager's local dirs, that journals executor registrations
+    //在NodeManager的某个本地目录中记录执行者注册的文件名
+  private static final String REGISTERED_EXECUTOR_FILE_NAME = "registeredExecutors.log";
+
   // An entity that manages the shuffle secret per application
   // This is used only if authentication is enabled
     //管理每个应用程序的随机密钥的实体
@@ -113,11 +131,38 @@ public class YarnShuffleService extends AuxiliaryService {
     // If authentication is enabled, set up the shuffle server to use a
     // special RPC handler that filters out unauthenticated fetch requests
     boolean authEnabled = conf.getBoolean(SPARK_AUTHENTICATE_KEY, DEFAULT_SPARK_AUTHENTICATE);
-    blockHandler = new ExternalShuffleBlockHandler(transportConf);
+    File registeredExecutorFile =
+      findRegisteredExecutorFile(conf.getTrimmedStrings("yarn.nodemanager.local-dirs"));
+    if (registeredExecutorFile != null) {
+      try {
+        blockHandler = new ExternalShuffleBlockHandler(transportConf, registeredExecutorFile);
+      } catch (IOException e) {
+        logger.error("Failed to recover registered executors from " + registeredExecutorFile +
+          ", executors registered before the restart will not be served", e);
+      }
+    }
+    if (blockHandler == null) {
+      blockHandler = new ExternalShuffleBlockHandler(transportConf);
+    }
+    try {
+      DefaultMetricsSystem.instance().register(YarnShuffleServiceMetrics.RECORD_NAME,
+        "Metrics of the Spark shuffle service",
+        new YarnShuffleServiceMetrics(blockHandler.getAllMetrics()));
+    } catch (Exception e) {
+      // The metrics are not essential to serving shuffle files.
+      logger.warn("Failed to register the metrics of the shuffle service", e);
+    }
 
     List<TransportServerBootstrap> bootstraps = Lists.newArrayList();
     if (authEnabled) {
       secretManager = new ShuffleSecretManager();
+      Map<String, String> secrets = blockHandler.getApplicationSecrets();
+      for (Map.Entry<String, String> entry : secrets.entrySet()) {
+        secretManager.registerApp(entry.getKey(), entry.getValue());
+      }
+      if (!secrets.isEmpty()) {
+        logger.info("Restored the shuffle secrets of {} applications", secrets.size());
+      }
       bootstraps.add(new SaslServerBootstrap(transportConf, secretManager));
     }
 
@@ -130,6 +175,23 @@ public class YarnShuffleService extends AuxiliaryService {
       "Authentication is {}.", port, authEnabledString);
   }
 
+  /**
+   * Returns the journal of registered executors left in one of the given local dirs by a previous
+   * instance of the service, or a new file in the first local dir if there is none.
+   */
+  private File findRegisteredExecutorFile(String[] localDirs) {
+    if (localDirs == null || localDirs.length == 0) {
+      return null;
+    }
+    for (String dir : localDirs) {
+      File file = new File(dir, REGISTERED_EXECUTOR_FILE_NAME);
+      if (file.exists()) {
+        return file;
+      }
+    }
+    return new File(localDirs[0], REGISTERED_EXECUTOR_FILE_NAME);
+  }
+
   @Override
   public void initializeApplication(ApplicationInitializationContext context) {
     String appId = context.getApplicationId().toString();
@@ -137,7 +199,9 @@ public class YarnShuffleService extends AuxiliaryService {
       ByteBuffer shuffleSecret = context.getApplicationDataForService();
       logger.info("Initializing application {}", appId);
       if (isAuthenticationEnabled()) {
-        secretManager.registerApp(appId, shuffleSecret);
+        String secret = JavaUtils.bytesToString(shuffleSecret);
+        secretManager.registerApp(appId, secret);
+        blockHandler.registerApplicationSecret(appId, secret);
       }
     } catch (Exception e) {
       logger.error("Exception when initializing application {}", appId, e);
@@ -180,6 +244,9 @@ public class YarnShuffleService extends AuxiliaryService {
       if (shuffleServer != null) {
         shuffleServer.close();
       }
+      if (blockHandler != null) {
+        blockHandler.close();
+      }
     } catch (Exception e) {
       logger.error("Exception when stopping service", e);
     }
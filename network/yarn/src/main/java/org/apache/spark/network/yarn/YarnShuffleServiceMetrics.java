@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.network.yarn;
+
+import java.util.Map;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+
+/**
+ * Publishes the metrics of the shuffle service to the NodeManager's metrics system. The metric
+ * set is read on every snapshot, so metrics that appear after registration are published too.
+ * 将Shuffle服务的度量指标发布到NodeManager的度量系统
+ */
+class YarnShuffleServiceMetrics implements MetricsSource {
+
+  static final String RECORD_NAME = "sparkShuffleService";
+
+  private final MetricSet metricSet;
+
+  YarnShuffleServiceMetrics(MetricSet metricSet) {
+    this.metricSet = metricSet;
+  }
+
+  @Override
+  public void getMetrics(MetricsCollector collector, boolean all) {
+    MetricsRecordBuilder builder = collector.addRecord(RECORD_NAME);
+    for (Map.Entry<String, Metric> entry : metricSet.getMetrics().entrySet()) {
+      MetricsInfo info = new ShuffleServiceMetricsInfo(entry.getKey());
+      Metric metric = entry.getValue();
+      if (metric instanceof Counter) {
+        builder.addCounter(info, ((Counter) metric).getCount());
+      } else if (metric instanceof Gauge) {
+        Object value = ((Gauge<?>) metric).getValue();
+        if (value instanceof Integer) {
+          builder.addGauge(info, (Integer) value);
+        } else if (value instanceof Long) {
+          builder.addGauge(info, (Long) value);
+        } else if (value instanceof Float) {
+          builder.addGauge(info, (Float) value);
+        } else if (value instanceof Double) {
+          builder.addGauge(info, (Double) value);
+        }
+      }
+    }
+  }
+
+  /**
+   * Describes a metric by its name. Unlike the interned infos of Hadoop, these are not cached, as
+   * the metrics in the set may change over time.
+   */
+  private static class ShuffleServiceMetricsInfo implements MetricsInfo {
+    private final String name;
+
+    ShuffleServiceMetricsInfo(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String name() {
+      return name;
+    }
+
+    @Override
+    public String description() {
+      return name;
+    }
+  }
+}
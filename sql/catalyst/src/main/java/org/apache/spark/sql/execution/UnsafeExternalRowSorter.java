@@ -49,10 +49,19 @@ final class UnsafeExternalRowSorter {
 
   private final StructType schema;
   private final PrefixComputer prefixComputer;
+  private final boolean wideKeyPrefix;
   private final UnsafeExternalSorter sorter;
 
   public static abstract class PrefixComputer {
     abstract long computePrefix(InternalRow row);
+
+    /**
+     * Computes the second half of a 16-byte prefix. This is only called by sorters with wide
+     * prefixes, right after {@link #computePrefix(InternalRow)} has been called on the same row.
+     */
+    long computeSecondPrefix(InternalRow row) {
+      return 0L;
+    }
   }
 
   public UnsafeExternalRowSorter(
@@ -61,8 +70,24 @@ final class UnsafeExternalRowSorter {
       PrefixComparator prefixComparator,
       PrefixComputer prefixComputer,
       long pageSizeBytes) throws IOException {
+    this(schema, ordering, prefixComparator, prefixComputer, pageSizeBytes, false);
+  }
+
+  /**
+   * @param wideKeyPrefix if true, sort by 16-byte prefixes from both
+   *                      {@link PrefixComputer#computePrefix(InternalRow)} and
+   *                      {@link PrefixComputer#computeSecondPrefix(InternalRow)}.
+   */
+  public UnsafeExternalRowSorter(
+      StructType schema,
+      Ordering<InternalRow> ordering,
+      PrefixComparator prefixComparator,
+      PrefixComputer prefixComputer,
+      long pageSizeBytes,
+      boolean wideKeyPrefix) throws IOException {
     this.schema = schema;
     this.prefixComputer = prefixComputer;
+    this.wideKeyPrefix = wideKeyPrefix;
     final SparkEnv sparkEnv = SparkEnv.get();
     final TaskContext taskContext = TaskContext.get();
     sorter = UnsafeExternalSorter.create(
@@ -73,7 +98,8 @@ final class UnsafeExternalRowSorter {
       new RowComparator(ordering, schema.length()),
       prefixComparator,
       /* initialSize */ 4096,
-      pageSizeBytes
+      pageSizeBytes,
+      wideKeyPrefix
     );
   }
 
@@ -89,11 +115,13 @@ final class UnsafeExternalRowSorter {
   @VisibleForTesting
   void insertRow(UnsafeRow row) throws IOException {
     final long prefix = prefixComputer.computePrefix(row);
+    final long prefix2 = wideKeyPrefix ? prefixComputer.computeSecondPrefix(row) : 0L;
     sorter.insertRecord(
       row.getBaseObject(),
       row.getBaseOffset(),
       row.getSizeInBytes(),
-      prefix
+      prefix,
+      prefix2
     );
     numRowsInserted++;
     if (testSpillFrequency > 0 && (numRowsInserted % testSpillFrequency) == 0) {
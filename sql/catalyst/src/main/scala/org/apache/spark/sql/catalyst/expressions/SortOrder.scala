@@ -110,3 +110,33 @@ case class SortPrefix(child: SortOrder) extends UnaryExpression {
 
   override def dataType: DataType = LongType
 }
+
+/**
+ * An expression to generate the second half of a 128-bit prefix used in sorting, which breaks ties
+ * between equal [[SortPrefix]]es. Only strings have a second prefix: bytes 8 to 16 of the string.
+  * 用于生成排序中使用的128位前缀的后半部分的表达式,仅字符串具有第二个前缀
+ */
+case class SecondSortPrefix(child: SortOrder) extends UnaryExpression {
+
+  override def eval(input: InternalRow): Any = throw new UnsupportedOperationException
+
+  override def genCode(ctx: CodeGenContext, ev: GeneratedExpressionCode): String = {
+    val childCode = child.child.gen(ctx)
+    val input = childCode.primitive
+    val prefixCode = child.child.dataType match {
+      case StringType => s"$input.getSecondPrefix()"
+      case _ => "0L"
+    }
+
+    childCode.code +
+    s"""
+      |long ${ev.primitive} = 0L;
+      |boolean ${ev.isNull} = false;
+      |if (!${childCode.isNull}) {
+      |  ${ev.primitive} = $prefixCode;
+      |}
+    """.stripMargin
+  }
+
+  override def dataType: DataType = LongType
+}
@@ -285,6 +285,40 @@ trait WindowFunction extends Expression {
   def get(index: Int): Any
 
   def newInstance(): WindowFunction
+
+  /**
+   * Whether the result of this function only depends on the rows it has been updated with, and
+   * not on the order of the updates, as is the case for sums, counts, minimums and maximums.
+   * Frames may then update the function with their rows in a different order, for instance in
+   * reverse. Floating point results may differ in their last digits when they do.
+   * 此函数的结果是否仅取决于更新它的行,而不取决于更新的顺序
+   */
+  def isOrderInsensitive: Boolean = false
+
+  /**
+   * Whether this function can aggregate rows in parts and merge the parts, through
+   * [[partialOf]], [[mergePartials]] and [[evaluateMerged]]. Frames may then keep the partial
+   * aggregates of ranges of rows, for instance in a segment tree, instead of updating the
+   * function with every row of a frame again. Merges keep the order of the rows, so the function
+   * does not need to be order insensitive. A partial aggregate of null stands for no rows.
+   * 此函数是否可以分部分聚合行并合并这些部分
+   */
+  def supportsMerge: Boolean = false
+
+  /** Returns the partial aggregate of a single prepared input row. */
+  def partialOf(input: AnyRef): Any =
+    throw new UnsupportedOperationException(s"$this does not support merging")
+
+  /**
+   * Returns the partial aggregate of the rows of `left` followed by those of `right`, leaving
+   * both unchanged.
+   */
+  def mergePartials(left: Any, right: Any): Any =
+    throw new UnsupportedOperationException(s"$this does not support merging")
+
+  /** Computes the result of the rows of the given partial aggregates, in order. */
+  def evaluateMerged(partials: Seq[Any]): Unit =
+    throw new UnsupportedOperationException(s"$this does not support merging")
 }
 
 case class UnresolvedWindowFunction(
@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.spark.TaskContext;
+import org.apache.spark.executor.ShuffleWriteMetrics;
+import org.apache.spark.shuffle.ShuffleMemoryManager;
+import org.apache.spark.sql.catalyst.expressions.UnsafeRow;
+import org.apache.spark.storage.BlockManager;
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.array.ByteArrayMethods;
+import org.apache.spark.unsafe.memory.MemoryBlock;
+import org.apache.spark.unsafe.memory.TaskMemoryManager;
+import org.apache.spark.util.TaskCompletionListener;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillReader;
+import org.apache.spark.util.collection.unsafe.sort.UnsafeSorterSpillWriter;
+
+/**
+ * An append-only buffer of {@link UnsafeRow}s that spills to disk when it runs out of memory.
+ *
+ * Rows are copied into data pages allocated by the {@link TaskMemoryManager}, with the memory for
+ * these pages acquired from the {@link ShuffleMemoryManager}. When a page cannot be acquired, all
+ * rows held in memory are written to a spill file and their pages are freed. The buffer therefore
+ * consists of zero or more spill files followed by the rows in memory, in the order in which the
+ * rows were added, and is read back in that order by any number of independent {@link Reader}s.
+ *
+ * The buffer is meant to hold one group of rows at a time, such as a partition of the Window
+ * operator, and to be {@link #clear() cleared} before the next group is added.
+ *
+ * The first page is acquired when the buffer is created, and is kept until the buffer's resources
+ * are cleaned up, also when the buffer spills or is cleared. Creating the buffer before the input
+ * is computed therefore makes sure that other operators in the same task cannot starve it
+ * (SPARK-9709), and when no further page can be acquired, the rows in memory are spilled and the
+ * first page is reused. Only a row that is larger than a page can fail to be added.
+ */
+public final class ExternalUnsafeRowBuffer {
+
+  private final Logger logger = LoggerFactory.getLogger(ExternalUnsafeRowBuffer.class);
+
+  /** The buffer size to use when writing spills using DiskBlockObjectWriter */
+  private static final int FILE_BUFFER_SIZE = 32 * 1024;
+
+  private final TaskMemoryManager taskMemoryManager;
+  private final ShuffleMemoryManager shuffleMemoryManager;
+  private final BlockManager blockManager;
+  private final TaskContext taskContext;
+  private final int numFields;
+  private final long pageSizeBytes;
+
+  /**
+   * Pages holding the rows in memory, in the order in which they were filled. Every row is stored
+   * as its length (int) followed by its bytes.
+   */
+  private final ArrayList<MemoryBlock> pages = new ArrayList<>();
+
+  /** The number of bytes used in each page but the current one. */
+  private final ArrayList<Long> pageUsedBytes = new ArrayList<>();
+
+  private MemoryBlock currentPage = null;
+  private long currentPagePosition = -1;
+  private long freeSpaceInCurrentPage = 0;
+
+  /** Spill files holding the first {@link #numRowsSpilled} rows of the buffer. */
+  private final LinkedList<UnsafeSorterSpillWriter> spillWriters = new LinkedList<>();
+
+  private int numRowsSpilled = 0;
+  private int numRowsInMemory = 0;
+
+  public ExternalUnsafeRowBuffer(
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      BlockManager blockManager,
+      TaskContext taskContext,
+      int numFields,
+      long pageSizeBytes) throws IOException {
+    this.taskMemoryManager = taskMemoryManager;
+    this.shuffleMemoryManager = shuffleMemoryManager;
+    this.blockManager = blockManager;
+    this.taskContext = taskContext;
+    this.numFields = numFields;
+    this.pageSizeBytes = pageSizeBytes;
+
+    // Register a cleanup task with TaskContext to ensure that memory is guaranteed to be freed at
+    // the end of the task, even if the buffer's owner does not consume all of its input.
+    taskContext.addTaskCompletionListener(new TaskCompletionListener() {
+      @Override
+      public void onTaskCompletion(TaskContext context) {
+        cleanupResources();
+      }
+    });
+
+    // Reserve the first page right away, see the class comment.
+    acquireNewPage(pageSizeBytes);
+  }
+
+  /**
+   * Returns the number of rows in the buffer.
+   */
+  public int numRows() {
+    return numRowsSpilled + numRowsInMemory;
+  }
+
+  /**
+   * Returns true if some of the rows in the buffer have been spilled to disk.
+   */
+  public boolean hasSpilled() {
+    return numRowsSpilled > 0;
+  }
+
+  /**
+   * Appends a copy of a row to the buffer, spilling the rows held in memory if there is no memory
+   * left for it. Readers that are open while a row is added must not be used afterwards.
+   */
+  public void add(UnsafeRow row) throws IOException {
+    final int lengthInBytes = row.getSizeInBytes();
+    // Need 4 bytes to store the record length.
+    final int totalSpaceRequired = lengthInBytes + 4;
+    if (totalSpaceRequired > freeSpaceInCurrentPage) {
+      // Rows that are larger than the page size get a page of their own.
+      acquireNewPage(Math.max(pageSizeBytes,
+        ByteArrayMethods.roundNumberOfBytesToNearestWord(totalSpaceRequired)));
+    }
+    final Object base = currentPage.getBaseObject();
+    Platform.putInt(base, currentPagePosition, lengthInBytes);
+    Platform.copyMemory(row.getBaseObject(), row.getBaseOffset(), base, currentPagePosition + 4,
+      lengthInBytes);
+    currentPagePosition += totalSpaceRequired;
+    freeSpaceInCurrentPage -= totalSpaceRequired;
+    numRowsInMemory++;
+  }
+
+  /**
+   * Acquires a page of the given size from the {@link ShuffleMemoryManager}. If the page cannot be
+   * acquired, the rows in memory are spilled, after which the first page is used if it is large
+   * enough. If there is still not enough memory, report error to the caller.
+   */
+  private void acquireNewPage(long size) throws IOException {
+    final long memoryAcquired = shuffleMemoryManager.tryToAcquire(size);
+    if (memoryAcquired < size) {
+      shuffleMemoryManager.release(memoryAcquired);
+      spill();
+      if (currentPage != null && freeSpaceInCurrentPage >= size) {
+        return;
+      }
+      final long memoryAcquiredAfterSpilling = shuffleMemoryManager.tryToAcquire(size);
+      if (memoryAcquiredAfterSpilling != size) {
+        shuffleMemoryManager.release(memoryAcquiredAfterSpilling);
+        throw new IOException("Unable to acquire " + size + " bytes of memory");
+      }
+    }
+    if (currentPage != null) {
+      pageUsedBytes.add(currentPagePosition - currentPage.getBaseOffset());
+    }
+    currentPage = taskMemoryManager.allocatePage(size);
+    currentPagePosition = currentPage.getBaseOffset();
+    freeSpaceInCurrentPage = size;
+    pages.add(currentPage);
+  }
+
+  /**
+   * Writes the rows held in memory to a new spill file and frees their pages, except for the first
+   * page, which is emptied.
+   */
+  @VisibleForTesting
+  void spill() throws IOException {
+    if (numRowsInMemory == 0) {
+      return;
+    }
+    logger.info("Thread {} spilling {} rows of a row buffer to disk ({} {} so far)",
+      Thread.currentThread().getId(),
+      numRowsInMemory,
+      spillWriters.size(),
+      spillWriters.size() == 1 ? "time" : "times");
+
+    final ShuffleWriteMetrics writeMetrics = new ShuffleWriteMetrics();
+    final UnsafeSorterSpillWriter writer =
+      new UnsafeSorterSpillWriter(blockManager, FILE_BUFFER_SIZE, writeMetrics, numRowsInMemory);
+    spillWriters.add(writer);
+    boolean success = false;
+    try {
+      final int numPages = pages.size();
+      for (int i = 0; i < numPages; i++) {
+        final MemoryBlock page = pages.get(i);
+        final Object base = page.getBaseObject();
+        long position = page.getBaseOffset();
+        final long end = pageEnd(i);
+        while (position < end) {
+          final int length = Platform.getInt(base, position);
+          writer.write(base, position + 4, length, 0L);
+          position += 4 + length;
+        }
+      }
+      writer.close();
+      success = true;
+    } finally {
+      if (!success) {
+        writer.revertPartialWritesAndClose();
+      }
+    }
+    numRowsSpilled += numRowsInMemory;
+    numRowsInMemory = 0;
+
+    long spillSize = 0;
+    for (MemoryBlock page : pages) {
+      spillSize += page.size();
+    }
+    freeMemory(true);
+    taskContext.taskMetrics().incMemoryBytesSpilled(spillSize);
+    taskContext.taskMetrics().incDiskBytesSpilled(writeMetrics.shuffleBytesWritten());
+  }
+
+  private long pageEnd(int pageIndex) {
+    final MemoryBlock page = pages.get(pageIndex);
+    if (page == currentPage) {
+      return currentPagePosition;
+    } else {
+      return page.getBaseOffset() + pageUsedBytes.get(pageIndex);
+    }
+  }
+
+  /**
+   * Frees the buffer's pages, except for its first page if {@code keepFirstPage} is true. The first
+   * page is always a regular page, as it is acquired when the buffer is created.
+   */
+  private void freeMemory(boolean keepFirstPage) {
+    MemoryBlock keptPage = null;
+    for (MemoryBlock page : pages) {
+      if (keepFirstPage) {
+        keptPage = page;
+      } else {
+        taskMemoryManager.freePage(page);
+        shuffleMemoryManager.release(page.size());
+      }
+      keepFirstPage = false;
+    }
+    pages.clear();
+    pageUsedBytes.clear();
+    if (keptPage != null) {
+      pages.add(keptPage);
+      currentPage = keptPage;
+      currentPagePosition = keptPage.getBaseOffset();
+      freeSpaceInCurrentPage = keptPage.size();
+    } else {
+      currentPage = null;
+      currentPagePosition = -1;
+      freeSpaceInCurrentPage = 0;
+    }
+  }
+
+  /**
+   * Deletes any spill files created by this buffer.
+   */
+  private void deleteSpillFiles() {
+    for (UnsafeSorterSpillWriter spill : spillWriters) {
+      File file = spill.getFile();
+      if (file != null && file.exists()) {
+        if (!file.delete()) {
+          logger.error("Was unable to delete spill file {}", file.getAbsolutePath());
+        }
+      }
+    }
+    spillWriters.clear();
+  }
+
+  /**
+   * Removes all rows from the buffer. Readers of the buffer must not be used afterwards.
+   */
+  public void clear() {
+    deleteSpillFiles();
+    freeMemory(true);
+    numRowsSpilled = 0;
+    numRowsInMemory = 0;
+  }
+
+  /**
+   * Frees the buffer's memory and deletes its spill files.
+   */
+  public void cleanupResources() {
+    deleteSpillFiles();
+    freeMemory(false);
+    numRowsSpilled = 0;
+    numRowsInMemory = 0;
+  }
+
+  @VisibleForTesting
+  int getNumberOfAllocatedPages() {
+    return pages.size();
+  }
+
+  /**
+   * Returns a reader that starts at the first row of the buffer.
+   */
+  public Reader newReader() {
+    return new Reader();
+  }
+
+  /**
+   * Reads the rows of the buffer in the order in which they were added. The row returned by
+   * {@link #getRow()} is reused, and is only valid until the next call to {@link #next()}; callers
+   * that hold on to a row have to copy it. Spill files are read one at a time, by each reader on
+   * its own.
+   */
+  public final class Reader {
+
+    private final UnsafeRow row = new UnsafeRow();
+    private int numRowsRemaining = numRows();
+
+    // The spill file being read, and the spill files after it.
+    private UnsafeSorterSpillReader spillReader = null;
+    private int nextSpillFile = 0;
+
+    // The page being read, once all spill files have been read.
+    private int pageIndex = -1;
+    private long pagePosition = 0;
+    private long pageEnd = 0;
+
+    private Reader() { }
+
+    /**
+     * Advances to the next row. Returns false if all rows have been read.
+     */
+    public boolean next() throws IOException {
+      if (numRowsRemaining == 0) {
+        close();
+        return false;
+      }
+      numRowsRemaining--;
+      if (numRowsRemaining >= numRowsInMemory) {
+        while (spillReader == null || !spillReader.hasNext()) {
+          spillReader = spillWriters.get(nextSpillFile++).getRereadableReader(blockManager);
+        }
+        spillReader.loadNext();
+        row.pointTo(spillReader.getBaseObject(), spillReader.getBaseOffset(), numFields,
+          spillReader.getRecordLength());
+      } else {
+        while (pagePosition == pageEnd) {
+          pageIndex++;
+          pagePosition = pages.get(pageIndex).getBaseOffset();
+          pageEnd = pageEnd(pageIndex);
+        }
+        final Object base = pages.get(pageIndex).getBaseObject();
+        final int length = Platform.getInt(base, pagePosition);
+        row.pointTo(base, pagePosition + 4, numFields, length);
+        pagePosition += 4 + length;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the current row.
+     */
+    public UnsafeRow getRow() {
+      return row;
+    }
+
+    /**
+     * Releases the file held open by this reader, if any.
+     */
+    public void close() throws IOException {
+      if (spillReader != null) {
+        spillReader.close();
+        spillReader = null;
+      }
+    }
+  }
+}
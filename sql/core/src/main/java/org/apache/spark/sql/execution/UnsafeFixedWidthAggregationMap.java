@@ -30,7 +30,9 @@ import org.apache.spark.sql.types.StructField;
 import org.apache.spark.sql.types.StructType;
 import org.apache.spark.unsafe.KVIterator;
 import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.hash.UnsafeHasher;
 import org.apache.spark.unsafe.map.BytesToBytesMap;
+import org.apache.spark.unsafe.map.BytesToBytesMapSpiller;
 import org.apache.spark.unsafe.memory.MemoryLocation;
 import org.apache.spark.unsafe.memory.TaskMemoryManager;
 
@@ -103,11 +105,74 @@ public final class UnsafeFixedWidthAggregationMap {
       int initialCapacity,
       long pageSizeBytes,
       boolean enablePerfMetrics) {
+    this(emptyAggregationBuffer, aggregationBufferSchema, groupingKeySchema, taskMemoryManager,
+      shuffleMemoryManager, initialCapacity, pageSizeBytes, enablePerfMetrics, false);
+  }
+
+  /**
+   * Create a new UnsafeFixedWidthAggregationMap.
+   *
+   * @param emptyAggregationBuffer the default value for new keys (a "zero" of the agg. function)
+   * @param aggregationBufferSchema the schema of the aggregation buffer, used for row conversion.
+   * @param groupingKeySchema the schema of the grouping key, used for row conversion.
+   * @param taskMemoryManager the memory manager used to allocate our Unsafe memory structures.
+   * @param shuffleMemoryManager the shuffle memory manager, for coordinating our memory usage with
+   *                             other tasks.
+   * @param initialCapacity the initial capacity of the map (a sizing hint to avoid re-hashing).
+   * @param pageSizeBytes the data page size, in bytes; limits the maximum record size.
+   * @param enablePerfMetrics if true, performance metrics will be recorded (has minor perf impact)
+   * @param compactSlots if true, the map's hash index uses one long per entry instead of two;
+   *                     requires pageSizeBytes to be at most
+   *                     {@link TaskMemoryManager#MAXIMUM_COMPACT_PAGE_SIZE_BYTES}.
+   */
+  public UnsafeFixedWidthAggregationMap(
+      InternalRow emptyAggregationBuffer,
+      StructType aggregationBufferSchema,
+      StructType groupingKeySchema,
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      boolean compactSlots) {
+    this(emptyAggregationBuffer, aggregationBufferSchema, groupingKeySchema, taskMemoryManager,
+      shuffleMemoryManager, initialCapacity, pageSizeBytes, enablePerfMetrics, compactSlots,
+      UnsafeHasher.MURMUR3_32);
+  }
+
+  /**
+   * Create a new UnsafeFixedWidthAggregationMap.
+   *
+   * @param emptyAggregationBuffer the default value for new keys (a "zero" of the agg. function)
+   * @param aggregationBufferSchema the schema of the aggregation buffer, used for row conversion.
+   * @param groupingKeySchema the schema of the grouping key, used for row conversion.
+   * @param taskMemoryManager the memory manager used to allocate our Unsafe memory structures.
+   * @param shuffleMemoryManager the shuffle memory manager, for coordinating our memory usage with
+   *                             other tasks.
+   * @param initialCapacity the initial capacity of the map (a sizing hint to avoid re-hashing).
+   * @param pageSizeBytes the data page size, in bytes; limits the maximum record size.
+   * @param enablePerfMetrics if true, performance metrics will be recorded (has minor perf impact)
+   * @param compactSlots if true, the map's hash index uses one long per entry instead of two;
+   *                     requires pageSizeBytes to be at most
+   *                     {@link TaskMemoryManager#MAXIMUM_COMPACT_PAGE_SIZE_BYTES}.
+   * @param hasher the hash function used for grouping keys.
+   */
+  public UnsafeFixedWidthAggregationMap(
+      InternalRow emptyAggregationBuffer,
+      StructType aggregationBufferSchema,
+      StructType groupingKeySchema,
+      TaskMemoryManager taskMemoryManager,
+      ShuffleMemoryManager shuffleMemoryManager,
+      int initialCapacity,
+      long pageSizeBytes,
+      boolean enablePerfMetrics,
+      boolean compactSlots,
+      UnsafeHasher hasher) {
     this.aggregationBufferSchema = aggregationBufferSchema;
     this.groupingKeyProjection = UnsafeProjection.create(groupingKeySchema);
     this.groupingKeySchema = groupingKeySchema;
-    this.map = new BytesToBytesMap(
-      taskMemoryManager, shuffleMemoryManager, initialCapacity, pageSizeBytes, enablePerfMetrics);
+    this.map = new BytesToBytesMap(taskMemoryManager, shuffleMemoryManager, initialCapacity, 0.70,
+      pageSizeBytes, enablePerfMetrics, compactSlots, hasher);
     this.enablePerfMetrics = enablePerfMetrics;
 
     // Initialize the buffer for aggregation value
@@ -227,6 +292,13 @@ public final class UnsafeFixedWidthAggregationMap {
     return map.getNumDataPages();
   }
 
+  /**
+   * Returns the number of groups currently held in this map.
+   */
+  public int numElements() {
+    return map.numElements();
+  }
+
   /**
    * Free the memory associated with this map. This is idempotent and can be called multiple times.
    */
@@ -234,6 +306,27 @@ public final class UnsafeFixedWidthAggregationMap {
     map.free();
   }
 
+  /**
+   * Writes this map's groups to the given spiller, hash-partitioned by grouping key, and then
+   * empties the map so that hash-based aggregation can continue in memory.
+   *
+   * @return whether the emptied map could acquire a data page again.
+   */
+  public boolean spillAndReset(BytesToBytesMapSpiller spiller) throws IOException {
+    spiller.spill(map);
+    return map.reset();
+  }
+
+  /**
+   * Empties this map, including after its destructive {@link #iterator()} has been consumed, so
+   * that it can be used again.
+   *
+   * @return whether the emptied map could acquire a data page again.
+   */
+  public boolean reset() {
+    return map.reset();
+  }
+
   @SuppressWarnings("UseOfSystemOutOrSystemErr")
   public void printPerfMetrics() {
     if (!enablePerfMetrics) {
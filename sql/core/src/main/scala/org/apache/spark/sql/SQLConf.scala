@@ -207,6 +207,21 @@ private[spark] object SQLConf {
       doc = "When true, enable partition pruning for in-memory columnar tables.",
       isPublic = false)
 
+  val OFF_HEAP_CACHED = booleanConf("spark.sql.inMemoryColumnarStorage.offHeap",
+    defaultValue = Some(false),
+    //将缓存表的列缓冲区存储在堆外内存中
+    doc = "When set to true, tables cached at a storage level that keeps deserialized blocks in " +
+      "memory store their column buffers in off-heap memory, which is not scanned by the " +
+      "garbage collector. The off-heap memory still counts against the storage memory.",
+    isPublic = false)
+
+  val VECTORIZED_CACHED_SCAN = booleanConf("spark.sql.inMemoryColumnarStorage.vectorized",
+    defaultValue = Some(true),
+    //一次扫描缓存表的一个批次,并按列计算其上的过滤和投影
+    doc = "When set to true, cached tables are scanned a batch at a time, and the filters and " +
+      "projections right above the scan are evaluated a column at a time when they can be.",
+    isPublic = false)
+
   val AUTO_BROADCASTJOIN_THRESHOLD = intConf("spark.sql.autoBroadcastJoinThreshold",
     defaultValue = Some(10 * 1024 * 1024),
     doc = "Configures the maximum size in bytes for a table that will be broadcast to all worker " +
@@ -244,6 +259,23 @@ private[spark] object SQLConf {
     defaultValue = Some(true),  // use TUNGSTEN_ENABLED as default
     doc = "When true, use the new optimized Tungsten physical execution backend.",
     isPublic = false)
+  //哈希聚合内存不足时溢出到磁盘的哈希分区数,0表示回退到基于排序的聚合
+  val TUNGSTEN_AGGREGATE_HASH_SPILL_PARTITIONS =
+    intConf("spark.sql.tungsten.aggregate.hashSpillPartitions",
+      defaultValue = Some(0),
+      //当大于0时,哈希聚合在内存不足时按分组键的哈希将Map溢出到这么多个磁盘分区,而不是回退到基于排序的聚合
+      doc = "When greater than 0, Tungsten hash aggregation that runs out of memory spills its " +
+        "hash map to this many hash partitions on disk and aggregates each partition separately " +
+        "afterwards, instead of falling back to sort-based aggregation. Must be a power of 2 " +
+        "no larger than 128.",
+      isPublic = false)
+  //当排序的第一个键是字符串时,在指针数组中保留16字节的前缀,而不是8字节
+  val TUNGSTEN_SORT_WIDE_PREFIX = booleanConf("spark.sql.tungsten.sort.widePrefix",
+    defaultValue = Some(true),
+    doc = "When true, Tungsten sort keeps a 16-byte key prefix instead of an 8-byte one per " +
+      "record when the first sort key is a string, so that fewer comparisons of strings with a " +
+      "long common prefix have to look at the rows themselves.",
+    isPublic = false)
   //默认的SQL方言的使用
   val DIALECT = stringConf(
     "spark.sql.dialect",
@@ -512,6 +544,11 @@ private[sql] class SQLConf extends Serializable with CatalystConf {
 
   private[spark] def unsafeEnabled: Boolean = getConf(UNSAFE_ENABLED, getConf(TUNGSTEN_ENABLED))
 
+  private[spark] def tungstenAggregateHashSpillPartitions: Int =
+    getConf(TUNGSTEN_AGGREGATE_HASH_SPILL_PARTITIONS)
+
+  private[spark] def tungstenSortWidePrefix: Boolean = getConf(TUNGSTEN_SORT_WIDE_PREFIX)
+
   private[spark] def useSqlAggregate2: Boolean = getConf(USE_SQL_AGGREGATE2)
 
   private[spark] def autoBroadcastJoinThreshold: Int = getConf(AUTO_BROADCASTJOIN_THRESHOLD)
@@ -527,6 +564,10 @@ private[sql] class SQLConf extends Serializable with CatalystConf {
 
   private[spark] def inMemoryPartitionPruning: Boolean = getConf(IN_MEMORY_PARTITION_PRUNING)
 
+  private[spark] def offHeapCaching: Boolean = getConf(OFF_HEAP_CACHED)
+
+  private[spark] def vectorizedCachedScan: Boolean = getConf(VECTORIZED_CACHED_SCAN)
+
   private[spark] def columnNameOfCorruptRecord: String = getConf(COLUMN_NAME_OF_CORRUPT_RECORD)
 
   private[spark] def broadcastTimeout: Int = getConf(BROADCAST_TIMEOUT)
@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.columnar
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{BaseGenericInternalRow, GenericInternalRow,
+  MutableRow}
+import org.apache.spark.sql.types._
+
+/**
+ * A column of a [[ColumnarBatch]]. Values of primitive types are kept in a primitive array of that
+ * type (dates in `ints`, timestamps in `longs`), and values of any other type in `objects`. Nulls
+ * are tracked in a bitmap, and the values at null positions are undefined.
+ */
+private[sql] final class ColumnVector(val dataType: DataType, val capacity: Int) {
+
+  private[sql] val booleans: Array[Boolean] =
+    if (dataType == BooleanType) new Array[Boolean](capacity) else null
+  private[sql] val bytes: Array[Byte] =
+    if (dataType == ByteType) new Array[Byte](capacity) else null
+  private[sql] val shorts: Array[Short] =
+    if (dataType == ShortType) new Array[Short](capacity) else null
+  private[sql] val ints: Array[Int] = dataType match {
+    case IntegerType | DateType => new Array[Int](capacity)
+    case _ => null
+  }
+  private[sql] val longs: Array[Long] = dataType match {
+    case LongType | TimestampType => new Array[Long](capacity)
+    case _ => null
+  }
+  private[sql] val floats: Array[Float] =
+    if (dataType == FloatType) new Array[Float](capacity) else null
+  private[sql] val doubles: Array[Double] =
+    if (dataType == DoubleType) new Array[Double](capacity) else null
+  private[sql] val objects: Array[AnyRef] = if (ColumnVector.isPrimitive(dataType)) {
+    null
+  } else {
+    new Array[AnyRef](capacity)
+  }
+
+  // One bit per row, set if the value is null.
+  private[sql] val nulls = new Array[Long]((capacity + 63) / 64)
+  private[this] var _hasNulls = false
+
+  def hasNulls: Boolean = _hasNulls
+
+  def isNullAt(rowId: Int): Boolean = (nulls(rowId >>> 6) & (1L << rowId)) != 0
+
+  def setNullAt(rowId: Int): Unit = {
+    nulls(rowId >>> 6) |= 1L << rowId
+    _hasNulls = true
+  }
+
+  /** Marks every value as not null, so that the vector can be filled again. */
+  def reset(): Unit = {
+    if (_hasNulls) {
+      java.util.Arrays.fill(nulls, 0L)
+      _hasNulls = false
+    }
+  }
+
+  /** Makes the first `numRows` values null where they are null in either of the given vectors. */
+  def setNullsFrom(left: ColumnVector, right: ColumnVector, numRows: Int): Unit = {
+    reset()
+    if (left.hasNulls || right.hasNulls) {
+      var i = 0
+      val numWords = (numRows + 63) / 64
+      while (i < numWords) {
+        nulls(i) = left.nulls(i) | right.nulls(i)
+        i += 1
+      }
+      _hasNulls = true
+    }
+  }
+
+  /** Returns the value at `rowId`, boxed, or null. */
+  def get(rowId: Int): Any = {
+    if (isNullAt(rowId)) {
+      null
+    } else if (ints != null) {
+      ints(rowId)
+    } else if (longs != null) {
+      longs(rowId)
+    } else if (doubles != null) {
+      doubles(rowId)
+    } else if (objects != null) {
+      objects(rowId)
+    } else if (floats != null) {
+      floats(rowId)
+    } else if (booleans != null) {
+      booleans(rowId)
+    } else if (shorts != null) {
+      shorts(rowId)
+    } else {
+      bytes(rowId)
+    }
+  }
+
+  /** Sets the value at `rowId`, which must not be null. */
+  def put(rowId: Int, value: Any): Unit = {
+    if (ints != null) {
+      ints(rowId) = value.asInstanceOf[Int]
+    } else if (longs != null) {
+      longs(rowId) = value.asInstanceOf[Long]
+    } else if (doubles != null) {
+      doubles(rowId) = value.asInstanceOf[Double]
+    } else if (objects != null) {
+      objects(rowId) = value.asInstanceOf[AnyRef]
+    } else if (floats != null) {
+      floats(rowId) = value.asInstanceOf[Float]
+    } else if (booleans != null) {
+      booleans(rowId) = value.asInstanceOf[Boolean]
+    } else if (shorts != null) {
+      shorts(rowId) = value.asInstanceOf[Short]
+    } else {
+      bytes(rowId) = value.asInstanceOf[Byte]
+    }
+  }
+
+  /**
+   * A single-field row that writes to the value at `rowId`, through which column accessors can
+   * fill the vector.
+   */
+  private[sql] final class Writer extends MutableRow with BaseGenericInternalRow {
+    var rowId = 0
+
+    override def numFields: Int = 1
+
+    override protected def genericGet(ordinal: Int): Any = ColumnVector.this.get(rowId)
+
+    override def copy(): InternalRow = new GenericInternalRow(Array[Any](genericGet(0)))
+
+    override def setNullAt(i: Int): Unit = ColumnVector.this.setNullAt(rowId)
+
+    override def update(i: Int, value: Any): Unit = {
+      if (value == null) setNullAt(i) else put(rowId, value)
+    }
+
+    override def setBoolean(i: Int, value: Boolean): Unit = { booleans(rowId) = value }
+    override def setByte(i: Int, value: Byte): Unit = { bytes(rowId) = value }
+    override def setShort(i: Int, value: Short): Unit = { shorts(rowId) = value }
+    override def setInt(i: Int, value: Int): Unit = { ints(rowId) = value }
+    override def setLong(i: Int, value: Long): Unit = { longs(rowId) = value }
+    override def setFloat(i: Int, value: Float): Unit = { floats(rowId) = value }
+    override def setDouble(i: Int, value: Double): Unit = { doubles(rowId) = value }
+  }
+}
+
+private[sql] object ColumnVector {
+  def isPrimitive(dataType: DataType): Boolean = dataType match {
+    case BooleanType | ByteType | ShortType | IntegerType | DateType | LongType | TimestampType |
+         FloatType | DoubleType => true
+    case _ => false
+  }
+}
+
+/**
+ * A batch of up to `capacity` rows stored column by column, so that expressions can be evaluated
+ * a column at a time over primitive arrays instead of a row at a time.
+ *
+ * Filters do not move any data. They narrow down the `selected` rows instead, which are all the
+ * rows of the batch while `selected` is null.
+ */
+private[sql] final class ColumnarBatch(val columns: Array[ColumnVector], val capacity: Int) {
+
+  /** Number of rows in the batch, including the ones that were filtered out. */
+  var numRows = 0
+
+  /** Indices of the rows that are left, in increasing order, or null if all rows are. */
+  var selected: Array[Int] = null
+
+  /** Number of valid entries in `selected`. */
+  var numSelected = 0
+
+  def numRowsSelected: Int = if (selected == null) numRows else numSelected
+
+  /**
+   * Returns the indices of the rows that are left, in the first `numRowsSelected` entries. If all
+   * rows are, they are written to `scratch`, which must hold at least `numRows` entries, and
+   * `scratch` becomes the selection of the batch. The caller keeps `scratch` for the next batch.
+   */
+  def selectedRows(scratch: Array[Int]): Array[Int] = {
+    if (selected == null) {
+      var i = 0
+      while (i < numRows) {
+        scratch(i) = i
+        i += 1
+      }
+      selected = scratch
+      numSelected = numRows
+    }
+    selected
+  }
+
+  /** Takes over the rows and selection of the given batch, keeping the columns of this one. */
+  def selectSameRowsAs(other: ColumnarBatch): Unit = {
+    numRows = other.numRows
+    selected = other.selected
+    numSelected = other.numSelected
+  }
+
+  /**
+   * Returns an iterator over the selected rows of the batch. The same row object is returned
+   * every time, pointing at the current row.
+   */
+  def rowIterator(): Iterator[InternalRow] = new Iterator[InternalRow] {
+    private[this] val row = new ColumnarBatch.Row(columns)
+    private[this] val rows = selected
+    private[this] val numRowsLeft = numRowsSelected
+    private[this] var i = 0
+
+    override def hasNext: Boolean = i < numRowsLeft
+
+    override def next(): InternalRow = {
+      row.rowId = if (rows == null) i else rows(i)
+      i += 1
+      row
+    }
+  }
+}
+
+private[sql] object ColumnarBatch {
+
+  /** A row of a [[ColumnarBatch]], which reads its fields from the column vectors. */
+  final class Row(columns: Array[ColumnVector]) extends BaseGenericInternalRow {
+    var rowId = 0
+
+    override def numFields: Int = columns.length
+
+    override protected def genericGet(ordinal: Int): Any = columns(ordinal).get(rowId)
+
+    override def copy(): InternalRow = {
+      val values = new Array[Any](columns.length)
+      var i = 0
+      while (i < values.length) {
+        values(i) = genericGet(i)
+        i += 1
+      }
+      new GenericInternalRow(values)
+    }
+
+    override def isNullAt(ordinal: Int): Boolean = columns(ordinal).isNullAt(rowId)
+    override def getBoolean(ordinal: Int): Boolean = columns(ordinal).booleans(rowId)
+    override def getByte(ordinal: Int): Byte = columns(ordinal).bytes(rowId)
+    override def getShort(ordinal: Int): Short = columns(ordinal).shorts(rowId)
+    override def getInt(ordinal: Int): Int = columns(ordinal).ints(rowId)
+    override def getLong(ordinal: Int): Long = columns(ordinal).longs(rowId)
+    override def getFloat(ordinal: Int): Float = columns(ordinal).floats(rowId)
+    override def getDouble(ordinal: Int): Double = columns(ordinal).doubles(rowId)
+  }
+}
@@ -27,9 +27,11 @@ import org.apache.spark.sql.catalyst.analysis.MultiInstanceRelation
 import org.apache.spark.sql.catalyst.dsl.expressions._
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.plans.logical.{LogicalPlan, Statistics}
-import org.apache.spark.sql.execution.{LeafNode, SparkPlan}
+import org.apache.spark.sql.types.DataType
+import org.apache.spark.sql.execution.{LeafNode, SparkPlan, VectorizedPlan}
 import org.apache.spark.storage.StorageLevel
-import org.apache.spark.{Accumulable, Accumulator, Accumulators}
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.{Accumulable, Accumulator, Accumulators, TaskContext}
 
 private[sql] object InMemoryRelation {
   def apply(
@@ -38,16 +40,54 @@ private[sql] object InMemoryRelation {
       storageLevel: StorageLevel,
       child: SparkPlan,
       tableName: Option[String]): InMemoryRelation =
-    new InMemoryRelation(child.output, useCompression, batchSize, storageLevel, child, tableName)()
+    apply(useCompression, batchSize, storageLevel, child, tableName, useOffHeap = false)
+
+  def apply(
+      useCompression: Boolean,
+      batchSize: Int,
+      storageLevel: StorageLevel,
+      child: SparkPlan,
+      tableName: Option[String],
+      useOffHeap: Boolean): InMemoryRelation =
+    new InMemoryRelation(
+      child.output, useCompression, batchSize, storageLevel, useOffHeap, child, tableName)()
+}
+
+/**
+ * A batch of cached rows, stored as one encoded buffer per column along with the statistics of
+ * the batch.
+ */
+private[sql] trait CachedBatch {
+  def stats: InternalRow
+
+  /** Returns a buffer over the encoded column with the given ordinal. */
+  def columnBuffer(ordinal: Int): ByteBuffer
+
+  /** Called before a scan reads the columns of this batch. */
+  def retain(): Unit = {}
+
+  /** Called once a scan is done reading the columns of this batch. */
+  def release(): Unit = {}
 }
 
-private[sql] case class CachedBatch(buffers: Array[Array[Byte]], stats: InternalRow)
+private[sql] case class OnHeapCachedBatch(buffers: Array[Array[Byte]], stats: InternalRow)
+  extends CachedBatch {
+
+  override def columnBuffer(ordinal: Int): ByteBuffer = ByteBuffer.wrap(buffers(ordinal))
+}
 
+/**
+ * A relation whose rows are cached column by column, in batches of `batchSize` rows.
+ *
+ * If `useOffHeap` is true and the storage level keeps deserialized blocks in memory, the column
+ * buffers of the batches are kept in off-heap memory (see [[OffHeapCachedBatch]]).
+ */
 private[sql] case class InMemoryRelation(
     output: Seq[Attribute],
     useCompression: Boolean,
     batchSize: Int,
     storageLevel: StorageLevel,
+    useOffHeap: Boolean,
     child: SparkPlan,
     tableName: Option[String])(
     private var _cachedColumnBuffers: RDD[CachedBatch] = null,
@@ -115,8 +155,13 @@ private[sql] case class InMemoryRelation(
     buildBuffers()
   }
 
+  // Serialized blocks are copied to the heap anyway, so they would gain nothing from it.
+  private def storesOffHeap: Boolean = useOffHeap && storageLevel.useMemory &&
+    storageLevel.deserialized && Platform.canWrapOffHeapMemory
+
   private def buildBuffers(): Unit = {
     val output = child.output
+    val offHeap = storesOffHeap
     val cached = child.execute().mapPartitions { rowIterator =>
       new Iterator[CachedBatch] {
         def next(): CachedBatch = {
@@ -150,7 +195,12 @@ private[sql] case class InMemoryRelation(
                         .flatMap(_.values))
 
           batchStats += stats
-          CachedBatch(columnBuilders.map(_.build().array()), stats)
+          val buffers = columnBuilders.map(_.build().array())
+          if (offHeap) {
+            OffHeapCachedBatch(buffers, stats)
+          } else {
+            OnHeapCachedBatch(buffers, stats)
+          }
         }
 
         def hasNext: Boolean = rowIterator.hasNext
@@ -163,7 +213,7 @@ private[sql] case class InMemoryRelation(
 
   def withOutput(newOutput: Seq[Attribute]): InMemoryRelation = {
     InMemoryRelation(
-      newOutput, useCompression, batchSize, storageLevel, child, tableName)(
+      newOutput, useCompression, batchSize, storageLevel, useOffHeap, child, tableName)(
       _cachedColumnBuffers, statisticsToBePropagated, batchStats)
   }
 
@@ -175,6 +225,7 @@ private[sql] case class InMemoryRelation(
       useCompression,
       batchSize,
       storageLevel,
+      useOffHeap,
       child,
       tableName)(
       _cachedColumnBuffers,
@@ -198,7 +249,7 @@ private[sql] case class InMemoryColumnarTableScan(
     attributes: Seq[Attribute],
     predicates: Seq[Expression],
     relation: InMemoryRelation)
-  extends LeafNode {
+  extends LeafNode with VectorizedPlan {
 
   override def output: Seq[Attribute] = attributes
 
@@ -265,42 +316,150 @@ private[sql] case class InMemoryColumnarTableScan(
 
   private val inMemoryPartitionPruningEnabled = sqlContext.conf.inMemoryPartitionPruning
 
-  protected override def doExecute(): RDD[InternalRow] = {
+  override val supportsBatches: Boolean = sqlContext.conf.vectorizedCachedScan
+
+  // Find the ordinals and data types of the requested columns.  If none are requested, use the
+  // narrowest (the field with minimum default element size).
+  //查找所请求列的序数和数据类型,如果没有请求,则使用最窄的列
+  private def requestedColumns: (Seq[Int], Seq[DataType]) = if (attributes.isEmpty) {
+    val (narrowestOrdinal, narrowestDataType) =
+      relation.output.zipWithIndex.map { case (a, ordinal) =>
+        ordinal -> a.dataType
+      } minBy { case (_, dataType) =>
+        ColumnType(dataType).defaultSize
+      }
+    Seq(narrowestOrdinal) -> Seq(narrowestDataType)
+  } else {
+    attributes.map { a =>
+      relation.output.indexWhere(_.exprId == a.exprId) -> a.dataType
+    }.unzip
+  }
+
+  private def resetAccumulators(): Unit = {
     if (enableAccumulators) {
       readPartitions.setValue(0)
       readBatches.setValue(0)
     }
+  }
 
-    relation.cachedColumnBuffers.mapPartitions { cachedBatchIterator =>
+  // Do partition batch pruning if enabled
+  //如果启用,则执行分区批量修剪
+  private def pruneBatches(cachedBatchIterator: Iterator[CachedBatch]): Iterator[CachedBatch] = {
+    if (inMemoryPartitionPruningEnabled) {
       val partitionFilter = newPredicate(
         partitionFilters.reduceOption(And).getOrElse(Literal(true)),
         relation.partitionStatistics.schema)
 
-      // Find the ordinals and data types of the requested columns.  If none are requested, use the
-      // narrowest (the field with minimum default element size).
-      val (requestedColumnIndices, requestedColumnDataTypes) = if (attributes.isEmpty) {
-        val (narrowestOrdinal, narrowestDataType) =
-          relation.output.zipWithIndex.map { case (a, ordinal) =>
-            ordinal -> a.dataType
-          } minBy { case (_, dataType) =>
-            ColumnType(dataType).defaultSize
+      cachedBatchIterator.filter { cachedBatch =>
+        if (!partitionFilter(cachedBatch.stats)) {
+          def statsString: String = relation.partitionStatistics.schema.zipWithIndex.map {
+            case (a, i) =>
+              val value = cachedBatch.stats.get(i, a.dataType)
+              s"${a.name}: $value"
+          }.mkString(", ")
+          logInfo(s"Skipping partition based on stats $statsString")
+          false
+        } else {
+          if (enableAccumulators) {
+            readBatches += 1
           }
-        Seq(narrowestOrdinal) -> Seq(narrowestDataType)
-      } else {
-        attributes.map { a =>
-          relation.output.indexWhere(_.exprId == a.exprId) -> a.dataType
-        }.unzip
+          true
+        }
+      }
+    } else {
+      cachedBatchIterator
+    }
+  }
+
+  /**
+   * Decodes every cached batch into a [[ColumnarBatch]]. The vectors are allocated once per
+   * partition and refilled for every batch, so a batch is only valid until the next one is read.
+   */
+  override def executeBatches(): RDD[ColumnarBatch] = {
+    resetAccumulators()
+
+    relation.cachedColumnBuffers.mapPartitions { cachedBatchIterator =>
+      val (requestedColumnIndices, requestedColumnDataTypes) = requestedColumns
+      val vectors = requestedColumnDataTypes.map(new ColumnVector(_, relation.batchSize)).toArray
+      val writers = vectors.map(vector => new vector.Writer)
+      val batch = new ColumnarBatch(
+        if (attributes.isEmpty) Array.empty else vectors, relation.batchSize)
+
+      val batches = pruneBatches(cachedBatchIterator).map { cachedBatch =>
+        cachedBatch.retain()
+        try {
+          var numRows = 0
+          var i = 0
+          while (i < vectors.length) {
+            val accessor = ColumnAccessor(
+              relation.output(requestedColumnIndices(i)).dataType,
+              cachedBatch.columnBuffer(requestedColumnIndices(i)))
+            val writer = writers(i)
+            vectors(i).reset()
+            var rowId = 0
+            while (accessor.hasNext) {
+              writer.rowId = rowId
+              accessor.extractTo(writer, 0)
+              rowId += 1
+            }
+            numRows = rowId
+            i += 1
+          }
+          batch.numRows = numRows
+          batch.selected = null
+          batch.numSelected = 0
+          batch
+        } finally {
+          cachedBatch.release()
+        }
+      }
+
+      if (batches.hasNext && enableAccumulators) {
+        readPartitions += 1
       }
 
+      batches
+    }
+  }
+
+  protected override def doExecute(): RDD[InternalRow] = {
+    if (supportsBatches) {
+      batchesToRows(executeBatches())
+    } else {
+      executeRows()
+    }
+  }
+
+  private def executeRows(): RDD[InternalRow] = {
+    resetAccumulators()
+
+    relation.cachedColumnBuffers.mapPartitions { cachedBatchIterator =>
+      val (requestedColumnIndices, requestedColumnDataTypes) = requestedColumns
+
       val nextRow = new SpecificMutableRow(requestedColumnDataTypes)
 
       def cachedBatchesToRows(cacheBatches: Iterator[CachedBatch]): Iterator[InternalRow] = {
+        // The batch being read, which stays retained until all of its rows have been read or the
+        // task completes, whichever comes first.
+        var currentBatch: CachedBatch = null
+        def releaseCurrentBatch(): Unit = {
+          if (currentBatch != null) {
+            currentBatch.release()
+            currentBatch = null
+          }
+        }
+        TaskContext.get().addTaskCompletionListener(_ => releaseCurrentBatch())
+
         val rows = cacheBatches.flatMap { cachedBatch =>
+          releaseCurrentBatch()
+          cachedBatch.retain()
+          currentBatch = cachedBatch
+
           // Build column accessors
           val columnAccessors = requestedColumnIndices.map { batchColumnIndex =>
             ColumnAccessor(
               relation.output(batchColumnIndex).dataType,
-              ByteBuffer.wrap(cachedBatch.buffers(batchColumnIndex)))
+              cachedBatch.columnBuffer(batchColumnIndex))
           }
 
           // Extract rows via column accessors
@@ -315,7 +474,12 @@ private[sql] case class InMemoryColumnarTableScan(
               if (attributes.isEmpty) InternalRow.empty else nextRow
             }
 
-            override def hasNext: Boolean = columnAccessors(0).hasNext
+            override def hasNext: Boolean = {
+              columnAccessors(0).hasNext || {
+                releaseCurrentBatch()
+                false
+              }
+            }
           }
         }
 
@@ -326,31 +490,7 @@ private[sql] case class InMemoryColumnarTableScan(
         rows
       }
 
-      // Do partition batch pruning if enabled
-      //如果启用,则执行分区批量修剪
-      val cachedBatchesToScan =
-        if (inMemoryPartitionPruningEnabled) {
-          cachedBatchIterator.filter { cachedBatch =>
-            if (!partitionFilter(cachedBatch.stats)) {
-              def statsString: String = relation.partitionStatistics.schema.zipWithIndex.map {
-                case (a, i) =>
-                  val value = cachedBatch.stats.get(i, a.dataType)
-                  s"${a.name}: $value"
-              }.mkString(", ")
-              logInfo(s"Skipping partition based on stats $statsString")
-              false
-            } else {
-              if (enableAccumulators) {
-                readBatches += 1
-              }
-              true
-            }
-          }
-        } else {
-          cachedBatchIterator
-        }
-
-      cachedBatchesToRows(cachedBatchesToScan)
+      cachedBatchesToRows(pruneBatches(cachedBatchIterator))
     }
   }
 }
@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.columnar
+
+import java.io.{Externalizable, ObjectInput, ObjectOutput}
+import java.nio.ByteBuffer
+
+import com.esotericsoftware.kryo.{Kryo, KryoSerializable}
+import com.esotericsoftware.kryo.io.{Input, Output}
+import sun.misc.Cleaner
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.storage.CloseableBlockValue
+import org.apache.spark.unsafe.Platform
+import org.apache.spark.unsafe.memory.{MemoryAllocator, MemoryBlock}
+import org.apache.spark.util.{KnownSizeEstimation, SizeEstimator, Utils}
+
+/**
+ * A [[CachedBatch]] that keeps its column buffers in one block of off-heap memory, so that large
+ * in-memory tables neither fill up the old generation nor get scanned by the garbage collector.
+ * Column accessors read the buffers in place, through direct `ByteBuffer`s over that memory.
+ *
+ * The memory is freed when the batch is closed, which the block manager does once the block
+ * holding the batch has been evicted, dropped to disk or unpersisted. A task that got or put the
+ * block retains its batches until the task completes (see [[CloseableBlockValue]]), so the memory
+ * of a block removed under memory pressure stays alive for the tasks still reading it, and is
+ * freed when the last of them releases it. Batches that are never closed, such as the ones read
+ * back from disk, are freed by a cleaner once they are unreachable.
+ *
+ * The batch is serialized by value, so that its block can be dropped to disk and read back.
+ */
+private[sql] final class OffHeapCachedBatch private (
+    private var _stats: InternalRow,
+    private var memory: OffHeapCachedBatch.Memory)
+  extends CachedBatch
+  with CloseableBlockValue
+  with KnownSizeEstimation
+  with Externalizable
+  with KryoSerializable {
+
+  import OffHeapCachedBatch._
+
+  // Only used for deserialization.
+  def this() = this(null, null)
+
+  if (memory != null) {
+    Cleaner.create(this, memory)
+  }
+
+  override def stats: InternalRow = _stats
+
+  def numColumns: Int = memory.columnOffsets.length - 1
+
+  override def columnBuffer(ordinal: Int): ByteBuffer = {
+    val start = memory.columnOffsets(ordinal)
+    Platform.wrapOffHeapMemory(
+      memory.block.getBaseOffset + start, memory.columnOffsets(ordinal + 1) - start)
+  }
+
+  /**
+   * Keeps the memory of this batch from being freed until [[release]] is called.
+   *
+   * @throws IllegalStateException if the memory has already been freed. The block manager
+   *                               retains batches for the tasks that read them before it can
+   *                               close them, so this means the batch was used after its release.
+   */
+  override def retain(): Unit = memory.retain()
+
+  override def release(): Unit = memory.release()
+
+  override def close(): Unit = memory.close()
+
+  override def estimatedSize: Long = {
+    memory.block.size + 8L * memory.columnOffsets.length + SizeEstimator.estimate(_stats)
+  }
+
+  private def columnBytes(ordinal: Int): Array[Byte] = {
+    val start = memory.columnOffsets(ordinal)
+    val bytes = new Array[Byte](memory.columnOffsets(ordinal + 1) - start)
+    Platform.copyMemory(null, memory.block.getBaseOffset + start,
+      bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length)
+    bytes
+  }
+
+  override def writeExternal(out: ObjectOutput): Unit = Utils.tryOrIOException {
+    out.writeObject(_stats)
+    retain()
+    try {
+      out.writeInt(numColumns)
+      var i = 0
+      while (i < numColumns) {
+        val bytes = columnBytes(i)
+        out.writeInt(bytes.length)
+        out.write(bytes)
+        i += 1
+      }
+    } finally {
+      release()
+    }
+  }
+
+  override def readExternal(in: ObjectInput): Unit = Utils.tryOrIOException {
+    _stats = in.readObject().asInstanceOf[InternalRow]
+    val buffers = Array.fill(in.readInt()) {
+      val bytes = new Array[Byte](in.readInt())
+      in.readFully(bytes)
+      bytes
+    }
+    memory = allocate(buffers)
+    Cleaner.create(this, memory)
+  }
+
+  override def write(kryo: Kryo, output: Output): Unit = {
+    kryo.writeClassAndObject(output, _stats)
+    retain()
+    try {
+      output.writeInt(numColumns)
+      var i = 0
+      while (i < numColumns) {
+        val bytes = columnBytes(i)
+        output.writeInt(bytes.length)
+        output.writeBytes(bytes)
+        i += 1
+      }
+    } finally {
+      release()
+    }
+  }
+
+  override def read(kryo: Kryo, input: Input): Unit = {
+    _stats = kryo.readClassAndObject(input).asInstanceOf[InternalRow]
+    val buffers = Array.fill(input.readInt()) {
+      input.readBytes(input.readInt())
+    }
+    memory = allocate(buffers)
+    Cleaner.create(this, memory)
+  }
+}
+
+private[sql] object OffHeapCachedBatch {
+
+  /**
+   * Copies the given column buffers into off-heap memory.
+   */
+  def apply(buffers: Array[Array[Byte]], stats: InternalRow): OffHeapCachedBatch = {
+    new OffHeapCachedBatch(stats, allocate(buffers))
+  }
+
+  private def allocate(buffers: Array[Array[Byte]]): Memory = {
+    val columnOffsets = new Array[Int](buffers.length + 1)
+    var i = 0
+    while (i < buffers.length) {
+      columnOffsets(i + 1) = columnOffsets(i) + buffers(i).length
+      i += 1
+    }
+    // The allocator only hands out whole words.
+    val size = math.max(8L, (columnOffsets(buffers.length) + 7L) / 8 * 8)
+    val block = MemoryAllocator.UNSAFE.allocate(size)
+    i = 0
+    while (i < buffers.length) {
+      Platform.copyMemory(buffers(i), Platform.BYTE_ARRAY_OFFSET,
+        null, block.getBaseOffset + columnOffsets(i), buffers(i).length)
+      i += 1
+    }
+    new Memory(block, columnOffsets)
+  }
+
+  /**
+   * The off-heap memory of a batch, along with the count of the scans reading it. This is also
+   * the action of the batch's cleaner, so it must not refer to the batch itself.
+   */
+  private final class Memory(val block: MemoryBlock, val columnOffsets: Array[Int])
+    extends Runnable {
+
+    private[this] var refCount = 0
+    private[this] var closed = false
+    private[this] var freed = false
+
+    def retain(): Unit = synchronized {
+      if (freed) {
+        throw new IllegalStateException(
+          "Cached batch was read after its memory was freed")
+      }
+      refCount += 1
+    }
+
+    def release(): Unit = synchronized {
+      assert(refCount > 0, "Cached batch was released more often than it was retained")
+      refCount -= 1
+      if (closed && refCount == 0) {
+        free()
+      }
+    }
+
+    def close(): Unit = synchronized {
+      closed = true
+      if (refCount == 0) {
+        free()
+      }
+    }
+
+    // Run by the cleaner once the batch is unreachable, when no scan can be reading it anymore.
+    override def run(): Unit = synchronized {
+      free()
+    }
+
+    private def free(): Unit = {
+      if (!freed) {
+        freed = true
+        MemoryAllocator.UNSAFE.free(block)
+      }
+    }
+  }
+}
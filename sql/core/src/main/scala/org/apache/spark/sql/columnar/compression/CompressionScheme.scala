@@ -63,7 +63,8 @@ private[sql] trait AllCompressionSchemes extends WithCompressionSchemes {
 
 private[sql] object CompressionScheme {
   val all: Seq[CompressionScheme] =
-    Seq(PassThrough, RunLengthEncoding, DictionaryEncoding, BooleanBitSet, IntDelta, LongDelta)
+    Seq(PassThrough, RunLengthEncoding, DictionaryEncoding, BooleanBitSet, IntDelta, LongDelta,
+      FrameOfReference, FloatXor)
 
   private val typeIdToScheme = all.map(scheme => scheme.typeId -> scheme).toMap
 
@@ -532,3 +532,384 @@ private[sql] case object LongDelta extends CompressionScheme {
     }
   }
 }
+
+/**
+ * Packs values of up to 64 bits into longs, starting from the least significant bit of each long.
+ */
+private[compression] class BitPacker(buffer: ByteBuffer) {
+  private var word = 0L
+  private var bitsInWord = 0
+
+  /** Appends the lowest `numBits` bits of `value`. */
+  def write(value: Long, numBits: Int): Unit = {
+    if (numBits > 0) {
+      val bits = if (numBits == 64) value else value & ((1L << numBits) - 1)
+      word |= bits << bitsInWord
+      val totalBits = bitsInWord + numBits
+      if (totalBits >= 64) {
+        buffer.putLong(word)
+        // Keeps the bits of `value` that did not fit into the word that was just written.
+        word = if (bitsInWord == 0) 0L else bits >>> (64 - bitsInWord)
+        bitsInWord = totalBits - 64
+      } else {
+        bitsInWord = totalBits
+      }
+    }
+  }
+
+  /** Writes out the last word if it is partially filled. */
+  def flush(): Unit = {
+    if (bitsInWord > 0) {
+      buffer.putLong(word)
+      word = 0L
+      bitsInWord = 0
+    }
+  }
+}
+
+/**
+ * Reads back the values packed by a [[BitPacker]].
+ */
+private[compression] class BitUnpacker(buffer: ByteBuffer) {
+  // The bits of the current word that have not been read yet, in its lowest `bitsLeft` bits.
+  private var word = 0L
+  private var bitsLeft = 0
+
+  def read(numBits: Int): Long = {
+    if (numBits == 0) {
+      0L
+    } else if (numBits <= bitsLeft) {
+      val value = word & ((1L << numBits) - 1)
+      word >>>= numBits
+      bitsLeft -= numBits
+      value
+    } else {
+      val next = buffer.getLong()
+      val bitsFromNext = numBits - bitsLeft
+      val value = word | (next << bitsLeft)
+      word = if (bitsFromNext == 64) 0L else next >>> bitsFromNext
+      bitsLeft = 64 - bitsFromNext
+      if (numBits == 64) value else value & ((1L << numBits) - 1)
+    }
+  }
+
+  /** Skips the rest of the current word, which is where the next [[BitPacker.flush]] left off. */
+  def skipToNextWord(): Unit = {
+    word = 0L
+    bitsLeft = 0
+  }
+}
+
+/**
+ * Frame-of-reference encoding for integral columns. Values are encoded in blocks of
+ * `BLOCK_SIZE` values, each made of the minimum of the block and the differences between its
+ * values and that minimum, bit-packed with just as many bits as the largest difference needs.
+ * Unlike [[IntDelta]] and [[LongDelta]], values that are not sorted compress as long as they lie
+ * in a narrow range, and a block of equal values takes no more than its header.
+ *
+ * Layout: the value count, then for every block its minimum (a long), its bit width (a byte) and
+ * its packed differences (`ceil(n * width / 64)` longs).
+ */
+private[sql] case object FrameOfReference extends CompressionScheme {
+  override val typeId = 6
+
+  val BLOCK_SIZE = 128
+
+  // Minimum and bit width
+  private val BLOCK_HEADER_SIZE = 8 + 1
+
+  override def encoder[T <: AtomicType](columnType: NativeColumnType[T]): Encoder[T] = {
+    new this.Encoder[T](columnType)
+  }
+
+  override def decoder[T <: AtomicType](
+      buffer: ByteBuffer, columnType: NativeColumnType[T]): Decoder[T] = {
+    new this.Decoder(buffer, columnType)
+  }
+
+  override def supports(columnType: ColumnType[_]): Boolean = columnType match {
+    case INT | LONG | SHORT | BYTE | DATE | TIMESTAMP => true
+    case _ => false
+  }
+
+  // The supported types are told apart by their size, which is cheaper than matching on them.
+  private def getValue(valueSize: Int, row: InternalRow, ordinal: Int): Long = valueSize match {
+    case 4 => row.getInt(ordinal)
+    case 8 => row.getLong(ordinal)
+    case 2 => row.getShort(ordinal)
+    case 1 => row.getByte(ordinal)
+  }
+
+  private def extractValue(valueSize: Int, buffer: ByteBuffer): Long = valueSize match {
+    case 4 => buffer.getInt()
+    case 8 => buffer.getLong()
+    case 2 => buffer.getShort()
+    case 1 => buffer.get()
+  }
+
+  private def bitWidth(min: Long, max: Long): Int = {
+    // The range is unsigned, so that it also fits when `max - min` overflows.
+    64 - java.lang.Long.numberOfLeadingZeros(max - min)
+  }
+
+  private def blockSize(numValues: Int, bitWidth: Int): Int = {
+    BLOCK_HEADER_SIZE + ((numValues.toLong * bitWidth + 63) / 64 * 8).toInt
+  }
+
+  class Encoder[T <: AtomicType](columnType: NativeColumnType[T]) extends compression.Encoder[T] {
+    private val valueSize = columnType.defaultSize
+    private var _uncompressedSize = 0
+    // Size of the value count and of the blocks completed so far
+    private var completedBlocksSize = 4
+
+    private var blockMin = 0L
+    private var blockMax = 0L
+    private var blockCount = 0
+
+    override def uncompressedSize: Int = _uncompressedSize
+
+    override def compressedSize: Int = {
+      completedBlocksSize +
+        (if (blockCount > 0) blockSize(blockCount, bitWidth(blockMin, blockMax)) else 0)
+    }
+
+    override def gatherCompressibilityStats(row: InternalRow, ordinal: Int): Unit = {
+      val value = getValue(valueSize, row, ordinal)
+      _uncompressedSize += valueSize
+
+      if (blockCount == 0) {
+        blockMin = value
+        blockMax = value
+      } else {
+        blockMin = math.min(blockMin, value)
+        blockMax = math.max(blockMax, value)
+      }
+      blockCount += 1
+
+      if (blockCount == BLOCK_SIZE) {
+        completedBlocksSize += blockSize(blockCount, bitWidth(blockMin, blockMax))
+        blockCount = 0
+      }
+    }
+
+    override def compress(from: ByteBuffer, to: ByteBuffer): ByteBuffer = {
+      to.putInt(FrameOfReference.typeId)
+        .putInt(from.remaining / valueSize)
+
+      val packer = new BitPacker(to)
+      val block = new Array[Long](BLOCK_SIZE)
+      while (from.hasRemaining) {
+        var count = 0
+        var min = Long.MaxValue
+        var max = Long.MinValue
+        while (from.hasRemaining && count < BLOCK_SIZE) {
+          val value = extractValue(valueSize, from)
+          min = math.min(min, value)
+          max = math.max(max, value)
+          block(count) = value
+          count += 1
+        }
+
+        val width = bitWidth(min, max)
+        to.putLong(min).put(width.toByte)
+        var i = 0
+        while (i < count) {
+          packer.write(block(i) - min, width)
+          i += 1
+        }
+        packer.flush()
+      }
+
+      to.rewind()
+      to
+    }
+  }
+
+  class Decoder[T <: AtomicType](buffer: ByteBuffer, columnType: NativeColumnType[T])
+    extends compression.Decoder[T] {
+
+    private val valueSize = columnType.defaultSize
+    private val count = buffer.getInt()
+    private val unpacker = new BitUnpacker(buffer)
+
+    private var visited = 0
+    private var blockMin = 0L
+    private var bitWidth = 0
+
+    override def next(row: MutableRow, ordinal: Int): Unit = {
+      if (visited % BLOCK_SIZE == 0) {
+        unpacker.skipToNextWord()
+        blockMin = buffer.getLong()
+        bitWidth = buffer.get()
+      }
+      visited += 1
+
+      val value = blockMin + unpacker.read(bitWidth)
+      valueSize match {
+        case 4 => row.setInt(ordinal, value.toInt)
+        case 8 => row.setLong(ordinal, value)
+        case 2 => row.setShort(ordinal, value.toShort)
+        case 1 => row.setByte(ordinal, value.toByte)
+      }
+    }
+
+    override def hasNext: Boolean = visited < count
+  }
+}
+
+/**
+ * XOR encoding for floating point columns, as in Facebook's Gorilla. Each value is XOR-ed with
+ * the previous one, which for slowly changing series leaves a few meaningful bits in the middle:
+ *
+ *  - `0` if the value is the same as the previous one,
+ *  - `10` followed by the meaningful bits, if they fit in the window of the previous value,
+ *  - `11` followed by the number of leading zeros (5 bits), the number of meaningful bits minus
+ *    one (6 bits) and the meaningful bits otherwise.
+ *
+ * The first value is stored as is, after the value count. Everything is packed by a [[BitPacker]].
+ */
+private[sql] case object FloatXor extends CompressionScheme {
+  override val typeId = 7
+
+  private val MAX_LEADING_ZEROS = 31
+
+  override def encoder[T <: AtomicType](columnType: NativeColumnType[T]): Encoder[T] = {
+    new this.Encoder[T](columnType)
+  }
+
+  override def decoder[T <: AtomicType](
+      buffer: ByteBuffer, columnType: NativeColumnType[T]): Decoder[T] = {
+    new this.Decoder(buffer, columnType)
+  }
+
+  override def supports(columnType: ColumnType[_]): Boolean = columnType match {
+    case FLOAT | DOUBLE => true
+    case _ => false
+  }
+
+  private def valueBits(columnType: ColumnType[_]): Int = columnType.defaultSize * 8
+
+  /**
+   * The state of the encoding, which the encoder uses both to compute the compressed size and to
+   * write the values. Values are the raw bits of the floats or doubles.
+   */
+  private class XorState(numBits: Int, packer: BitPacker) {
+    var bitsWritten = 0L
+
+    private var count = 0
+    private var prevValue = 0L
+    private var prevLeadingZeros = 0
+    private var prevTrailingZeros = 0
+    private var hasWindow = false
+
+    private def write(value: Long, bits: Int): Unit = {
+      if (packer != null) {
+        packer.write(value, bits)
+      }
+      bitsWritten += bits
+    }
+
+    def append(value: Long): Unit = {
+      if (count == 0) {
+        write(value, numBits)
+      } else {
+        val xor = value ^ prevValue
+        if (xor == 0) {
+          write(0, 1)
+        } else {
+          val leadingZeros = math.min(
+            java.lang.Long.numberOfLeadingZeros(xor) - (64 - numBits), MAX_LEADING_ZEROS)
+          val trailingZeros = java.lang.Long.numberOfTrailingZeros(xor)
+          if (hasWindow && leadingZeros >= prevLeadingZeros &&
+              trailingZeros >= prevTrailingZeros) {
+            write(1, 1)
+            write(0, 1)
+            write(xor >>> prevTrailingZeros, numBits - prevLeadingZeros - prevTrailingZeros)
+          } else {
+            val meaningfulBits = numBits - leadingZeros - trailingZeros
+            write(1, 1)
+            write(1, 1)
+            write(leadingZeros, 5)
+            write(meaningfulBits - 1, 6)
+            write(xor >>> trailingZeros, meaningfulBits)
+            prevLeadingZeros = leadingZeros
+            prevTrailingZeros = trailingZeros
+            hasWindow = true
+          }
+        }
+      }
+      prevValue = value
+      count += 1
+    }
+  }
+
+  class Encoder[T <: AtomicType](columnType: NativeColumnType[T]) extends compression.Encoder[T] {
+    private val numBits = valueBits(columnType)
+    private var _uncompressedSize = 0
+    private val state = new XorState(numBits, null)
+
+    override def uncompressedSize: Int = _uncompressedSize
+
+    // Value count + packed bits
+    override def compressedSize: Int = 4 + ((state.bitsWritten + 63) / 64 * 8).toInt
+
+    override def gatherCompressibilityStats(row: InternalRow, ordinal: Int): Unit = {
+      _uncompressedSize += columnType.defaultSize
+      state.append(if (numBits == 32) {
+        java.lang.Float.floatToRawIntBits(row.getFloat(ordinal)) & 0xFFFFFFFFL
+      } else {
+        java.lang.Double.doubleToRawLongBits(row.getDouble(ordinal))
+      })
+    }
+
+    override def compress(from: ByteBuffer, to: ByteBuffer): ByteBuffer = {
+      to.putInt(FloatXor.typeId)
+        .putInt(from.remaining / columnType.defaultSize)
+
+      val packer = new BitPacker(to)
+      val writer = new XorState(numBits, packer)
+      while (from.hasRemaining) {
+        writer.append(if (numBits == 32) from.getInt() & 0xFFFFFFFFL else from.getLong())
+      }
+      packer.flush()
+
+      to.rewind()
+      to
+    }
+  }
+
+  class Decoder[T <: AtomicType](buffer: ByteBuffer, columnType: NativeColumnType[T])
+    extends compression.Decoder[T] {
+
+    private val numBits = valueBits(columnType)
+    private val count = buffer.getInt()
+    private val unpacker = new BitUnpacker(buffer)
+
+    private var visited = 0
+    private var prevValue = 0L
+    private var leadingZeros = 0
+    private var trailingZeros = 0
+
+    override def next(row: MutableRow, ordinal: Int): Unit = {
+      if (visited == 0) {
+        prevValue = unpacker.read(numBits)
+      } else if (unpacker.read(1) != 0) {
+        if (unpacker.read(1) != 0) {
+          leadingZeros = unpacker.read(5).toInt
+          trailingZeros = numBits - leadingZeros - (unpacker.read(6).toInt + 1)
+        }
+        val meaningfulBits = numBits - leadingZeros - trailingZeros
+        prevValue ^= unpacker.read(meaningfulBits) << trailingZeros
+      }
+      visited += 1
+
+      if (numBits == 32) {
+        row.setFloat(ordinal, java.lang.Float.intBitsToFloat(prevValue.toInt))
+      } else {
+        row.setDouble(ordinal, java.lang.Double.longBitsToDouble(prevValue))
+      }
+    }
+
+    override def hasNext: Boolean = visited < count
+  }
+}
@@ -114,7 +114,8 @@ private[sql] class CacheManager(sqlContext: SQLContext) extends Logging {
             sqlContext.conf.columnBatchSize,
             storageLevel,
             sqlContext.executePlan(query.logicalPlan).executedPlan,
-            tableName))
+            tableName,
+            sqlContext.conf.offHeapCaching))
     }
   }
 
@@ -52,6 +52,12 @@ object SortPrefixUtils {
     }
   }
 
+  /**
+   * Returns true if sort keys of the given order have a [[SecondSortPrefix]], which the prefix
+   * comparator for the order can compare as well. This is the case for strings.
+   */
+  def hasSecondPrefix(sortOrder: SortOrder): Boolean = sortOrder.dataType == StringType
+
   /**
    * Creates the prefix comparator for the first field in the given schema, in ascending order.
     * 以升序创建给定模式中第一个字段的前缀比较器
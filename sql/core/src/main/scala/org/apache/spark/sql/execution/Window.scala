@@ -19,13 +19,13 @@ package org.apache.spark.sql.execution
 
 import java.util
 
+import org.apache.spark.{SparkEnv, TaskContext}
 import org.apache.spark.annotation.DeveloperApi
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.plans.physical._
 import org.apache.spark.sql.types.IntegerType
-import org.apache.spark.rdd.RDD
-import org.apache.spark.util.collection.CompactBuffer
+import org.apache.spark.rdd.{MapPartitionsWithPreparationRDD, RDD}
 import scala.collection.mutable
 
 /**
@@ -70,6 +70,12 @@ import scala.collection.mutable
  * partition and partitions must be sorted according to the grouping and sort order. The operator
  * requires the planner to take care of the partitioning and sorting.
  *
+ * The rows of the group being processed are kept as [[UnsafeRow]]s in an
+ * [[ExternalUnsafeRowBuffer]], which spills them to disk when the group does not fit in the
+ * memory available to the task. The frames read the group sequentially from this buffer. The
+ * buffer is set up before the child's partition is computed, so that it has at least one page of
+ * memory to work with even if the child (e.g. a TungstenSort) takes all the memory that is left.
+ *
  * The operator is semi-blocking. The window functions and aggregates are calculated one group at
  * a time, the result will only be made available after the processing for the entire group has
  * finished. The operator is able to process different frame configurations at the same time. This
@@ -265,8 +271,28 @@ case class Window(
         factories(index) = () => createFrameProcessor(frame, functions, ordinal)
     }
 
-      // Start processing.开始处理
-    child.execute().mapPartitions { stream =>
+    /**
+     * Set up the row buffer in each partition before computing the child partition, so that the
+     * buffer reserves its first page before other operators in the same task can take it.
+     * 在计算子分区之前设置行缓冲区,以确保它不会被同一任务中的其他运算符饿死
+     */
+    def preparePartition(): ExternalUnsafeRowBuffer = {
+      val taskContext = TaskContext.get()
+      new ExternalUnsafeRowBuffer(
+        taskContext.taskMemoryManager(),
+        SparkEnv.get.shuffleMemoryManager,
+        SparkEnv.get.blockManager,
+        taskContext,
+        child.output.size,
+        SparkEnv.get.shuffleMemoryManager.pageSizeBytes)
+    }
+
+    // Start processing.开始处理
+    def executePartition(
+        taskContext: TaskContext,
+        partitionIndex: Int,
+        rows: ExternalUnsafeRowBuffer,
+        stream: Iterator[InternalRow]): Iterator[InternalRow] = {
       new Iterator[InternalRow] {
 
         // Get all relevant projections.获取所有相关预测
@@ -276,6 +302,11 @@ case class Window(
         } else {
           newProjection(partitionSpec, child.output)
         }
+        val toUnsafe = if (child.outputsUnsafeRows) {
+          null
+        } else {
+          UnsafeProjection.create(child.output, child.output)
+        }
 
         // Manage the stream and the grouping.
         //管理流和分组
@@ -294,9 +325,9 @@ case class Window(
         }
         fetchNextRow()
 
-        // Manage the current partition.
+        // Manage the current partition, which is collected in rows.
         //管理当前分区
-        var rows: CompactBuffer[InternalRow] = _
+        var rowsReader: ExternalUnsafeRowBuffer#Reader = _
         val frames: Array[WindowFunctionFrame] = factories.map(_())
         val numFrames = frames.length
         private[this] def fetchNextPartition() {
@@ -304,9 +335,13 @@ case class Window(
           // Before we start to fetch new input rows, make a copy of nextGroup.
           //收集当前分区中的所有行,在我们开始获取新输入行之前,请复制nextGroup
           val currentGroup = nextGroup.copy()
-          rows = new CompactBuffer
+          rows.clear()
           while (nextRowAvailable && nextGroup == currentGroup) {
-            rows += nextRow.copy()
+            if (toUnsafe == null) {
+              rows.add(nextRow.asInstanceOf[UnsafeRow])
+            } else {
+              rows.add(toUnsafe(nextRow))
+            }
             fetchNextRow()
           }
 
@@ -320,7 +355,8 @@ case class Window(
 
           // Setup iteration 设置迭代
           rowIndex = 0
-          rowsSize = rows.size
+          rowsSize = rows.numRows
+          rowsReader = rows.newReader()
         }
 
         // Iteration
@@ -338,17 +374,20 @@ case class Window(
           }
 
           if (rowIndex < rowsSize) {
+            rowsReader.next()
+            val current = rowsReader.getRow
+
             // Get the results for the window frames.
             //获取窗框的结果
             var i = 0
             while (i < numFrames) {
-              frames(i).write(windowFunctionResult)
+              frames(i).write(rowIndex, current, windowFunctionResult)
               i += 1
             }
 
             // 'Merge' the input row with the window function result
             //'合并'输入行和窗口函数结果
-            join(rows(rowIndex), windowFunctionResult)
+            join(current, windowFunctionResult)
             rowIndex += 1
 
             // Return the projection.
@@ -357,6 +396,9 @@ case class Window(
         }
       }
     }
+
+    new MapPartitionsWithPreparationRDD[InternalRow, InternalRow, ExternalUnsafeRowBuffer](
+      child.execute(), preparePartition, executePartition, preservesPartitioning = true)
   }
 }
 
@@ -365,7 +407,11 @@ case class Window(
   * 用于比较边界值的函数
  */
 private[execution] abstract class BoundOrdering {
-  def compare(input: Seq[InternalRow], inputIndex: Int, outputIndex: Int): Int
+  def compare(
+      inputRow: InternalRow,
+      inputIndex: Int,
+      outputRow: InternalRow,
+      outputIndex: Int): Int
 }
 
 /**
@@ -373,7 +419,11 @@ private[execution] abstract class BoundOrdering {
   * 将输入索引与输出索引的边界进行比较
  */
 private[execution] final case class RowBoundOrdering(offset: Int) extends BoundOrdering {
-  override def compare(input: Seq[InternalRow], inputIndex: Int, outputIndex: Int): Int =
+  override def compare(
+      inputRow: InternalRow,
+      inputIndex: Int,
+      outputRow: InternalRow,
+      outputIndex: Int): Int =
     inputIndex - (outputIndex + offset)
 }
 
@@ -385,8 +435,12 @@ private[execution] final case class RangeBoundOrdering(
     ordering: Ordering[InternalRow],
     current: Projection,
     bound: Projection) extends BoundOrdering {
-  override def compare(input: Seq[InternalRow], inputIndex: Int, outputIndex: Int): Int =
-    ordering.compare(current(input(inputIndex)), bound(input(outputIndex)))
+  override def compare(
+      inputRow: InternalRow,
+      inputIndex: Int,
+      outputRow: InternalRow,
+      outputIndex: Int): Int =
+    ordering.compare(current(inputRow), bound(outputRow))
 }
 
 /**
@@ -407,7 +461,6 @@ private[execution] final case class RangeBoundOrdering(
  * improve on the current situation:
  * - Reduce memory footprint by performing streaming calculations. This can only be done when
  * there are no Unbound/Unbounded Following calculations present.
- * - Use Tungsten style memory usage.
  * - Use code generation in general, and use the approach to aggregation taken in the
  *   GeneratedAggregate class in specific.
  *
@@ -448,15 +501,23 @@ private[execution] abstract class WindowFunctionFrame(
    *
    * @param rows to calculate the frame results for.
    */
-  def prepare(rows: CompactBuffer[InternalRow]): Unit
+  def prepare(rows: ExternalUnsafeRowBuffer): Unit
 
   /**
-   * Write the result for the current row to the given target row.
+   * Write the result for the current row to the given target row. This is called for every row
+   * of the partition, in order.
     * 将当前行的结果写入给定的目标行
    *
+   * @param index of the current row within the partition.
+   * @param current row.
    * @param target row to write the result for the current row to.
    */
-  def write(target: GenericMutableRow): Unit
+  def write(index: Int, current: InternalRow, target: GenericMutableRow): Unit
+
+  /** Read the next row from a reader, returning null once all rows have been read. */
+  protected final def fetchRow(reader: ExternalUnsafeRowBuffer#Reader): UnsafeRow = {
+    if (reader.next()) reader.getRow else null
+  }
 
   /** Reset the current window functions.
     * 重置当前窗口功能 */
@@ -557,9 +618,13 @@ private[execution] final class SlidingWindowFunctionFrame(
     lbound: BoundOrdering,
     ubound: BoundOrdering) extends WindowFunctionFrame(ordinal, functions) {
 
-  /** Rows of the partition currently being processed.
+  /** Reader for the rows of the partition currently being processed.
     * 正在处理的分区的行*/
-  private[this] var input: CompactBuffer[InternalRow] = null
+  private[this] var input: ExternalUnsafeRowBuffer#Reader = null
+
+  /** The first input row with a value greater than the upper bound of the current output row, or
+    * null if all input rows have been added to the buffer. */
+  private[this] var nextRow: UnsafeRow = null
 
   /** Index of the first input row with a value greater than the upper bound of the current
     * output row.
@@ -571,35 +636,39 @@ private[execution] final class SlidingWindowFunctionFrame(
     * 第一个输入行的索引,其值等于或大于当前输出行的下限*/
   private[this] var inputLowIndex = 0
 
+  /** Copies of the input rows in the buffer, needed to check them against the lower bound. */
+  private[this] val bufferRows = new util.ArrayDeque[UnsafeRow]
+
   /** Buffer used for storing prepared input for the window functions.
     * 缓冲区用于存储窗口函数的准备输入*/
   private[this] val buffer = new util.ArrayDeque[Array[AnyRef]]
 
-  /** Index of the row we are currently writing.
-    * 我们目前正在编写的行的索引*/
-  private[this] var outputIndex = 0
-
   /** Prepare the frame for calculating a new partition. Reset all variables.
     * 准备用于计算新分区的框架,重置所有变量*/
-  override def prepare(rows: CompactBuffer[InternalRow]): Unit = {
-    input = rows
+  override def prepare(rows: ExternalUnsafeRowBuffer): Unit = {
+    if (input != null) {
+      input.close()
+    }
+    input = rows.newReader()
+    nextRow = fetchRow(input)
     inputHighIndex = 0
     inputLowIndex = 0
-    outputIndex = 0
+    bufferRows.clear()
     buffer.clear()
   }
 
   /** Write the frame columns for the current row to the given target row.
     * 将当前行的帧列写入给定目标行*/
-  override def write(target: GenericMutableRow): Unit = {
-    var bufferUpdated = outputIndex == 0
+  override def write(index: Int, current: InternalRow, target: GenericMutableRow): Unit = {
+    var bufferUpdated = index == 0
 
     // Add all rows to the buffer for which the input row value is equal to or less than
     // the output row upper bound.
     //将所有行添加到缓冲区,其输入行值等于或小于输出行上限
-    while (inputHighIndex < input.size &&
-        ubound.compare(input, inputHighIndex, outputIndex) <= 0) {
-      buffer.offer(prepare(input(inputHighIndex)))
+    while (nextRow != null && ubound.compare(nextRow, inputHighIndex, current, index) <= 0) {
+      bufferRows.offer(nextRow.copy())
+      buffer.offer(prepare(nextRow))
+      nextRow = fetchRow(input)
       inputHighIndex += 1
       bufferUpdated = true
     }
@@ -608,7 +677,8 @@ private[execution] final class SlidingWindowFunctionFrame(
     // the output row lower bound.
     //从缓冲区中删除输入行值小于输出行下限的所有行
     while (inputLowIndex < inputHighIndex &&
-        lbound.compare(input, inputLowIndex, outputIndex) < 0) {
+        lbound.compare(bufferRows.peek(), inputLowIndex, current, index) < 0) {
+      bufferRows.pop()
       buffer.pop()
       inputLowIndex += 1
       bufferUpdated = true
@@ -618,11 +688,8 @@ private[execution] final class SlidingWindowFunctionFrame(
     //仅在缓冲区更改时重新计算和更新
     if (bufferUpdated) {
       evaluatePrepared(buffer.iterator())
-      fill(target, outputIndex)
+      fill(target, index)
     }
-
-    // Move to the next row.
-    outputIndex += 1
   }
 
   /** Copy the frame. */
@@ -646,27 +713,21 @@ private[execution] final class UnboundedWindowFunctionFrame(
     ordinal: Int,
     functions: Array[WindowFunction]) extends WindowFunctionFrame(ordinal, functions) {
 
-  /** Index of the row we are currently writing.
-    * 我们目前正在编写的行的索引 */
-  private[this] var outputIndex = 0
-
   /** Prepare the frame for calculating a new partition. Process all rows eagerly.
     * 准备用于计算新分区的框架,急切地处理所有行*/
-  override def prepare(rows: CompactBuffer[InternalRow]): Unit = {
+  override def prepare(rows: ExternalUnsafeRowBuffer): Unit = {
     reset()
-    outputIndex = 0
-    val iterator = rows.iterator
-    while (iterator.hasNext) {
-      update(iterator.next())
+    val reader = rows.newReader()
+    while (reader.next()) {
+      update(reader.getRow)
     }
     evaluate()
   }
 
   /** Write the frame columns for the current row to the given target row.
     * 将当前行的帧列写入给定目标行 */
-  override def write(target: GenericMutableRow): Unit = {
-    fill(target, outputIndex)
-    outputIndex += 1
+  override def write(index: Int, current: InternalRow, target: GenericMutableRow): Unit = {
+    fill(target, index)
   }
 
   /** Copy the frame. */
@@ -694,35 +755,39 @@ private[execution] final class UnboundedPrecedingWindowFunctionFrame(
     functions: Array[WindowFunction],
     ubound: BoundOrdering) extends WindowFunctionFrame(ordinal, functions) {
 
-  /** Rows of the partition currently being processed.正在处理的分区的行 */
-  private[this] var input: CompactBuffer[InternalRow] = null
+  /** Reader for the rows of the partition currently being processed.正在处理的分区的行 */
+  private[this] var input: ExternalUnsafeRowBuffer#Reader = null
+
+  /** The first input row with a value greater than the upper bound of the current output row, or
+    * null if all input rows have been added to the aggregates. */
+  private[this] var nextRow: UnsafeRow = null
 
   /** Index of the first input row with a value greater than the upper bound of the current
     * output row. 第一个输入行的索引,其值大于当前输出行的上限*/
   private[this] var inputIndex = 0
 
-  /** Index of the row we are currently writing.
-    * 我们目前正在编写的行的索引*/
-  private[this] var outputIndex = 0
-
   /** Prepare the frame for calculating a new partition. 准备用于计算新分区的框架*/
-  override def prepare(rows: CompactBuffer[InternalRow]): Unit = {
+  override def prepare(rows: ExternalUnsafeRowBuffer): Unit = {
     reset()
-    input = rows
+    if (input != null) {
+      input.close()
+    }
+    input = rows.newReader()
+    nextRow = fetchRow(input)
     inputIndex = 0
-    outputIndex = 0
   }
 
   /** Write the frame columns for the current row to the given target row.
     * 将当前行的帧列写入给定目标行*/
-  override def write(target: GenericMutableRow): Unit = {
-    var bufferUpdated = outputIndex == 0
+  override def write(index: Int, current: InternalRow, target: GenericMutableRow): Unit = {
+    var bufferUpdated = index == 0
 
     // Add all rows to the aggregates for which the input row value is equal to or less than
     // the output row upper bound.
     //将所有行添加到输入行值等于或小于输出行上限的聚合
-    while (inputIndex < input.size && ubound.compare(input, inputIndex, outputIndex) <= 0) {
-      update(input(inputIndex))
+    while (nextRow != null && ubound.compare(nextRow, inputIndex, current, index) <= 0) {
+      update(nextRow)
+      nextRow = fetchRow(input)
       inputIndex += 1
       bufferUpdated = true
     }
@@ -731,11 +796,8 @@ private[execution] final class UnboundedPrecedingWindowFunctionFrame(
     //仅在缓冲区更改时重新计算和更新
     if (bufferUpdated) {
       evaluate()
-      fill(target, outputIndex)
+      fill(target, index)
     }
-
-    // Move to the next row.
-    outputIndex += 1
   }
 
   /** Copy the frame. */
@@ -754,9 +816,20 @@ private[execution] final class UnboundedPrecedingWindowFunctionFrame(
   * 只有一个上限,这是滑动窗口的略微修改版本,滑动窗口操作符必须检查在处理新行时上限和下限是否都会发生变化,
   * 而无界后续操作只需要检查下限
  *
- * This is a very expensive operator to use, O(n * (n - 1) /2), because we need to maintain a
- * buffer and must do full recalculation after each row. Reverse iteration would be possible, if
- * the communitativity of the used window functions can be guaranteed.
+ * When all window functions are order insensitive (see [[WindowFunction.isOrderInsensitive]]),
+ * the frame is evaluated in reverse: walking the output rows from last to first, the frame only
+ * grows, so every input row is added once and the results of all output rows are computed in
+ * O(n). Otherwise, when all window functions can merge partial aggregates (see
+ * [[WindowFunction.supportsMerge]]), each function gets a [[WindowSegmentTree]] over the partition,
+ * and the frame of an output row is evaluated by merging O(log n) partial aggregates, which takes
+ * O(n log n) for the partition. Only if neither is possible must the frame be recalculated from
+ * its lower bound whenever that bound moves, which makes it a very expensive operator to use,
+ * O(n * (n - 1) / 2).
+ *
+ * Unlike the other frames, this frame keeps the prepared input of every row of the partition on
+ * the heap while it processes the partition, because every way of evaluating it needs to revisit
+ * the input in an order that the sequential readers of [[ExternalUnsafeRowBuffer]] do not offer.
+ * A partition that spills therefore still needs heap memory for its prepared input here.
  *
  * @param ordinal of the first column written by this frame.
  * @param functions to calculate the row values with.
@@ -767,64 +840,226 @@ private[execution] final class UnboundedFollowingWindowFunctionFrame(
     functions: Array[WindowFunction],
     lbound: BoundOrdering) extends WindowFunctionFrame(ordinal, functions) {
 
+  /** Whether the frame is evaluated in reverse. */
+  private[this] val reverse = functions.forall(_.isOrderInsensitive)
+
+  /** Whether the frame is evaluated by merging the partial aggregates of segment trees. */
+  private[this] val merged = !reverse && functions.forall(_.supportsMerge)
+
+  /** Segment tree of each function over the partition, when evaluating through merges. */
+  private[this] var trees: Array[WindowSegmentTree] = _
+
   /** Buffer used for storing prepared input for the window functions.
     * 缓冲区用于存储窗口函数的准备输入*/
   private[this] var buffer: Array[Array[AnyRef]] = _
 
-  /** Rows of the partition currently being processed.
+  /** Results of all output rows of the partition when evaluating in reverse, row by row. */
+  private[this] var results: Array[Any] = _
+
+  /** Reader for the rows of the partition currently being processed.
     * 正在处理的分区的行*/
-  private[this] var input: CompactBuffer[InternalRow] = null
+  private[this] var input: ExternalUnsafeRowBuffer#Reader = null
+
+  /** The first input row with a value equal to or greater than the lower bound of the current
+    * output row, or null if all input rows have been dropped. */
+  private[this] var nextRow: UnsafeRow = null
 
   /** Index of the first input row with a value equal to or greater than the lower bound of the
     * current output row.
     * 第一个输入行的索引,其值等于或大于当前输出行的下限*/
   private[this] var inputIndex = 0
 
-  /** Index of the row we are currently writing.
-    * 我们目前正在编写的行的索引*/
-  private[this] var outputIndex = 0
-
   /** Prepare the frame for calculating a new partition.
     * 准备用于计算新分区的框架*/
-  override def prepare(rows: CompactBuffer[InternalRow]): Unit = {
-    input = rows
-    inputIndex = 0
-    outputIndex = 0
-    val size = input.size
-    buffer = Array.ofDim(size)
+  override def prepare(rows: ExternalUnsafeRowBuffer): Unit = {
+    buffer = Array.ofDim(rows.numRows)
+    val reader = rows.newReader()
     var i = 0
-    while (i < size) {
-      buffer(i) = prepare(input(i))
+    while (reader.next()) {
+      buffer(i) = prepare(reader.getRow)
       i += 1
     }
-    evaluatePrepared(buffer, 0, buffer.length)
+    if (input != null) {
+      input.close()
+    }
+    input = rows.newReader()
+    nextRow = fetchRow(input)
+    inputIndex = 0
+    if (reverse) {
+      evaluateInReverse(rows)
+    } else if (merged) {
+      trees = Array.tabulate(numColumns)(i => new WindowSegmentTree(functions(i), buffer, i))
+      buffer = null
+    } else {
+      evaluatePrepared(buffer, 0, buffer.length)
+    }
   }
 
-  /** Write the frame columns for the current row to the given target row.
-    * 将当前行的帧列写入给定目标行*/
-  override def write(target: GenericMutableRow): Unit = {
-    var bufferUpdated = outputIndex == 0
+  /** Find the lower bound of every output row, and then compute the results of the output rows
+    * from last to first, adding the input rows to the functions as the lower bound moves down. */
+  private[this] def evaluateInReverse(rows: ExternalUnsafeRowBuffer): Unit = {
+    val size = buffer.length
+    val lowerBounds = new Array[Int](size)
+    val output = rows.newReader()
+    var index = 0
+    while (output.next()) {
+      dropRowsBelowLowerBound(index, output.getRow)
+      lowerBounds(index) = inputIndex
+      index += 1
+    }
+    input.close()
 
-    // Drop all rows from the buffer for which the input row value is smaller than
-    // the output row lower bound.
-    //从缓冲区中删除输入行值小于输出行下限的所有行
-    while (inputIndex < input.size && lbound.compare(input, inputIndex, outputIndex) < 0) {
-      inputIndex += 1
-      bufferUpdated = true
+    results = new Array[Any](size * numColumns)
+    reset()
+    var low = size
+    index = size - 1
+    while (index >= 0) {
+      if (lowerBounds(index) < low || index == size - 1) {
+        while (low > lowerBounds(index)) {
+          low -= 1
+          val prepared = buffer(low)
+          var i = 0
+          while (i < numColumns) {
+            functions(i).update(prepared(i))
+            i += 1
+          }
+        }
+        evaluate()
+      }
+      var i = 0
+      while (i < numColumns) {
+        results(index * numColumns + i) = functions(i).get(index)
+        i += 1
+      }
+      index -= 1
     }
+    buffer = null
+  }
 
-    // Only recalculate and update when the buffer changes.
-    //仅在缓冲区更改时重新计算和更新
-    if (bufferUpdated) {
-      evaluatePrepared(buffer, inputIndex, buffer.length)
-      fill(target, outputIndex)
+  /** Drop all rows from the buffer for which the input row value is smaller than the output row
+    * lower bound. Returns true if any rows were dropped. */
+  private[this] def dropRowsBelowLowerBound(index: Int, current: InternalRow): Boolean = {
+    var dropped = false
+    while (nextRow != null && lbound.compare(nextRow, inputIndex, current, index) < 0) {
+      nextRow = fetchRow(input)
+      inputIndex += 1
+      dropped = true
     }
+    dropped
+  }
 
-    // Move to the next row.
-    outputIndex += 1
+  /** Write the frame columns for the current row to the given target row.
+    * 将当前行的帧列写入给定目标行*/
+  override def write(index: Int, current: InternalRow, target: GenericMutableRow): Unit = {
+    if (reverse) {
+      var i = 0
+      while (i < numColumns) {
+        target.update(ordinal + i, results(index * numColumns + i))
+        i += 1
+      }
+    } else {
+      // Drop all rows from the buffer for which the input row value is smaller than
+      // the output row lower bound.
+      //从缓冲区中删除输入行值小于输出行下限的所有行
+      val bufferUpdated = dropRowsBelowLowerBound(index, current) || index == 0
+
+      // Only recalculate and update when the buffer changes.
+      //仅在缓冲区更改时重新计算和更新
+      if (bufferUpdated) {
+        if (merged) {
+          var i = 0
+          while (i < numColumns) {
+            trees(i).evaluate(inputIndex, trees(i).size)
+            i += 1
+          }
+        } else {
+          evaluatePrepared(buffer, inputIndex, buffer.length)
+        }
+        fill(target, index)
+      }
+    }
   }
 
   /** Copy the frame. */
   override def copy: UnboundedFollowingWindowFunctionFrame =
     new UnboundedFollowingWindowFunctionFrame(ordinal, copyFunctions, lbound)
 }
+
+/**
+ * A segment tree over the prepared input of a partition, for a window function that can merge
+ * partial aggregates (see [[WindowFunction.supportsMerge]]). Every node holds the partial aggregate
+ * of a range of rows, whose length is a power of two, so the function can be evaluated over any
+ * range of rows by merging the partial aggregates of at most 2 * log(n) nodes, in row order.
+ * Building the tree takes n - 1 merges.
+ *
+ * @param function to aggregate the rows with.
+ * @param prepared input of the rows of the partition, for all functions of the frame.
+ * @param column of the prepared input that belongs to the function.
+ */
+private[execution] final class WindowSegmentTree(
+    function: WindowFunction,
+    prepared: Array[Array[AnyRef]],
+    column: Int) {
+
+  /** Number of rows in the tree. */
+  val size: Int = prepared.length
+
+  /** Index of the first leaf. The leaves past the last row hold null, standing for no rows. */
+  private[this] val firstLeaf = {
+    var n = 1
+    while (n < size) {
+      n <<= 1
+    }
+    n
+  }
+
+  /** The children of node i are nodes 2 * i and 2 * i + 1, and node 1 is the root. */
+  private[this] val nodes = new Array[Any](2 * firstLeaf)
+
+  /** Nodes of the range being evaluated, from the left and from the right end. */
+  private[this] val fromLeft = new mutable.ArrayBuffer[Any]
+  private[this] val fromRight = new mutable.ArrayBuffer[Any]
+
+  {
+    var i = 0
+    while (i < size) {
+      nodes(firstLeaf + i) = function.partialOf(prepared(i)(column))
+      i += 1
+    }
+    i = firstLeaf - 1
+    while (i > 0) {
+      nodes(i) = merge(nodes(2 * i), nodes(2 * i + 1))
+      i -= 1
+    }
+  }
+
+  private[this] def merge(left: Any, right: Any): Any = {
+    if (right == null) left else if (left == null) right else function.mergePartials(left, right)
+  }
+
+  /** Evaluate the function over the rows from `from` until `until`. */
+  def evaluate(from: Int, until: Int): Unit = {
+    fromLeft.clear()
+    fromRight.clear()
+    var low = from + firstLeaf
+    var high = until + firstLeaf
+    while (low < high) {
+      if ((low & 1) == 1) {
+        fromLeft += nodes(low)
+        low += 1
+      }
+      if ((high & 1) == 1) {
+        high -= 1
+        fromRight += nodes(high)
+      }
+      low >>= 1
+      high >>= 1
+    }
+    var i = fromRight.length - 1
+    while (i >= 0) {
+      fromLeft += fromRight(i)
+      i -= 1
+    }
+    function.evaluateMerged(fromLeft)
+  }
+}
@@ -67,6 +67,11 @@ case class TungstenAggregate(
     }
   }
 
+  // When greater than 0, the hash map is spilled into this many hash partitions instead of
+  // falling back to sort-based aggregation when it runs out of memory.
+  //当大于0时,哈希Map在内存不足时溢出到这么多个哈希分区,而不是回退到基于排序的聚合
+  private val hashSpillPartitions: Int = sqlContext.conf.tungstenAggregateHashSpillPartitions
+
   protected override def doExecute(): RDD[InternalRow] = attachTree(this, "execute") {
     val numInputRows = longMetric("numInputRows")
     val numOutputRows = longMetric("numOutputRows")
@@ -86,6 +91,7 @@ case class TungstenAggregate(
         newMutableProjection,
         child.output,
         testFallbackStartsAt,
+        hashSpillPartitions,
         numInputRows,
         numOutputRows)
     }
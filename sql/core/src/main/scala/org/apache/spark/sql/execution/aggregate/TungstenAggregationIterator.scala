@@ -17,7 +17,11 @@
 
 package org.apache.spark.sql.execution.aggregate
 
-import org.apache.spark.unsafe.KVIterator
+import java.io.IOException
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.spark.unsafe.{KVIterator, Platform}
 import org.apache.spark.{InternalAccumulator, Logging, SparkEnv, TaskContext}
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.expressions.aggregate._
@@ -26,6 +30,9 @@ import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.execution.{UnsafeKVExternalSorter, UnsafeFixedWidthAggregationMap}
 import org.apache.spark.sql.execution.metric.LongSQLMetric
 import org.apache.spark.sql.types.StructType
+import org.apache.spark.unsafe.hash.UnsafeHasher
+import org.apache.spark.unsafe.map.BytesToBytesMapSpiller
+import org.apache.spark.unsafe.memory.TaskMemoryManager
 
 /**
  * An iterator used to evaluate aggregate functions. It operates on [[UnsafeRow]]s.
@@ -47,6 +54,19 @@ import org.apache.spark.sql.types.StructType
  *  - Step 4: Get a sorted [[KVIterator]] from the external sorter.从外部分拣机获取已排序的[[KVIterator]]。
  *  - Step 5: Initialize sort-based aggregation.初始化基于排序的聚合
  * Then, this iterator works in the way of sort-based aggregation.
+  * 然后,该迭代器以基于排序的聚合方式工作。
+ *
+ * If `hashSpillPartitions` is greater than 0, the iterator instead keeps using hash-based
+ * aggregation when the map runs out of memory (hybrid hash aggregation):
+  * 如果`hashSpillPartitions`大于0,则当Map内存不足时,迭代器继续使用基于散列的聚合(混合散列聚合):
+ *  - Every time the map is full, its entries are spilled to disk, split into
+ *    `hashSpillPartitions` partitions by a hash of the grouping key, and the map is emptied.
+  *   每次Map满时,其条目按分组键的哈希拆分为`hashSpillPartitions`个分区溢出到磁盘,并清空Map
+ *  - Once all input rows are processed, the rest of the map is spilled as well and every
+ *    partition is loaded back and merged in the map on its own, one partition at a time.
+  *   处理完所有输入行后,Map的其余部分也会溢出,然后每次将一个分区加载回Map并单独合并
+ *  - A partition that does not fit in memory is split again with a different hash seed.
+  *   内存中放不下的分区会使用不同的哈希种子再次拆分
  *
  * The code of this class is organized as follows:
   * 该类的代码组织如下：
@@ -87,6 +107,10 @@ import org.apache.spark.sql.types.StructType
  * @param originalInputAttributes
  *   attributes of representing input rows from `inputIter`.
   *   表示来自`inputIter`的输入行的属性
+ * @param hashSpillPartitions
+ *   if greater than 0, the number of hash partitions to spill the map into when it runs out of
+ *   memory; otherwise, the iterator falls back to sort-based aggregation.
+  *   如果大于0,则为Map内存不足时溢出的哈希分区数;否则迭代器回退到基于排序的聚合
  */
 class TungstenAggregationIterator(
     groupingExpressions: Seq[NamedExpression],
@@ -97,6 +121,7 @@ class TungstenAggregationIterator(
     newMutableProjection: (Seq[Expression], Seq[Attribute]) => (() => MutableProjection),
     originalInputAttributes: Seq[Attribute],
     testFallbackStartsAt: Option[Int],
+    hashSpillPartitions: Int,
     numInputRows: LongSQLMetric,
     numOutputRows: LongSQLMetric)
   extends Iterator[UnsafeRow] with Logging {
@@ -379,16 +404,29 @@ class TungstenAggregationIterator(
   // all groups and their corresponding aggregation buffers for hash-based aggregation.
   //这是用于基于散列的聚合的哈希映射,它由UnsafeFixedWidthAggregationMap支持,
   //用于存储所有组及其相应的聚合缓冲区,以进行基于散列的聚合
-  private[this] val hashMap = new UnsafeFixedWidthAggregationMap(
-    initialAggregationBuffer,
-    StructType.fromAttributes(allAggregateFunctions.flatMap(_.bufferAttributes)),
-    StructType.fromAttributes(groupingExpressions.map(_.toAttribute)),
-    TaskContext.get.taskMemoryManager(),
-    SparkEnv.get.shuffleMemoryManager,
-    1024 * 16, // initial capacity
-    SparkEnv.get.shuffleMemoryManager.pageSizeBytes,
-    false // disable tracking of performance metrics
-  )
+  private[this] val hashMap = {
+    val pageSizeBytes = SparkEnv.get.shuffleMemoryManager.pageSizeBytes
+    // The compact slot layout halves the hash index, but only supports pages up to 128 MB.
+    //紧凑的槽布局使哈希索引减半,但只支持最大128MB的页
+    val compactSlots = SparkEnv.get.conf.getBoolean("spark.unsafe.map.compactSlots", false) &&
+      pageSizeBytes <= TaskMemoryManager.MAXIMUM_COMPACT_PAGE_SIZE_BYTES
+    // xxhash64 hashes long grouping keys faster than murmur3 and collides less in large maps.
+    //xxhash64对长分组键的哈希比murmur3更快,且在大映射中冲突更少
+    val hasher = UnsafeHasher.forName(
+      SparkEnv.get.conf.get("spark.unsafe.map.hashFunction", "murmur3"))
+    new UnsafeFixedWidthAggregationMap(
+      initialAggregationBuffer,
+      StructType.fromAttributes(allAggregateFunctions.flatMap(_.bufferAttributes)),
+      StructType.fromAttributes(groupingExpressions.map(_.toAttribute)),
+      TaskContext.get.taskMemoryManager(),
+      SparkEnv.get.shuffleMemoryManager,
+      1024 * 16, // initial capacity
+      pageSizeBytes,
+      false, // disable tracking of performance metrics
+      compactSlots,
+      hasher
+    )
+  }
 
   // Exposed for testing
   private[aggregate] def getHashMap: UnsafeFixedWidthAggregationMap = hashMap
@@ -422,8 +460,13 @@ class TungstenAggregationIterator(
         val buffer: UnsafeRow = hashMap.getAggregationBufferFromUnsafeRow(groupingKey)
         if (buffer == null) {
           // buffer == null means that we could not allocate more memory.
-          // Now, we need to spill the map and switch to sort-based aggregation.
-          switchToSortBasedAggregation(groupingKey, newInput)
+          // Now, we need to spill the map and either keep aggregating in the emptied map or
+          // switch to sort-based aggregation.
+          if (hashSpillPartitions > 0) {
+            processRow(spillAndGetAggregationBuffer(groupingKey), newInput)
+          } else {
+            switchToSortBasedAggregation(groupingKey, newInput)
+          }
         } else {
           processRow(buffer, newInput)
         }
@@ -433,7 +476,8 @@ class TungstenAggregationIterator(
 
   // This function is only used for testing. It basically the same as processInputs except
   // that it switch to sort-based aggregation after `fallbackStartsAt` input rows have
-  // been processed.
+  // been processed. If hashSpillPartitions is greater than 0, it instead spills the map before
+  // every input row after that point.
   //此功能仅用于测试,它与processInputs基本相同,只是在处理了'fallbackStartsAt`输入行后切换到基于排序的聚合。
   private def processInputsWithControlledFallback(fallbackStartsAt: Int): Unit = {
     assert(inputIter != null, "attempted to process input when iterator was null")
@@ -447,7 +491,9 @@ class TungstenAggregationIterator(
       } else {
         null
       }
-      if (buffer == null) {
+      if (buffer == null && hashSpillPartitions > 0) {
+        processRow(spillAndGetAggregationBuffer(groupingKey), newInput)
+      } else if (buffer == null) {
         // buffer == null means that we could not allocate more memory.
         // Now, we need to spill the map and switch to sort-based aggregation.
         switchToSortBasedAggregation(groupingKey, newInput)
@@ -564,6 +610,38 @@ class TungstenAggregationIterator(
 
     // Set aggregationMode, processRow, and generateOutput for sort-based aggregation.
     //为基于排序的聚合设置aggregationMode，processRow和generateOutput
+    switchToMergingAggregationBuffers()
+
+    // Step 5: Get the sorted iterator from the externalSorter.
+    //从externalSorter获取已排序的迭代器
+    sortedKVIterator = externalSorter.sortedIterator()
+
+    // Step 6: Pre-load the first key-value pair from the sorted iterator to make
+    // hasNext idempotent.
+    //从已排序的迭代器预加载第一个键值对以使hasNext成为幂等
+    sortedInputHasNewGroup = sortedKVIterator.next()
+
+    // Copy the first key and value (aggregation buffer).
+    //复制第一个键和值(聚合缓冲区)
+    if (sortedInputHasNewGroup) {
+      val key = sortedKVIterator.getKey
+      val value = sortedKVIterator.getValue
+      nextGroupingKey = key.copy()
+      currentGroupingKey = key.copy()
+      firstRowInNextGroup = value.copy()
+    }
+
+    // Step 7: set sortBased to true.
+    sortBased = true
+  }
+
+  /**
+   * Switches aggregationMode, processRow, and generateOutput to merging aggregation buffers that
+   * have already been (partially) aggregated, as happens after a fall back to sort-based
+   * aggregation and when aggregating spilled hash partitions.
+    * 将aggregationMode,processRow和generateOutput切换为合并已(部分)聚合的聚合缓冲区
+   */
+  private def switchToMergingAggregationBuffers(): Unit = {
     val newAggregationMode = aggregationMode match {
       case (Some(Partial), None) => (Some(PartialMerge), None)
       case (None, Some(Complete)) => (Some(Final), None)
@@ -582,28 +660,138 @@ class TungstenAggregationIterator(
     //设置新的processRow和generateOutput
     processRow = generateProcessRow(newInputAttributes)
     generateOutput = generateResultProjection()
+  }
 
-    // Step 5: Get the sorted iterator from the externalSorter.
-    //从externalSorter获取已排序的迭代器
-    sortedKVIterator = externalSorter.sortedIterator()
+  ///////////////////////////////////////////////////////////////////////////
+  // Part 4b: Methods and fields used when we spill the hash map into hash
+  //          partitions instead of switching to sort-based aggregation.
+  //当我们将哈希Map溢出到哈希分区而不是切换到基于排序的聚合时使用的方法和字段
+  ///////////////////////////////////////////////////////////////////////////
 
-    // Step 6: Pre-load the first key-value pair from the sorted iterator to make
-    // hasNext idempotent.
-    //从已排序的迭代器预加载第一个键值对以使hasNext成为幂等
-    sortedInputHasNewGroup = sortedKVIterator.next()
+  // The spiller that the map is spilled into while processing input rows. It is created the
+  // first time the map runs out of memory when hashSpillPartitions is greater than 0.
+  //处理输入行时Map溢出到的溢出器,当hashSpillPartitions大于0时,在Map第一次内存不足时创建
+  private[this] var hashSpiller: BytesToBytesMapSpiller = null
+
+  // All spillers created so far, including the ones used to split spilled partitions again.
+  //到目前为止创建的所有溢出器,包括用于再次拆分溢出分区的溢出器
+  private[this] val allHashSpillers = new ArrayBuffer[BytesToBytesMapSpiller]
+
+  // Spilled partitions that still have to be aggregated, as (spiller, partition) pairs.
+  //仍需聚合的溢出分区
+  private[this] val pendingSpilledPartitions =
+    new java.util.ArrayDeque[(BytesToBytesMapSpiller, Int)]
+
+  // Re-used rows pointing to the grouping key and the aggregation buffer of a spilled record.
+  //指向溢出记录的分组键和聚合缓冲区的重用行
+  private[this] val spilledGroupingKey: UnsafeRow = new UnsafeRow()
+  private[this] val spilledAggregationBuffer: UnsafeRow = new UnsafeRow()
+  private[this] val numBufferFields: Int = allAggregateFunctions.map(_.bufferAttributes.length).sum
+
+  private def newHashSpiller(parent: BytesToBytesMapSpiller): BytesToBytesMapSpiller = {
+    val spiller = if (parent == null) {
+      new BytesToBytesMapSpiller(
+        SparkEnv.get.blockManager, TaskContext.get(), hashSpillPartitions, 0)
+    } else {
+      parent.newChildSpiller()
+    }
+    if (allHashSpillers.isEmpty) {
+      // Make sure spill files are removed even if the task fails or stops consuming this iterator.
+      //确保即使任务失败或停止使用此迭代器,溢出文件也会被删除
+      TaskContext.get().addTaskCompletionListener(_ => allHashSpillers.foreach(_.cleanup()))
+    }
+    allHashSpillers += spiller
+    spiller
+  }
 
-    // Copy the first key and value (aggregation buffer).
-    //复制第一个键和值(聚合缓冲区)
-    if (sortedInputHasNewGroup) {
-      val key = sortedKVIterator.getKey
-      val value = sortedKVIterator.getValue
-      nextGroupingKey = key.copy()
-      currentGroupingKey = key.copy()
-      firstRowInNextGroup = value.copy()
+  // Spills the map into the given spiller and empties it.
+  //将Map溢出到给定的溢出器中并清空它
+  private def spillHashMap(spiller: BytesToBytesMapSpiller): Unit = {
+    if (!hashMap.spillAndReset(spiller)) {
+      throw new IOException("Could not acquire a page of memory for hash aggregation after " +
+        "spilling the hash map")
     }
+  }
 
-    // Step 7: set sortBased to true.
-    sortBased = true
+  // Looks up the aggregation buffer of the given grouping key after spilling the map. This is
+  // used instead of switchToSortBasedAggregation when hashSpillPartitions is greater than 0.
+  //溢出Map后查找给定分组键的聚合缓冲区,当hashSpillPartitions大于0时,它代替switchToSortBasedAggregation
+  private def spillAndGetAggregationBuffer(groupingKey: UnsafeRow): UnsafeRow = {
+    if (hashSpiller == null) {
+      hashSpiller = newHashSpiller(null)
+    }
+    spillHashMap(hashSpiller)
+    val buffer = hashMap.getAggregationBufferFromUnsafeRow(groupingKey)
+    if (buffer == null) {
+      throw new IOException("Could not insert a grouping key into an empty hash map")
+    }
+    buffer
+  }
+
+  // Called once all input rows are processed if the map has been spilled. The rest of the map is
+  // spilled as well, and the spilled partitions are then aggregated one at a time.
+  //如果Map已溢出,则在处理完所有输入行后调用,Map的其余部分也会溢出,然后一次聚合一个溢出分区
+  private def switchToSpilledPartitionAggregation(): Unit = {
+    spillHashMap(hashSpiller)
+    logInfo(s"aggregating ${hashSpiller.numRecordsSpilled()} spilled groups in " +
+      s"$hashSpillPartitions hash partitions.")
+    switchToMergingAggregationBuffers()
+    enqueueSpilledPartitions(hashSpiller)
+    aggregateNextSpilledPartitions()
+  }
+
+  private def enqueueSpilledPartitions(spiller: BytesToBytesMapSpiller): Unit = {
+    // Push in reverse order so that the partitions are aggregated in order.
+    //以相反的顺序压入,以便按顺序聚合分区
+    var partition = spiller.numPartitions() - 1
+    while (partition >= 0) {
+      if (spiller.hasRecords(partition)) {
+        pendingSpilledPartitions.push((spiller, partition))
+      }
+      partition -= 1
+    }
+  }
+
+  // Merges spilled partitions into the empty map until it holds at least one group or there is no
+  // spilled partition left. A partition that does not fit in the map is split again by a child
+  // spiller, whose partitions are aggregated next.
+  //将溢出分区合并到空Map中,直到它至少包含一个组或没有剩余的溢出分区,
+  //Map中放不下的分区会被子溢出器再次拆分,接下来聚合子溢出器的分区
+  private def aggregateNextSpilledPartitions(): Unit = {
+    while (hashMap.numElements() == 0 && !pendingSpilledPartitions.isEmpty) {
+      val (spiller, partition) = pendingSpilledPartitions.pop()
+      var childSpiller: BytesToBytesMapSpiller = null
+      val records = spiller.readPartition(partition)
+      while (records.hasNext) {
+        records.loadNext()
+        val baseObject = records.getBaseObject
+        val baseOffset = records.getBaseOffset
+        val keyLength = Platform.getInt(baseObject, baseOffset)
+        spilledGroupingKey.pointTo(
+          baseObject, baseOffset + 4, groupingExpressions.length, keyLength)
+        spilledAggregationBuffer.pointTo(
+          baseObject,
+          baseOffset + 4 + keyLength,
+          numBufferFields,
+          records.getRecordLength - 4 - keyLength)
+        var buffer = hashMap.getAggregationBufferFromUnsafeRow(spilledGroupingKey)
+        if (buffer == null) {
+          if (childSpiller == null) {
+            childSpiller = newHashSpiller(spiller)
+          }
+          spillHashMap(childSpiller)
+          buffer = hashMap.getAggregationBufferFromUnsafeRow(spilledGroupingKey)
+          if (buffer == null) {
+            throw new IOException("Could not insert a grouping key into an empty hash map")
+          }
+        }
+        processRow(buffer, spilledAggregationBuffer)
+      }
+      if (childSpiller != null) {
+        spillHashMap(childSpiller)
+        enqueueSpilledPartitions(childSpiller)
+      }
+    }
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -721,6 +909,11 @@ class TungstenAggregationIterator(
     // we pre-load the first key-value pair from the map (to make hasNext idempotent).
     //如果我们没有在processInputs中切换到基于排序的聚合,我们会预先加载地图中的第一个键值对(使hasNext成为幂等)。
     if (!sortBased) {
+      // If the map has been spilled, aggregate the spilled partitions before iterating the map.
+      //如果Map已溢出,则在迭代Map之前聚合溢出的分区
+      if (hashSpiller != null) {
+        switchToSpilledPartitionAggregation()
+      }
       // First, set aggregationBufferMapIterator.
       //首先,设置aggregationBufferMapIterator
       aggregationBufferMapIterator = hashMap.iterator()
@@ -773,8 +966,20 @@ class TungstenAggregationIterator(
           // If there is no input from aggregationBufferMapIterator, we copy current result.
           //如果来自aggregationBufferMapIterator没有输入,我们复制当前结果
           val resultCopy = result.copy()
+          // If there are spilled partitions left, aggregate the next one in the map.
+          //如果还有溢出分区,则在Map中聚合下一个分区
+          if (!pendingSpilledPartitions.isEmpty) {
+            if (!hashMap.reset()) {
+              throw new IOException("Could not acquire a page of memory for hash aggregation")
+            }
+            aggregateNextSpilledPartitions()
+            aggregationBufferMapIterator = hashMap.iterator()
+            mapIteratorHasNext = aggregationBufferMapIterator.next()
+          }
           // Then, we free the map.
-          hashMap.free()
+          if (!mapIteratorHasNext) {
+            hashMap.free()
+          }
 
           resultCopy
         } else {
@@ -820,5 +1025,6 @@ class TungstenAggregationIterator(
     * 底层Map中使用的可用内存*/
   def free(): Unit = {
     hashMap.free()
+    allHashSpillers.foreach(_.cleanup())
   }
 }
@@ -26,6 +26,7 @@ import org.apache.spark.sql.catalyst.CatalystTypeConverters
 import org.apache.spark.sql.catalyst.errors._
 import org.apache.spark.sql.catalyst.expressions._
 import org.apache.spark.sql.catalyst.plans.physical._
+import org.apache.spark.sql.columnar.{ColumnVector, ColumnarBatch}
 import org.apache.spark.sql.execution.metric.SQLMetrics
 import org.apache.spark.sql.types.StructType
 import org.apache.spark.util.collection.ExternalSorter
@@ -38,7 +39,9 @@ import org.apache.spark.{HashPartitioner, SparkEnv}
  * :: DeveloperApi ::
  */
 @DeveloperApi
-case class Project(projectList: Seq[NamedExpression], child: SparkPlan) extends UnaryNode {
+case class Project(projectList: Seq[NamedExpression], child: SparkPlan)
+  extends UnaryNode with VectorizedPlan {
+
   override def output: Seq[Attribute] = projectList.map(_.toAttribute)
 
   override private[sql] lazy val metrics = Map(
@@ -46,13 +49,45 @@ case class Project(projectList: Seq[NamedExpression], child: SparkPlan) extends
 
   @transient lazy val buildProjection = newMutableProjection(projectList, child.output)
 
-  protected override def doExecute(): RDD[InternalRow] = {
+  @transient override lazy val supportsBatches: Boolean = child match {
+    case VectorizedPlan(_) =>
+      projectList.forall(VectorizedExpression.create(_, child.output).isDefined)
+    case _ => false
+  }
+
+  override def executeBatches(): RDD[ColumnarBatch] = {
     val numRows = longMetric("numRows")
-    child.execute().mapPartitions { iter =>
-      val reusableProjection = buildProjection()
-      iter.map { row =>
-        numRows += 1
-        reusableProjection(row)
+    child.asInstanceOf[VectorizedPlan].executeBatchesWithScope().mapPartitions { batches =>
+      val expressions = projectList.map(VectorizedExpression.create(_, child.output).get).toArray
+      // The output batch is reused, just like the vectors the expressions return.
+      var output: ColumnarBatch = null
+      batches.map { batch =>
+        numRows += batch.numRowsSelected
+        if (output == null || output.capacity != batch.capacity) {
+          output = new ColumnarBatch(new Array[ColumnVector](expressions.length), batch.capacity)
+        }
+        var i = 0
+        while (i < expressions.length) {
+          output.columns(i) = expressions(i).eval(batch)
+          i += 1
+        }
+        output.selectSameRowsAs(batch)
+        output
+      }
+    }
+  }
+
+  protected override def doExecute(): RDD[InternalRow] = {
+    if (supportsBatches) {
+      batchesToRows(executeBatches())
+    } else {
+      val numRows = longMetric("numRows")
+      child.execute().mapPartitions { iter =>
+        val reusableProjection = buildProjection()
+        iter.map { row =>
+          numRows += 1
+          reusableProjection(row)
+        }
       }
     }
   }
@@ -102,23 +137,53 @@ case class TungstenProject(projectList: Seq[NamedExpression], child: SparkPlan)
  * :: DeveloperApi ::
  */
 @DeveloperApi
-case class Filter(condition: Expression, child: SparkPlan) extends UnaryNode {
+case class Filter(condition: Expression, child: SparkPlan) extends UnaryNode with VectorizedPlan {
   override def output: Seq[Attribute] = child.output
 
   private[sql] override lazy val metrics = Map(
     "numInputRows" -> SQLMetrics.createLongMetric(sparkContext, "number of input rows"),
     "numOutputRows" -> SQLMetrics.createLongMetric(sparkContext, "number of output rows"))
 
-  protected override def doExecute(): RDD[InternalRow] = {
+  @transient override lazy val supportsBatches: Boolean = child match {
+    case VectorizedPlan(_) => VectorizedPredicate.create(condition, child.output).isDefined
+    case _ => false
+  }
+
+  override def executeBatches(): RDD[ColumnarBatch] = {
     val numInputRows = longMetric("numInputRows")
     val numOutputRows = longMetric("numOutputRows")
-    child.execute().mapPartitions { iter =>
-      val predicate = newPredicate(condition, child.output)
-      iter.filter { row =>
-        numInputRows += 1
-        val r = predicate(row)
-        if (r) numOutputRows += 1
-        r
+    child.asInstanceOf[VectorizedPlan].executeBatchesWithScope().mapPartitions { batches =>
+      val predicate = VectorizedPredicate.create(condition, child.output).get
+      // Selects all rows of batches that have not been filtered yet, reused for every batch.
+      var allRows: Array[Int] = null
+      batches.filter { batch =>
+        val numRows = batch.numRowsSelected
+        numInputRows += numRows
+        if (allRows == null || allRows.length < batch.capacity) {
+          allRows = new Array[Int](batch.capacity)
+        }
+        val rows = batch.selectedRows(allRows)
+        batch.numSelected = predicate.selectTrue(batch, rows, numRows, rows)
+        numOutputRows += batch.numSelected
+        batch.numSelected > 0
+      }
+    }
+  }
+
+  protected override def doExecute(): RDD[InternalRow] = {
+    if (supportsBatches) {
+      batchesToRows(executeBatches())
+    } else {
+      val numInputRows = longMetric("numInputRows")
+      val numOutputRows = longMetric("numOutputRows")
+      child.execute().mapPartitions { iter =>
+        val predicate = newPredicate(condition, child.output)
+        iter.filter { row =>
+          numInputRows += 1
+          val r = predicate(row)
+          if (r) numOutputRows += 1
+          r
+        }
       }
     }
   }
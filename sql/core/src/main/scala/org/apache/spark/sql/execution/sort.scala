@@ -123,6 +123,8 @@ case class TungstenSort(
   protected override def doExecute(): RDD[InternalRow] = {
     val schema = child.schema
     val childOutput = child.output
+    val widePrefix = sqlContext.conf.tungstenSortWidePrefix &&
+      SortPrefixUtils.hasSecondPrefix(sortOrder.head)
 
     /**
      * Set up the sorter in each partition before computing the parent partition.
@@ -138,16 +140,30 @@ case class TungstenSort(
       val prefixComparator = SortPrefixUtils.getPrefixComparator(boundSortExpression)
 
       // The generator for prefix 前缀的生成器
-      val prefixProjection = UnsafeProjection.create(Seq(SortPrefix(boundSortExpression)))
-      val prefixComputer = new UnsafeExternalRowSorter.PrefixComputer {
-        override def computePrefix(row: InternalRow): Long = {
-          prefixProjection.apply(row).getLong(0)
+      val prefixComputer = if (widePrefix) {
+        val prefixProjection = UnsafeProjection.create(
+          Seq(SortPrefix(boundSortExpression), SecondSortPrefix(boundSortExpression)))
+        // Both halves of the prefix come from a single projection of each row.
+        new UnsafeExternalRowSorter.PrefixComputer {
+          private var prefixes: InternalRow = null
+          override def computePrefix(row: InternalRow): Long = {
+            prefixes = prefixProjection.apply(row)
+            prefixes.getLong(0)
+          }
+          override def computeSecondPrefix(row: InternalRow): Long = prefixes.getLong(1)
+        }
+      } else {
+        val prefixProjection = UnsafeProjection.create(Seq(SortPrefix(boundSortExpression)))
+        new UnsafeExternalRowSorter.PrefixComputer {
+          override def computePrefix(row: InternalRow): Long = {
+            prefixProjection.apply(row).getLong(0)
+          }
         }
       }
 
       val pageSize = SparkEnv.get.shuffleMemoryManager.pageSizeBytes
       val sorter = new UnsafeExternalRowSorter(
-        schema, ordering, prefixComparator, prefixComputer, pageSize)
+        schema, ordering, prefixComparator, prefixComputer, pageSize, widePrefix)
       if (testSpillFrequency > 0) {
         sorter.setTestSpillFrequency(testSpillFrequency)
       }
@@ -0,0 +1,513 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.rdd.{RDD, RDDOperationScope}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions._
+import org.apache.spark.sql.columnar.{ColumnVector, ColumnarBatch}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.apache.spark.util.Utils
+
+/**
+ * A physical operator that can produce its output as [[ColumnarBatch]]es, so that the operators
+ * above it can evaluate their expressions a column at a time instead of a row at a time.
+ */
+private[sql] trait VectorizedPlan {
+  self: SparkPlan =>
+
+  /**
+   * Whether [[executeBatches]] can be used, which depends on the child and the expressions of the
+   * operator.
+   */
+  def supportsBatches: Boolean
+
+  /**
+   * Produces the output of the operator as batches. A batch, along with its vectors, may be reused
+   * once the next batch is requested.
+   */
+  def executeBatches(): RDD[ColumnarBatch]
+
+  /**
+   * Prepares the operator and produces its batches within its RDD operation scope, the way
+   * [[SparkPlan.execute]] does for rows. Operators reading the batches of a child call this
+   * instead of [[executeBatches]].
+   */
+  final def executeBatchesWithScope(): RDD[ColumnarBatch] = {
+    RDDOperationScope.withScope(sqlContext.sparkContext, nodeName, false, true) {
+      prepare()
+      executeBatches()
+    }
+  }
+
+  /** Turns the batches into rows, for operators that are not vectorized. */
+  protected def batchesToRows(batches: RDD[ColumnarBatch]): RDD[InternalRow] = {
+    batches.mapPartitions(_.flatMap(_.rowIterator()))
+  }
+}
+
+private[sql] object VectorizedPlan {
+  /** Matches plans whose output can be consumed as batches. */
+  def unapply(plan: SparkPlan): Option[SparkPlan with VectorizedPlan] = plan match {
+    case p: SparkPlan with VectorizedPlan if p.supportsBatches => Some(p)
+    case _ => None
+  }
+
+  private[execution] def ordinalOf(a: AttributeReference, input: Seq[Attribute]): Option[Int] = {
+    val ordinal = input.indexWhere(_.exprId == a.exprId)
+    if (ordinal >= 0) Some(ordinal) else None
+  }
+}
+
+/**
+ * A predicate evaluated over the selected rows of a [[ColumnarBatch]]. Following SQL's
+ * three-valued logic, the predicate is either true, false or null for every row, so it can select
+ * the rows for which it is true as well as those for which it is false.
+ *
+ * Both methods take the indices of the rows to look at, in increasing order, in the first
+ * `numRows` entries of `rows`. They write the indices of the matching rows to `out`, which may be
+ * `rows` itself, in the same order, and return how many there are.
+ *
+ * Predicates may keep scratch arrays between calls, so an instance is only used by one partition.
+ */
+private[sql] abstract class VectorizedPredicate {
+  def selectTrue(batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int
+
+  def selectFalse(batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int
+}
+
+private[sql] object VectorizedPredicate {
+  import VectorizedPlan.ordinalOf
+
+  // Which results of comparing a value with the literal satisfy a comparison, indexed by the
+  // result of the comparison plus one.
+  private val EQ = Array(false, true, false)
+  private val LT = Array(true, false, false)
+  private val LE = Array(true, true, false)
+  private val GT = Array(false, false, true)
+  private val GE = Array(false, true, true)
+
+  /**
+   * Returns a vectorized version of the given condition over rows of the given input, if there is
+   * one. That is the case for comparisons between a column and a literal, null checks, and any
+   * conjunction, disjunction or negation of those.
+   */
+  def create(condition: Expression, input: Seq[Attribute]): Option[VectorizedPredicate] = {
+    condition match {
+      case And(left, right) =>
+        for (l <- create(left, input); r <- create(right, input)) yield new AndPredicate(l, r)
+      case Or(left, right) =>
+        for (l <- create(left, input); r <- create(right, input)) yield new OrPredicate(l, r)
+      case Not(child) =>
+        create(child, input).map(new NotPredicate(_))
+
+      case IsNull(a: AttributeReference) => ordinalOf(a, input).map(new IsNullPredicate(_, true))
+      case IsNotNull(a: AttributeReference) =>
+        ordinalOf(a, input).map(new IsNullPredicate(_, false))
+
+      case EqualTo(a: AttributeReference, l: Literal) => comparison(a, l, EQ, input)
+      case EqualTo(l: Literal, a: AttributeReference) => comparison(a, l, EQ, input)
+      case LessThan(a: AttributeReference, l: Literal) => comparison(a, l, LT, input)
+      case LessThan(l: Literal, a: AttributeReference) => comparison(a, l, GT, input)
+      case LessThanOrEqual(a: AttributeReference, l: Literal) => comparison(a, l, LE, input)
+      case LessThanOrEqual(l: Literal, a: AttributeReference) => comparison(a, l, GE, input)
+      case GreaterThan(a: AttributeReference, l: Literal) => comparison(a, l, GT, input)
+      case GreaterThan(l: Literal, a: AttributeReference) => comparison(a, l, LT, input)
+      case GreaterThanOrEqual(a: AttributeReference, l: Literal) => comparison(a, l, GE, input)
+      case GreaterThanOrEqual(l: Literal, a: AttributeReference) => comparison(a, l, LE, input)
+
+      case _ => None
+    }
+  }
+
+  private def comparison(
+      a: AttributeReference,
+      l: Literal,
+      accept: Array[Boolean],
+      input: Seq[Attribute]): Option[VectorizedPredicate] = {
+    val supported = l.value != null && a.dataType == l.dataType && (a.dataType match {
+      case IntegerType | DateType | LongType | TimestampType | FloatType | DoubleType |
+           StringType => true
+      case _ => false
+    })
+    if (supported) {
+      ordinalOf(a, input).map(new ComparisonPredicate(_, a.dataType, l.value, accept))
+    } else {
+      None
+    }
+  }
+
+  /** Returns `rows` if it can hold `numRows` entries, or a new array that can. */
+  private def ensureCapacity(rows: Array[Int], numRows: Int): Array[Int] = {
+    if (rows.length >= numRows) rows else new Array[Int](numRows)
+  }
+
+  /** Merges two increasing sequences of distinct row indices into `out`. */
+  private def union(
+      a: Array[Int], numA: Int, b: Array[Int], numB: Int, out: Array[Int]): Int = {
+    var i = 0
+    var j = 0
+    var n = 0
+    while (i < numA && j < numB) {
+      if (a(i) < b(j)) {
+        out(n) = a(i)
+        i += 1
+      } else if (a(i) > b(j)) {
+        out(n) = b(j)
+        j += 1
+      } else {
+        out(n) = a(i)
+        i += 1
+        j += 1
+      }
+      n += 1
+    }
+    while (i < numA) {
+      out(n) = a(i)
+      i += 1
+      n += 1
+    }
+    while (j < numB) {
+      out(n) = b(j)
+      j += 1
+      n += 1
+    }
+    n
+  }
+
+  private final class AndPredicate(left: VectorizedPredicate, right: VectorizedPredicate)
+    extends VectorizedPredicate {
+
+    // The rows for which either side is false, reused for every batch.
+    private[this] var leftFalse = Array.emptyIntArray
+    private[this] var rightFalse = Array.emptyIntArray
+
+    override def selectTrue(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      val n = left.selectTrue(batch, rows, numRows, out)
+      right.selectTrue(batch, out, n, out)
+    }
+
+    override def selectFalse(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      leftFalse = ensureCapacity(leftFalse, numRows)
+      val numLeftFalse = left.selectFalse(batch, rows, numRows, leftFalse)
+      rightFalse = ensureCapacity(rightFalse, numRows)
+      val numRightFalse = right.selectFalse(batch, rows, numRows, rightFalse)
+      union(leftFalse, numLeftFalse, rightFalse, numRightFalse, out)
+    }
+  }
+
+  private final class OrPredicate(left: VectorizedPredicate, right: VectorizedPredicate)
+    extends VectorizedPredicate {
+
+    // The rows for which either side is true, reused for every batch.
+    private[this] var leftTrue = Array.emptyIntArray
+    private[this] var rightTrue = Array.emptyIntArray
+
+    override def selectTrue(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      leftTrue = ensureCapacity(leftTrue, numRows)
+      val numLeftTrue = left.selectTrue(batch, rows, numRows, leftTrue)
+      rightTrue = ensureCapacity(rightTrue, numRows)
+      val numRightTrue = right.selectTrue(batch, rows, numRows, rightTrue)
+      union(leftTrue, numLeftTrue, rightTrue, numRightTrue, out)
+    }
+
+    override def selectFalse(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      val n = left.selectFalse(batch, rows, numRows, out)
+      right.selectFalse(batch, out, n, out)
+    }
+  }
+
+  private final class NotPredicate(child: VectorizedPredicate) extends VectorizedPredicate {
+    override def selectTrue(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      child.selectFalse(batch, rows, numRows, out)
+    }
+
+    override def selectFalse(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      child.selectTrue(batch, rows, numRows, out)
+    }
+  }
+
+  private final class IsNullPredicate(ordinal: Int, isNull: Boolean) extends VectorizedPredicate {
+    override def selectTrue(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      select(batch.columns(ordinal), rows, numRows, out, isNull)
+    }
+
+    override def selectFalse(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      select(batch.columns(ordinal), rows, numRows, out, !isNull)
+    }
+
+    private def select(
+        column: ColumnVector, rows: Array[Int], numRows: Int, out: Array[Int], nulls: Boolean) = {
+      if (!column.hasNulls) {
+        if (nulls) {
+          0
+        } else {
+          System.arraycopy(rows, 0, out, 0, numRows)
+          numRows
+        }
+      } else {
+        var n = 0
+        var i = 0
+        while (i < numRows) {
+          val row = rows(i)
+          if (column.isNullAt(row) == nulls) {
+            out(n) = row
+            n += 1
+          }
+          i += 1
+        }
+        n
+      }
+    }
+  }
+
+  /**
+   * Compares a column with a literal, with the same semantics as the comparison expressions:
+   * NaN is equal to itself and greater than any other value.
+   */
+  private final class ComparisonPredicate(
+      ordinal: Int,
+      dataType: DataType,
+      value: Any,
+      accept: Array[Boolean])
+    extends VectorizedPredicate {
+
+    override def selectTrue(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      select(batch.columns(ordinal), rows, numRows, out, expected = true)
+    }
+
+    override def selectFalse(
+        batch: ColumnarBatch, rows: Array[Int], numRows: Int, out: Array[Int]): Int = {
+      select(batch.columns(ordinal), rows, numRows, out, expected = false)
+    }
+
+    // There is one loop per type, so that the loops read the primitive arrays without boxing.
+    private def select(
+        column: ColumnVector,
+        rows: Array[Int],
+        numRows: Int,
+        out: Array[Int],
+        expected: Boolean): Int = {
+      val hasNulls = column.hasNulls
+      var n = 0
+      var i = 0
+      dataType match {
+        case IntegerType | DateType =>
+          val values = column.ints
+          val literal = value.asInstanceOf[Int]
+          while (i < numRows) {
+            val row = rows(i)
+            if ((!hasNulls || !column.isNullAt(row)) &&
+                accept(Integer.compare(values(row), literal) + 1) == expected) {
+              out(n) = row
+              n += 1
+            }
+            i += 1
+          }
+        case LongType | TimestampType =>
+          val values = column.longs
+          val literal = value.asInstanceOf[Long]
+          while (i < numRows) {
+            val row = rows(i)
+            if ((!hasNulls || !column.isNullAt(row)) &&
+                accept(java.lang.Long.compare(values(row), literal) + 1) == expected) {
+              out(n) = row
+              n += 1
+            }
+            i += 1
+          }
+        case FloatType =>
+          val values = column.floats
+          val literal = value.asInstanceOf[Float]
+          while (i < numRows) {
+            val row = rows(i)
+            if ((!hasNulls || !column.isNullAt(row)) &&
+                accept(Utils.nanSafeCompareFloats(values(row), literal) + 1) == expected) {
+              out(n) = row
+              n += 1
+            }
+            i += 1
+          }
+        case DoubleType =>
+          val values = column.doubles
+          val literal = value.asInstanceOf[Double]
+          while (i < numRows) {
+            val row = rows(i)
+            if ((!hasNulls || !column.isNullAt(row)) &&
+                accept(Utils.nanSafeCompareDoubles(values(row), literal) + 1) == expected) {
+              out(n) = row
+              n += 1
+            }
+            i += 1
+          }
+        case StringType =>
+          val values = column.objects
+          val literal = value.asInstanceOf[UTF8String]
+          while (i < numRows) {
+            val row = rows(i)
+            if ((!hasNulls || !column.isNullAt(row)) && accept(Integer.signum(
+                values(row).asInstanceOf[UTF8String].compareTo(literal)) + 1) == expected) {
+              out(n) = row
+              n += 1
+            }
+            i += 1
+          }
+      }
+      n
+    }
+  }
+}
+
+/**
+ * An expression evaluated over all rows of a [[ColumnarBatch]] at once, including the rows that
+ * were filtered out, which keeps the loops free of indirections.
+ */
+private[sql] abstract class VectorizedExpression {
+  /**
+   * Returns the values of the expression for the batch. The vector may be one of the columns of
+   * the batch, or one owned by the expression and reused for the next batch.
+   */
+  def eval(batch: ColumnarBatch): ColumnVector
+}
+
+private[sql] object VectorizedExpression {
+  import VectorizedPlan.ordinalOf
+
+  private val ADD = 0
+  private val SUBTRACT = 1
+  private val MULTIPLY = 2
+
+  /**
+   * Returns a vectorized version of the given expression over rows of the given input, if there is
+   * one. That is the case for columns, and for additions, subtractions and multiplications of
+   * integers, longs, floats and doubles.
+   */
+  def create(expression: Expression, input: Seq[Attribute]): Option[VectorizedExpression] = {
+    expression match {
+      case Alias(child, _) => create(child, input)
+      case a: AttributeReference => ordinalOf(a, input).map(new ColumnReference(_))
+      case Literal(value, dataType) if value != null && isArithmeticType(dataType) =>
+        Some(new Constant(value, dataType))
+      case Add(left, right) => arithmetic(left, right, ADD, expression.dataType, input)
+      case Subtract(left, right) => arithmetic(left, right, SUBTRACT, expression.dataType, input)
+      case Multiply(left, right) => arithmetic(left, right, MULTIPLY, expression.dataType, input)
+      case _ => None
+    }
+  }
+
+  private def isArithmeticType(dataType: DataType): Boolean = dataType match {
+    case IntegerType | LongType | FloatType | DoubleType => true
+    case _ => false
+  }
+
+  private def arithmetic(
+      left: Expression,
+      right: Expression,
+      op: Int,
+      dataType: DataType,
+      input: Seq[Attribute]): Option[VectorizedExpression] = {
+    if (isArithmeticType(dataType)) {
+      for (l <- create(left, input); r <- create(right, input))
+        yield new Arithmetic(l, r, op, dataType)
+    } else {
+      None
+    }
+  }
+
+  private final class ColumnReference(ordinal: Int) extends VectorizedExpression {
+    override def eval(batch: ColumnarBatch): ColumnVector = batch.columns(ordinal)
+  }
+
+  private final class Constant(value: Any, dataType: DataType) extends VectorizedExpression {
+    private[this] var vector: ColumnVector = null
+
+    override def eval(batch: ColumnarBatch): ColumnVector = {
+      if (vector == null || vector.capacity < batch.capacity) {
+        vector = new ColumnVector(dataType, batch.capacity)
+        var i = 0
+        while (i < vector.capacity) {
+          vector.put(i, value)
+          i += 1
+        }
+      }
+      vector
+    }
+  }
+
+  private final class Arithmetic(
+      left: VectorizedExpression,
+      right: VectorizedExpression,
+      op: Int,
+      dataType: DataType)
+    extends VectorizedExpression {
+
+    private[this] var result: ColumnVector = null
+
+    override def eval(batch: ColumnarBatch): ColumnVector = {
+      val l = left.eval(batch)
+      val r = right.eval(batch)
+      if (result == null || result.capacity < batch.capacity) {
+        result = new ColumnVector(dataType, batch.capacity)
+      }
+      val n = batch.numRows
+      result.setNullsFrom(l, r, n)
+      var i = 0
+      dataType match {
+        case IntegerType =>
+          val (a, b, c) = (l.ints, r.ints, result.ints)
+          op match {
+            case ADD => while (i < n) { c(i) = a(i) + b(i); i += 1 }
+            case SUBTRACT => while (i < n) { c(i) = a(i) - b(i); i += 1 }
+            case MULTIPLY => while (i < n) { c(i) = a(i) * b(i); i += 1 }
+          }
+        case LongType =>
+          val (a, b, c) = (l.longs, r.longs, result.longs)
+          op match {
+            case ADD => while (i < n) { c(i) = a(i) + b(i); i += 1 }
+            case SUBTRACT => while (i < n) { c(i) = a(i) - b(i); i += 1 }
+            case MULTIPLY => while (i < n) { c(i) = a(i) * b(i); i += 1 }
+          }
+        case FloatType =>
+          val (a, b, c) = (l.floats, r.floats, result.floats)
+          op match {
+            case ADD => while (i < n) { c(i) = a(i) + b(i); i += 1 }
+            case SUBTRACT => while (i < n) { c(i) = a(i) - b(i); i += 1 }
+            case MULTIPLY => while (i < n) { c(i) = a(i) * b(i); i += 1 }
+          }
+        case DoubleType =>
+          val (a, b, c) = (l.doubles, r.doubles, result.doubles)
+          op match {
+            case ADD => while (i < n) { c(i) = a(i) + b(i); i += 1 }
+            case SUBTRACT => while (i < n) { c(i) = a(i) - b(i); i += 1 }
+            case MULTIPLY => while (i < n) { c(i) = a(i) * b(i); i += 1 }
+          }
+      }
+      result
+    }
+  }
+}
@@ -181,7 +181,7 @@ class CachedTableSuite extends QueryTest with SharedSQLContext {
     ctx.cacheTable("testData")
     assertResult(0, "Double InMemoryRelations found, cacheTable() is not idempotent") {
       ctx.table("testData").queryExecution.withCachedData.collect {
-        case r @ InMemoryRelation(_, _, _, _, _: InMemoryColumnarTableScan, _) => r
+        case r @ InMemoryRelation(_, _, _, _, _, _: InMemoryColumnarTableScan, _) => r
       }.size
     }
 
@@ -118,6 +118,21 @@ class DataFrameAggregateSuite extends QueryTest with SharedSQLContext {
     ctx.conf.setConf(SQLConf.DATAFRAME_RETAIN_GROUP_COLUMNS, true)
   }
 
+  test("hash aggregation spilled to hash partitions") {//哈希聚合溢出到哈希分区
+    val df = (1 to 200).map(i => (i % 37, i.toLong)).toDF("k", "v")
+    val expected = (1 to 200).groupBy(_ % 37).map { case (k, vs) =>
+      Row(k, vs.map(_.toLong).sum, vs.length.toLong, vs.max.toLong)
+    }.toSeq
+    Seq("0", "1", "10").foreach { spillStartsAt =>
+      withSQLConf(
+          SQLConf.UNSAFE_ENABLED.key -> "true",
+          SQLConf.TUNGSTEN_AGGREGATE_HASH_SPILL_PARTITIONS.key -> "4",
+          "spark.sql.TungstenAggregate.testFallbackStartsAt" -> spillStartsAt) {
+        checkAnswer(df.groupBy("k").agg(sum("v"), count("v"), max("v")), expected)
+      }
+    }
+  }
+
   test("agg without groups") {//聚合无分组
     
     /**
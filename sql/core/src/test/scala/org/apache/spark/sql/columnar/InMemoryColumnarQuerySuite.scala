@@ -24,6 +24,7 @@ import org.apache.spark.sql.test.SharedSQLContext
 import org.apache.spark.sql.test.SQLTestData._
 import org.apache.spark.sql.types._
 import org.apache.spark.storage.StorageLevel.MEMORY_ONLY
+import org.apache.spark.unsafe.Platform
 //内存列查询测试套件
 class InMemoryColumnarQuerySuite extends QueryTest with SharedSQLContext {
   import testImplicits._
@@ -37,6 +38,19 @@ class InMemoryColumnarQuerySuite extends QueryTest with SharedSQLContext {
     checkAnswer(scan, testData.collect().toSeq)
   }
 
+  test("off-heap columnar query") {//堆外列查询
+    val plan = ctx.executePlan(complexData.logicalPlan).executedPlan
+    val scan =
+      InMemoryRelation(useCompression = true, 5, MEMORY_ONLY, plan, None, useOffHeap = true)
+
+    checkAnswer(scan, complexData.collect().toSeq)
+    checkAnswer(scan, complexData.collect().toSeq)
+    if (Platform.canWrapOffHeapMemory) {
+      assert(scan.cachedColumnBuffers.collect().forall(_.isInstanceOf[OffHeapCachedBatch]))
+    }
+    scan.uncache(blocking = true)
+  }
+
   test("default size avoids broadcast") {//默认大小避免广播
     // TODO: Improve this test when we have better statistics
     //当我们有更好的统计数据时,改进这个测试
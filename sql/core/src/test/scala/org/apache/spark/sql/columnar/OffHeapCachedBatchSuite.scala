@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.columnar
+
+import org.apache.spark.{SparkConf, SparkFunSuite}
+import org.apache.spark.serializer.{JavaSerializer, KryoSerializer, Serializer}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.unsafe.Platform
+
+class OffHeapCachedBatchSuite extends SparkFunSuite {
+
+  private def newBatch(): OffHeapCachedBatch = {
+    val buffers =
+      Array(Array[Byte](1, 2, 3), Array.empty[Byte], Array.tabulate[Byte](100)(_.toByte))
+    OffHeapCachedBatch(buffers, InternalRow(1, 2L))
+  }
+
+  private def columnBytes(batch: CachedBatch, ordinal: Int): Seq[Byte] = {
+    val buffer = batch.columnBuffer(ordinal)
+    val bytes = new Array[Byte](buffer.remaining())
+    buffer.get(bytes)
+    bytes.toSeq
+  }
+
+  private def checkBatch(batch: OffHeapCachedBatch): Unit = {
+    assert(batch.numColumns === 3)
+    assert(batch.stats === InternalRow(1, 2L))
+    assert(columnBytes(batch, 0) === Seq[Byte](1, 2, 3))
+    assert(columnBytes(batch, 1) === Seq.empty[Byte])
+    assert(columnBytes(batch, 2) === Seq.tabulate[Byte](100)(_.toByte))
+  }
+
+  test("read columns in place") {
+    assume(Platform.canWrapOffHeapMemory)
+    val batch = newBatch()
+    try {
+      checkBatch(batch)
+      assert(batch.columnBuffer(0).isDirect)
+      assert(batch.estimatedSize >= 103)
+    } finally {
+      batch.close()
+    }
+  }
+
+  test("memory is freed once closed and released by every reader") {
+    assume(Platform.canWrapOffHeapMemory)
+    val batch = newBatch()
+    batch.retain()
+    batch.retain()
+    batch.close()
+    batch.release()
+    // Still retained by one reader.
+    checkBatch(batch)
+    batch.release()
+    intercept[IllegalStateException] {
+      batch.retain()
+    }
+  }
+
+  Seq(new JavaSerializer(new SparkConf), new KryoSerializer(new SparkConf)).foreach {
+    serializer: Serializer =>
+      test(s"serialize with ${serializer.getClass.getSimpleName}") {
+        assume(Platform.canWrapOffHeapMemory)
+        val instance = serializer.newInstance()
+        val batch = newBatch()
+        val copy = try {
+          instance.deserialize[OffHeapCachedBatch](instance.serialize(batch))
+        } finally {
+          batch.close()
+        }
+        try {
+          checkBatch(copy)
+        } finally {
+          copy.close()
+        }
+      }
+  }
+}
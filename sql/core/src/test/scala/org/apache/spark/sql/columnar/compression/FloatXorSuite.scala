@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.columnar.compression
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.catalyst.expressions.GenericMutableRow
+import org.apache.spark.sql.columnar._
+import org.apache.spark.sql.columnar.ColumnarTestUtils._
+import org.apache.spark.sql.types.{AtomicType, DoubleType}
+
+class FloatXorSuite extends SparkFunSuite {
+  testFloatXor(new FloatColumnStats, FLOAT)
+  testFloatXor(new DoubleColumnStats, DOUBLE)
+
+  def testFloatXor[T <: AtomicType](
+      columnStats: ColumnStats,
+      columnType: NativeColumnType[T]) {
+
+    def skeleton(input: Seq[T#InternalType]): Double = {
+      val builder = TestCompressibleColumnBuilder(columnStats, columnType, FloatXor)
+      input.foreach { value =>
+        val row = new GenericMutableRow(1)
+        columnType.setField(row, 0, value)
+        builder.appendFrom(row, 0)
+      }
+
+      val buffer = builder.build()
+      val headerSize = CompressionScheme.columnHeaderSize(buffer)
+      buffer.position(headerSize)
+      assertResult(FloatXor.typeId, "Wrong compression scheme ID")(buffer.getInt())
+
+      val decoder = FloatXor.decoder(buffer, columnType)
+      val mutableRow = new GenericMutableRow(1)
+      input.foreach { expected =>
+        assert(decoder.hasNext)
+        decoder.next(mutableRow, 0)
+        val actual = columnType.getField(mutableRow, 0)
+        // Compares the bits, so that NaN and negative zero also have to survive.
+        assertResult(bits(expected), "Wrong decoded value")(bits(actual))
+      }
+      assert(!decoder.hasNext)
+      assert(!buffer.hasRemaining, "The decoder did not read the whole buffer")
+
+      // The ratio that the column builder would see
+      (buffer.capacity - headerSize - 4).toDouble / (input.length * columnType.defaultSize)
+    }
+
+    def bits(value: Any): Long = value match {
+      case f: Float => java.lang.Float.floatToRawIntBits(f)
+      case d: Double => java.lang.Double.doubleToRawLongBits(d)
+    }
+
+    def typed(values: Seq[Double]): Seq[T#InternalType] = values.map { value =>
+      val typedValue: Any = if (columnType == FLOAT) value.toFloat else value
+      typedValue.asInstanceOf[T#InternalType]
+    }
+
+    test(s"$FloatXor with $columnType: empty column") {
+      skeleton(Seq.empty)
+    }
+
+    test(s"$FloatXor with $columnType: special values") {
+      skeleton(typed(Seq(0.0, -0.0, Double.NaN, Double.PositiveInfinity, Double.NegativeInfinity,
+        Double.MinPositiveValue, Double.MaxValue, -Double.MaxValue, 1.0, 1.0, 0.0)))
+    }
+
+    test(s"$FloatXor with $columnType: long random series") {
+      val input = Array.fill[Any](1000)(makeRandomValue(columnType))
+      skeleton(input.map(_.asInstanceOf[T#InternalType]))
+    }
+
+    test(s"$FloatXor with $columnType: slowly changing series compresses") {
+      val ratio = skeleton(typed(Seq.tabulate(1000)(i => 100.0 + (i / 10) * 0.5)))
+      assert(ratio < 0.5, s"Compression ratio $ratio is too high")
+    }
+  }
+
+  test("selected for slowly changing doubles") {
+    val builder = ColumnBuilder(DoubleType, 0, "", useCompression = true)
+    (0 until 1000).foreach { i =>
+      val row = new GenericMutableRow(1)
+      row.setDouble(0, 20.0 + (i % 7) * 0.25)
+      builder.appendFrom(row, 0)
+    }
+    val buffer = builder.build()
+    buffer.position(CompressionScheme.columnHeaderSize(buffer))
+    assertResult(FloatXor.typeId, "Wrong compression scheme ID")(buffer.getInt())
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.columnar.compression
+
+import scala.util.Random
+
+import org.apache.spark.SparkFunSuite
+import org.apache.spark.sql.catalyst.expressions.GenericMutableRow
+import org.apache.spark.sql.columnar._
+import org.apache.spark.sql.columnar.ColumnarTestUtils._
+import org.apache.spark.sql.types.{AtomicType, IntegerType}
+
+class FrameOfReferenceSuite extends SparkFunSuite {
+  testFrameOfReference(new ByteColumnStats, BYTE)
+  testFrameOfReference(new ShortColumnStats, SHORT)
+  testFrameOfReference(new IntColumnStats, INT)
+  testFrameOfReference(new LongColumnStats, LONG)
+  testFrameOfReference(new DateColumnStats, DATE)
+  testFrameOfReference(new TimestampColumnStats, TIMESTAMP)
+
+  def testFrameOfReference[T <: AtomicType](
+      columnStats: ColumnStats,
+      columnType: NativeColumnType[T]) {
+
+    def toLong(value: Any): Long = value match {
+      case b: Byte => b
+      case s: Short => s
+      case i: Int => i
+      case l: Long => l
+    }
+
+    def skeleton(input: Seq[T#InternalType]) {
+      // -------------
+      // Tests encoder
+      // -------------
+
+      val builder = TestCompressibleColumnBuilder(columnStats, columnType, FrameOfReference)
+      input.foreach { value =>
+        val row = new GenericMutableRow(1)
+        columnType.setField(row, 0, value)
+        builder.appendFrom(row, 0)
+      }
+
+      val buffer = builder.build()
+      // Column type ID + null count + null positions
+      val headerSize = CompressionScheme.columnHeaderSize(buffer)
+
+      // Compression scheme ID + value count + blocks
+      val compressedSize = 4 + 4 + input.grouped(FrameOfReference.BLOCK_SIZE).map { block =>
+        val values = block.map(toLong)
+        val width = 64 - java.lang.Long.numberOfLeadingZeros(values.max - values.min)
+        8 + 1 + (block.length * width + 63) / 64 * 8
+      }.sum
+      assertResult(headerSize + compressedSize, "Wrong buffer capacity")(buffer.capacity)
+
+      buffer.position(headerSize)
+      assertResult(FrameOfReference.typeId, "Wrong compression scheme ID")(buffer.getInt())
+
+      // -------------
+      // Tests decoder
+      // -------------
+
+      val decoder = FrameOfReference.decoder(buffer, columnType)
+      val mutableRow = new GenericMutableRow(1)
+
+      input.foreach { expected =>
+        assert(decoder.hasNext)
+        assertResult(expected, "Wrong decoded value") {
+          decoder.next(mutableRow, 0)
+          columnType.getField(mutableRow, 0)
+        }
+      }
+      assert(!decoder.hasNext)
+    }
+
+    test(s"$FrameOfReference with $columnType: empty column") {
+      skeleton(Seq.empty)
+    }
+
+    test(s"$FrameOfReference with $columnType: constant column") {
+      val value = makeRandomValue(columnType)
+      skeleton(Seq.fill(300)(value))
+    }
+
+    test(s"$FrameOfReference with $columnType: long random series") {
+      // Have to workaround with `Any` since no `ClassTag[T#InternalType]` available here.
+      val input = Array.fill[Any](1000)(makeRandomValue(columnType))
+      skeleton(input.map(_.asInstanceOf[T#InternalType]))
+    }
+
+    test(s"$FrameOfReference with $columnType: series in a narrow range") {
+      val (maxValue, narrow): (Long, Long => Any) = (columnType: ColumnType[_]) match {
+        case BYTE => (Byte.MaxValue, _.toByte)
+        case SHORT => (Short.MaxValue, _.toShort)
+        case INT | DATE => (Int.MaxValue, _.toInt)
+        case LONG | TIMESTAMP => (Long.MaxValue, identity)
+        case other => fail(s"Unexpected column type $other")
+      }
+      // Keep every value within 100 of the base without overflowing the column type.
+      val base = math.min(toLong(makeRandomValue(columnType)) / 2, maxValue - 99)
+      val input = Seq.fill(1000)(base + Random.nextInt(100)).map { value =>
+        narrow(value).asInstanceOf[T#InternalType]
+      }
+      skeleton(input)
+    }
+  }
+
+  test("selected for small-range integers") {
+    val builder = ColumnBuilder(IntegerType, 0, "", useCompression = true)
+    (0 until 1000).foreach { i =>
+      val row = new GenericMutableRow(1)
+      row.setInt(0, 1000000 + Random.nextInt(1000))
+      builder.appendFrom(row, 0)
+    }
+    val buffer = builder.build()
+    buffer.position(CompressionScheme.columnHeaderSize(buffer))
+    assertResult(FrameOfReference.typeId, "Wrong compression scheme ID")(buffer.getInt())
+  }
+}
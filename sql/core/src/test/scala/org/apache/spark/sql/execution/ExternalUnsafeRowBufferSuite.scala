@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import scala.collection.mutable.ArrayBuffer
+
+import org.apache.spark._
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.test.SharedSQLContext
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.memory.{ExecutorMemoryManager, MemoryAllocator, TaskMemoryManager}
+import org.apache.spark.unsafe.types.UTF8String
+
+/**
+ * Test suite for [[ExternalUnsafeRowBuffer]].
+ */
+class ExternalUnsafeRowBufferSuite extends SparkFunSuite with SharedSQLContext {
+
+  private val schema = new StructType().add("id", IntegerType).add("name", StringType)
+  private val toUnsafe = UnsafeProjection.create(schema)
+
+  private def row(i: Int, nameLength: Int = 10): UnsafeRow =
+    toUnsafe(InternalRow(i, UTF8String.fromString("x" * nameLength)))
+
+  /**
+   * Runs a test with a buffer using the given page size, and checks that the buffer's memory is
+   * released afterwards.
+   */
+  private def withBuffer(pageSize: Long, maxMemory: Long = Long.MaxValue)(
+      f: (ExternalUnsafeRowBuffer, TestShuffleMemoryManager) => Unit): Unit = {
+    val taskMemMgr = new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP))
+    val shuffleMemMgr = new TestShuffleMemoryManager(maxMemory)
+    TaskContext.setTaskContext(new TaskContextImpl(
+      stageId = 0,
+      partitionId = 0,
+      taskAttemptId = 98456,
+      attemptNumber = 0,
+      taskMemoryManager = taskMemMgr,
+      metricsSystem = null,
+      internalAccumulators = Seq.empty))
+    try {
+      val buffer = new ExternalUnsafeRowBuffer(taskMemMgr, shuffleMemMgr,
+        SparkEnv.get.blockManager, TaskContext.get(), schema.length, pageSize)
+      f(buffer, shuffleMemMgr)
+      buffer.cleanupResources()
+
+      // Make sure there is no memory leak
+      //确保没有内存泄漏
+      assert(0L === shuffleMemMgr.getMemoryConsumptionForThisTask())
+      assert(0L === taskMemMgr.cleanUpAllAllocatedMemory)
+    } finally {
+      TaskContext.unset()
+    }
+  }
+
+  private def readAll(buffer: ExternalUnsafeRowBuffer): Seq[(Int, Int)] = {
+    val out = new ArrayBuffer[(Int, Int)]
+    val reader = buffer.newReader()
+    while (reader.next()) {
+      out += ((reader.getRow.getInt(0), reader.getRow.getUTF8String(1).numBytes()))
+    }
+    out
+  }
+
+  test("rows are read back in order from memory") {
+    withBuffer(pageSize = 1024) { (buffer, _) =>
+      (0 until 1000).foreach(i => buffer.add(row(i)))
+      assert(buffer.numRows === 1000)
+      assert(!buffer.hasSpilled)
+      assert(buffer.getNumberOfAllocatedPages > 1)
+      assert(readAll(buffer) === (0 until 1000).map((_, 10)))
+    }
+  }
+
+  test("rows are read back in order after spilling") {
+    withBuffer(pageSize = 1024) { (buffer, shuffleMemMgr) =>
+      (0 until 1000).foreach { i =>
+        if (i % 300 == 299) {
+          shuffleMemMgr.markAsOutOfMemory()
+        }
+        buffer.add(row(i))
+      }
+      assert(buffer.numRows === 1000)
+      assert(buffer.hasSpilled)
+      assert(TaskContext.get().taskMetrics().diskBytesSpilled > 0)
+
+      // Spill files can be read more than once, and by several readers at the same time.
+      val expected = (0 until 1000).map((_, 10))
+      assert(readAll(buffer) === expected)
+      val readers = Seq.fill(2)(buffer.newReader())
+      (0 until 1000).foreach { i =>
+        readers.foreach { reader =>
+          assert(reader.next())
+          assert(reader.getRow.getInt(0) === i)
+        }
+      }
+      readers.foreach(reader => assert(!reader.next()))
+      assert(readAll(buffer) === expected)
+    }
+  }
+
+  test("the first page is reserved up front and reused after spilling") {
+    withBuffer(pageSize = 1024, maxMemory = 2048) { (buffer, shuffleMemMgr) =>
+      assert(buffer.getNumberOfAllocatedPages === 1)
+      // Another operator of the task takes all the memory that is left.
+      val taken = shuffleMemMgr.tryToAcquire(2048)
+      assert(taken === 1024)
+      try {
+        (0 until 1000).foreach(i => buffer.add(row(i)))
+        assert(buffer.hasSpilled)
+        assert(buffer.getNumberOfAllocatedPages === 1)
+        assert(readAll(buffer) === (0 until 1000).map((_, 10)))
+      } finally {
+        shuffleMemMgr.release(taken)
+      }
+    }
+  }
+
+  test("cleared buffer can be reused") {
+    withBuffer(pageSize = 1024) { (buffer, shuffleMemMgr) =>
+      (0 until 500).foreach(i => buffer.add(row(i)))
+      buffer.spill()
+      (500 until 600).foreach(i => buffer.add(row(i)))
+      buffer.clear()
+      assert(buffer.numRows === 0)
+      assert(!buffer.hasSpilled)
+      assert(readAll(buffer) === Seq.empty)
+      assert(buffer.getNumberOfAllocatedPages === 1)
+
+      (0 until 10).foreach(i => buffer.add(row(i)))
+      assert(buffer.getNumberOfAllocatedPages === 1)
+      assert(readAll(buffer) === (0 until 10).map((_, 10)))
+    }
+  }
+
+  test("rows that exceed the page size") {
+    withBuffer(pageSize = 128) { (buffer, shuffleMemMgr) =>
+      val lengths = Seq(10, 500, 10, 1000, 10)
+      lengths.zipWithIndex.foreach { case (length, i) => buffer.add(row(i, length)) }
+      assert(readAll(buffer) === lengths.indices.zip(lengths))
+      buffer.spill()
+      buffer.add(row(lengths.size, 2000))
+      assert(readAll(buffer) === lengths.indices.zip(lengths) :+ ((lengths.size, 2000)))
+    }
+  }
+}
@@ -80,6 +80,27 @@ class TungstenSortSuite extends SparkPlanTest with SharedSQLContext {
     }
   }
 
+  test("sorting strings with a long common prefix by 16-byte prefixes") {
+    val inputData = Seq.fill(1000) {
+      if (Random.nextInt(10) == 0) null else s"https://spark.apache.org/${Random.nextInt(100)}"
+    } ++ Seq("https://", "https://spark.ap", "https://spark.apache.org")
+    val inputDf = ctx.createDataFrame(
+      ctx.sparkContext.parallelize(Random.shuffle(inputData).map(v => Row(v))),
+      StructType(StructField("a", StringType, nullable = true) :: Nil)
+    )
+    for (widePrefix <- Seq(true, false); sortOrder <- Seq('a.asc :: Nil, 'a.desc :: Nil)) {
+      withSQLConf(SQLConf.TUNGSTEN_SORT_WIDE_PREFIX.key -> widePrefix.toString) {
+        checkThatPlansAgree(
+          inputDf,
+          plan => ConvertToSafe(
+            TungstenSort(sortOrder, global = true, plan: SparkPlan, testSpillFrequency = 100)),
+          Sort(sortOrder, global = true, _: SparkPlan),
+          sortAnswers = false
+        )
+      }
+    }
+  }
+
   // Test sorting on different data types
   //不同数据类型的测试排序
   for (
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.sql.{DataFrame, QueryTest, Row, SQLConf}
+import org.apache.spark.sql.catalyst.dsl.expressions._
+import org.apache.spark.sql.catalyst.expressions.{Attribute, AttributeReference, Expression,
+  Literal}
+import org.apache.spark.sql.columnar.{ColumnVector, ColumnarBatch}
+import org.apache.spark.sql.test.SharedSQLContext
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+
+//向量化过滤和投影测试套件
+class VectorizedSuite extends QueryTest with SharedSQLContext {
+  import testImplicits._
+
+  private val a = AttributeReference("a", IntegerType)()
+  private val b = AttributeReference("b", DoubleType)()
+  private val s = AttributeReference("c", StringType)()
+  private val d = AttributeReference("d", IntegerType)()
+  private val input: Seq[Attribute] = Seq(a, b, s)
+
+  // a: 0, 1, null, 3, 4, null
+  // b: 1.0, NaN, 2.5, null, -1.0, 0.0
+  // c: "x", "y", null, "x", "z", "y"
+  private def newBatch(): ColumnarBatch = {
+    val values = Seq[(Any, Any, Any)](
+      (0, 1.0, "x"), (1, Double.NaN, "y"), (null, 2.5, null),
+      (3, null, "x"), (4, -1.0, "z"), (null, 0.0, "y"))
+    val columns = input.map(attr => new ColumnVector(attr.dataType, 8)).toArray
+    values.zipWithIndex.foreach { case ((va, vb, vc), rowId) =>
+      Seq(va, vb, Option(vc).map(v => UTF8String.fromString(v.toString)).orNull)
+        .zip(columns).foreach { case (value, column) =>
+          if (value == null) column.setNullAt(rowId) else column.put(rowId, value)
+        }
+    }
+    val batch = new ColumnarBatch(columns, 8)
+    batch.numRows = values.size
+    batch
+  }
+
+  private def selectTrue(condition: Expression): Seq[Int] = {
+    val predicate = VectorizedPredicate.create(condition, input).get
+    val batch = newBatch()
+    val rows = batch.selectedRows(new Array[Int](batch.capacity))
+    val numSelected = predicate.selectTrue(batch, rows, batch.numRows, rows)
+    rows.take(numSelected).toSeq
+  }
+
+  test("comparisons skip nulls") {//比较跳过空值
+    assert(selectTrue(a > 0) === Seq(1, 3, 4))
+    assert(selectTrue(a <= 1) === Seq(0, 1))
+    assert(selectTrue(Literal(1) < a) === Seq(3, 4))
+    assert(selectTrue(s === "x") === Seq(0, 3))
+    assert(selectTrue(s >= "y") === Seq(1, 4, 5))
+    assert(selectTrue(a.isNull) === Seq(2, 5))
+    assert(selectTrue(b.isNotNull) === Seq(0, 1, 2, 4, 5))
+  }
+
+  test("NaN is greater than any other double and equal to itself") {//NaN大于任何其他双精度值并等于自身
+    assert(selectTrue(b > 2.0) === Seq(1, 2))
+    assert(selectTrue(b === Double.NaN) === Seq(1))
+    assert(selectTrue(b < 1.0) === Seq(4, 5))
+  }
+
+  test("three-valued logic") {//三值逻辑
+    assert(selectTrue(!(a > 0)) === Seq(0))
+    assert(selectTrue(a > 0 && s === "x") === Seq(3))
+    assert(selectTrue(a > 3 || s === "x") === Seq(0, 3, 4))
+    // Null or true is true, so row 5 is selected, but null and false is not true.
+    assert(selectTrue(a > 0 || s === "y") === Seq(1, 3, 4, 5))
+    assert(selectTrue(!(a > 0 && b > 0.5)) === Seq(0, 4, 5))
+    assert(selectTrue(!(a < 1 || s === "y")) === Seq(3, 4))
+  }
+
+  test("predicates can be reused across batches") {//谓词可以在批次之间重用
+    val predicate = VectorizedPredicate.create(!(a > 0 && b > 0.5) || s === "z", input).get
+    val scratch = new Array[Int](8)
+    (0 until 3).foreach { _ =>
+      val batch = newBatch()
+      val rows = batch.selectedRows(scratch)
+      assert(rows eq scratch)
+      val numSelected = predicate.selectTrue(batch, rows, batch.numRows, rows)
+      assert(rows.take(numSelected).toSeq === Seq(0, 4, 5))
+    }
+  }
+
+  test("unsupported expressions are not vectorized") {//不支持的表达式不会被向量化
+    assert(VectorizedPredicate.create(a > d, input).isEmpty)
+    assert(VectorizedPredicate.create(d > 0, input).isEmpty)
+    assert(VectorizedPredicate.create(s.startsWith("x"), input).isEmpty)
+    assert(VectorizedExpression.create(a / 2, input).isEmpty)
+    assert(VectorizedExpression.create(s, input).isDefined)
+  }
+
+  test("arithmetic propagates nulls") {//算术运算传播空值
+    val batch = newBatch()
+    val result = VectorizedExpression.create(a * 2 + a, input).get.eval(batch)
+    assert((0 until batch.numRows).map(result.get) === Seq(0, 3, null, 9, 12, null))
+    val difference = VectorizedExpression.create(b - 1.0, input).get.eval(batch)
+    assert(difference.isNullAt(3))
+    assert(difference.get(1).asInstanceOf[Double].isNaN)
+    assert(difference.get(4) === -2.0)
+  }
+
+  private def vectorizedPlans(df: DataFrame): Seq[SparkPlan] = df.queryExecution.executedPlan
+    .collect { case VectorizedPlan(p) => p }
+
+  test("cached table scan with vectorized filter and project") {//向量化过滤和投影的缓存表扫描
+    val data = (0 until 1000).map { i =>
+      (if (i % 7 == 0) null else Integer.valueOf(i % 50),
+        if (i % 11 == 0) Double.NaN else i / 3.0,
+        if (i % 5 == 0) null else s"s${i % 13}",
+        i.toLong)
+    }
+    data.toDF("a", "b", "c", "d").registerTempTable("vectorizedData")
+    withSQLConf(SQLConf.COLUMN_BATCH_SIZE.key -> "100") {
+      sqlContext.cacheTable("vectorizedData")
+    }
+    try {
+      val queries = Seq(
+        "SELECT a + 1, b * 2.0, d - a FROM vectorizedData WHERE a > 10 AND c IS NOT NULL",
+        "SELECT a, c FROM vectorizedData WHERE NOT (b < 100.0 OR c = 's3')",
+        "SELECT d FROM vectorizedData WHERE b = CAST('NaN' AS DOUBLE) OR a IS NULL",
+        "SELECT COUNT(*) FROM vectorizedData",
+        "SELECT COUNT(*) FROM vectorizedData WHERE d >= 500",
+        "SELECT a, UPPER(c) FROM vectorizedData WHERE c > 's5'")
+      queries.foreach { query =>
+        var expected: Seq[Row] = null
+        withSQLConf(SQLConf.VECTORIZED_CACHED_SCAN.key -> "false") {
+          val df = sql(query)
+          assert(vectorizedPlans(df).isEmpty)
+          expected = df.collect().toSeq
+        }
+        withSQLConf(SQLConf.VECTORIZED_CACHED_SCAN.key -> "true") {
+          val df = sql(query)
+          assert(vectorizedPlans(df).nonEmpty)
+          checkAnswer(df, expected)
+        }
+      }
+    } finally {
+      sqlContext.uncacheTable("vectorizedData")
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.sql.execution
+
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions._
+import org.apache.spark.sql.test.SharedSQLContext
+import org.apache.spark.sql.types.{DataType, LongType}
+
+/**
+ * A window function that sums an integer column. The window functions themselves are provided by
+ * Hive, so this stands in for them to test the frames of the [[Window]] operator.
+ */
+private case class TestSumWindowFunction(child: Expression, orderInsensitive: Boolean)
+  extends UnaryExpression with WindowFunction with Unevaluable {
+
+  override def dataType: DataType = LongType
+  override def nullable: Boolean = false
+
+  private[this] var sum = 0L
+  private[this] var result = 0L
+
+  override def init(): Unit = reset()
+  override def reset(): Unit = sum = 0L
+  override def prepareInputParameters(input: InternalRow): AnyRef =
+    child.eval(input).asInstanceOf[AnyRef]
+  override def update(input: AnyRef): Unit = sum += input.asInstanceOf[Integer].intValue()
+  override def batchUpdate(inputs: Array[AnyRef]): Unit = inputs.foreach(update)
+  override def evaluate(): Unit = result = sum
+  override def get(index: Int): Any = result
+  override def newInstance(): WindowFunction = copy()
+  override def isOrderInsensitive: Boolean = orderInsensitive
+}
+
+/**
+ * A window function that sums an integer column weighted by the position of each row in the
+ * frame, 1 for the first row, so that its result depends on the order of the rows. It can merge
+ * partial aggregates, which are (rows, sum, weighted sum) triples.
+ */
+private case class TestWeightedSumWindowFunction(child: Expression)
+  extends UnaryExpression with WindowFunction with Unevaluable {
+
+  override def dataType: DataType = LongType
+  override def nullable: Boolean = false
+
+  private[this] var count = 0L
+  private[this] var weightedSum = 0L
+  private[this] var result = 0L
+
+  override def init(): Unit = reset()
+  override def reset(): Unit = {
+    count = 0L
+    weightedSum = 0L
+  }
+  override def prepareInputParameters(input: InternalRow): AnyRef =
+    child.eval(input).asInstanceOf[AnyRef]
+  override def update(input: AnyRef): Unit = {
+    count += 1
+    weightedSum += count * input.asInstanceOf[Integer].intValue()
+  }
+  override def batchUpdate(inputs: Array[AnyRef]): Unit = inputs.foreach(update)
+  override def evaluate(): Unit = result = weightedSum
+  override def get(index: Int): Any = result
+  override def newInstance(): WindowFunction = copy()
+
+  override def supportsMerge: Boolean = true
+  override def partialOf(input: AnyRef): Any = {
+    val v = input.asInstanceOf[Integer].longValue()
+    (1L, v, v)
+  }
+  override def mergePartials(left: Any, right: Any): Any = {
+    val (leftCount, leftSum, leftWeighted) = left.asInstanceOf[(Long, Long, Long)]
+    val (rightCount, rightSum, rightWeighted) = right.asInstanceOf[(Long, Long, Long)]
+    val weighted = leftWeighted + rightWeighted + leftCount * rightSum
+    (leftCount + rightCount, leftSum + rightSum, weighted)
+  }
+  override def evaluateMerged(partials: Seq[Any]): Unit = {
+    result = if (partials.isEmpty) 0L else partials.reduceLeft(mergePartials) match {
+      case (_, _, weighted: Long) => weighted
+    }
+  }
+}
+
+class WindowSuite extends SparkPlanTest with SharedSQLContext {
+
+  // Three partitions with distinct ordering values, and values that are not in order.
+  private val input: Seq[(Int, Int, Int)] = (0 until 200).map(i => (i % 3, i, i * 7 % 11))
+
+  /**
+   * Checks the sums over the given frame against sums computed on the input, where `inFrame`
+   * tells whether the ordering value `b` of an input row is in the frame of the output row with
+   * ordering value `outputB` and index `outputIndex` in its partition. With `weighted`, the sums
+   * are weighted by the position of the rows in the frame.
+   */
+  private def checkFrame(
+      frame: WindowFrame,
+      orderInsensitive: Boolean = false,
+      weighted: Boolean = false)(
+      inFrame: (Int, Int, Int, Int) => Boolean): Unit = {
+    val expected = input.groupBy(_._1).values.flatMap { partition =>
+      val sorted = partition.sortBy(_._2)
+      sorted.zipWithIndex.map { case ((a, b, v), outputIndex) =>
+        val values = sorted.zipWithIndex.collect {
+          case ((_, inputB, inputV), inputIndex) if inFrame(inputIndex, inputB, outputIndex, b) =>
+            inputV.toLong
+        }
+        val sum = if (weighted) {
+          values.zipWithIndex.map { case (value, i) => value * (i + 1) }.sum
+        } else {
+          values.sum
+        }
+        Row(a, b, v, sum)
+      }
+    }.toSeq
+
+    checkAnswer(
+      input.toDF("a", "b", "v"),
+      (child: SparkPlan) => {
+        val Seq(a, b, v) = child.output
+        val spec = WindowSpecDefinition(a :: Nil, SortOrder(b, Ascending) :: Nil, frame)
+        val function = if (weighted) {
+          TestWeightedSumWindowFunction(v)
+        } else {
+          TestSumWindowFunction(v, orderInsensitive)
+        }
+        val sum = Alias(WindowExpression(function, spec), "s")()
+        Window(child.output, sum :: Nil, a :: Nil, SortOrder(b, Ascending) :: Nil, child)
+      },
+      expected)
+  }
+
+  test("sliding row frame") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValuePreceding(2), ValueFollowing(1))) {
+      (inputIndex, _, outputIndex, _) =>
+        inputIndex >= outputIndex - 2 && inputIndex <= outputIndex + 1
+    }
+  }
+
+  test("sliding range frame") {
+    checkFrame(SpecifiedWindowFrame(RangeFrame, ValuePreceding(7), ValueFollowing(4))) {
+      (_, inputB, _, outputB) => inputB >= outputB - 7 && inputB <= outputB + 4
+    }
+  }
+
+  test("growing frames") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, UnboundedPreceding, ValueFollowing(2))) {
+      (inputIndex, _, outputIndex, _) => inputIndex <= outputIndex + 2
+    }
+    checkFrame(SpecifiedWindowFrame(RangeFrame, UnboundedPreceding, CurrentRow)) {
+      (_, inputB, _, outputB) => inputB <= outputB
+    }
+  }
+
+  test("shrinking frames") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValuePreceding(1), UnboundedFollowing)) {
+      (inputIndex, _, outputIndex, _) => inputIndex >= outputIndex - 1
+    }
+    checkFrame(SpecifiedWindowFrame(RangeFrame, ValueFollowing(5), UnboundedFollowing)) {
+      (_, inputB, _, outputB) => inputB >= outputB + 5
+    }
+  }
+
+  test("shrinking frames evaluated in reverse") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValuePreceding(1), UnboundedFollowing), true) {
+      (inputIndex, _, outputIndex, _) => inputIndex >= outputIndex - 1
+    }
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValueFollowing(3), UnboundedFollowing), true) {
+      (inputIndex, _, outputIndex, _) => inputIndex >= outputIndex + 3
+    }
+    checkFrame(SpecifiedWindowFrame(RangeFrame, CurrentRow, UnboundedFollowing), true) {
+      (_, inputB, _, outputB) => inputB >= outputB
+    }
+  }
+
+  test("shrinking frames evaluated through segment trees") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValuePreceding(1), UnboundedFollowing),
+      weighted = true) {
+      (inputIndex, _, outputIndex, _) => inputIndex >= outputIndex - 1
+    }
+    checkFrame(SpecifiedWindowFrame(RowFrame, ValueFollowing(3), UnboundedFollowing),
+      weighted = true) {
+      (inputIndex, _, outputIndex, _) => inputIndex >= outputIndex + 3
+    }
+    checkFrame(SpecifiedWindowFrame(RangeFrame, ValueFollowing(5), UnboundedFollowing),
+      weighted = true) {
+      (_, inputB, _, outputB) => inputB >= outputB + 5
+    }
+  }
+
+  test("entire partition frame") {
+    checkFrame(SpecifiedWindowFrame(RowFrame, UnboundedPreceding, UnboundedFollowing)) {
+      (_, _, _, _) => true
+    }
+  }
+}
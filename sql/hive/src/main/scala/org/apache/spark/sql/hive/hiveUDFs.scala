@@ -22,8 +22,9 @@ import scala.collection.JavaConversions._
 import scala.util.Try
 
 import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspector, ConstantObjectInspector}
+import org.apache.hadoop.hive.serde2.objectinspector.{ObjectInspectorUtils, ObjectInspectorFactory}
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory.ObjectInspectorOptions
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory
 import org.apache.hadoop.hive.ql.exec._
 import org.apache.hadoop.hive.ql.udf.{UDFType => HiveUDFType}
 import org.apache.hadoop.hive.ql.udf.generic._
@@ -466,6 +467,82 @@ private[hive] case class HiveWindowFunction(
 
   override def newInstance(): WindowFunction =
     new HiveWindowFunction(funcWrapper, pivotResult, isUDAFBridgeRequired, children)
+
+  // Hive's sum, count, avg, min and max do not depend on the order in which rows are iterated.
+  override def isOrderInsensitive: Boolean = !pivotResult && (resolver match {
+    case _: GenericUDAFSum | _: GenericUDAFCount | _: GenericUDAFAverage |
+         _: GenericUDAFMin | _: GenericUDAFMax => true
+    case _ => false
+  })
+
+  // Partial aggregates are computed like Hive computes them for a map-side aggregation: rows are
+  // iterated by an evaluator in PARTIAL1 mode, partial aggregates are merged by one in PARTIAL2
+  // mode, and the result is computed by one in FINAL mode. Partial aggregates are copied to
+  // standard Java objects, since evaluators may reuse the objects they return.
+  @transient
+  private lazy val partialEvaluator: GenericUDAFEvaluator = newEvaluator()
+
+  @transient
+  private lazy val partialInspector: ObjectInspector =
+    partialEvaluator.init(GenericUDAFEvaluator.Mode.PARTIAL1, inputInspectors)
+
+  @transient
+  private lazy val standardPartialInspector: ObjectInspector =
+    ObjectInspectorUtils.getStandardObjectInspector(
+      partialInspector, ObjectInspectorCopyOption.JAVA)
+
+  @transient
+  private lazy val mergeEvaluator: GenericUDAFEvaluator = newEvaluator()
+
+  @transient
+  private lazy val mergeInspector: ObjectInspector =
+    mergeEvaluator.init(GenericUDAFEvaluator.Mode.PARTIAL2, Array(standardPartialInspector))
+
+  @transient
+  private lazy val finalEvaluator: GenericUDAFEvaluator = newEvaluator()
+
+  @transient
+  private lazy val finalInspector: ObjectInspector =
+    finalEvaluator.init(GenericUDAFEvaluator.Mode.FINAL, Array(standardPartialInspector))
+
+  private def newEvaluator(): GenericUDAFEvaluator =
+    resolver.getEvaluator(new SimpleGenericUDAFParameterInfo(inputInspectors, false, false))
+
+  // Functions that Hive describes as implying an order, such as first_value, are not merged, as
+  // their merges need not keep it. Nor are those whose evaluators fail in the partial modes.
+  @transient
+  override lazy val supportsMerge: Boolean = !pivotResult && {
+    val description = resolver.getClass.getAnnotation(classOf[WindowFunctionDescription])
+    description == null || !description.impliesOrder()
+  } && Try {
+    mergeInspector
+    finalInspector
+  }.isSuccess
+
+  override def partialOf(input: AnyRef): Any = {
+    val buffer = partialEvaluator.getNewAggregationBuffer
+    partialEvaluator.iterate(buffer, input.asInstanceOf[Array[AnyRef]])
+    ObjectInspectorUtils.copyToStandardObject(
+      partialEvaluator.terminatePartial(buffer), partialInspector, ObjectInspectorCopyOption.JAVA)
+  }
+
+  override def mergePartials(left: Any, right: Any): Any = {
+    val buffer = mergeEvaluator.getNewAggregationBuffer
+    mergeEvaluator.merge(buffer, left)
+    mergeEvaluator.merge(buffer, right)
+    ObjectInspectorUtils.copyToStandardObject(
+      mergeEvaluator.terminatePartial(buffer), mergeInspector, ObjectInspectorCopyOption.JAVA)
+  }
+
+  override def evaluateMerged(partials: Seq[Any]): Unit = {
+    val buffer = finalEvaluator.getNewAggregationBuffer
+    partials.foreach { partial =>
+      if (partial != null) {
+        finalEvaluator.merge(buffer, partial)
+      }
+    }
+    outputBuffer = unwrap(finalEvaluator.terminate(buffer), finalInspector)
+  }
 }
 
 private[hive] case class HiveGenericUDAF(
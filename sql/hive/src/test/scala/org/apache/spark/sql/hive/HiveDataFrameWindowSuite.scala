@@ -17,7 +17,7 @@
 
 package org.apache.spark.sql.hive
 
-import org.apache.spark.sql.{Row, QueryTest}
+import org.apache.spark.sql.{DataFrame, Row, QueryTest}
 import org.apache.spark.sql.expressions.Window
 import org.apache.spark.sql.functions._
 import org.apache.spark.sql.hive.test.TestHive._
@@ -274,6 +274,66 @@ class HiveDataFrameWindowSuite extends QueryTest {
         Row(10, 6000) :: Nil)
   }
 
+  // sum, avg, min and max are order insensitive, so their unbounded following frame is evaluated
+  // in reverse. Adding last_value to the same frame makes it evaluate the functions from the
+  // lower bound of every row, as it always used to.
+  //无界后续帧的反向计算应与从下限开始的计算结果相同
+  test("reverse evaluation of rows between current row and unbounded following") {
+    val df = Seq(
+      ("a", 1, Some(1)), ("a", 2, Some(7)), ("a", 3, None), ("a", 4, Some(6)), ("a", 5, Some(2)),
+      ("b", 1, None), ("b", 2, Some(3))).
+      toDF("grp", "key", "value")
+    df.registerTempTable("window_table")
+    val frame = "(PARTITION BY grp ORDER BY key ROWS BETWEEN CURRENT ROW AND UNBOUNDED FOLLOWING)"
+    val aggregates = Seq("sum", "avg", "min", "max").map(f => s"$f(value) OVER $frame")
+    val reversed = sql(
+      s"SELECT grp, key, ${aggregates.mkString(", ")} FROM window_table")
+    val forward = sql(
+      s"SELECT grp, key, ${aggregates.mkString(", ")}, last_value(value) OVER $frame AS last_v " +
+        "FROM window_table").drop("last_v")
+    def orderInsensitive(df: DataFrame): Seq[Boolean] =
+      df.queryExecution.executedPlan.flatMap(_.expressions).flatMap(_.collect {
+        case f: HiveWindowFunction => f.isOrderInsensitive
+      })
+    assert(orderInsensitive(reversed) === Seq.fill(4)(true))
+    assert(orderInsensitive(forward).sorted === false +: Seq.fill(4)(true))
+    val expected =
+      Row("a", 1, 16L, 4.0, 1, 7) :: Row("a", 2, 15L, 5.0, 2, 7) :: Row("a", 3, 8L, 4.0, 2, 6) ::
+        Row("a", 4, 8L, 4.0, 2, 6) :: Row("a", 5, 2L, 2.0, 2, 2) ::
+        Row("b", 1, 3L, 3.0, 3, 3) :: Row("b", 2, 3L, 3.0, 3, 3) :: Nil
+    checkAnswer(reversed, expected)
+    checkAnswer(forward, expected)
+  }
+
+  // var_pop and stddev_samp are not order insensitive, but they can merge partial aggregates, so
+  // their unbounded following frame is evaluated through segment trees. last_value implies an
+  // order, so adding it makes the frame evaluate the functions from the lower bound of every row.
+  test("segment tree evaluation of rows between current row and unbounded following") {
+    val df = Seq(
+      ("a", 1, Some(1)), ("a", 2, Some(7)), ("a", 3, None), ("a", 4, Some(6)), ("a", 5, Some(2)),
+      ("a", 6, Some(9)), ("b", 1, None), ("b", 2, Some(3)), ("b", 3, Some(5))).
+      toDF("grp", "key", "value")
+    df.registerTempTable("window_table")
+    val frame = "(PARTITION BY grp ORDER BY key ROWS BETWEEN CURRENT ROW AND UNBOUNDED FOLLOWING)"
+    val aggregates =
+      Seq("var_pop", "stddev_samp", "sum").map(f => s"round($f(value) OVER $frame, 6)")
+    val merged = sql(
+      s"SELECT grp, key, ${aggregates.mkString(", ")} FROM window_table")
+    val forward = sql(
+      s"SELECT grp, key, ${aggregates.mkString(", ")}, last_value(value) OVER $frame AS last_v " +
+        "FROM window_table").drop("last_v")
+    def supportsMerge(df: DataFrame): Seq[Boolean] =
+      df.queryExecution.executedPlan.flatMap(_.expressions).flatMap(_.collect {
+        case f: HiveWindowFunction => f.supportsMerge
+      })
+    assert(supportsMerge(merged) === Seq.fill(3)(true))
+    assert(supportsMerge(forward).sorted === false +: Seq.fill(3)(true))
+    checkAnswer(merged, forward.collect())
+    checkAnswer(merged.filter("grp = 'b'"),
+      Row("b", 1, 1.0, 1.414214, 8L) :: Row("b", 2, 1.0, 1.414214, 8L) ::
+        Row("b", 3, 0.0, 0.0, 5L) :: Nil)
+  }
+
   // This is here to illustrate the fact that reverse order also reverses offsets.
   //这是为了说明反向顺序也反转偏移的事实
   test("reverse unbounded range frame") {//反向无限范围框架
@@ -787,3 +787,20 @@ class TungstenAggregationQueryWithControlledFallbackSuite extends AggregationQue
     checkAnswer(df, expectedAnswer.collect())
   }
 }
+
+class TungstenAggregationQueryWithControlledHashSpillSuite
+  extends TungstenAggregationQueryWithControlledFallbackSuite {
+
+  override def beforeAll(): Unit = {
+    // With hash spilling enabled, the controlled fallback spills the hash map into hash
+    // partitions instead of switching to sort-based aggregation.
+    //启用哈希溢出后,受控回退会将哈希Map溢出到哈希分区,而不是切换到基于排序的聚合
+    sqlContext.setConf(SQLConf.TUNGSTEN_AGGREGATE_HASH_SPILL_PARTITIONS.key, "4")
+    super.beforeAll()
+  }
+
+  override def afterAll(): Unit = {
+    super.afterAll()
+    sqlContext.conf.unsetConf(SQLConf.TUNGSTEN_AGGREGATE_HASH_SPILL_PARTITIONS.key)
+  }
+}
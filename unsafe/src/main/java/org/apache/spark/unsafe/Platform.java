@@ -17,7 +17,9 @@
 
 package org.apache.spark.unsafe;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 
 import sun.misc.Unsafe;
 
@@ -131,6 +133,26 @@ public final class Platform {
     }
   }
 
+  /**
+   * Returns true if {@link #wrapOffHeapMemory(long, int)} is supported by this JVM.
+   */
+  public static boolean canWrapOffHeapMemory() {
+    return DBB_CONSTRUCTOR != null;
+  }
+
+  /**
+   * Returns a direct {@link ByteBuffer} over a region of off-heap memory, without copying it. The
+   * buffer does not own the memory, so it must not be used after the memory is freed.
+   */
+  public static ByteBuffer wrapOffHeapMemory(long address, int size) {
+    try {
+      return (ByteBuffer) DBB_CONSTRUCTOR.newInstance(address, size);
+    } catch (Exception e) {
+      throwException(e);
+      return null;
+    }
+  }
+
   /**
    * Raises an exception bypassing compiler checks for checked exceptions.
    */
@@ -144,6 +166,9 @@ public final class Platform {
    */
   private static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
 
+  /** The private DirectByteBuffer(long address, int capacity) constructor, if accessible. */
+  private static final Constructor<?> DBB_CONSTRUCTOR;
+
   static {
     sun.misc.Unsafe unsafe;
     try {
@@ -166,5 +191,15 @@ public final class Platform {
       LONG_ARRAY_OFFSET = 0;
       DOUBLE_ARRAY_OFFSET = 0;
     }
+
+    Constructor<?> constructor;
+    try {
+      Class<?> cls = Class.forName("java.nio.DirectByteBuffer");
+      constructor = cls.getDeclaredConstructor(Long.TYPE, Integer.TYPE);
+      constructor.setAccessible(true);
+    } catch (Throwable cause) {
+      constructor = null;
+    }
+    DBB_CONSTRUCTOR = constructor;
   }
 }
@@ -17,10 +17,25 @@
 
 package org.apache.spark.unsafe.array;
 
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import org.apache.spark.unsafe.Platform;
 
 public class ByteArrayMethods {
 
+  private static final boolean isBigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+  private static final long LOW_BITS = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  /**
+   * Patterns at least this long are searched for with Boyer-Moore-Horspool, when the text is long
+   * enough to pay for building the skip table.
+   */
+  private static final int MIN_HORSPOOL_PATTERN_LENGTH = 8;
+  private static final int MIN_HORSPOOL_TEXT_LENGTH = 256;
+
   private ByteArrayMethods() {
     // Private constructor, since this class only contains static methods.
       //私有构造函数，因为这个类只包含静态方法
@@ -66,4 +81,151 @@ public class ByteArrayMethods {
     }
     return true;
   }
+
+  /**
+   * Loads 8 bytes so that the byte at the lowest address is the least significant byte.
+   */
+  private static long getLongLittleEndian(Object base, long offset) {
+    final long word = Platform.getLong(base, offset);
+    return isBigEndian ? Long.reverseBytes(word) : word;
+  }
+
+  /**
+   * Lexicographically compares two byte sequences, treating bytes as unsigned, 8 bytes at a time.
+   * @return the difference between the first pair of bytes that differ, or between the lengths if
+   *         one sequence is a prefix of the other.
+   * 按字典序比较两个字节序列(字节视为无符号),每次比较8个字节
+   */
+  public static int compareBytes(
+      Object leftBase, long leftOffset, int leftLength,
+      Object rightBase, long rightOffset, int rightLength) {
+    final int length = Math.min(leftLength, rightLength);
+    int i = 0;
+    while (i <= length - 8) {
+      final long left = getLongLittleEndian(leftBase, leftOffset + i);
+      final long right = getLongLittleEndian(rightBase, rightOffset + i);
+      if (left != right) {
+        // The lowest differing byte is the first one in memory order.
+        final int shift = Long.numberOfTrailingZeros(left ^ right) & ~7;
+        return (int) ((left >>> shift) & 0xFF) - (int) ((right >>> shift) & 0xFF);
+      }
+      i += 8;
+    }
+    while (i < length) {
+      final int res = (Platform.getByte(leftBase, leftOffset + i) & 0xFF) -
+        (Platform.getByte(rightBase, rightOffset + i) & 0xFF);
+      if (res != 0) {
+        return res;
+      }
+      i += 1;
+    }
+    return leftLength - rightLength;
+  }
+
+  /**
+   * Returns the index of the first occurrence of the given byte, or -1 if there is none. Eight
+   * bytes are tested at a time by looking for a zero byte in their XOR with the target (SWAR).
+   * 返回给定字节第一次出现的索引,如果没有则返回-1。每次检查8个字节(SWAR)
+   */
+  public static int indexOfByte(Object base, long offset, int length, byte b) {
+    final long pattern = (b & 0xFFL) * LOW_BITS;
+    int i = 0;
+    while (i <= length - 8) {
+      final long word = getLongLittleEndian(base, offset + i) ^ pattern;
+      // Has a high bit set in every byte that is zero, and possibly in bytes above the first zero
+      // byte; the lowest one set is therefore always exact.
+      final long zeros = (word - LOW_BITS) & ~word & HIGH_BITS;
+      if (zeros != 0) {
+        return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+      }
+      i += 8;
+    }
+    while (i < length) {
+      if (Platform.getByte(base, offset + i) == b) {
+        return i;
+      }
+      i += 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the first occurrence of the pattern in the text, or -1 if there is none.
+   * An empty pattern is found at index 0.
+   * 返回模式在文本中第一次出现的索引,如果没有则返回-1
+   */
+  public static int indexOf(
+      Object base, long offset, int length,
+      Object patternBase, long patternOffset, int patternLength) {
+    if (patternLength == 0) {
+      return 0;
+    }
+    if (patternLength > length) {
+      return -1;
+    }
+    if (patternLength >= MIN_HORSPOOL_PATTERN_LENGTH && length >= MIN_HORSPOOL_TEXT_LENGTH) {
+      return horspoolIndexOf(base, offset, length, patternBase, patternOffset, patternLength);
+    }
+    // Jump between occurrences of the first byte of the pattern and verify the rest there.
+    final byte first = Platform.getByte(patternBase, patternOffset);
+    final int last = length - patternLength;
+    int i = 0;
+    while (i <= last) {
+      final int found = indexOfByte(base, offset + i, last - i + 1, first);
+      if (found < 0) {
+        return -1;
+      }
+      i += found;
+      if (arrayEquals(base, offset + i + 1, patternBase, patternOffset + 1, patternLength - 1)) {
+        return i;
+      }
+      i += 1;
+    }
+    return -1;
+  }
+
+  private static int horspoolIndexOf(
+      Object base, long offset, int length,
+      Object patternBase, long patternOffset, int patternLength) {
+    final int lastIndex = patternLength - 1;
+    final int[] skip = new int[256];
+    Arrays.fill(skip, patternLength);
+    for (int i = 0; i < lastIndex; i++) {
+      skip[Platform.getByte(patternBase, patternOffset + i) & 0xFF] = lastIndex - i;
+    }
+    final byte lastByte = Platform.getByte(patternBase, patternOffset + lastIndex);
+    int i = 0;
+    while (i <= length - patternLength) {
+      final byte b = Platform.getByte(base, offset + i + lastIndex);
+      if (b == lastByte && arrayEquals(base, offset + i, patternBase, patternOffset, lastIndex)) {
+        return i;
+      }
+      i += skip[b & 0xFF];
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the index of the last occurrence of the pattern in the text that starts at or before
+   * {@code fromIndex}, or -1 if there is none.
+   * 返回模式在文本中不晚于fromIndex开始的最后一次出现的索引,如果没有则返回-1
+   */
+  public static int lastIndexOf(
+      Object base, long offset, int length,
+      Object patternBase, long patternOffset, int patternLength,
+      int fromIndex) {
+    int i = Math.min(fromIndex, length - patternLength);
+    if (patternLength == 0) {
+      return i;
+    }
+    final byte first = Platform.getByte(patternBase, patternOffset);
+    while (i >= 0) {
+      if (Platform.getByte(base, offset + i) == first &&
+          arrayEquals(base, offset + i + 1, patternBase, patternOffset + 1, patternLength - 1)) {
+        return i;
+      }
+      i -= 1;
+    }
+    return -1;
+  }
 }
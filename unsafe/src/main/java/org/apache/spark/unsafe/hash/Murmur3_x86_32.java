@@ -17,6 +17,8 @@
 
 package org.apache.spark.unsafe.hash;
 
+import java.nio.ByteOrder;
+
 import org.apache.spark.unsafe.Platform;
 
 /**
@@ -27,6 +29,11 @@ public final class Murmur3_x86_32 {
   private static final int C1 = 0xcc9e2d51;
   private static final int C2 = 0x1b873593;
 
+  // On little-endian machines, the two 4-byte blocks of a word are its low and high halves, so
+  // the hash can load a whole word at a time.
+  private static final boolean isLittleEndian =
+    ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
   private final int seed;
 
   public Murmur3_x86_32(int seed) {
@@ -52,13 +59,48 @@ public final class Murmur3_x86_32 {
   public static int hashUnsafeWords(Object base, long offset, int lengthInBytes, int seed) {
     // This is based on Guava's `Murmur32_Hasher.processRemaining(ByteBuffer)` method.
     assert (lengthInBytes % 8 == 0): "lengthInBytes must be a multiple of 8 (word-aligned)";
+    int h1 = hashBytesByInt(base, offset, lengthInBytes, seed);
+    return fmix(h1, lengthInBytes);
+  }
+
+  public int hashUnsafeBytes(Object base, long offset, int lengthInBytes) {
+    return hashUnsafeBytes(base, offset, lengthInBytes, seed);
+  }
+
+  /**
+   * Hashes a region of memory of any length. For lengths that are a multiple of 8, the result is
+   * the same as {@link #hashUnsafeWords(Object, long, int, int)}. Trailing bytes that do not make
+   * up a 4-byte block are mixed in one at a time.
+   */
+  public static int hashUnsafeBytes(Object base, long offset, int lengthInBytes, int seed) {
+    assert (lengthInBytes >= 0): "lengthInBytes cannot be negative";
+    final int lengthAligned = lengthInBytes - lengthInBytes % 4;
+    int h1 = hashBytesByInt(base, offset, lengthAligned, seed);
+    for (int i = lengthAligned; i < lengthInBytes; i++) {
+      int halfWord = Platform.getByte(base, offset + i);
+      int k1 = mixK1(halfWord);
+      h1 = mixH1(h1, k1);
+    }
+    return fmix(h1, lengthInBytes);
+  }
+
+  private static int hashBytesByInt(Object base, long offset, int lengthInBytes, int seed) {
+    assert (lengthInBytes % 4 == 0);
     int h1 = seed;
-    for (int i = 0; i < lengthInBytes; i += 4) {
+    int i = 0;
+    if (isLittleEndian) {
+      for (; i + 8 <= lengthInBytes; i += 8) {
+        final long word = Platform.getLong(base, offset + i);
+        h1 = mixH1(h1, mixK1((int) word));
+        h1 = mixH1(h1, mixK1((int) (word >>> 32)));
+      }
+    }
+    for (; i < lengthInBytes; i += 4) {
       int halfWord = Platform.getInt(base, offset + i);
       int k1 = mixK1(halfWord);
       h1 = mixH1(h1, k1);
     }
-    return fmix(h1, lengthInBytes);
+    return h1;
   }
 
   public int hashLong(long input) {
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.unsafe.hash;
+
+/**
+ * A hash function over regions of memory, used by hash tables that can be configured with
+ * different hash functions. The result is 64 bits wide; hashers that produce fewer bits return
+ * them sign-extended.
+ */
+public abstract class UnsafeHasher {
+
+  /** 32-bit Murmur3 with seed 0, which processes the input 4 bytes at a time. */
+  public static final UnsafeHasher MURMUR3_32 = new UnsafeHasher() {
+    @Override
+    public long hashUnsafeWords(Object base, long offset, int lengthInBytes) {
+      return Murmur3_x86_32.hashUnsafeWords(base, offset, lengthInBytes, 0);
+    }
+
+    @Override
+    public String toString() {
+      return "murmur3";
+    }
+  };
+
+  /** 64-bit xxHash with seed 0, which processes the input 32 bytes at a time. */
+  public static final UnsafeHasher XXH64 = new UnsafeHasher() {
+    @Override
+    public long hashUnsafeWords(Object base, long offset, int lengthInBytes) {
+      return org.apache.spark.unsafe.hash.XXH64.hashUnsafeBytes(base, offset, lengthInBytes, 0L);
+    }
+
+    @Override
+    public String toString() {
+      return "xxhash64";
+    }
+  };
+
+  /**
+   * Hashes a region of memory whose length is a multiple of 8.
+   */
+  public abstract long hashUnsafeWords(Object base, long offset, int lengthInBytes);
+
+  /**
+   * Returns the hasher with the given name, which is either "murmur3" or "xxhash64".
+   *
+   * @throws IllegalArgumentException if the name is not known.
+   */
+  public static UnsafeHasher forName(String name) {
+    if ("murmur3".equalsIgnoreCase(name)) {
+      return MURMUR3_32;
+    } else if ("xxhash64".equalsIgnoreCase(name)) {
+      return XXH64;
+    } else {
+      throw new IllegalArgumentException(
+        "Unknown hash function " + name + "; must be one of murmur3, xxhash64");
+    }
+  }
+}
@@ -17,11 +17,14 @@
 
 package org.apache.spark.unsafe.memory;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages memory for an executor. Individual operators / tasks allocate memory through
@@ -29,6 +32,16 @@ import javax.annotation.concurrent.GuardedBy;
  * 
  * 负责具体实现，它管理on-heap和off-heap内存，并实现了一个weak reference pool支持跨tasks的空闲页复用。
  * 一个JVM里仅有一个实例
+ * <p>
+ * Freed blocks whose size is a power of two are retained in a pool so that later allocations of
+ * the same size can skip the allocator; this applies to both on-heap and off-heap memory. The pool
+ * is organized as one lock-free arena per power-of-two size class, fronted by a small per-thread
+ * cache so that task threads rarely touch shared state. The total number of retained bytes is
+ * capped; blocks freed beyond that cap are returned to the allocator ("trimmed").
+ *
+ * 大小为2的幂的空闲内存块会被保留在池中,以便后续相同大小的分配跳过分配器,堆内和堆外内存都适用。
+ * 池按2的幂大小等级组织,每个等级一个无锁arena,前面有一个小的线程本地缓存,
+ * 保留的总字节数有上限,超出上限释放的块会直接还给分配器(即"trim")。
  */
 public class ExecutorMemoryManager {
 
@@ -44,12 +57,54 @@ public class ExecutorMemoryManager {
    */
   final boolean inHeap;
 
-  @GuardedBy("this")
-  private final Map<Long, LinkedList<WeakReference<MemoryBlock>>> bufferPoolsBySize =
-    new HashMap<Long, LinkedList<WeakReference<MemoryBlock>>>();
-
   private static final int POOLING_THRESHOLD_BYTES = 1024 * 1024;
 
+  /** Default cap on the number of bytes retained by the pool. 池保留字节数的默认上限 */
+  public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+  /** Number of blocks of each size class that a single thread may cache. */
+  private static final int THREAD_CACHE_BLOCKS_PER_SIZE_CLASS = 2;
+
+  /** One size class per power of two that fits in a long. */
+  private static final int NUM_SIZE_CLASSES = 64;
+
+  /**
+   * Upper bound on the number of bytes held by the pool, including per-thread caches.
+   * 池(包括线程本地缓存)保留字节数的上限
+   */
+  private final long maxPooledBytes;
+
+  /**
+   * Shared free lists, indexed by size class (log2 of the block size).
+   * 共享空闲列表,以大小等级(块大小的log2)为索引
+   */
+  private final ConcurrentLinkedQueue<MemoryBlock>[] arenas;
+
+  /** Every thread cache created so far, so that pooled memory can be reclaimed from them. */
+  private final ConcurrentLinkedQueue<ThreadCache> threadCaches =
+    new ConcurrentLinkedQueue<ThreadCache>();
+
+  /**
+   * Receives the caches whose owning thread has been garbage collected, so that the memory they
+   * hold is reclaimed without waiting for the pool to fill up.
+   * 接收所属线程已被垃圾回收的缓存,以便无需等到池满即可回收其中的内存
+   */
+  private final ReferenceQueue<Thread> collectedOwners = new ReferenceQueue<Thread>();
+
+  private final ThreadLocal<ThreadCache> localCache = new ThreadLocal<ThreadCache>() {
+    @Override
+    protected ThreadCache initialValue() {
+      final ThreadCache cache = new ThreadCache(Thread.currentThread(), collectedOwners);
+      threadCaches.add(cache);
+      return cache;
+    }
+  };
+
+  private final AtomicLong pooledBytes = new AtomicLong(0L);
+  private final AtomicLong poolHits = new AtomicLong(0L);
+  private final AtomicLong poolMisses = new AtomicLong(0L);
+  private final AtomicLong poolTrims = new AtomicLong(0L);
+
   /**
    * Construct a new ExecutorMemoryManager.
    * 构造一个新的ExecutorMemoryManager
@@ -57,8 +112,28 @@ public class ExecutorMemoryManager {
    * @param allocator the allocator that will be used
    */
   public ExecutorMemoryManager(MemoryAllocator allocator) {
+    this(allocator, DEFAULT_MAX_POOLED_BYTES);
+  }
+
+  /**
+   * Construct a new ExecutorMemoryManager.
+   * 构造一个新的ExecutorMemoryManager
+   *
+   * @param allocator the allocator that will be used
+   * @param maxPooledBytes the maximum number of freed bytes to retain for reuse; 0 disables pooling
+   */
+  @SuppressWarnings("unchecked")
+  public ExecutorMemoryManager(MemoryAllocator allocator, long maxPooledBytes) {
+    if (maxPooledBytes < 0) {
+      throw new IllegalArgumentException("maxPooledBytes must be non-negative: " + maxPooledBytes);
+    }
     this.inHeap = allocator instanceof HeapMemoryAllocator;
     this.allocator = allocator;
+    this.maxPooledBytes = maxPooledBytes;
+    this.arenas = new ConcurrentLinkedQueue[NUM_SIZE_CLASSES];
+    for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+      arenas[i] = new ConcurrentLinkedQueue<MemoryBlock>();
+    }
   }
 
   /**
@@ -67,12 +142,15 @@ public class ExecutorMemoryManager {
    * 如果给定大小的分配应通过池化机制,则返回true,否则返回false
    */
   private boolean shouldPool(long size) {
-    // Very small allocations are less likely to benefit from pooling.
-      //非常小的分配不太可能从池中获益
-    // At some point, we should explore supporting pooling for off-heap memory, but for now we'll
-    // ignore that case in the interest of simplicity.
-      //在某些时候,我们应该探索支持堆栈内存的方式,但是现在我们就为了简单起见而忽视这种情况
-    return size >= POOLING_THRESHOLD_BYTES && allocator instanceof HeapMemoryAllocator;
+    // Very small allocations are less likely to benefit from pooling. Only power-of-two sizes are
+    // pooled so that every block in a size class can satisfy every request for that class without
+    // handing out (and silently consuming) more memory than was asked for.
+    //非常小的分配不太可能从池中获益,只有2的幂大小的块会被池化
+    return maxPooledBytes > 0 && size >= POOLING_THRESHOLD_BYTES && (size & (size - 1)) == 0;
+  }
+
+  private static int sizeClass(long size) {
+    return 63 - Long.numberOfLeadingZeros(size);
   }
 
   /**
@@ -82,20 +160,19 @@ public class ExecutorMemoryManager {
    */
   MemoryBlock allocate(long size) throws OutOfMemoryError {
     if (shouldPool(size)) {
-      synchronized (this) {
-        final LinkedList<WeakReference<MemoryBlock>> pool = bufferPoolsBySize.get(size);
-        if (pool != null) {
-          while (!pool.isEmpty()) {
-            final WeakReference<MemoryBlock> blockReference = pool.pop();
-            final MemoryBlock memory = blockReference.get();
-            if (memory != null) {
-              assert (memory.size() == size);
-              return memory;
-            }
-          }
-          bufferPoolsBySize.remove(size);
-        }
+      releaseCollectedThreadCaches();
+      final int sizeClass = sizeClass(size);
+      MemoryBlock memory = localCache.get().poll(sizeClass);
+      if (memory == null) {
+        memory = arenas[sizeClass].poll();
+      }
+      if (memory != null) {
+        assert (memory.size() == size);
+        pooledBytes.addAndGet(-size);
+        poolHits.incrementAndGet();
+        return memory;
       }
+      poolMisses.incrementAndGet();
       return allocator.allocate(size);
     } else {
       return allocator.allocate(size);
@@ -105,17 +182,163 @@ public class ExecutorMemoryManager {
   void free(MemoryBlock memory) {
     final long size = memory.size();
     if (shouldPool(size)) {
-      synchronized (this) {
-        LinkedList<WeakReference<MemoryBlock>> pool = bufferPoolsBySize.get(size);
-        if (pool == null) {
-          pool = new LinkedList<WeakReference<MemoryBlock>>();
-          bufferPoolsBySize.put(size, pool);
-        }
-        pool.add(new WeakReference<MemoryBlock>(memory));
+      releaseCollectedThreadCaches();
+      if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+        // The pool is full: give the memory back and reclaim anything cached by exited threads.
+        //池已满:将内存归还分配器,并回收已退出线程缓存的内存
+        pooledBytes.addAndGet(-size);
+        poolTrims.incrementAndGet();
+        allocator.free(memory);
+        releaseDeadThreadCaches();
+        return;
+      }
+      // A pooled block may be handed out again by allocate(), so forget its old page number.
+      memory.pageNumber = -1;
+      final int sizeClass = sizeClass(size);
+      if (!localCache.get().offer(sizeClass, memory)) {
+        arenas[sizeClass].add(memory);
       }
     } else {
       allocator.free(memory);
     }
   }
 
+  /**
+   * Returns every pooled block to the allocator. Returns the number of bytes released.
+   * 将所有池化的内存块归还分配器,返回释放的字节数
+   */
+  public long releasePooledMemory() {
+    long released = 0L;
+    for (ThreadCache cache : threadCaches) {
+      released += release(cache.drain());
+    }
+    for (ConcurrentLinkedQueue<MemoryBlock> arena : arenas) {
+      MemoryBlock memory = arena.poll();
+      while (memory != null) {
+        released += release(memory);
+        memory = arena.poll();
+      }
+    }
+    return released;
+  }
+
+  /**
+   * Releases the caches of threads that have been garbage collected. This only polls a reference
+   * queue, so it is cheap enough to do on every pooled allocation and free.
+   */
+  private void releaseCollectedThreadCaches() {
+    Reference<? extends Thread> collected = collectedOwners.poll();
+    while (collected != null) {
+      final ThreadCache cache = (ThreadCache) collected;
+      threadCaches.remove(cache);
+      release(cache.drain());
+      collected = collectedOwners.poll();
+    }
+  }
+
+  /**
+   * Releases the caches of threads that have exited but may not have been garbage collected yet.
+   */
+  private void releaseDeadThreadCaches() {
+    final Iterator<ThreadCache> iter = threadCaches.iterator();
+    while (iter.hasNext()) {
+      final ThreadCache cache = iter.next();
+      if (!cache.isOwnerAlive()) {
+        iter.remove();
+        release(cache.drain());
+      }
+    }
+  }
+
+  private long release(List<MemoryBlock> blocks) {
+    long released = 0L;
+    for (MemoryBlock memory : blocks) {
+      released += release(memory);
+    }
+    return released;
+  }
+
+  private long release(MemoryBlock memory) {
+    pooledBytes.addAndGet(-memory.size());
+    poolTrims.incrementAndGet();
+    allocator.free(memory);
+    return memory.size();
+  }
+
+  /** Returns the number of bytes currently retained by the pool. 返回池当前保留的字节数 */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /** Returns the number of allocations that were served from the pool. 返回从池中命中的分配次数 */
+  public long getPoolHits() {
+    return poolHits.get();
+  }
+
+  /** Returns the number of poolable allocations that missed the pool. 返回未命中池的分配次数 */
+  public long getPoolMisses() {
+    return poolMisses.get();
+  }
+
+  /** Returns the number of blocks freed back to the allocator by the pool. 返回被池释放的块数 */
+  public long getPoolTrims() {
+    return poolTrims.get();
+  }
+
+  /**
+   * A small per-thread stack of free blocks for each size class. Only the owning thread offers
+   * and polls, but other threads drain the cache when reclaiming memory, so access is
+   * synchronized; the lock is uncontended in the common case. The cache weakly references its
+   * owning thread and is enqueued once that thread is garbage collected.
+   * 每个线程针对每个大小等级缓存的少量空闲块
+   */
+  private static final class ThreadCache extends WeakReference<Thread> {
+    private final MemoryBlock[][] blocks = new MemoryBlock[NUM_SIZE_CLASSES][];
+    private final int[] counts = new int[NUM_SIZE_CLASSES];
+
+    ThreadCache(Thread owner, ReferenceQueue<Thread> collectedOwners) {
+      super(owner, collectedOwners);
+    }
+
+    boolean isOwnerAlive() {
+      final Thread thread = get();
+      return thread != null && thread.isAlive();
+    }
+
+    synchronized MemoryBlock poll(int sizeClass) {
+      final int count = counts[sizeClass];
+      if (count == 0) {
+        return null;
+      }
+      final MemoryBlock memory = blocks[sizeClass][count - 1];
+      blocks[sizeClass][count - 1] = null;
+      counts[sizeClass] = count - 1;
+      return memory;
+    }
+
+    synchronized boolean offer(int sizeClass, MemoryBlock memory) {
+      if (blocks[sizeClass] == null) {
+        blocks[sizeClass] = new MemoryBlock[THREAD_CACHE_BLOCKS_PER_SIZE_CLASS];
+      }
+      final int count = counts[sizeClass];
+      if (count == THREAD_CACHE_BLOCKS_PER_SIZE_CLASS) {
+        return false;
+      }
+      blocks[sizeClass][count] = memory;
+      counts[sizeClass] = count + 1;
+      return true;
+    }
+
+    synchronized List<MemoryBlock> drain() {
+      final List<MemoryBlock> drained = new ArrayList<MemoryBlock>();
+      for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+        for (int j = 0; j < counts[i]; j++) {
+          drained.add(blocks[i][j]);
+          blocks[i][j] = null;
+        }
+        counts[i] = 0;
+      }
+      return drained;
+    }
+  }
 }
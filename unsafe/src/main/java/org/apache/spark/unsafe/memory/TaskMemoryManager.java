@@ -18,6 +18,9 @@
 package org.apache.spark.unsafe.memory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
@@ -79,6 +82,9 @@ public class TaskMemoryManager {
   /** The number of entries in the page table.页表中的条目数 */
   private static final int PAGE_TABLE_SIZE = 1 << PAGE_NUMBER_BITS;
 
+  /** The number of 64-bit words in the free-page bitmap. 空闲页位图中64位字的个数 */
+  private static final int PAGE_BITMAP_WORDS = PAGE_TABLE_SIZE / 64;
+
   /**
    * Maximum supported data page size (in bytes). In principle, the maximum addressable page size is
    * (1L &lt;&lt; OFFSET_BITS) bytes, which is 2+ petabytes. However, the on-heap allocator's maximum page
@@ -99,6 +105,26 @@ public class TaskMemoryManager {
    * 位长度为13位的位掩码*/
   private static final long MASK_LONG_UPPER_13_BITS = ~MASK_LONG_LOWER_51_BITS;
 
+  /**
+   * The number of bits used by a compact address, which packs a page number together with a
+   * word-aligned offset so that it can share a long with other data (such as a partial hashcode).
+   * 紧凑地址使用的位数,紧凑地址将页码和按字对齐的偏移量打包在一起,以便与其他数据(如部分哈希码)共享一个long
+   */
+  public static final int COMPACT_ADDRESS_BITS = 37;
+
+  /** The number of bits used to encode word offsets in compact addresses. */
+  private static final int COMPACT_WORD_OFFSET_BITS = COMPACT_ADDRESS_BITS - PAGE_NUMBER_BITS;
+
+  private static final long MASK_COMPACT_WORD_OFFSET = (1L << COMPACT_WORD_OFFSET_BITS) - 1;
+
+  /**
+   * Maximum size of a page whose records are addressed with compact addresses: 2^24 words, or
+   * 128 megabytes. Both on-heap and off-heap pages are supported because compact addresses store
+   * the offset relative to the page's base offset, which is looked up in the page table.
+   * 使用紧凑地址的页面的最大大小:2^24个字,即128MB
+   */
+  public static final long MAXIMUM_COMPACT_PAGE_SIZE_BYTES = (1L << COMPACT_WORD_OFFSET_BITS) * 8;
+
   /**
    * Similar to an operating system's page table, this array maps page numbers into base object
    * pointers, allowing us to translate between the hashtable's internal 64-bit address
@@ -113,17 +139,30 @@ public class TaskMemoryManager {
   private final MemoryBlock[] pageTable = new MemoryBlock[PAGE_TABLE_SIZE];
 
   /**
-   * Bitmap for tracking free pages.
-   * 跟踪免费页面的位图
+   * Bitmap for tracking free pages. Bits are set and cleared with compare-and-swap so that
+   * operators allocating pages concurrently never block each other.
+   * 跟踪免费页面的位图,通过CAS设置和清除位,因此并发分配页面的运算符不会互相阻塞
    */
-  private final BitSet allocatedPages = new BitSet(PAGE_TABLE_SIZE);
+  private final AtomicLongArray allocatedPages = new AtomicLongArray(PAGE_BITMAP_WORDS);
+
+  /**
+   * The bitmap word at which the next search for a free page starts; this is the word that most
+   * recently had a page allocated from it or returned to it, so a search normally succeeds there.
+   * 下一次查找空闲页开始的位图字,即最近分配或释放页面的字,因此查找通常在这里直接成功
+   */
+  private final AtomicInteger freePageSearchHint = new AtomicInteger(0);
+
+  /** The number of pages currently allocated, and the most that were ever allocated at once. */
+  private final AtomicInteger numAllocatedPages = new AtomicInteger(0);
+  private final AtomicInteger peakNumAllocatedPages = new AtomicInteger(0);
 
   /**
    * Tracks memory allocated with {@link TaskMemoryManager#allocate(long)}, used to detect / clean
    * up leaked memory.
    * 跟踪用{@link TaskMemoryManager＃allocate（long）}分配的内存,用于检测/清除泄露的内存
    */
-  private final HashSet<MemoryBlock> allocatedNonPageMemory = new HashSet<MemoryBlock>();
+  private final Set<MemoryBlock> allocatedNonPageMemory =
+    Collections.newSetFromMap(new ConcurrentHashMap<MemoryBlock, Boolean>());
 
   private final ExecutorMemoryManager executorMemoryManager;
 
@@ -156,16 +195,18 @@ public class TaskMemoryManager {
         "Cannot allocate a page with more than " + MAXIMUM_PAGE_SIZE_BYTES + " bytes");
     }
 
-    final int pageNumber;
-    synchronized (this) {
-      pageNumber = allocatedPages.nextClearBit(0);
-      if (pageNumber >= PAGE_TABLE_SIZE) {
-        throw new IllegalStateException(
-          "Have already allocated a maximum of " + PAGE_TABLE_SIZE + " pages");
-      }
-      allocatedPages.set(pageNumber);
+    final int pageNumber = acquirePageNumber();
+    if (pageNumber == -1) {
+      throw new IllegalStateException(
+        "Have already allocated a maximum of " + PAGE_TABLE_SIZE + " pages");
+    }
+    final MemoryBlock page;
+    try {
+      page = executorMemoryManager.allocate(size);
+    } catch (OutOfMemoryError e) {
+      releasePageNumber(pageNumber);
+      throw e;
     }
-    final MemoryBlock page = executorMemoryManager.allocate(size);
     page.pageNumber = pageNumber;
     pageTable[pageNumber] = page;
     if (logger.isTraceEnabled()) {
@@ -181,11 +222,8 @@ public class TaskMemoryManager {
   public void freePage(MemoryBlock page) {
     assert (page.pageNumber != -1) :
       "Called freePage() on memory that wasn't allocated with allocatePage()";
-    assert(allocatedPages.get(page.pageNumber));
     pageTable[page.pageNumber] = null;
-    synchronized (this) {
-      allocatedPages.clear(page.pageNumber);
-    }
+    releasePageNumber(page.pageNumber);
     if (logger.isTraceEnabled()) {
       logger.trace("Freed page number {} ({} bytes)", page.pageNumber, page.size());
     }
@@ -194,6 +232,71 @@ public class TaskMemoryManager {
     executorMemoryManager.free(page);
   }
 
+  /**
+   * Claims a free slot in the page table, or returns -1 if every slot is in use. The search starts
+   * at the hinted bitmap word and claims the lowest clear bit of the first non-full word with a
+   * single CAS, so acquiring a page number is O(1) amortized and lock-free.
+   * 在页表中申请一个空闲槽位,如果所有槽位都已被使用则返回-1
+   */
+  private int acquirePageNumber() {
+    final int startWord = freePageSearchHint.get();
+    for (int i = 0; i < PAGE_BITMAP_WORDS; i++) {
+      final int wordIndex = (startWord + i) & (PAGE_BITMAP_WORDS - 1);
+      long word = allocatedPages.get(wordIndex);
+      while (word != -1L) {
+        final long lowestClearBit = ~word & (word + 1);
+        if (allocatedPages.compareAndSet(wordIndex, word, word | lowestClearBit)) {
+          if (wordIndex != startWord) {
+            freePageSearchHint.set(wordIndex);
+          }
+          updatePeakNumAllocatedPages(numAllocatedPages.incrementAndGet());
+          return (wordIndex << 6) + Long.numberOfTrailingZeros(lowestClearBit);
+        }
+        word = allocatedPages.get(wordIndex);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a page number claimed by {@link #acquirePageNumber()} to the free pool.
+   * 将{@link #acquirePageNumber()}申请的页码归还
+   */
+  private void releasePageNumber(int pageNumber) {
+    final int wordIndex = pageNumber >>> 6;
+    final long mask = 1L << (pageNumber & 63);
+    long word = allocatedPages.get(wordIndex);
+    assert ((word & mask) != 0) : "Page " + pageNumber + " was not allocated";
+    while (!allocatedPages.compareAndSet(wordIndex, word, word & ~mask)) {
+      word = allocatedPages.get(wordIndex);
+    }
+    numAllocatedPages.decrementAndGet();
+    freePageSearchHint.set(wordIndex);
+  }
+
+  private void updatePeakNumAllocatedPages(int current) {
+    int peak = peakNumAllocatedPages.get();
+    while (current > peak && !peakNumAllocatedPages.compareAndSet(peak, current)) {
+      peak = peakNumAllocatedPages.get();
+    }
+  }
+
+  /**
+   * Returns the number of pages currently held in the page table.
+   * 返回页表中当前已分配的页数
+   */
+  public int getNumAllocatedPages() {
+    return numAllocatedPages.get();
+  }
+
+  /**
+   * Returns the largest number of pages that this task has held in its page table at once.
+   * 返回该任务页表中同时持有的最大页数
+   */
+  public int getPeakNumAllocatedPages() {
+    return peakNumAllocatedPages.get();
+  }
+
   /**
    * Allocates a contiguous block of memory. Note that the allocated memory is not guaranteed
    * to be zeroed out (call `zero()` on the result if this is necessary). This method is intended
@@ -211,9 +314,7 @@ public class TaskMemoryManager {
   public MemoryBlock allocate(long size) throws OutOfMemoryError {
     assert(size > 0) : "Size must be positive, but got " + size;
     final MemoryBlock memory = executorMemoryManager.allocate(size);
-    synchronized(allocatedNonPageMemory) {
-      allocatedNonPageMemory.add(memory);
-    }
+    allocatedNonPageMemory.add(memory);
     return memory;
   }
 
@@ -223,11 +324,9 @@ public class TaskMemoryManager {
    */
   public void free(MemoryBlock memory) {
     assert (memory.pageNumber == -1) : "Should call freePage() for pages, not free()";
+    final boolean wasAlreadyRemoved = !allocatedNonPageMemory.remove(memory);
+    assert (!wasAlreadyRemoved) : "Called free() on memory that was already freed!";
     executorMemoryManager.free(memory);
-    synchronized(allocatedNonPageMemory) {
-      final boolean wasAlreadyRemoved = !allocatedNonPageMemory.remove(memory);
-      assert (!wasAlreadyRemoved) : "Called free() on memory that was already freed!";
-    }
   }
 
   /**
@@ -266,6 +365,56 @@ public class TaskMemoryManager {
     return (pagePlusOffsetAddress & MASK_LONG_LOWER_51_BITS);
   }
 
+  /**
+   * Given a memory page and a word-aligned offset within that page, encode this address into
+   * {@link #COMPACT_ADDRESS_BITS} bits. The upper {@code 64 - COMPACT_ADDRESS_BITS} bits of the
+   * result are zero and may be used by the caller. This address will remain valid as long as the
+   * corresponding page has not been freed.
+   * 给定内存页和页内按字对齐的偏移量,将地址编码为COMPACT_ADDRESS_BITS位,结果的高位为0,可以由调用者使用
+   *
+   * @param page a data page allocated by {@link TaskMemoryManager#allocatePage(long)}.
+   * @param offsetInPage an offset in this page which incorporates the base offset, as for
+   *                     {@link #encodePageNumberAndOffset(MemoryBlock, long)}.
+   * @return an encoded compact page address.
+   */
+  public long encodeCompactPageNumberAndOffset(MemoryBlock page, long offsetInPage) {
+    assert (page.pageNumber != -1) : "encodeCompactPageNumberAndOffset called with invalid page";
+    final long relativeOffset = offsetInPage - page.getBaseOffset();
+    assert (relativeOffset % 8 == 0) : "Offset " + relativeOffset + " is not word-aligned";
+    assert (relativeOffset < MAXIMUM_COMPACT_PAGE_SIZE_BYTES) :
+      "Offset " + relativeOffset + " cannot be encoded as a compact address";
+    return (((long) page.pageNumber) << COMPACT_WORD_OFFSET_BITS) | (relativeOffset >>> 3);
+  }
+
+  private MemoryBlock lookupCompactAddressPage(long compactAddress) {
+    final int pageNumber = (int) (compactAddress >>> COMPACT_WORD_OFFSET_BITS);
+    assert (pageNumber >= 0 && pageNumber < PAGE_TABLE_SIZE);
+    final MemoryBlock page = pageTable[pageNumber];
+    assert (page != null);
+    return page;
+  }
+
+  /**
+   * Get the page base object associated with an address encoded by
+   * {@link TaskMemoryManager#encodeCompactPageNumberAndOffset(MemoryBlock, long)}; this is `null`
+   * in off-heap mode.
+   * 获取与紧凑地址相关联的页面基础对象
+   */
+  public Object getCompactAddressPage(long compactAddress) {
+    return inHeap ? lookupCompactAddressPage(compactAddress).getBaseObject() : null;
+  }
+
+  /**
+   * Get the offset associated with an address encoded by
+   * {@link TaskMemoryManager#encodeCompactPageNumberAndOffset(MemoryBlock, long)}. The result
+   * incorporates the page's base offset, so it is an absolute address in off-heap mode.
+   * 获取与紧凑地址相关联的偏移量
+   */
+  public long getCompactAddressOffsetInPage(long compactAddress) {
+    final MemoryBlock page = lookupCompactAddressPage(compactAddress);
+    return page.getBaseOffset() + ((compactAddress & MASK_COMPACT_WORD_OFFSET) << 3);
+  }
+
   /**
    * Get the page associated with an address encoded by
    * {@link TaskMemoryManager#encodePageNumberAndOffset(MemoryBlock, long)}
@@ -322,17 +471,15 @@ public class TaskMemoryManager {
       }
     }
 
-    synchronized (allocatedNonPageMemory) {
-      final Iterator<MemoryBlock> iter = allocatedNonPageMemory.iterator();
-      while (iter.hasNext()) {
-        final MemoryBlock memory = iter.next();
-        freedBytes += memory.size();
-        // We don't call free() here because that calls Set.remove, which would lead to a
-        // ConcurrentModificationException here.
-          //我们不会在这里调用free(),因为它调用Set.remove,这将导致ConcurrentModificationException在这里
-        executorMemoryManager.free(memory);
-        iter.remove();
-      }
+    final Iterator<MemoryBlock> iter = allocatedNonPageMemory.iterator();
+    while (iter.hasNext()) {
+      final MemoryBlock memory = iter.next();
+      freedBytes += memory.size();
+      // Remove through the iterator rather than calling free(), which would look the block up
+      // in the set a second time.
+      //通过迭代器删除,而不是调用free()再次在集合中查找该内存块
+      iter.remove();
+      executorMemoryManager.free(memory);
     }
     return freedBytes;
   }
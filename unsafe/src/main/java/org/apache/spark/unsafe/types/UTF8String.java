@@ -234,6 +234,28 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
     return p;
   }
 
+  /**
+   * Returns bytes 8 to 16 of the string as a 64-bit integer, in the same format as
+   * {@link #getPrefix()}, so that the two together form a 16-byte sort prefix.
+   * 返回字符串的第8到16个字节,与getPrefix()一起构成16字节的排序前缀
+   */
+  public long getSecondPrefix() {
+    final int remaining = numBytes - 8;
+    if (remaining <= 0) {
+      return 0L;
+    }
+    if (remaining >= 8) {
+      final long p = Platform.getLong(base, offset + 8);
+      return isLittleEndian ? java.lang.Long.reverseBytes(p) : p;
+    }
+    // Read the last few bytes one at a time rather than reading past the end of the string.
+    long p = 0;
+    for (int i = 0; i < remaining; i++) {
+      p |= (Platform.getByte(base, offset + 8 + i) & 0xFFL) << (56 - 8 * i);
+    }
+    return p;
+  }
+
   /**
    * Returns the underline bytes, will be a copy of it if it's part of another array.
    * 返回下划线字节,如果它是另一个数组的一部分,它将是它的副本,
@@ -301,17 +323,8 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
    * 返回是否包含“substring”
    */
   public boolean contains(final UTF8String substring) {
-    if (substring.numBytes == 0) {
-      return true;
-    }
-
-    byte first = substring.getByte(0);
-    for (int i = 0; i <= numBytes - substring.numBytes; i++) {
-      if (getByte(i) == first && matchAt(substring, i)) {
-        return true;
-      }
-    }
-    return false;
+    return ByteArrayMethods.indexOf(base, offset, numBytes,
+      substring.base, substring.offset, substring.numBytes) >= 0;
   }
 
   /**
@@ -590,11 +603,20 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
       if (i + v.numBytes > numBytes) {
         return -1;
       }
-      if (ByteArrayMethods.arrayEquals(base, offset + i, v.base, v.offset, v.numBytes)) {
+      // Search the bytes, then count the characters we skipped over. The match has to start at a
+      // character boundary, so keep searching if it starts in the middle of one.
+      //先按字节搜索,再计算跳过的字符数;匹配必须从字符边界开始
+      final int found = find(v, i);
+      if (found < 0) {
+        return -1;
+      }
+      while (i < found) {
+        i += numBytesForFirstByte(getByte(i));
+        c += 1;
+      }
+      if (i == found) {
         return c;
       }
-      i += numBytesForFirstByte(getByte(i));
-      c += 1;
     } while (i < numBytes);
 
     return -1;
@@ -605,13 +627,12 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
    */
   private int find(UTF8String str, int start) {
     assert (str.numBytes > 0);
-    while (start <= numBytes - str.numBytes) {
-      if (ByteArrayMethods.arrayEquals(base, offset + start, str.base, str.offset, str.numBytes)) {
-        return start;
-      }
-      start += 1;
+    if (start > numBytes - str.numBytes) {
+      return -1;
     }
-    return -1;
+    final int found = ByteArrayMethods.indexOf(base, offset + start, numBytes - start,
+      str.base, str.offset, str.numBytes);
+    return found < 0 ? -1 : start + found;
   }
 
   /**
@@ -619,13 +640,8 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
    */
   private int rfind(UTF8String str, int start) {
     assert (str.numBytes > 0);
-    while (start >= 0) {
-      if (ByteArrayMethods.arrayEquals(base, offset + start, str.base, str.offset, str.numBytes)) {
-        return start;
-      }
-      start -= 1;
-    }
-    return -1;
+    return ByteArrayMethods.lastIndexOf(base, offset, numBytes,
+      str.base, str.offset, str.numBytes, start);
   }
 
   /**
@@ -877,16 +893,9 @@ public final class UTF8String implements Comparable<UTF8String>, Externalizable,
 
   @Override
   public int compareTo(@Nonnull final UTF8String other) {
-    int len = Math.min(numBytes, other.numBytes);
-    // TODO: compare 8 bytes as unsigned long
-    for (int i = 0; i < len; i ++) {
-      // In UTF-8, the byte should be unsigned, so we should compare them as unsigned int.
-      int res = (getByte(i) & 0xFF) - (other.getByte(i) & 0xFF);
-      if (res != 0) {
-        return res;
-      }
-    }
-    return numBytes - other.numBytes;
+    // In UTF-8, the byte should be unsigned, so we should compare them as unsigned int.
+    return ByteArrayMethods.compareBytes(
+      base, offset, numBytes, other.base, other.offset, other.numBytes);
   }
 
   public int compare(final UTF8String other) {
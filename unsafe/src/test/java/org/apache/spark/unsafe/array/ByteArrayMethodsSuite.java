@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.unsafe.array;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.apache.spark.unsafe.Platform;
+
+public class ByteArrayMethodsSuite {
+
+  private static final long OFFSET = Platform.BYTE_ARRAY_OFFSET;
+
+  /** The byte-at-a-time search that the bulk methods are checked against. */
+  private static int naiveIndexOf(byte[] text, byte[] pattern) {
+    for (int i = 0; i <= text.length - pattern.length; i++) {
+      int j = 0;
+      while (j < pattern.length && text[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int naiveLastIndexOf(byte[] text, byte[] pattern, int fromIndex) {
+    for (int i = Math.min(fromIndex, text.length - pattern.length); i >= 0; i--) {
+      int j = 0;
+      while (j < pattern.length && text[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int naiveCompare(byte[] left, byte[] right) {
+    for (int i = 0; i < Math.min(left.length, right.length); i++) {
+      int res = (left[i] & 0xFF) - (right[i] & 0xFF);
+      if (res != 0) {
+        return res;
+      }
+    }
+    return left.length - right.length;
+  }
+
+  /** Random bytes from a small alphabet, so that partial matches are frequent. */
+  private static byte[] randomBytes(Random rand, int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (rand.nextInt(3) == 0 ? 0x80 + rand.nextInt(3) : 'a' + rand.nextInt(3));
+    }
+    return bytes;
+  }
+
+  @Test
+  public void indexOfByteFindsTheFirstOccurrence() {
+    byte[] bytes = new byte[40];
+    Assert.assertEquals(-1, ByteArrayMethods.indexOfByte(bytes, OFFSET, bytes.length, (byte) 1));
+    for (int i = bytes.length - 1; i >= 0; i--) {
+      bytes[i] = (byte) 0xFF;
+      Assert.assertEquals(i,
+        ByteArrayMethods.indexOfByte(bytes, OFFSET, bytes.length, (byte) 0xFF));
+    }
+    // A zero byte right before a 0x01 must not be reported one position too late.
+    byte[] ones = new byte[] { 1, 1, 1, 0, 1, 1, 1, 1, 1 };
+    Assert.assertEquals(3, ByteArrayMethods.indexOfByte(ones, OFFSET, ones.length, (byte) 0));
+    Assert.assertEquals(0, ByteArrayMethods.indexOfByte(ones, OFFSET, ones.length, (byte) 1));
+  }
+
+  @Test
+  public void indexOfMatchesNaiveSearch() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 5000; i++) {
+      byte[] text = randomBytes(rand, rand.nextInt(600));
+      byte[] pattern;
+      if (text.length > 0 && rand.nextBoolean()) {
+        int start = rand.nextInt(text.length);
+        int end = start + rand.nextInt(Math.min(text.length - start, 20) + 1);
+        pattern = Arrays.copyOfRange(text, start, end);
+      } else {
+        pattern = randomBytes(rand, rand.nextInt(20));
+      }
+      Assert.assertEquals(naiveIndexOf(text, pattern), ByteArrayMethods.indexOf(
+        text, OFFSET, text.length, pattern, OFFSET, pattern.length));
+      int fromIndex = rand.nextInt(text.length + 1);
+      Assert.assertEquals(naiveLastIndexOf(text, pattern, fromIndex),
+        ByteArrayMethods.lastIndexOf(
+          text, OFFSET, text.length, pattern, OFFSET, pattern.length, fromIndex));
+    }
+  }
+
+  @Test
+  public void compareBytesMatchesNaiveCompare() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 5000; i++) {
+      byte[] left = randomBytes(rand, rand.nextInt(40));
+      byte[] right = rand.nextBoolean() ? left.clone() : randomBytes(rand, rand.nextInt(40));
+      if (right.length > 0 && rand.nextBoolean()) {
+        right[rand.nextInt(right.length)] ^= (byte) 0x81;
+      }
+      Assert.assertEquals(naiveCompare(left, right), ByteArrayMethods.compareBytes(
+        left, OFFSET, left.length, right, OFFSET, right.length));
+    }
+  }
+}
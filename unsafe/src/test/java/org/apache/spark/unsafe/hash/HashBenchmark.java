@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.unsafe.hash;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.spark.unsafe.Platform;
+
+/**
+ * Compares the throughput and collision rate of the hash functions in this package on keys of
+ * different lengths. This is not run as part of the test suite; run it with
+ *
+ *   java -cp ... org.apache.spark.unsafe.hash.HashBenchmark [numKeys]
+ */
+public class HashBenchmark {
+
+  private static final int[] KEY_LENGTHS = { 8, 16, 32, 64, 256, 1024 };
+  private static final int ITERATIONS = 20;
+  private static final UnsafeHasher[] HASHERS = { UnsafeHasher.MURMUR3_32, UnsafeHasher.XXH64 };
+
+  private static long sink = 0;
+
+  public static void main(String[] args) {
+    final int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 16;
+    System.out.printf("%-10s %-10s %15s %12s%n", "length", "hasher", "MB/s", "collisions");
+    for (int length : KEY_LENGTHS) {
+      final byte[][] keys = new byte[numKeys][];
+      final Random rand = new Random(42);
+      for (int i = 0; i < numKeys; i++) {
+        keys[i] = new byte[length];
+        rand.nextBytes(keys[i]);
+      }
+      for (UnsafeHasher hasher : HASHERS) {
+        // Warm up before timing.
+        hashAll(hasher, keys);
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+          hashAll(hasher, keys);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final double megabytes = (double) ITERATIONS * numKeys * length / (1024 * 1024);
+        System.out.printf("%-10d %-10s %15.1f %12d%n",
+          length, hasher, megabytes / seconds, collisions(hasher, keys));
+      }
+    }
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  private static void hashAll(UnsafeHasher hasher, byte[][] keys) {
+    long sum = 0;
+    for (byte[] key : keys) {
+      sum += hasher.hashUnsafeWords(key, Platform.BYTE_ARRAY_OFFSET, key.length);
+    }
+    sink += sum;
+  }
+
+  /**
+   * Counts the keys whose hash collides with that of an earlier key.
+   */
+  private static int collisions(UnsafeHasher hasher, byte[][] keys) {
+    final Set<Long> hashes = new HashSet<Long>();
+    int collisions = 0;
+    for (byte[] key : keys) {
+      if (!hashes.add(hasher.hashUnsafeWords(key, Platform.BYTE_ARRAY_OFFSET, key.length))) {
+        collisions++;
+      }
+    }
+    return collisions;
+  }
+}
@@ -94,6 +94,69 @@ public class Murmur3_x86_32Suite {
     Assert.assertTrue(hashcodes.size() > size * 0.95);
   }
 
+  /**
+   * The original implementation of hashUnsafeWords, which reads one 4-byte block at a time.
+   */
+  private static int hashUnsafeWordsByInt(byte[] bytes, int seed) {
+    int h1 = seed;
+    for (int i = 0; i < bytes.length; i += 4) {
+      int k1 = Platform.getInt(bytes, Platform.BYTE_ARRAY_OFFSET + i);
+      k1 *= 0xcc9e2d51;
+      k1 = Integer.rotateLeft(k1, 15);
+      k1 *= 0x1b873593;
+      h1 ^= k1;
+      h1 = Integer.rotateLeft(h1, 13);
+      h1 = h1 * 5 + 0xe6546b64;
+    }
+    h1 ^= bytes.length;
+    h1 ^= h1 >>> 16;
+    h1 *= 0x85ebca6b;
+    h1 ^= h1 >>> 13;
+    h1 *= 0xc2b2ae35;
+    h1 ^= h1 >>> 16;
+    return h1;
+  }
+
+  @Test
+  public void hashUnsafeWordsIsUnchangedByWordAtATimeLoads() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      byte[] bytes = new byte[rand.nextInt(64) * 8];
+      rand.nextBytes(bytes);
+      int seed = rand.nextInt();
+      Assert.assertEquals(
+        hashUnsafeWordsByInt(bytes, seed),
+        Murmur3_x86_32.hashUnsafeWords(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length, seed));
+    }
+  }
+
+  @Test
+  public void hashUnsafeBytesMatchesHashUnsafeWordsOnWords() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      byte[] bytes = new byte[rand.nextInt(64) * 8];
+      rand.nextBytes(bytes);
+      Assert.assertEquals(
+        hasher.hashUnsafeWords(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length),
+        hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length));
+    }
+  }
+
+  @Test
+  public void hashUnsafeBytesCoversEveryTrailingByte() {
+    byte[] bytes = new byte[15];
+    Set<Integer> hashcodes = new HashSet<Integer>();
+    for (int length = 0; length <= bytes.length; length++) {
+      hashcodes.add(hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, length));
+    }
+    // Zero bytes of different lengths must not collide.
+    Assert.assertEquals(bytes.length + 1, hashcodes.size());
+    int before = hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length);
+    bytes[bytes.length - 1] = 1;
+    Assert.assertTrue(
+      before != hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length));
+  }
+
   @Test
   public void randomizedStressTestPaddedStrings() {
     int size = 64000;
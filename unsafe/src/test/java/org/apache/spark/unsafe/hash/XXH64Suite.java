@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.unsafe.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+import org.apache.spark.unsafe.Platform;
+import org.junit.Test;
+
+/**
+ * Test vectors are from the reference xxHash implementation.
+ */
+public class XXH64Suite {
+
+  private static final XXH64 hasher = new XXH64(0);
+
+  private static long hash(String s) {
+    byte[] bytes = s.getBytes();
+    return hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length);
+  }
+
+  @Test
+  public void testKnownByteArrayInputs() {
+    Assert.assertEquals(0xEF46DB3751D8E999L, hash(""));
+    Assert.assertEquals(0xD24EC4F1A98C6E5BL, hash("a"));
+    Assert.assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+    Assert.assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+  }
+
+  @Test
+  public void hashIntAndHashLongMatchHashingTheirBytes() {
+    Random rand = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      int vint = rand.nextInt();
+      long vlong = rand.nextLong();
+      byte[] intBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(vint).array();
+      byte[] longBytes =
+        ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(vlong).array();
+      Assert.assertEquals(
+        hasher.hashUnsafeBytes(intBytes, Platform.BYTE_ARRAY_OFFSET, 4), hasher.hashInt(vint));
+      Assert.assertEquals(
+        hasher.hashUnsafeBytes(longBytes, Platform.BYTE_ARRAY_OFFSET, 8), hasher.hashLong(vlong));
+    }
+  }
+
+  @Test
+  public void seedChangesTheHash() {
+    byte[] bytes = new byte[40];
+    Assert.assertTrue(
+      XXH64.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length, 0L) !=
+      XXH64.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, bytes.length, 1L));
+  }
+
+  @Test
+  public void hashIsIndependentOfAlignment() {
+    Random rand = new Random(42);
+    byte[] bytes = new byte[200];
+    rand.nextBytes(bytes);
+    for (int length = 0; length < 100; length++) {
+      long expected = hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, length);
+      for (int shift = 1; shift < 8; shift++) {
+        byte[] shifted = new byte[length + shift];
+        System.arraycopy(bytes, 0, shifted, shift, length);
+        Assert.assertEquals(expected,
+          hasher.hashUnsafeBytes(shifted, Platform.BYTE_ARRAY_OFFSET + shift, length));
+      }
+    }
+  }
+
+  @Test
+  public void randomizedStressTestBytes() {
+    int size = 65536;
+    Random rand = new Random();
+
+    // A set used to track collision rate.
+    Set<Long> hashcodes = new HashSet<Long>();
+    for (int i = 0; i < size; i++) {
+      int byteArrSize = rand.nextInt(100);
+      byte[] bytes = new byte[byteArrSize];
+      rand.nextBytes(bytes);
+
+      Assert.assertEquals(
+        hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, byteArrSize),
+        hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, byteArrSize));
+
+      hashcodes.add(hasher.hashUnsafeBytes(bytes, Platform.BYTE_ARRAY_OFFSET, byteArrSize));
+    }
+
+    // A very loose bound.
+    Assert.assertTrue(hashcodes.size() > size * 0.95);
+  }
+
+  @Test
+  public void randomizedStressTestPaddedStrings() {
+    int size = 64000;
+    // A set used to track collision rate.
+    Set<Long> hashcodes = new HashSet<Long>();
+    for (int i = 0; i < size; i++) {
+      int byteArrSize = 8;
+      byte[] strBytes = ("" + i).getBytes();
+      byte[] paddedBytes = new byte[byteArrSize];
+      System.arraycopy(strBytes, 0, paddedBytes, 0, strBytes.length);
+
+      hashcodes.add(hasher.hashUnsafeBytes(
+        paddedBytes, Platform.BYTE_ARRAY_OFFSET, byteArrSize));
+    }
+
+    // With 64 bits there should be no collisions at all on this input.
+    Assert.assertEquals(size, hashcodes.size());
+  }
+}
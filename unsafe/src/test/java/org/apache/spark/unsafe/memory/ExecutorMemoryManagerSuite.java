@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.spark.unsafe.memory;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExecutorMemoryManagerSuite {
+
+  private static final long ONE_MB = 1024 * 1024;
+
+  private void freedPowerOfTwoBlocksAreReused(MemoryAllocator allocator) {
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(allocator);
+    final MemoryBlock first = manager.allocate(ONE_MB);
+    manager.free(first);
+    Assert.assertEquals(ONE_MB, manager.getPooledBytes());
+    final MemoryBlock second = manager.allocate(ONE_MB);
+    Assert.assertSame(first, second);
+    Assert.assertEquals(1, manager.getPoolHits());
+    Assert.assertEquals(1, manager.getPoolMisses());
+    Assert.assertEquals(0, manager.getPooledBytes());
+    manager.free(second);
+    Assert.assertEquals(ONE_MB, manager.releasePooledMemory());
+  }
+
+  @Test
+  public void freedPowerOfTwoBlocksAreReusedOnHeap() {
+    freedPowerOfTwoBlocksAreReused(MemoryAllocator.HEAP);
+  }
+
+  @Test
+  public void freedPowerOfTwoBlocksAreReusedOffHeap() {
+    freedPowerOfTwoBlocksAreReused(MemoryAllocator.UNSAFE);
+  }
+
+  @Test
+  public void otherSizesAreNotPooled() {
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(MemoryAllocator.HEAP);
+    manager.free(manager.allocate(ONE_MB + 8));
+    manager.free(manager.allocate(4096));
+    Assert.assertEquals(0, manager.getPooledBytes());
+    Assert.assertEquals(0, manager.getPoolMisses());
+  }
+
+  @Test
+  public void poolIsTrimmedAtCapacity() {
+    final ExecutorMemoryManager manager =
+      new ExecutorMemoryManager(MemoryAllocator.UNSAFE, 2 * ONE_MB);
+    final MemoryBlock a = manager.allocate(ONE_MB);
+    final MemoryBlock b = manager.allocate(ONE_MB);
+    final MemoryBlock c = manager.allocate(ONE_MB);
+    manager.free(a);
+    manager.free(b);
+    manager.free(c);
+    Assert.assertEquals(2 * ONE_MB, manager.getPooledBytes());
+    Assert.assertEquals(1, manager.getPoolTrims());
+    Assert.assertEquals(2 * ONE_MB, manager.releasePooledMemory());
+    Assert.assertEquals(0, manager.getPooledBytes());
+  }
+
+  @Test
+  public void blocksFreedByOtherThreadsAreShared() throws InterruptedException {
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(MemoryAllocator.HEAP);
+    final MemoryBlock[] blocks = new MemoryBlock[4];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = manager.allocate(ONE_MB);
+    }
+    // The freeing thread can only cache a couple of blocks; the rest go to the shared arena.
+    final Thread freer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (MemoryBlock block : blocks) {
+          manager.free(block);
+        }
+      }
+    });
+    freer.start();
+    freer.join();
+    Assert.assertNotNull(manager.allocate(ONE_MB));
+    Assert.assertEquals(1, manager.getPoolHits());
+  }
+
+  private static void freeOnNewThread(final ExecutorMemoryManager manager, final MemoryBlock block)
+      throws InterruptedException {
+    final Thread freer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        manager.free(block);
+      }
+    });
+    freer.start();
+    freer.join();
+  }
+
+  @Test
+  public void cachesOfCollectedThreadsAreReleased() throws InterruptedException {
+    final ExecutorMemoryManager manager = new ExecutorMemoryManager(MemoryAllocator.HEAP);
+    // The block stays in the exited thread's cache until that thread is garbage collected.
+    freeOnNewThread(manager, manager.allocate(ONE_MB));
+    Assert.assertEquals(ONE_MB, manager.getPooledBytes());
+    for (int i = 0; i < 100 && manager.getPoolTrims() == 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+      // Any pooled allocation or free releases the caches of collected threads.
+      manager.free(manager.allocate(2 * ONE_MB));
+    }
+    Assert.assertEquals(1, manager.getPoolTrims());
+    Assert.assertEquals(2 * ONE_MB, manager.getPooledBytes());
+  }
+
+  @Test
+  public void pooledPagesCanBeReallocatedAsNonPageMemory() {
+    final TaskMemoryManager taskManager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    taskManager.freePage(taskManager.allocatePage(ONE_MB));
+    final MemoryBlock memory = taskManager.allocate(ONE_MB);
+    taskManager.free(memory);
+    Assert.assertEquals(0, taskManager.cleanUpAllAllocatedMemory());
+  }
+}
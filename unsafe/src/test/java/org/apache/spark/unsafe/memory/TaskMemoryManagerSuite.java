@@ -75,4 +75,56 @@ public class TaskMemoryManagerSuite {
     Assert.assertEquals(64, manager.getOffsetInPage(encodedAddress));
   }
 
+  @Test
+  public void freedPageNumbersAreReused() {
+    final TaskMemoryManager manager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    final MemoryBlock[] pages = new MemoryBlock[200];
+    for (int i = 0; i < pages.length; i++) {
+      pages[i] = manager.allocatePage(8);
+      Assert.assertEquals(i, pages[i].pageNumber);
+    }
+    manager.freePage(pages[100]);
+    Assert.assertEquals(100, manager.allocatePage(8).pageNumber);
+    Assert.assertEquals(200, manager.getNumAllocatedPages());
+    Assert.assertEquals(200, manager.getPeakNumAllocatedPages());
+    Assert.assertEquals(200 * 8, manager.cleanUpAllAllocatedMemory());
+    Assert.assertEquals(0, manager.getNumAllocatedPages());
+    Assert.assertEquals(200, manager.getPeakNumAllocatedPages());
+  }
+
+  @Test
+  public void pageTableCanBeFilled() {
+    final TaskMemoryManager manager =
+      new TaskMemoryManager(new ExecutorMemoryManager(MemoryAllocator.HEAP));
+    for (int i = 0; i < 8192; i++) {
+      manager.allocatePage(8);
+    }
+    try {
+      manager.allocatePage(8);
+      Assert.fail("Expected the page table to be full");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    Assert.assertEquals(8192 * 8, manager.cleanUpAllAllocatedMemory());
+  }
+
+  @Test
+  public void encodeCompactPageNumberAndOffset() {
+    final MemoryAllocator[] allocators = { MemoryAllocator.HEAP, MemoryAllocator.UNSAFE };
+    for (MemoryAllocator allocator : allocators) {
+      final TaskMemoryManager manager =
+        new TaskMemoryManager(new ExecutorMemoryManager(allocator));
+      manager.allocatePage(64);
+      final MemoryBlock dataPage = manager.allocatePage(256);
+      final long compactAddress =
+        manager.encodeCompactPageNumberAndOffset(dataPage, dataPage.getBaseOffset() + 64);
+      Assert.assertEquals(0L, compactAddress >>> TaskMemoryManager.COMPACT_ADDRESS_BITS);
+      Assert.assertEquals(dataPage.getBaseObject(), manager.getCompactAddressPage(compactAddress));
+      Assert.assertEquals(dataPage.getBaseOffset() + 64,
+        manager.getCompactAddressOffsetInPage(compactAddress));
+      Assert.assertEquals(64 + 256, manager.cleanUpAllAllocatedMemory());
+    }
+  }
+
 }
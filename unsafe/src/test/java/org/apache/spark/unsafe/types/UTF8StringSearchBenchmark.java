@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.spark.unsafe.types;
+
+import java.util.Random;
+
+import org.apache.spark.unsafe.Platform;
+
+/**
+ * Compares {@link UTF8String#contains} and {@link UTF8String#compareTo} against the byte-at-a-time
+ * loops they replaced, on log-like text. This is not run as part of the test suite; run it with
+ *
+ *   java -cp ... org.apache.spark.unsafe.types.UTF8StringSearchBenchmark
+ */
+public class UTF8StringSearchBenchmark {
+
+  private static final int NUM_STRINGS = 10000;
+  private static final int ITERATIONS = 50;
+  private static final int[] TEXT_LENGTHS = { 16, 64, 256, 1024 };
+  private static final String[] PATTERNS = { "x", "ERROR", "connection refused by peer" };
+
+  private static long sink = 0;
+
+  private static boolean oldContains(UTF8String text, UTF8String pattern) {
+    final Object base = text.getBaseObject();
+    final long offset = text.getBaseOffset();
+    final Object patternBase = pattern.getBaseObject();
+    final long patternOffset = pattern.getBaseOffset();
+    final int n = text.numBytes();
+    final int m = pattern.numBytes();
+    final byte first = Platform.getByte(patternBase, patternOffset);
+    for (int i = 0; i <= n - m; i++) {
+      if (Platform.getByte(base, offset + i) == first) {
+        int j = 1;
+        while (j < m && Platform.getByte(base, offset + i + j) ==
+            Platform.getByte(patternBase, patternOffset + j)) {
+          j++;
+        }
+        if (j == m) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int oldCompareTo(UTF8String left, UTF8String right) {
+    final int len = Math.min(left.numBytes(), right.numBytes());
+    for (int i = 0; i < len; i++) {
+      final int res = (Platform.getByte(left.getBaseObject(), left.getBaseOffset() + i) & 0xFF) -
+        (Platform.getByte(right.getBaseObject(), right.getBaseOffset() + i) & 0xFF);
+      if (res != 0) {
+        return res;
+      }
+    }
+    return left.numBytes() - right.numBytes();
+  }
+
+  private static UTF8String[] logLines(Random rand, int length) {
+    final String alphabet = "abcdefghijklmnopqrstuvw 0123456789:/.-";
+    final UTF8String[] lines = new UTF8String[NUM_STRINGS];
+    for (int i = 0; i < NUM_STRINGS; i++) {
+      final StringBuilder sb = new StringBuilder(length);
+      for (int j = 0; j < length; j++) {
+        sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+      }
+      lines[i] = UTF8String.fromString(sb.toString());
+    }
+    return lines;
+  }
+
+  private static void report(String name, int length, long startNs) {
+    final double seconds = (System.nanoTime() - startNs) / 1e9;
+    final double megabytes = (double) ITERATIONS * NUM_STRINGS * length / (1024 * 1024);
+    System.out.printf("%-52s %8d %12.1f%n", name, length, megabytes / seconds);
+  }
+
+  public static void main(String[] args) {
+    System.out.printf("%-52s %8s %12s%n", "case", "length", "MB/s");
+    final Random rand = new Random(42);
+    for (int length : TEXT_LENGTHS) {
+      final UTF8String[] lines = logLines(rand, length);
+      // Identical copies, so that compareTo has to look at every byte.
+      final UTF8String[] copies = new UTF8String[NUM_STRINGS];
+      for (int i = 0; i < NUM_STRINGS; i++) {
+        copies[i] = lines[i].clone();
+      }
+      for (String p : PATTERNS) {
+        final UTF8String pattern = UTF8String.fromString(p);
+        for (int warmup = 0; warmup < 2; warmup++) {
+          long start = System.nanoTime();
+          for (int i = 0; i < ITERATIONS; i++) {
+            for (UTF8String line : lines) {
+              sink += oldContains(line, pattern) ? 1 : 0;
+            }
+          }
+          if (warmup == 1) {
+            report("byte loop contains(\"" + p + "\")", length, start);
+          }
+          start = System.nanoTime();
+          for (int i = 0; i < ITERATIONS; i++) {
+            for (UTF8String line : lines) {
+              sink += line.contains(pattern) ? 1 : 0;
+            }
+          }
+          if (warmup == 1) {
+            report("UTF8String.contains(\"" + p + "\")", length, start);
+          }
+        }
+      }
+      for (int warmup = 0; warmup < 2; warmup++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+          for (int j = 0; j < NUM_STRINGS; j++) {
+            sink += oldCompareTo(lines[j], copies[j]);
+          }
+        }
+        if (warmup == 1) {
+          report("byte loop compareTo", length, start);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+          for (int j = 0; j < NUM_STRINGS; j++) {
+            sink += lines[j].compareTo(copies[j]);
+          }
+        }
+        if (warmup == 1) {
+          report("UTF8String.compareTo", length, start);
+        }
+      }
+    }
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+}
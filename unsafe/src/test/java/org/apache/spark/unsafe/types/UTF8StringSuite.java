@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.UnsignedLongs;
 import org.junit.Test;
 
 import static junit.framework.Assert.*;
@@ -50,6 +51,13 @@ public class UTF8StringSuite {
     assertEquals(s1.endsWith(s1), true);
   }
 
+  @Test
+  public void hashCodeIsStable() {
+    // Partitioners and generic rows rely on hashCode(), so it must not change between releases.
+    assertEquals(1, EMPTY_UTF8.hashCode());
+    assertEquals(127791473, fromString("hello").hashCode());
+  }
+
   @Test
   public void basicTest() throws UnsupportedEncodingException {
     checkBasic("", 0);
@@ -83,6 +91,24 @@ public class UTF8StringSuite {
     assertEquals(str1.getPrefix(), str3.getPrefix());
   }
 
+  @Test
+  public void secondPrefix() {
+    assertEquals(0L, fromString("").getSecondPrefix());
+    assertEquals(0L, fromString("abcdefgh").getSecondPrefix());
+    assertEquals(fromString("a").getPrefix(), fromString("12345678a").getSecondPrefix());
+    assertEquals(fromString("abcdefgh").getPrefix(),
+      fromString("12345678abcdefghij").getSecondPrefix());
+    assertTrue(UnsignedLongs.compare(fromString("https://apache.org").getSecondPrefix(),
+      fromString("https://spark.apache.org").getSecondPrefix()) < 0);
+
+    // Must not look at bytes past the end of a string that is a slice of a larger array.
+    byte[] buf = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+    UTF8String str1 = UTF8String.fromBytes(buf, 0, 10);
+    UTF8String str2 = UTF8String.fromBytes(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+    assertEquals(str1.getSecondPrefix(), str2.getSecondPrefix());
+    assertEquals(0x090A000000000000L, str1.getSecondPrefix());
+  }
+
   @Test
   public void compareTo() {
     assertTrue(fromString("").compareTo(fromString("a")) < 0);
@@ -96,6 +122,12 @@ public class UTF8StringSuite {
     assertTrue(fromString("abc").compareTo(fromString("世界")) < 0);
     assertTrue(fromString("你好").compareTo(fromString("世界")) > 0);
     assertTrue(fromString("你好123").compareTo(fromString("你好122")) > 0);
+
+    // Strings that differ after the first word, and bytes above 0x7F within a word.
+    assertEquals(1, fromString("abcdefghj").compareTo(fromString("abcdefghi")));
+    assertEquals(-1, fromString("abcdefgh世").compareTo(fromString("abcdefgh丗")));
+    assertEquals(3, fromString("abcdefghijk").compareTo(fromString("abcdefgh")));
+    assertTrue(fromString("abcdefg\u00ff").compareTo(fromString("abcdefga")) > 0);
   }
 
   protected void testUpperandLower(String upper, String lower) {
@@ -181,6 +213,18 @@ public class UTF8StringSuite {
     assertTrue(fromString("大千世界").contains(fromString("千世界")));
     assertFalse(fromString("大千世界").contains(fromString("世千")));
     assertFalse(fromString("大千世界").contains(fromString("大千世界好")));
+
+    // Long enough to use the word-at-a-time and skip-table searches.
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("abcdefg数据");
+    }
+    UTF8String text = fromString(sb.toString() + "the needle in the haystack");
+    assertTrue(text.contains(fromString("needle in the")));
+    assertTrue(text.contains(fromString("haystack")));
+    assertTrue(text.contains(fromString("g数据abc")));
+    assertFalse(text.contains(fromString("needle in a")));
+    assertFalse(text.contains(fromString("abcdefg数据abcdefg数据x")));
   }
 
   @Test
@@ -248,6 +292,16 @@ public class UTF8StringSuite {
     assertEquals(-1, fromString("数据砖头").indexOf(fromString("数"), 3));
     assertEquals(0, fromString("数据砖头").indexOf(fromString("数"), 0));
     assertEquals(3, fromString("数据砖头").indexOf(fromString("头"), 0));
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("数据砖头");
+    }
+    String text = sb.toString() + "needle in the haystack";
+    assertEquals(400, fromString(text).indexOf(fromString("needle in the"), 0));
+    assertEquals(400, fromString(text).indexOf(fromString("needle in the"), 400));
+    assertEquals(-1, fromString(text).indexOf(fromString("needle in the"), 401));
+    assertEquals(5, fromString(text).indexOf(fromString("据"), 2));
   }
 
   @Test